@@ -0,0 +1,96 @@
+package com.futujaos.kvstorage.benchmarks;
+
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap allocation of write path and of recovery scan, run with GC profiler:
+ * <pre>
+ * ./gradlew jmh -PjmhArgs='AllocationBenchmark -prof gc'
+ * </pre>
+ * {@code gc.alloc.rate.norm} is bytes allocated per written key for {@code persist}, and per replayed entry
+ * for {@code replay}. Compaction is disabled, so only writes are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationBenchmark {
+    static final int REPLAY_KEYS = 100000;
+
+    @Param({"100", "1000"})
+    int valueLength;
+
+    @Param({"OFFSETS", "VALUES"})
+    KVStorageConfig.IndexMode indexMode;
+
+    private File directory;
+    private KVStorageConfig replayConfig;
+    private KVStorage storage;
+    private byte[] writtenValue;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Random random = new Random(42);
+        directory = BenchmarkStorage.createDirectory();
+        final KVStorageConfig config = BenchmarkStorage.config(directory)
+                .withIndexMode(indexMode)
+                .withHintFile(false)
+                .withCompactionGarbageRatio(1.0);
+        storage = KVStorageFactory.openStorage(config);
+        writtenValue = BenchmarkStorage.value(random, valueLength);
+
+        // Separate storage, replayed from log on every open
+        final File replayDirectory = new File(directory, "replay");
+        replayDirectory.mkdirs();
+        replayConfig = config.withFilePaths(
+                new File(replayDirectory, "storage.kvs").getPath(),
+                new File(replayDirectory, "storage.kvs.meta").getPath()
+        );
+        try (KVStorage replayStorage = KVStorageFactory.openStorage(replayConfig)) {
+            BenchmarkStorage.fill(replayStorage, REPLAY_KEYS, valueLength, random);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.close();
+        BenchmarkStorage.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void persist() throws IOException {
+        storage.persist(ThreadLocalRandom.current().nextInt(REPLAY_KEYS), writtenValue);
+    }
+
+    // Opens storage, which replays whole log, and closes it.
+    @Benchmark
+    @OperationsPerInvocation(REPLAY_KEYS)
+    public long replay() throws IOException {
+        try (KVStorage replayStorage = KVStorageFactory.openStorage(replayConfig)) {
+            return replayStorage.getStats().getKeyCount();
+        }
+    }
+}
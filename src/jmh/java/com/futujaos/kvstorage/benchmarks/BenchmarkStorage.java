@@ -0,0 +1,71 @@
+package com.futujaos.kvstorage.benchmarks;
+
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Storage files and data, shared by benchmarks.
+ */
+final class BenchmarkStorage {
+    private static final int FILL_BATCH_SIZE = 10000;
+    private static final int VALUE_ALPHABET = 16; // values have 4 bits of entropy per byte, as real payloads
+
+    private BenchmarkStorage() {
+    }
+
+    /**
+     * Creates temporary directory for storage files.
+     */
+    static File createDirectory() throws IOException {
+        return Files.createTempDirectory("kvstorage-benchmark").toFile();
+    }
+
+    /**
+     * Deletes directory with storage files, including segments directory.
+     */
+    static void deleteDirectory(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDirectory(file);
+            }
+        }
+        directory.delete();
+    }
+
+    static KVStorageConfig config(File directory) {
+        return KVStorageConfig.create(
+                new File(directory, "storage.kvs").getPath(),
+                new File(directory, "storage.kvs.meta").getPath()
+        );
+    }
+
+    static byte[] value(Random random, int length) {
+        final byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) ('a' + random.nextInt(VALUE_ALPHABET));
+        }
+        return value;
+    }
+
+    /**
+     * Persists values of keys from 0 to key count.
+     */
+    static void fill(KVStorage storage, int keyCount, int valueLength, Random random) throws IOException {
+        WriteBatch batch = new WriteBatch();
+        for (int key = 0; key < keyCount; key++) {
+            batch.persist(key, value(random, valueLength));
+            if (batch.size() == FILL_BATCH_SIZE) {
+                storage.persistAll(batch);
+                batch = new WriteBatch();
+            }
+        }
+        storage.persistAll(batch);
+    }
+}
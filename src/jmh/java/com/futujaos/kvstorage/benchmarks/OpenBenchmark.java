@@ -0,0 +1,91 @@
+package com.futujaos.kvstorage.benchmarks;
+
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to open existing storage: index is loaded from hint file, or recovered by replay of whole log
+ * when hint file is disabled. Replay is run by specified count of recovery threads.
+ * <p>
+ * Every measured iteration opens storage once, storage is closed outside of measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class OpenBenchmark {
+    @Param({"100000", "1000000"})
+    int keyCount;
+
+    @Param({"100", "1000"})
+    int valueLength;
+
+    @Param({"VALUES", "OFFSETS"})
+    KVStorageConfig.IndexMode indexMode;
+
+    @Param({"true", "false"})
+    boolean hintFile;
+
+    @Param({"0"})
+    long segmentSize;
+
+    @Param({"1", "2", "4", "8"})
+    int recoveryThreads;
+
+    private File directory;
+    private KVStorageConfig config;
+    private KVStorage storage; // opened by last iteration
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkStorage.createDirectory();
+        config = BenchmarkStorage.config(directory)
+                .withIndexMode(indexMode)
+                .withHintFile(hintFile)
+                .withSegmentSize(segmentSize)
+                .withRecoveryThreads(recoveryThreads);
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            BenchmarkStorage.fill(storage, keyCount, valueLength, new Random(42));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeStorage() throws IOException {
+        if (storage != null) {
+            storage.close();
+            storage = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkStorage.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public KVStorage open() throws IOException {
+        storage = KVStorageFactory.openStorage(config);
+        return storage;
+    }
+}
@@ -0,0 +1,100 @@
+package com.futujaos.kvstorage.benchmarks;
+
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-key reads and writes of uniformly random keys, mixed in specified proportion.
+ * <p>
+ * Reports throughput and latency distribution (p50, p90, p99, p999) of single operation.
+ * Storage is opened for concurrent access, so it may be run in several threads with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ReadWriteBenchmark {
+    private static final int WRITTEN_VALUES = 64;
+
+    @Param({"10000", "1000000"})
+    int keyCount;
+
+    @Param({"16", "256", "2048"})
+    int valueLength;
+
+    @Param({"100", "90", "50", "0"})
+    int readPercent;
+
+    @Param({"VALUES", "OFFSETS"})
+    KVStorageConfig.IndexMode indexMode;
+
+    @Param({"NONE"})
+    KVStorageConfig.Compression compression;
+
+    @Param({"NONE"})
+    KVStorageConfig.DurabilityMode durabilityMode;
+
+    @Param({"LOG"})
+    KVStorageConfig.Engine engine;
+
+    private File directory;
+    private KVStorage storage;
+    private byte[][] writtenValues;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Random random = new Random(42);
+        directory = BenchmarkStorage.createDirectory();
+        final KVStorageConfig config = BenchmarkStorage.config(directory)
+                .withIndexMode(indexMode)
+                .withCompression(compression)
+                .withDurabilityMode(durabilityMode)
+                .withEngine(engine);
+        storage = KVStorageFactory.openConcurrentStorage(config);
+        BenchmarkStorage.fill(storage, keyCount, valueLength, random);
+
+        writtenValues = new byte[WRITTEN_VALUES][];
+        for (int i = 0; i < WRITTEN_VALUES; i++) {
+            writtenValues[i] = BenchmarkStorage.value(random, valueLength);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.close();
+        BenchmarkStorage.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public Object operation() throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int key = random.nextInt(keyCount);
+        if (random.nextInt(100) < readPercent) {
+            return storage.read(key);
+        }
+        final byte[] value = writtenValues[random.nextInt(WRITTEN_VALUES)];
+        storage.persist(key, value);
+        return value;
+    }
+}
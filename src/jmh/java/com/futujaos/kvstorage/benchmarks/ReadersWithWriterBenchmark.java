@@ -0,0 +1,168 @@
+package com.futujaos.kvstorage.benchmarks;
+
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of storage in several threads, while single thread keeps overwriting random keys.
+ * <p>
+ * Concurrent storage is compared with baseline of single-threaded storage, shared by all threads under global
+ * lock. Reports read and write throughput and latency distributions separately, so latency of reads, blocked
+ * by writes, shows in p99.
+ * <p>
+ * Count of reader threads is set with {@code -tg <readers>,1}. {@link #main(String[])} runs the benchmark for
+ * 1, 2, 4, .. readers up to count of cores and prints read throughput of both storages for every count,
+ * so scaling of reads with cores comes out of single run. Reads through value cache are measured
+ * with {@code -p valueCacheBytes=<budget>}:
+ * <pre>
+ * ./gradlew jmh -PjmhMain=com.futujaos.kvstorage.benchmarks.ReadersWithWriterBenchmark [-PjmhArgs='JMH options']
+ * </pre>
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadersWithWriterBenchmark {
+    private static final String GROUP = "readersWithWriter";
+
+    public enum Locking {
+        GLOBAL_LOCK, // single-threaded storage, every call is synchronized on storage
+        CONCURRENT
+    }
+
+    @Param({"GLOBAL_LOCK", "CONCURRENT"})
+    Locking locking;
+
+    @Param({"100000"})
+    int keyCount;
+
+    @Param({"100"})
+    int valueLength;
+
+    @Param({"OFFSETS"})
+    KVStorageConfig.IndexMode indexMode;
+
+    @Param({"false", "true"})
+    boolean memoryMappedReads;
+
+    @Param({"0"})
+    long valueCacheBytes;
+
+    private File directory;
+    private KVStorage storage;
+    private byte[] writtenValue;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Random random = new Random(42);
+        directory = BenchmarkStorage.createDirectory();
+        final KVStorageConfig config = BenchmarkStorage.config(directory)
+                .withIndexMode(indexMode)
+                .withMemoryMappedReads(memoryMappedReads)
+                .withValueCacheBytes(valueCacheBytes);
+        storage = locking == Locking.GLOBAL_LOCK
+                ? KVStorageFactory.openStorage(config)
+                : KVStorageFactory.openConcurrentStorage(config);
+        BenchmarkStorage.fill(storage, keyCount, valueLength, random);
+        writtenValue = BenchmarkStorage.value(random, valueLength);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.close();
+        BenchmarkStorage.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @Group(GROUP)
+    @GroupThreads(3)
+    public Object read() {
+        final int key = ThreadLocalRandom.current().nextInt(keyCount);
+        if (locking == Locking.GLOBAL_LOCK) {
+            synchronized (storage) {
+                return storage.read(key);
+            }
+        }
+        return storage.read(key);
+    }
+
+    @Benchmark
+    @Group(GROUP)
+    @GroupThreads(1)
+    public void write() throws IOException {
+        final int key = ThreadLocalRandom.current().nextInt(keyCount);
+        if (locking == Locking.GLOBAL_LOCK) {
+            synchronized (storage) {
+                storage.persist(key, writtenValue);
+            }
+            return;
+        }
+        storage.persist(key, writtenValue);
+    }
+
+    /**
+     * Runs the benchmark with 1, 2, 4, .. reader threads up to count of cores, arguments are JMH options.
+     */
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        final List<String> summary = new ArrayList<>();
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int readers = 1; readers <= cores; readers *= 2) {
+            final Runner runner = new Runner(new OptionsBuilder()
+                    .parent(options)
+                    .include(ReadersWithWriterBenchmark.class.getName() + "." + GROUP)
+                    .threadGroups(readers, 1)
+                    .build());
+            for (RunResult result : runner.run()) {
+                if (result.getParams().getMode() != Mode.Throughput) {
+                    continue;
+                }
+                final Result reads = result.getSecondaryResults().get("read");
+                summary.add(String.format("%-12s %-5s %10s %7d %12.3f %s",
+                        result.getParams().getParam("locking"),
+                        result.getParams().getParam("memoryMappedReads"),
+                        result.getParams().getParam("valueCacheBytes"),
+                        readers, reads.getScore(), reads.getScoreUnit()));
+            }
+        }
+
+        System.out.println();
+        System.out.println("Read throughput with writer by count of readers:");
+        System.out.println(String.format("%-12s %-5s %10s %7s %12s", "locking", "mmap", "cache", "readers", "reads"));
+        for (String line : summary) {
+            System.out.println(line);
+        }
+    }
+}
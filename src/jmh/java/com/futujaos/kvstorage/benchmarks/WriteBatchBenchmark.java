@@ -0,0 +1,103 @@
+package com.futujaos.kvstorage.benchmarks;
+
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageFactory;
+import com.futujaos.kvstorage.WriteBatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch writes and multi-key reads of random keys.
+ * <p>
+ * Throughput is reported per key, so it is comparable across batch sizes and with {@link ReadWriteBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(WriteBatchBenchmark.BATCH_KEYS)
+public class WriteBatchBenchmark {
+    static final int BATCH_KEYS = 10000;
+
+    @Param({"1000000"})
+    int keyCount;
+
+    @Param({"100"})
+    int valueLength;
+
+    @Param({"1", "100", "10000"})
+    int batchSize;
+
+    @Param({"OFFSETS"})
+    KVStorageConfig.IndexMode indexMode;
+
+    private File directory;
+    private KVStorage storage;
+    private byte[] writtenValue;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Random random = new Random(42);
+        directory = BenchmarkStorage.createDirectory();
+        storage = KVStorageFactory.openStorage(BenchmarkStorage.config(directory).withIndexMode(indexMode));
+        BenchmarkStorage.fill(storage, keyCount, valueLength, random);
+        writtenValue = BenchmarkStorage.value(random, valueLength);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.close();
+        BenchmarkStorage.deleteDirectory(directory);
+    }
+
+    // Writes BATCH_KEYS random keys in batches of batch size.
+    @Benchmark
+    public int persistAll() throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int written = 0; written < BATCH_KEYS; written += batchSize) {
+            final WriteBatch batch = new WriteBatch();
+            for (int i = 0; i < batchSize; i++) {
+                batch.persist(random.nextInt(keyCount), writtenValue);
+            }
+            storage.persistAll(batch);
+        }
+        return BATCH_KEYS;
+    }
+
+    // Reads BATCH_KEYS random keys in batches of batch size.
+    @Benchmark
+    public int readAll() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int read = 0;
+        for (int from = 0; from < BATCH_KEYS; from += batchSize) {
+            final int[] keys = new int[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                keys[i] = random.nextInt(keyCount);
+            }
+            final Map<Integer, byte[]> values = storage.readAll(keys);
+            read += values.size();
+        }
+        return read;
+    }
+}
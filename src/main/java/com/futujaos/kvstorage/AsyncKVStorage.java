@@ -0,0 +1,35 @@
+package com.futujaos.kvstorage;
+
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Key-value storage with non-blocking operations.
+ * <p>
+ * Writes are queued and applied by single writer thread in order of submission, queued writes are coalesced
+ * into single append. Future of write fails only by failure of this write. Write futures are completed in order
+ * of writes by completion thread, so dependent stages do not block writer thread, but long stages delay completion
+ * of later writes. Reads are performed by pool of read threads, read futures are completed in these threads.
+ * <p>
+ * Queues are bounded: operation, submitted when its queue is full, returns future, completed exceptionally
+ * with {@link RejectedExecutionException}, so callers may apply backpressure upstream.
+ * <p>
+ * Read is not ordered with writes, which are not completed yet.
+ * <p>
+ * Thread-safe.
+ */
+public interface AsyncKVStorage extends Closeable {
+
+    CompletableFuture<Optional<byte[]>> readAsync(int key);
+
+    CompletableFuture<Void> persistAsync(int key, byte[] value);
+
+    CompletableFuture<Void> deleteAsync(int key);
+
+    /**
+     * @return Current state of operation queues.
+     */
+    AsyncQueueStats getQueueStats();
+}
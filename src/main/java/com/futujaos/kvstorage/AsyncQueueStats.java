@@ -0,0 +1,74 @@
+package com.futujaos.kvstorage;
+
+/**
+ * Snapshot of operation queues of {@link AsyncKVStorage}.
+ */
+public class AsyncQueueStats {
+    private final int writeQueueDepth;
+    private final int maxWriteQueueDepth;
+    private final int readQueueDepth;
+    private final long completedWrites;
+    private final long writeBatches;
+    private final long rejectedWrites;
+    private final long rejectedReads;
+
+    public AsyncQueueStats(int writeQueueDepth, int maxWriteQueueDepth, int readQueueDepth, long completedWrites,
+                           long writeBatches, long rejectedWrites, long rejectedReads) {
+        this.writeQueueDepth = writeQueueDepth;
+        this.maxWriteQueueDepth = maxWriteQueueDepth;
+        this.readQueueDepth = readQueueDepth;
+        this.completedWrites = completedWrites;
+        this.writeBatches = writeBatches;
+        this.rejectedWrites = rejectedWrites;
+        this.rejectedReads = rejectedReads;
+    }
+
+    /**
+     * @return Count of writes, waiting in queue.
+     */
+    public int getWriteQueueDepth() {
+        return writeQueueDepth;
+    }
+
+    /**
+     * @return Max count of writes, waiting in queue, since storage was opened.
+     */
+    public int getMaxWriteQueueDepth() {
+        return maxWriteQueueDepth;
+    }
+
+    /**
+     * @return Count of reads, waiting in queue.
+     */
+    public int getReadQueueDepth() {
+        return readQueueDepth;
+    }
+
+    /**
+     * @return Count of writes, applied since storage was opened.
+     */
+    public long getCompletedWrites() {
+        return completedWrites;
+    }
+
+    /**
+     * @return Count of appends, which applied completed writes. Every append coalesces queued writes.
+     */
+    public long getWriteBatches() {
+        return writeBatches;
+    }
+
+    /**
+     * @return Count of writes, rejected because write queue was full.
+     */
+    public long getRejectedWrites() {
+        return rejectedWrites;
+    }
+
+    /**
+     * @return Count of reads, rejected because read queue was full.
+     */
+    public long getRejectedReads() {
+        return rejectedReads;
+    }
+}
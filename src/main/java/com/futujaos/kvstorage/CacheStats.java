@@ -0,0 +1,55 @@
+package com.futujaos.kvstorage;
+
+/**
+ * Snapshot of storage value cache state.
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long entries;
+    private final long bytes;
+
+    public CacheStats(long hits, long misses, long evictions, long entries, long bytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return Count of reads, served from cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Count of reads, not found in cache.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Count of values, evicted from cache to keep it within budget.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Count of cached values.
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return Bytes of cache budget, taken by cached values.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,100 @@
+package com.futujaos.kvstorage;
+
+/**
+ * Snapshot of storage compaction state.
+ */
+public class CompactionStats {
+    private final boolean running;
+    private final long processedBytes;
+    private final long totalBytes;
+    private final long completedCount;
+    private final long reclaimedBytes;
+    private final long storageBytes;
+    private final long garbageBytes;
+    private final long failedCount;
+    private final String lastFailure;
+
+    public CompactionStats(boolean running, long processedBytes, long totalBytes, long completedCount,
+                           long reclaimedBytes, long storageBytes, long garbageBytes) {
+        this(running, processedBytes, totalBytes, completedCount, reclaimedBytes, storageBytes, garbageBytes, 0, null);
+    }
+
+    public CompactionStats(boolean running, long processedBytes, long totalBytes, long completedCount,
+                           long reclaimedBytes, long storageBytes, long garbageBytes, long failedCount,
+                           String lastFailure) {
+        this.running = running;
+        this.processedBytes = processedBytes;
+        this.totalBytes = totalBytes;
+        this.completedCount = completedCount;
+        this.reclaimedBytes = reclaimedBytes;
+        this.storageBytes = storageBytes;
+        this.garbageBytes = garbageBytes;
+        this.failedCount = failedCount;
+        this.lastFailure = lastFailure;
+    }
+
+    /**
+     * @return Whether compaction is in progress.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return Bytes of storage already processed by running compaction, 0 if compaction is not running.
+     */
+    public long getProcessedBytes() {
+        return processedBytes;
+    }
+
+    /**
+     * @return Bytes of storage to be processed by running compaction, 0 if compaction is not running.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return Count of compactions completed since storage was opened.
+     */
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return Bytes reclaimed by compactions completed since storage was opened.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /**
+     * @return Current size of storage data in bytes.
+     */
+    public long getStorageBytes() {
+        return storageBytes;
+    }
+
+    /**
+     * @return Bytes of storage data occupied by overwritten and deleted entries.
+     */
+    public long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    /**
+     * Failed compaction does not fail write, which stepped it: compaction is aborted and retried later.
+     *
+     * @return Count of compactions failed since storage was opened.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return Description of the last compaction failure, null if compaction has not failed.
+     */
+    public String getLastFailure() {
+        return lastFailure;
+    }
+}
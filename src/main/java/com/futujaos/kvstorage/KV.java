@@ -0,0 +1,25 @@
+package com.futujaos.kvstorage;
+
+/**
+ * Key-value pair of storage.
+ */
+public class KV {
+    private final int key;
+    private final byte[] value;
+
+    public KV(int key, byte[] value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value should not be null");
+        }
+        this.key = key;
+        this.value = value;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+}
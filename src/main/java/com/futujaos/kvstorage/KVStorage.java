@@ -2,6 +2,12 @@ package com.futujaos.kvstorage;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -9,7 +15,8 @@ import java.util.Optional;
  * <p>
  * Keys are 'int' values, values are 'byte[]' arrays.
  * <p>
- * Supports only single-threaded access.
+ * Storage, opened by {@link KVStorageFactory#openStorage}, supports only single-threaded access.
+ * Storage, opened by {@link KVStorageFactory#openConcurrentStorage}, is thread-safe.
  */
 public interface KVStorage extends Closeable {
 
@@ -18,4 +25,168 @@ public interface KVStorage extends Closeable {
     void persist(int key, byte[] value) throws IOException;
 
     void delete(int key) throws IOException;
+
+    /**
+     * Reads value into buffer, without allocation of byte array.
+     * <p>
+     * Value is copied at current position of buffer and position is advanced by value length, if value fits
+     * into remaining space of buffer. Otherwise buffer is not changed, so caller may retry with larger buffer.
+     *
+     * @param key Key to read.
+     * @param dst Buffer to read value into.
+     * @return Length of value, -1 if key has no value.
+     */
+    int readInto(int key, ByteBuffer dst);
+
+    /**
+     * Reads value as read-only buffer.
+     * <p>
+     * If storage file is memory mapped, see {@link KVStorageConfig#withMemoryMappedReads(boolean)},
+     * buffer views value in place, without copy. Such buffer stays readable after compaction or close,
+     * but should not be kept longer than needed, as it keeps mapped file in memory.
+     *
+     * @param key Key to read.
+     * @return Value, empty if key has no value.
+     */
+    Optional<ByteBuffer> readView(int key);
+
+    /**
+     * Writes value into channel.
+     * <p>
+     * Uncompressed value is transferred from storage file by {@link java.nio.channels.FileChannel#transferTo},
+     * so it may be sent into socket without copy into JVM heap. Checksum of such value is not verified.
+     * Channel should be blocking: non-blocking channel may accept only part of value, so it is rejected.
+     *
+     * @param key    Key to read.
+     * @param target Blocking channel to write value into.
+     * @return Length of value, -1 if key has no value.
+     * @throws IOException              If storage file ends before value, or channel accepts no bytes.
+     * @throws IllegalArgumentException If channel is selectable channel in non-blocking mode.
+     */
+    long transferTo(int key, WritableByteChannel target) throws IOException;
+
+    /**
+     * Opens stream, which reads value by parts, so large value is not read into memory as a whole.
+     * <p>
+     * Uncompressed value is read from storage file, as stream is read, and its checksum is verified when stream
+     * reaches end of value. Compressed value is decompressed as a whole. Stream reads value, which key had
+     * when stream was opened, even if key is written or storage is compacted later. Stream should be closed.
+     *
+     * @param key Key to read.
+     * @return Stream of value, empty if key has no value.
+     * @throws IOException
+     */
+    Optional<InputStream> openReader(int key) throws IOException;
+
+    /**
+     * Opens stream, which writes value by parts, so large value is not kept in memory as a whole.
+     * <p>
+     * Parts are written to temporary file next to storage as they come, without blocking other writes.
+     * When stream is closed, value is appended to storage file without compression, or to blob log, if it is
+     * enabled by {@link KVStorageConfig#withBlobThresholdBytes(int)}, and replaces previous value of key.
+     * Streams of the same key may be open at once, value of the last closed one wins. If write to stream fails,
+     * stream is not closed before storage is closed, or process crashes before stream is closed, key keeps
+     * previous value.
+     * <p>
+     * Storage of {@link KVStorageConfig.Engine#LSM} engine keeps value in memory until stream is closed, as its
+     * memtable keeps values as a whole. Value, longer than {@link KVStorageConfig#withMemtableBytes(long)},
+     * is rejected: write to stream fails with {@link IOException}, and key keeps previous value.
+     *
+     * @param key Key to write.
+     * @return Stream of value.
+     * @throws IOException
+     */
+    OutputStream openWriter(int key) throws IOException;
+
+    /**
+     * Reads values by many keys at once.
+     * <p>
+     * Values are read in order of their placement in storage, rather than in order of keys.
+     *
+     * @param keys Keys to read.
+     * @return Values by keys, keys without values are absent.
+     */
+    Map<Integer, byte[]> readAll(int[] keys);
+
+    /**
+     * Iterates entries with keys from fromKey (inclusive) to toKey (exclusive) in key order.
+     * <p>
+     * Requires sorted index, see {@link KVStorageConfig#withSortedIndex(boolean)}. Values are read lazily
+     * in batches, in order of their placement in storage. Iterator is weakly consistent: it reflects writes,
+     * made during iteration, to keys beyond current batch.
+     *
+     * @param fromKey Lowest key, inclusive.
+     * @param toKey   Highest key, exclusive.
+     * @return Iterator of entries.
+     * @throws UnsupportedOperationException If index is not sorted.
+     */
+    Iterator<KV> scan(int fromKey, int toKey);
+
+    /**
+     * Iterates all entries in key order.
+     * <p>
+     * For details see {@link #scan(int, int)}.
+     *
+     * @return Iterator of entries.
+     * @throws UnsupportedOperationException If index is not sorted.
+     */
+    Iterator<KV> scan();
+
+    /**
+     * Applies all writes of batch with single write to storage.
+     * <p>
+     * Batch is atomic: if storage is damaged by crash during write, either whole batch or none of its writes
+     * are visible after recovery.
+     * <p>
+     * Sharded storage, see {@link KVStorageConfig#withShards(int)}, splits batch by shards and applies parts
+     * one by one, so batch is atomic within every shard only: after crash, or if write to some shard fails,
+     * writes to other shards of the same batch may be visible.
+     *
+     * @param batch Writes to apply.
+     * @throws IOException
+     */
+    void persistAll(WriteBatch batch) throws IOException;
+
+    /**
+     * Rewrites live entries into fresh storage file, reclaiming space of overwritten and deleted entries.
+     * <p>
+     * If compaction is already in progress, completes it.
+     *
+     * @throws IOException
+     */
+    void compact() throws IOException;
+
+    /**
+     * Takes consistent read-only view of storage, which is not affected by later writes.
+     * <p>
+     * Snapshot is taken without copying index or data: it keeps end of log at the moment it was taken,
+     * and previous locations of keys are preserved, when keys are overwritten or deleted later (copy on write).
+     * Compaction is postponed, until all snapshots are closed, so files, which snapshots read, are not deleted,
+     * and {@link #compact()} fails with {@link IllegalStateException} meanwhile.
+     * <p>
+     * {@link KVStorageConfig.Engine#LSM} storage does not copy its memtable into snapshot: memtable is frozen
+     * and flushed, as if it was full, and writes go to fresh memtable. Sorted tables, which snapshots read,
+     * are kept, when merges replace them, until snapshots are closed. Merges and {@link #compact()}
+     * are not postponed, but disk space of replaced tables is reclaimed, when snapshots are closed.
+     *
+     * @return Open snapshot.
+     * @throws IOException
+     * @throws UnsupportedOperationException If storage engine does not support snapshots.
+     */
+    KVStorageSnapshot snapshot() throws IOException;
+
+    /**
+     * @return Current compaction state.
+     */
+    CompactionStats getCompactionStats();
+
+    /**
+     * @return Current value cache state, all zeros if values are not cached.
+     */
+    CacheStats getCacheStats();
+
+    /**
+     * @return Current operation counters, latencies, sizes and startup timings.
+     */
+    KVStorageStats getStats();
 }
\ No newline at end of file
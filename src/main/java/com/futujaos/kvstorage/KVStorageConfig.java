@@ -2,6 +2,8 @@ package com.futujaos.kvstorage;
 
 /**
  * Configuration for storage.
+ * <p>
+ * Config is immutable, {@code with*} methods return modified copy of config.
  */
 public class KVStorageConfig {
     private static final KVStorageConfig DEFAULT_CONFIG = new KVStorageConfig(
@@ -10,6 +12,39 @@ public class KVStorageConfig {
     );
     private final String storageFilePath;
     private final String metaFilePath;
+    private IndexMode indexMode = IndexMode.VALUES;
+    private boolean offHeapIndex = false;
+    private boolean memoryMappedReads = false;
+    private int mappedSegmentSize = 64 * 1024 * 1024;
+    private long segmentSize = 0;
+    private double compactionGarbageRatio = 0.5;
+    private boolean hintFile = true;
+    private long checkpointBytes = 0;
+    private long compactionMinStorageSize = 16 * 1024 * 1024;
+    private int compactionStepBytes = 1024 * 1024;
+    private DurabilityMode durabilityMode = DurabilityMode.NONE;
+    private long syncIntervalMillis = 1000;
+    private int asyncWriteQueueCapacity = 64 * 1024;
+    private int asyncMaxWriteBatch = 1024;
+    private int asyncReadThreads = Runtime.getRuntime().availableProcessors();
+    private int asyncReadQueueCapacity = 64 * 1024;
+    private long valueCacheBytes = 0;
+    private Compression compression = Compression.NONE;
+    private int compressionMinBytes = 64;
+    private boolean latencyHistograms = false;
+    private boolean jmx = false;
+    private boolean sortedIndex = false;
+    private int scanBatchSize = 1024;
+    private int shards = 1;
+    private Engine engine = Engine.LOG;
+    private long memtableBytes = 4 * 1024 * 1024;
+    private int tableBlockBytes = 4 * 1024;
+    private int bloomBitsPerKey = 10;
+    private int tableMergeThreshold = 4;
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private int recoveryChunkBytes = 8 * 1024 * 1024;
+    private int blobThresholdBytes = 0;
+    private long blobSegmentSize = 64 * 1024 * 1024;
 
     /**
      * Created new config with specified params.
@@ -30,6 +65,38 @@ public class KVStorageConfig {
      * Default name for storage file: "storage.kvs".
      * <p>
      * Default name for meta file:    "storage.kvs.meta".
+     * <p>
+     * Default index mode:            {@link IndexMode#VALUES}.
+     * <p>
+     * Index is allocated on heap by default.
+     * <p>
+     * Storage file is read through file channel by default, mapped segment size is 64 MB.
+     * <p>
+     * Values are not cached by default.
+     * <p>
+     * Default compression:           {@link Compression#NONE}, values shorter than 64 bytes are not compressed.
+     * <p>
+     * Operations are counted, but their latencies are not measured by default. Storage is not registered in JMX.
+     * <p>
+     * Keys are not sorted by default, scans read values in batches of 1024 keys.
+     * <p>
+     * Storage is kept in single file by default, keys are not partitioned into shards.
+     * <p>
+     * Default engine:                {@link Engine#LOG}. For {@link Engine#LSM}, memtable is flushed at 4 MB,
+     * tables have 4 KB blocks and bloom filters of 10 bits per key, 4 tables of the same level are merged.
+     * <p>
+     * Values are kept in storage file by default, blob segment size is 64 MB.
+     * <p>
+     * Hint file is written on close only. Log is replayed on open in chunks of 8 MB by as many threads
+     * as there are available processors.
+     * <p>
+     * Compaction starts automatically when storage is larger than 16 MB and more than half of it is garbage,
+     * compaction processes 1 MB of storage per write.
+     * <p>
+     * Default durability mode:       {@link DurabilityMode#NONE}, sync interval is 1 second.
+     * <p>
+     * Asynchronous storage queues up to 64K writes and 64K reads, coalesces up to 1024 queued writes
+     * into single append, and reads in as many threads as there are available processors.
      *
      * @return Default config.
      */
@@ -42,6 +109,604 @@ public class KVStorageConfig {
         this.metaFilePath = metaFilePath;
     }
 
+    private KVStorageConfig copy() {
+        return copy(storageFilePath, metaFilePath);
+    }
+
+    private KVStorageConfig copy(String storageFilePath, String metaFilePath) {
+        final KVStorageConfig copy = new KVStorageConfig(storageFilePath, metaFilePath);
+        copy.indexMode = indexMode;
+        copy.offHeapIndex = offHeapIndex;
+        copy.memoryMappedReads = memoryMappedReads;
+        copy.mappedSegmentSize = mappedSegmentSize;
+        copy.segmentSize = segmentSize;
+        copy.compactionGarbageRatio = compactionGarbageRatio;
+        copy.hintFile = hintFile;
+        copy.checkpointBytes = checkpointBytes;
+        copy.compactionMinStorageSize = compactionMinStorageSize;
+        copy.compactionStepBytes = compactionStepBytes;
+        copy.durabilityMode = durabilityMode;
+        copy.syncIntervalMillis = syncIntervalMillis;
+        copy.asyncWriteQueueCapacity = asyncWriteQueueCapacity;
+        copy.asyncMaxWriteBatch = asyncMaxWriteBatch;
+        copy.asyncReadThreads = asyncReadThreads;
+        copy.asyncReadQueueCapacity = asyncReadQueueCapacity;
+        copy.valueCacheBytes = valueCacheBytes;
+        copy.compression = compression;
+        copy.compressionMinBytes = compressionMinBytes;
+        copy.latencyHistograms = latencyHistograms;
+        copy.jmx = jmx;
+        copy.sortedIndex = sortedIndex;
+        copy.scanBatchSize = scanBatchSize;
+        copy.shards = shards;
+        copy.engine = engine;
+        copy.memtableBytes = memtableBytes;
+        copy.tableBlockBytes = tableBlockBytes;
+        copy.bloomBitsPerKey = bloomBitsPerKey;
+        copy.tableMergeThreshold = tableMergeThreshold;
+        copy.recoveryThreads = recoveryThreads;
+        copy.recoveryChunkBytes = recoveryChunkBytes;
+        copy.blobThresholdBytes = blobThresholdBytes;
+        copy.blobSegmentSize = blobSegmentSize;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified paths of storage and meta files.
+     *
+     * @param storageFilePath Path to storage file.
+     * @param metaFilePath    Path to meta file.
+     * @return Config.
+     */
+    public KVStorageConfig withFilePaths(String storageFilePath, String metaFilePath) {
+        return copy(storageFilePath, metaFilePath);
+    }
+
+    /**
+     * Returns copy of this config with specified index mode.
+     *
+     * @param indexMode Index mode.
+     * @return Config.
+     */
+    public KVStorageConfig withIndexMode(IndexMode indexMode) {
+        final KVStorageConfig copy = copy();
+        copy.indexMode = indexMode;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with index slots allocated on heap or off-heap (in direct memory).
+     * <p>
+     * Off-heap index does not add to GC work, but its memory is not limited by heap size.
+     *
+     * @param offHeapIndex Whether index is allocated off-heap.
+     * @return Config.
+     */
+    public KVStorageConfig withOffHeapIndex(boolean offHeapIndex) {
+        final KVStorageConfig copy = copy();
+        copy.offHeapIndex = offHeapIndex;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with values read from storage file through memory mapping or through file channel.
+     * <p>
+     * Memory mapped reads copy values right from page cache, without system call per read.
+     * Makes sense only with {@link IndexMode#OFFSETS}.
+     *
+     * @param memoryMappedReads Whether storage file is memory mapped.
+     * @return Config.
+     */
+    public KVStorageConfig withMemoryMappedReads(boolean memoryMappedReads) {
+        final KVStorageConfig copy = copy();
+        copy.memoryMappedReads = memoryMappedReads;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified size of memory mapped segments of storage file.
+     *
+     * @param mappedSegmentSize Size of single mapped segment in bytes.
+     * @return Config.
+     */
+    public KVStorageConfig withMappedSegmentSize(int mappedSegmentSize) {
+        if (mappedSegmentSize <= 0) {
+            throw new IllegalArgumentException("Mapped segment size should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.mappedSegmentSize = mappedSegmentSize;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with segmented storage of specified segment size.
+     * <p>
+     * Segmented storage keeps data in directory of numbered segment files instead of single file,
+     * storage file path is used as path to this directory. When last segment exceeds segment size, new segment
+     * is started, and previous one becomes immutable. Segments are compacted independently.
+     * <p>
+     * Segment size 0 means single storage file.
+     *
+     * @param segmentSize Segment size in bytes.
+     * @return Config.
+     */
+    public KVStorageConfig withSegmentSize(long segmentSize) {
+        if (segmentSize < 0 || segmentSize >= 1L << 39) {
+            throw new IllegalArgumentException("Segment size should be from 0 to 2^39");
+        }
+        final KVStorageConfig copy = copy();
+        copy.segmentSize = segmentSize;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified garbage ratio, which triggers automatic compaction.
+     * <p>
+     * Compaction starts when share of overwritten and deleted entries bytes in storage (or in sealed segment,
+     * for segmented storage) exceeds garbage ratio.
+     * Ratio 1 disables automatic compaction.
+     *
+     * @param compactionGarbageRatio Garbage ratio, from 0 to 1.
+     * @return Config.
+     */
+    public KVStorageConfig withCompactionGarbageRatio(double compactionGarbageRatio) {
+        if (compactionGarbageRatio < 0 || compactionGarbageRatio > 1) {
+            throw new IllegalArgumentException("Compaction garbage ratio should be from 0 to 1");
+        }
+        final KVStorageConfig copy = copy();
+        copy.compactionGarbageRatio = compactionGarbageRatio;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified storage size, below which automatic compaction is not started.
+     *
+     * @param compactionMinStorageSize Storage size in bytes.
+     * @return Config.
+     */
+    public KVStorageConfig withCompactionMinStorageSize(long compactionMinStorageSize) {
+        final KVStorageConfig copy = copy();
+        copy.compactionMinStorageSize = compactionMinStorageSize;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified amount of work done by compaction per write.
+     * <p>
+     * Running compaction is performed in steps, interleaved with writes, so reads and writes are
+     * never blocked for whole compaction.
+     *
+     * @param compactionStepBytes Bytes of storage processed by compaction per write.
+     * @return Config.
+     */
+    public KVStorageConfig withCompactionStepBytes(int compactionStepBytes) {
+        if (compactionStepBytes <= 0) {
+            throw new IllegalArgumentException("Compaction step bytes should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.compactionStepBytes = compactionStepBytes;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with hint file enabled or disabled.
+     * <p>
+     * Hint file is a snapshot of index, written on close and on checkpoints next to storage file.
+     * When hint file is enabled, only entries written after last checkpoint are read on open.
+     *
+     * @param hintFile Whether hint file is written.
+     * @return Config.
+     */
+    public KVStorageConfig withHintFile(boolean hintFile) {
+        final KVStorageConfig copy = copy();
+        copy.hintFile = hintFile;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with periodic checkpoints after specified amount of written bytes.
+     * <p>
+     * Checkpoint writes hint file, bounding amount of storage data to be read on open after crash.
+     * 0 means hint file is written only on close.
+     *
+     * @param checkpointBytes Bytes written between checkpoints.
+     * @return Config.
+     */
+    public KVStorageConfig withCheckpointBytes(long checkpointBytes) {
+        if (checkpointBytes < 0) {
+            throw new IllegalArgumentException("Checkpoint bytes should not be negative");
+        }
+        final KVStorageConfig copy = copy();
+        copy.checkpointBytes = checkpointBytes;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified durability mode.
+     *
+     * @param durabilityMode Durability mode.
+     * @return Config.
+     */
+    public KVStorageConfig withDurabilityMode(DurabilityMode durabilityMode) {
+        final KVStorageConfig copy = copy();
+        copy.durabilityMode = durabilityMode;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified interval between syncs of {@link DurabilityMode#PERIODIC} mode.
+     *
+     * @param syncIntervalMillis Sync interval in milliseconds.
+     * @return Config.
+     */
+    public KVStorageConfig withSyncIntervalMillis(long syncIntervalMillis) {
+        if (syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Sync interval should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.syncIntervalMillis = syncIntervalMillis;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with cache of values of specified size.
+     * <p>
+     * Cache keeps frequently read values in memory, its eviction policy is not flushed by scans.
+     * Cache reads take no locks, so reads of concurrent storage stay lock-free.
+     * Makes sense only with {@link IndexMode#OFFSETS}. 0 means values are not cached.
+     *
+     * @param valueCacheBytes Cache budget in bytes, including overhead of cached entries.
+     * @return Config.
+     */
+    public KVStorageConfig withValueCacheBytes(long valueCacheBytes) {
+        if (valueCacheBytes < 0) {
+            throw new IllegalArgumentException("Value cache size should not be negative");
+        }
+        final KVStorageConfig copy = copy();
+        copy.valueCacheBytes = valueCacheBytes;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified compression of written values.
+     * <p>
+     * Codec is recorded in every entry, so compression may be changed for existing storage: entries,
+     * written before, are still read. Values, which compress poorly, are stored raw.
+     *
+     * @param compression Compression of written values.
+     * @return Config.
+     */
+    public KVStorageConfig withCompression(Compression compression) {
+        final KVStorageConfig copy = copy();
+        copy.compression = compression;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified length of value, below which values are stored raw
+     * without compression attempt.
+     *
+     * @param compressionMinBytes Min length of compressed value in bytes.
+     * @return Config.
+     */
+    public KVStorageConfig withCompressionMinBytes(int compressionMinBytes) {
+        if (compressionMinBytes < 0) {
+            throw new IllegalArgumentException("Compression min bytes should not be negative");
+        }
+        final KVStorageConfig copy = copy();
+        copy.compressionMinBytes = compressionMinBytes;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with latencies of operations measured or not.
+     * <p>
+     * Latency histograms are reported by {@link KVStorage#getStats()}. Measurement adds two clock reads
+     * per operation.
+     *
+     * @param latencyHistograms Whether latencies of operations are measured.
+     * @return Config.
+     */
+    public KVStorageConfig withLatencyHistograms(boolean latencyHistograms) {
+        final KVStorageConfig copy = copy();
+        copy.latencyHistograms = latencyHistograms;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with storage registered in platform MBean server or not.
+     * <p>
+     * For details about registered MBean see {@link KVStorageMXBean}.
+     *
+     * @param jmx Whether storage is registered in platform MBean server.
+     * @return Config.
+     */
+    public KVStorageConfig withJmx(boolean jmx) {
+        final KVStorageConfig copy = copy();
+        copy.jmx = jmx;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with keys kept sorted or not.
+     * <p>
+     * Sorted keys are required by {@link KVStorage#scan(int, int)}. They are kept in memory in addition
+     * to index, taking about 60 bytes per key.
+     *
+     * @param sortedIndex Whether keys are kept sorted.
+     * @return Config.
+     */
+    public KVStorageConfig withSortedIndex(boolean sortedIndex) {
+        final KVStorageConfig copy = copy();
+        copy.sortedIndex = sortedIndex;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified count of keys, which scan reads at once.
+     * <p>
+     * Values of batch are read in order of their placement in storage and kept in memory until iterated.
+     *
+     * @param scanBatchSize Count of keys in batch.
+     * @return Config.
+     */
+    public KVStorageConfig withScanBatchSize(int scanBatchSize) {
+        if (scanBatchSize <= 0) {
+            throw new IllegalArgumentException("Scan batch size should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.scanBatchSize = scanBatchSize;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified count of shards.
+     * <p>
+     * Keys are partitioned into shards by hash. Every shard is independent storage with its own file,
+     * index and meta file, named by storage and meta file paths with suffix ".&lt;shard&gt;". Shards are opened,
+     * compacted and closed in parallel, writes to different shards of concurrent storage do not block each other.
+     * Write batch is atomic within every shard only, see {@link KVStorage#persistAll}.
+     * Count of shards should not change between sessions, storage with other count of shards is not opened.
+     *
+     * @param shards Count of shards, 1 to keep storage in single file.
+     * @return Config.
+     */
+    public KVStorageConfig withShards(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Count of shards should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.shards = shards;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified storage engine.
+     * <p>
+     * {@link Engine#LSM} storage keeps its files in directory at storage file path and its manifest
+     * at meta file path. It applies durability mode, sync interval, latency histograms, JMX, scan batch size
+     * and options of LSM engine, other options apply to {@link Engine#LOG} storage only.
+     *
+     * @param engine Storage engine.
+     * @return Config.
+     */
+    public KVStorageConfig withEngine(Engine engine) {
+        final KVStorageConfig copy = copy();
+        copy.engine = engine;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified memtable size of {@link Engine#LSM} storage.
+     * <p>
+     * Writes are buffered in memtable, full memtable is flushed into sorted table in background,
+     * while writes go to fresh memtable. Writes wait, if fresh memtable is filled before flush is completed.
+     * Memtable size is also max length of value, written by {@link KVStorage#openWriter(int)}.
+     *
+     * @param memtableBytes Max size of memtable in bytes.
+     * @return Config.
+     */
+    public KVStorageConfig withMemtableBytes(long memtableBytes) {
+        if (memtableBytes <= 0) {
+            throw new IllegalArgumentException("Memtable size should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.memtableBytes = memtableBytes;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified block size of sorted tables of {@link Engine#LSM} storage.
+     * <p>
+     * Index of table keeps first key of every block in memory, lookup reads single block.
+     * Larger blocks take less memory for index, but more bytes are read per lookup.
+     *
+     * @param tableBlockBytes Block size in bytes.
+     * @return Config.
+     */
+    public KVStorageConfig withTableBlockBytes(int tableBlockBytes) {
+        if (tableBlockBytes <= 0) {
+            throw new IllegalArgumentException("Table block size should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.tableBlockBytes = tableBlockBytes;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified size of bloom filters of sorted tables of {@link Engine#LSM}
+     * storage.
+     * <p>
+     * Table is read for key, absent in it, with probability about 1% for 10 bits per key, 0.1% for 15 bits.
+     *
+     * @param bloomBitsPerKey Bits of bloom filter per key.
+     * @return Config.
+     */
+    public KVStorageConfig withBloomBitsPerKey(int bloomBitsPerKey) {
+        if (bloomBitsPerKey <= 0) {
+            throw new IllegalArgumentException("Bloom filter bits per key should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.bloomBitsPerKey = bloomBitsPerKey;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified count of sorted tables of the same level of {@link Engine#LSM}
+     * storage, which are merged into single table of the next level.
+     * <p>
+     * Tables, flushed from memtable, have level 0. Lower threshold keeps less tables to look up,
+     * at cost of rewriting entries more times.
+     *
+     * @param tableMergeThreshold Count of tables of the same level to merge, at least 2.
+     * @return Config.
+     */
+    public KVStorageConfig withTableMergeThreshold(int tableMergeThreshold) {
+        if (tableMergeThreshold < 2) {
+            throw new IllegalArgumentException("Table merge threshold should be at least 2");
+        }
+        final KVStorageConfig copy = copy();
+        copy.tableMergeThreshold = tableMergeThreshold;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified count of threads, which replay log on open.
+     * <p>
+     * Log, which is not covered by hint file, is split into chunks at entry boundaries. Chunks are scanned
+     * in parallel, their entries are applied to index by the same threads: keys are partitioned by hash
+     * between threads, and entries of every key are applied in log order.
+     *
+     * @param recoveryThreads Count of threads, 1 to replay log sequentially.
+     * @return Config.
+     */
+    public KVStorageConfig withRecoveryThreads(int recoveryThreads) {
+        if (recoveryThreads <= 0) {
+            throw new IllegalArgumentException("Count of recovery threads should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.recoveryThreads = recoveryThreads;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified size of log chunk, which is scanned by single thread
+     * on parallel replay. Log shorter than two chunks is replayed sequentially.
+     *
+     * @param recoveryChunkBytes Chunk size in bytes.
+     * @return Config.
+     */
+    public KVStorageConfig withRecoveryChunkBytes(int recoveryChunkBytes) {
+        if (recoveryChunkBytes <= 0) {
+            throw new IllegalArgumentException("Recovery chunk size should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.recoveryChunkBytes = recoveryChunkBytes;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with values longer than specified threshold kept in blob log.
+     * <p>
+     * Blob log is a directory of segment files next to storage file, storage file keeps only small pointer entry
+     * of such value. So log replay on open and compaction of storage file do not read large values.
+     * Sealed blob segments are compacted separately from storage file, when share of garbage in them exceeds
+     * compaction garbage ratio.
+     * <p>
+     * Threshold 0 disables blob log for new values. Values, which are already in blob log, stay readable.
+     *
+     * @param blobThresholdBytes Length of value in bytes, above which value is kept in blob log.
+     * @return Config.
+     */
+    public KVStorageConfig withBlobThresholdBytes(int blobThresholdBytes) {
+        if (blobThresholdBytes < 0) {
+            throw new IllegalArgumentException("Blob threshold should not be negative");
+        }
+        final KVStorageConfig copy = copy();
+        copy.blobThresholdBytes = blobThresholdBytes;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified size of blob log segment, see {@link #withBlobThresholdBytes}.
+     *
+     * @param blobSegmentSize Segment size in bytes.
+     * @return Config.
+     */
+    public KVStorageConfig withBlobSegmentSize(long blobSegmentSize) {
+        if (blobSegmentSize <= 0 || blobSegmentSize >= 1L << 39) {
+            throw new IllegalArgumentException("Blob segment size should be from 1 to 2^39");
+        }
+        final KVStorageConfig copy = copy();
+        copy.blobSegmentSize = blobSegmentSize;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified capacity of write queue of asynchronous storage.
+     * <p>
+     * Writes, submitted when queue is full, are rejected.
+     *
+     * @param asyncWriteQueueCapacity Max count of queued writes.
+     * @return Config.
+     */
+    public KVStorageConfig withAsyncWriteQueueCapacity(int asyncWriteQueueCapacity) {
+        if (asyncWriteQueueCapacity <= 0) {
+            throw new IllegalArgumentException("Write queue capacity should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.asyncWriteQueueCapacity = asyncWriteQueueCapacity;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified max count of queued writes, coalesced by asynchronous storage
+     * into single append.
+     *
+     * @param asyncMaxWriteBatch Max count of writes in single append.
+     * @return Config.
+     */
+    public KVStorageConfig withAsyncMaxWriteBatch(int asyncMaxWriteBatch) {
+        if (asyncMaxWriteBatch <= 0) {
+            throw new IllegalArgumentException("Max write batch should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.asyncMaxWriteBatch = asyncMaxWriteBatch;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified count of read threads of asynchronous storage.
+     *
+     * @param asyncReadThreads Count of read threads.
+     * @return Config.
+     */
+    public KVStorageConfig withAsyncReadThreads(int asyncReadThreads) {
+        if (asyncReadThreads <= 0) {
+            throw new IllegalArgumentException("Count of read threads should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.asyncReadThreads = asyncReadThreads;
+        return copy;
+    }
+
+    /**
+     * Returns copy of this config with specified capacity of read queue of asynchronous storage.
+     * <p>
+     * Reads, submitted when queue is full, are rejected.
+     *
+     * @param asyncReadQueueCapacity Max count of queued reads.
+     * @return Config.
+     */
+    public KVStorageConfig withAsyncReadQueueCapacity(int asyncReadQueueCapacity) {
+        if (asyncReadQueueCapacity <= 0) {
+            throw new IllegalArgumentException("Read queue capacity should be positive");
+        }
+        final KVStorageConfig copy = copy();
+        copy.asyncReadQueueCapacity = asyncReadQueueCapacity;
+        return copy;
+    }
+
     public String getStorageFilePath() {
         return storageFilePath;
     }
@@ -49,4 +714,218 @@ public class KVStorageConfig {
     public String getMetaFilePath() {
         return metaFilePath;
     }
-}
\ No newline at end of file
+
+    public IndexMode getIndexMode() {
+        return indexMode;
+    }
+
+    public boolean isOffHeapIndex() {
+        return offHeapIndex;
+    }
+
+    public boolean isMemoryMappedReads() {
+        return memoryMappedReads;
+    }
+
+    public int getMappedSegmentSize() {
+        return mappedSegmentSize;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public boolean isHintFile() {
+        return hintFile;
+    }
+
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+
+    public long getValueCacheBytes() {
+        return valueCacheBytes;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    public boolean isLatencyHistograms() {
+        return latencyHistograms;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    public boolean isSortedIndex() {
+        return sortedIndex;
+    }
+
+    public int getScanBatchSize() {
+        return scanBatchSize;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public long getMemtableBytes() {
+        return memtableBytes;
+    }
+
+    public int getTableBlockBytes() {
+        return tableBlockBytes;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public int getTableMergeThreshold() {
+        return tableMergeThreshold;
+    }
+
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    public int getRecoveryChunkBytes() {
+        return recoveryChunkBytes;
+    }
+
+    public int getBlobThresholdBytes() {
+        return blobThresholdBytes;
+    }
+
+    public long getBlobSegmentSize() {
+        return blobSegmentSize;
+    }
+
+    public double getCompactionGarbageRatio() {
+        return compactionGarbageRatio;
+    }
+
+    public long getCompactionMinStorageSize() {
+        return compactionMinStorageSize;
+    }
+
+    public int getCompactionStepBytes() {
+        return compactionStepBytes;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    public int getAsyncWriteQueueCapacity() {
+        return asyncWriteQueueCapacity;
+    }
+
+    public int getAsyncMaxWriteBatch() {
+        return asyncMaxWriteBatch;
+    }
+
+    public int getAsyncReadThreads() {
+        return asyncReadThreads;
+    }
+
+    public int getAsyncReadQueueCapacity() {
+        return asyncReadQueueCapacity;
+    }
+
+    /**
+     * What storage keeps in memory for every key.
+     */
+    public enum IndexMode {
+        /**
+         * Values of all entries are kept in memory, reads never touch storage file.
+         * <p>
+         * Heap usage grows with total size of values.
+         */
+        VALUES,
+
+        /**
+         * Only offset and length of entry in storage file are kept in memory, values are read from file on demand.
+         * <p>
+         * Heap usage grows with count of keys only.
+         */
+        OFFSETS
+    }
+
+    /**
+     * How storage keeps entries on disk.
+     */
+    public enum Engine {
+        /**
+         * Entries are appended to log, index of all keys is kept in memory.
+         * <p>
+         * Every read of value takes at most one read of storage file, but count of keys is limited by memory.
+         */
+        LOG,
+
+        /**
+         * Log-structured merge tree: writes are buffered in sorted memtable, which is flushed into immutable
+         * sorted table, tables are merged in background.
+         * <p>
+         * Memory holds sparse block indexes and bloom filters of tables, about 1.5 bytes per key with defaults,
+         * so count of keys is not limited by memory. Read of key looks up memtables, then tables
+         * from the newest to the oldest, bloom filters skip most of tables without key. Keys are sorted,
+         * so scans do not require sorted index.
+         */
+        LSM
+    }
+
+    /**
+     * How values are compressed in storage file.
+     */
+    public enum Compression {
+        /**
+         * Values are stored raw.
+         */
+        NONE,
+
+        /**
+         * Values are compressed with Deflate at fastest level.
+         * <p>
+         * Storage file and page cache hold less bytes, at cost of CPU time on writes and on reads from storage file.
+         */
+        DEFLATE
+    }
+
+    /**
+     * When written entries are forced to storage device.
+     */
+    public enum DurabilityMode {
+        /**
+         * Entries are forced to storage device on close only, crash may lose any entries written since open.
+         */
+        NONE,
+
+        /**
+         * Entries are forced to storage device in background every sync interval,
+         * crash may lose entries written during last interval.
+         */
+        PERIODIC,
+
+        /**
+         * Write returns after entry is forced to storage device.
+         * <p>
+         * Writers of concurrent storage, waiting for durability at the same time, share single force (group commit).
+         */
+        PER_WRITE
+    }
+}
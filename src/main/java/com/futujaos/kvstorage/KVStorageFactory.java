@@ -1,8 +1,13 @@
 package com.futujaos.kvstorage;
 
+import com.futujaos.kvstorage.impl.AsyncKVStorageImpl;
+import com.futujaos.kvstorage.impl.BulkLoader;
 import com.futujaos.kvstorage.impl.KVStorageImpl;
+import com.futujaos.kvstorage.impl.LsmKVStorageImpl;
+import com.futujaos.kvstorage.impl.ShardedKVStorageImpl;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 /**
  * Factory for creating {@link com.futujaos.kvstorage.KVStorage} instances.
@@ -14,11 +19,75 @@ public class KVStorageFactory {
      * @param config Storage config.
      * @return Storage instance.
      * @throws IOException
+     * @throws IllegalArgumentException If storage has other count of shards, see {@link KVStorageConfig#withShards}.
      */
     public static KVStorage openStorage(KVStorageConfig config) throws IOException {
+        ShardedKVStorageImpl.checkShards(config);
+        if (config.getShards() > 1) {
+            return new ShardedKVStorageImpl(config, false);
+        }
+        if (config.getEngine() == KVStorageConfig.Engine.LSM) {
+            return new LsmKVStorageImpl(config);
+        }
         return new KVStorageImpl(config);
     }
 
+    /**
+     * Opens storage with specified config for concurrent access.
+     * <p>
+     * Storage is thread-safe: writes are serialized, reads do not block and are not blocked by writes,
+     * except reads of just written entries, which are not flushed to storage file yet.
+     * Writes to different shards are not serialized, see {@link KVStorageConfig#withShards(int)}.
+     *
+     * @param config Storage config.
+     * @return Thread-safe storage instance.
+     * @throws IOException
+     * @throws IllegalArgumentException If storage has other count of shards, see {@link KVStorageConfig#withShards}.
+     */
+    public static KVStorage openConcurrentStorage(KVStorageConfig config) throws IOException {
+        ShardedKVStorageImpl.checkShards(config);
+        if (config.getShards() > 1) {
+            return new ShardedKVStorageImpl(config, true);
+        }
+        if (config.getEngine() == KVStorageConfig.Engine.LSM) {
+            return new LsmKVStorageImpl(config);
+        }
+        return new KVStorageImpl(config, true);
+    }
+
+    /**
+     * Opens asynchronous storage with specified config.
+     * <p>
+     * For details about asynchronous operations see {@link com.futujaos.kvstorage.AsyncKVStorage}.
+     *
+     * @param config Storage config.
+     * @return Asynchronous storage instance.
+     * @throws IOException
+     */
+    public static AsyncKVStorage openAsyncStorage(KVStorageConfig config) throws IOException {
+        return new AsyncKVStorageImpl(config);
+    }
+
+    /**
+     * Writes new storage with specified config from key-value pairs in one pass.
+     * <p>
+     * Pairs are appended to storage files with large sequential writes, without maintaining index of storage.
+     * Index snapshot and integrity meta data are written once, when all pairs are loaded, so loaded storage
+     * is opened without replay, if hint file is enabled. Later pair of the same key replaces earlier one.
+     * Keys of LSM storage should be strictly ascending, as pairs are written straight into sorted table.
+     * <p>
+     * Storage should not contain data. If loading fails, storage may be opened with part of loaded pairs,
+     * so its files should be deleted before loading again.
+     *
+     * @param config Storage config.
+     * @param data Key-value pairs to load.
+     * @throws IOException
+     * @throws IllegalArgumentException If storage has data or other count of shards, or LSM keys are not ascending.
+     */
+    public static void bulkLoad(KVStorageConfig config, Iterator<KV> data) throws IOException {
+        BulkLoader.load(config, data);
+    }
+
     /**
      * Opens storage with default config.
      * <p>
@@ -28,6 +97,6 @@ public class KVStorageFactory {
      * @throws IOException
      */
     public static KVStorage openStorage() throws IOException {
-        return new KVStorageImpl(KVStorageConfig.getDefaultConfig());
+        return openStorage(KVStorageConfig.getDefaultConfig());
     }
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package com.futujaos.kvstorage;
+
+/**
+ * Management interface of storage, registered in platform MBean server, if enabled by
+ * {@link KVStorageConfig#withJmx(boolean)}.
+ * <p>
+ * Storage is registered with name {@code com.futujaos.kvstorage:type=KVStorage,name=<storage file path>}
+ * and unregistered on close.
+ */
+public interface KVStorageMXBean {
+
+    /**
+     * @return Current operation counters, latencies and sizes.
+     */
+    KVStorageStats getStats();
+
+    /**
+     * @return Current compaction state.
+     */
+    CompactionStats getCompactionStats();
+
+    /**
+     * @return Current value cache state.
+     */
+    CacheStats getCacheStats();
+}
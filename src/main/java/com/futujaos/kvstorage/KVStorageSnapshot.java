@@ -0,0 +1,43 @@
+package com.futujaos.kvstorage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Consistent read-only view of storage at the moment it was taken, see {@link KVStorage#snapshot()}.
+ * <p>
+ * Snapshot is not affected by writes, made to storage after it was taken. Storage postpones compaction,
+ * or keeps files, replaced by compaction, while snapshots are open, so snapshot should be closed as soon as
+ * it is not needed, and before storage is closed.
+ * <p>
+ * Snapshot is thread-safe, if its storage is thread-safe.
+ */
+public interface KVStorageSnapshot extends Closeable {
+
+    /**
+     * Reads value, which key had, when snapshot was taken.
+     *
+     * @param key Key to read.
+     * @return Value or empty, if key had no value.
+     */
+    Optional<byte[]> read(int key);
+
+    /**
+     * Writes files of storage, as it was, when snapshot was taken, into directory.
+     * <p>
+     * Files, which are not appended anymore, are hard-linked, or copied if file system does not support links.
+     * Other files are copied up to their size at snapshot. Index snapshot and meta data of backup are written
+     * as well, so backup opens without replay. Memtable of {@link KVStorageConfig.Engine#LSM} storage is written
+     * as sorted table of backup. Storage stays available for reads and writes meanwhile.
+     * <p>
+     * Files keep names of storage files, so backup is opened with storage file and meta file paths
+     * in directory, see {@link KVStorageConfig#withFilePaths(String, String)}.
+     *
+     * @param directory Directory, which does not contain files of storage, it is created if it does not exist.
+     * @throws IOException
+     * @throws IllegalArgumentException If directory already contains files of storage.
+     */
+    void backup(File directory) throws IOException;
+}
@@ -0,0 +1,180 @@
+package com.futujaos.kvstorage;
+
+/**
+ * Snapshot of storage operation counters, latencies and sizes.
+ * <p>
+ * Counters and latencies are counted since storage was opened.
+ */
+public class KVStorageStats {
+    private final long readCount;
+    private final long persistCount;
+    private final long deleteCount;
+    private final long writeBatchCount;
+    private final long syncCount;
+    private final long appendedBytes;
+    private final long storageBytes;
+    private final long liveBytes;
+    private final long keyCount;
+    private final LatencyHistogram readLatency;
+    private final LatencyHistogram writeLatency;
+    private final LatencyHistogram syncLatency;
+    private final long openMillis;
+    private final long hintFileLoadMillis;
+    private final long logReplayMillis;
+    private final long replayedBytes;
+    private final long checkpointCount;
+    private final long checkpointMillis;
+
+    public KVStorageStats(long readCount, long persistCount, long deleteCount, long writeBatchCount, long syncCount,
+                          long appendedBytes, long storageBytes, long liveBytes, long keyCount,
+                          LatencyHistogram readLatency, LatencyHistogram writeLatency, LatencyHistogram syncLatency,
+                          long openMillis, long hintFileLoadMillis, long logReplayMillis, long replayedBytes,
+                          long checkpointCount, long checkpointMillis) {
+        this.readCount = readCount;
+        this.persistCount = persistCount;
+        this.deleteCount = deleteCount;
+        this.writeBatchCount = writeBatchCount;
+        this.syncCount = syncCount;
+        this.appendedBytes = appendedBytes;
+        this.storageBytes = storageBytes;
+        this.liveBytes = liveBytes;
+        this.keyCount = keyCount;
+        this.readLatency = readLatency;
+        this.writeLatency = writeLatency;
+        this.syncLatency = syncLatency;
+        this.openMillis = openMillis;
+        this.hintFileLoadMillis = hintFileLoadMillis;
+        this.logReplayMillis = logReplayMillis;
+        this.replayedBytes = replayedBytes;
+        this.checkpointCount = checkpointCount;
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    /**
+     * @return Count of keys, read since storage was opened, including keys of multi-key reads.
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * @return Count of values, persisted since storage was opened, including values of write batches.
+     */
+    public long getPersistCount() {
+        return persistCount;
+    }
+
+    /**
+     * @return Count of deletes since storage was opened, including deletes of write batches.
+     */
+    public long getDeleteCount() {
+        return deleteCount;
+    }
+
+    /**
+     * @return Count of write batches, applied since storage was opened.
+     */
+    public long getWriteBatchCount() {
+        return writeBatchCount;
+    }
+
+    /**
+     * @return Count of forces of storage file to storage device, made for durability mode.
+     */
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * @return Bytes of entries, appended to storage since it was opened.
+     */
+    public long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    /**
+     * @return Size of storage files in bytes.
+     */
+    public long getStorageBytes() {
+        return storageBytes;
+    }
+
+    /**
+     * @return Bytes of entries, referenced by index. The rest of storage is garbage of overwritten and deleted
+     * entries.
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return Count of keys in storage.
+     */
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * @return Latencies of single-key and multi-key reads, empty if latency histograms are disabled.
+     */
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    /**
+     * @return Latencies of persists, deletes and write batches, including wait for durability, empty if latency
+     * histograms are disabled.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * @return Latencies of forces of storage file to storage device, empty if latency histograms are disabled.
+     */
+    public LatencyHistogram getSyncLatency() {
+        return syncLatency;
+    }
+
+    /**
+     * @return Time to open storage in milliseconds.
+     */
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * @return Time to load index from hint file on open in milliseconds, 0 if hint file was not used.
+     */
+    public long getHintFileLoadMillis() {
+        return hintFileLoadMillis;
+    }
+
+    /**
+     * @return Time to replay storage entries, not covered by hint file, on open in milliseconds.
+     */
+    public long getLogReplayMillis() {
+        return logReplayMillis;
+    }
+
+    /**
+     * @return Bytes of storage entries, replayed on open.
+     */
+    public long getReplayedBytes() {
+        return replayedBytes;
+    }
+
+    /**
+     * @return Count of checkpoints since storage was opened.
+     */
+    public long getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    /**
+     * @return Total time of checkpoints since storage was opened in milliseconds.
+     */
+    public long getCheckpointMillis() {
+        return checkpointMillis;
+    }
+}
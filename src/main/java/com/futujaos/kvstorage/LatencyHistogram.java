@@ -0,0 +1,118 @@
+package com.futujaos.kvstorage;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot of latency distribution of storage operation.
+ * <p>
+ * Latencies are counted in buckets of exponentially growing width, so percentiles are reported
+ * with relative error below 12.5%.
+ */
+public class LatencyHistogram {
+    private final long[] bucketUpperBoundNanos;
+    private final long[] bucketCounts;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    public LatencyHistogram(long[] bucketUpperBoundNanos, long[] bucketCounts, long totalNanos, long maxNanos) {
+        if (bucketUpperBoundNanos.length != bucketCounts.length) {
+            throw new IllegalArgumentException("Every bucket should have upper bound and count");
+        }
+        this.bucketUpperBoundNanos = bucketUpperBoundNanos.clone();
+        this.bucketCounts = bucketCounts.clone();
+        long count = 0;
+        for (long bucketCount : bucketCounts) {
+            count += bucketCount;
+        }
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return Count of measured operations.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean latency in nanoseconds, 0 if no operations were measured.
+     */
+    public long getMeanNanos() {
+        return count > 0 ? totalNanos / count : 0;
+    }
+
+    /**
+     * @return Max latency in nanoseconds, 0 if no operations were measured.
+     */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @param percentile Percentile, from 0 to 100.
+     * @return Latency in nanoseconds, which is not exceeded by specified percentage of operations,
+     * 0 if no operations were measured.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile should be from 0 to 100");
+        }
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long counted = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            counted += bucketCounts[i];
+            if (counted >= rank && counted > 0) {
+                return Math.min(bucketUpperBoundNanos[i], maxNanos);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Merges this histogram with histogram of the same operation, measured by other storage.
+     *
+     * @param other Histogram with the same buckets or without buckets.
+     * @return Histogram of operations of both histograms.
+     */
+    public LatencyHistogram merge(LatencyHistogram other) {
+        if (other.bucketCounts.length == 0) {
+            return this;
+        }
+        if (bucketCounts.length == 0) {
+            return other;
+        }
+        if (!Arrays.equals(bucketUpperBoundNanos, other.bucketUpperBoundNanos)) {
+            throw new IllegalArgumentException("Histograms should have the same buckets");
+        }
+        final long[] counts = new long[bucketCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = bucketCounts[i] + other.bucketCounts[i];
+        }
+        return new LatencyHistogram(bucketUpperBoundNanos, counts, totalNanos + other.totalNanos,
+                Math.max(maxNanos, other.maxNanos));
+    }
+
+    /**
+     * @return Median latency in nanoseconds.
+     */
+    public long getP50Nanos() {
+        return getPercentileNanos(50);
+    }
+
+    /**
+     * @return 99th percentile of latency in nanoseconds.
+     */
+    public long getP99Nanos() {
+        return getPercentileNanos(99);
+    }
+
+    /**
+     * @return 99.9th percentile of latency in nanoseconds.
+     */
+    public long getP999Nanos() {
+        return getPercentileNanos(99.9);
+    }
+}
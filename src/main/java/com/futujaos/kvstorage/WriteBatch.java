@@ -0,0 +1,99 @@
+package com.futujaos.kvstorage;
+
+import java.util.Arrays;
+
+/**
+ * Batch of writes, applied by {@link KVStorage#persistAll(WriteBatch)} atomically
+ * (within every shard of sharded storage).
+ * <p>
+ * Writes are applied in order of addition. Batch is not thread-safe.
+ */
+public class WriteBatch {
+    private int[] keys = new int[16];
+    private byte[][] values = new byte[16][]; // null for deletes
+    private int size;
+    private boolean sync;
+
+    /**
+     * Adds write of value by key.
+     *
+     * @param key   Key.
+     * @param value Value.
+     * @return This batch.
+     */
+    public WriteBatch persist(int key, byte[] value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value should not be null");
+        }
+        add(key, value);
+        return this;
+    }
+
+    /**
+     * Adds delete of value by key.
+     *
+     * @param key Key.
+     * @return This batch.
+     */
+    public WriteBatch delete(int key) {
+        add(key, null);
+        return this;
+    }
+
+    /**
+     * Sets whether batch is forced to storage device before {@link KVStorage#persistAll(WriteBatch)} returns,
+     * regardless of durability mode of storage.
+     *
+     * @param sync Whether batch is forced to storage device.
+     * @return This batch.
+     */
+    public WriteBatch setSync(boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * @return Count of writes in batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index Index of write in batch.
+     * @return Key of write.
+     */
+    public int getKey(int index) {
+        checkIndex(index);
+        return keys[index];
+    }
+
+    /**
+     * @param index Index of write in batch.
+     * @return Value of write or null, if write is delete.
+     */
+    public byte[] getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    private void add(int key, byte[] value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is out of batch of size " + size);
+        }
+    }
+}
@@ -3,11 +3,15 @@ package com.futujaos.kvstorage.exceptions;
 import java.io.IOException;
 
 /**
- * Throws when calculated and stored MD5 hashed are differ.
+ * Throws when calculated and stored checksums of storage data are differ.
  * <p>
  * This means, most likely, corruption of storage or meta file.
  */
 public class KVStorageDamagedException extends IOException {
     public KVStorageDamagedException() {
     }
-}
\ No newline at end of file
+
+    public KVStorageDamagedException(String message) {
+        super(message);
+    }
+}
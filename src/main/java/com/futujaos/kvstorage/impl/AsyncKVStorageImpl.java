@@ -0,0 +1,304 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.AsyncKVStorage;
+import com.futujaos.kvstorage.AsyncQueueStats;
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageFactory;
+import com.futujaos.kvstorage.WriteBatch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Asynchronous storage on top of concurrent storage.
+//
+// Writes are queued into bounded write queue. Single writer thread takes all queued writes, up to max write
+// batch, and applies them with single persistAll, so bursts of writes are coalesced into large appends
+// and share single sync with PER_WRITE durability mode. If coalesced batch fails, its writes are applied
+// one by one, so every write gets its own outcome, and failure of one write does not fail others.
+//
+// Write futures are completed by completion thread, in order of writes, so dependent stages of callers
+// do not run in writer thread and do not stall the write pipeline.
+//
+// Reads are submitted to thread pool with bounded queue.
+//
+// Close lock orders submits with close: writes, submitted before close, are applied before storage is closed,
+// writes, submitted after close, are rejected. It orders submits with failure of writer the same way: writer stops
+// on unexpected failure (Error), queued writes fail with it, and writes, submitted after it, are rejected.
+public class AsyncKVStorageImpl implements AsyncKVStorage {
+    private static final Write CLOSE = new Write(0, null, null);
+    private final KVStorage storage;
+    private final int maxWriteBatch;
+    private final BlockingQueue<Write> writeQueue;
+    private final Thread writer;
+    private final ExecutorService completionExecutor;
+    private final ThreadPoolExecutor readExecutor;
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final AtomicInteger maxWriteQueueDepth = new AtomicInteger();
+    private final AtomicLong rejectedWrites = new AtomicLong();
+    private final AtomicLong rejectedReads = new AtomicLong();
+    private volatile long completedWrites; // modified by writer thread only
+    private volatile long writeBatches;    // modified by writer thread only
+    private boolean closed;
+    private Throwable writerFailure; // guarded by close lock
+
+    public AsyncKVStorageImpl(KVStorageConfig config) throws IOException {
+        this(KVStorageFactory.openConcurrentStorage(config), config);
+    }
+
+    // Storage should be concurrent, it is closed by this storage.
+    AsyncKVStorageImpl(KVStorage storage, KVStorageConfig config) {
+        this.storage = storage;
+        maxWriteBatch = config.getAsyncMaxWriteBatch();
+        writeQueue = new ArrayBlockingQueue<>(config.getAsyncWriteQueueCapacity());
+
+        final AtomicInteger readThreadsCount = new AtomicInteger();
+        readExecutor = new ThreadPoolExecutor(
+                config.getAsyncReadThreads(),
+                config.getAsyncReadThreads(),
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getAsyncReadQueueCapacity()),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "kvstorage-reader-" + readThreadsCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+
+        completionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "kvstorage-completion");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        writer = new Thread(this::writeLoop, "kvstorage-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> readAsync(int key) {
+        final CompletableFuture<Optional<byte[]>> future = new CompletableFuture<>();
+        try {
+            readExecutor.execute(() -> {
+                try {
+                    future.complete(storage.read(key));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (!readExecutor.isShutdown()) {
+                rejectedReads.incrementAndGet();
+            }
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> persistAsync(int key, byte[] value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value should not be null");
+        }
+        return submit(new Write(key, value, new CompletableFuture<>()));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(int key) {
+        return submit(new Write(key, null, new CompletableFuture<>()));
+    }
+
+    @Override
+    public AsyncQueueStats getQueueStats() {
+        return new AsyncQueueStats(
+                writeQueue.size(),
+                maxWriteQueueDepth.get(),
+                readExecutor.getQueue().size(),
+                completedWrites,
+                writeBatches,
+                rejectedWrites.get(),
+                rejectedReads.get()
+        );
+    }
+
+    @Override
+    public void close() throws IOException {
+        final boolean writerFailed;
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writerFailed = writerFailure != null;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+
+        try {
+            // Writer applies all queued writes before it takes close marker, failed writer takes nothing
+            if (!writerFailed) {
+                writeQueue.put(CLOSE);
+            }
+            writer.join();
+            completionExecutor.shutdown();
+            readExecutor.shutdown();
+            completionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            readExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for queued operations");
+        }
+        storage.close();
+    }
+
+    private CompletableFuture<Void> submit(Write write) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                write.future.completeExceptionally(new RejectedExecutionException("Storage is closed"));
+            } else if (writerFailure != null) {
+                write.future.completeExceptionally(new RejectedExecutionException("Writer failed", writerFailure));
+            } else if (!writeQueue.offer(write)) {
+                rejectedWrites.incrementAndGet();
+                write.future.completeExceptionally(new RejectedExecutionException("Write queue is full"));
+            } else {
+                maxWriteQueueDepth.accumulateAndGet(writeQueue.size(), Math::max);
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return write.future;
+    }
+
+    private void writeLoop() {
+        final List<Write> writes = new ArrayList<>(maxWriteBatch);
+        while (true) {
+            writes.clear();
+            try {
+                writes.add(writeQueue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            writeQueue.drainTo(writes, maxWriteBatch - 1);
+
+            // Close marker is always the last queued write
+            final boolean closing = writes.get(writes.size() - 1) == CLOSE;
+            if (closing) {
+                writes.remove(writes.size() - 1);
+            }
+            if (!writes.isEmpty()) {
+                try {
+                    apply(writes);
+                } catch (Throwable e) {
+                    failWriter(writes, e);
+                    return;
+                }
+            }
+            if (closing) {
+                return;
+            }
+        }
+    }
+
+    private void apply(List<Write> writes) {
+        final WriteBatch batch = new WriteBatch();
+        for (Write write : writes) {
+            if (write.value != null) {
+                batch.persist(write.key, write.value);
+            } else {
+                batch.delete(write.key);
+            }
+        }
+        final Exception[] failures = new Exception[writes.size()]; // null for applied write
+        try {
+            storage.persistAll(batch);
+        } catch (IOException | RuntimeException e) {
+            // Batch may be applied partially, writes are applied again in order, so the last write of key wins
+            for (int i = 0; i < writes.size(); i++) {
+                failures[i] = applySingle(writes.get(i));
+            }
+        }
+        // Counters are updated before futures are completed, so stats, taken after completion, include writes
+        int applied = 0;
+        for (Exception failure : failures) {
+            if (failure == null) {
+                applied++;
+            }
+        }
+        completedWrites += applied;
+        writeBatches++;
+        final Write[] completed = writes.toArray(new Write[0]);
+        completionExecutor.execute(() -> {
+            for (int i = 0; i < completed.length; i++) {
+                if (failures[i] == null) {
+                    completed[i].future.complete(null);
+                } else {
+                    completed[i].future.completeExceptionally(failures[i]);
+                }
+            }
+        });
+    }
+
+    // Fails writes, which writer was applying, and queued writes with unexpected failure of writer.
+    // Queue is drained under close lock, so writes, submitted later, are rejected, and close does not wait for writer.
+    private void failWriter(List<Write> writes, Throwable failure) {
+        final List<Write> failed = new ArrayList<>(writes);
+        closeLock.writeLock().lock();
+        try {
+            writerFailure = failure;
+            writeQueue.drainTo(failed);
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        failed.remove(CLOSE);
+        completionExecutor.execute(() -> {
+            for (Write write : failed) {
+                write.future.completeExceptionally(failure);
+            }
+        });
+    }
+
+    // Returns failure of write or null, if write is applied.
+    private Exception applySingle(Write write) {
+        try {
+            if (write.value != null) {
+                storage.persist(write.key, write.value);
+            } else {
+                storage.delete(write.key);
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            return e;
+        }
+    }
+
+    private static final class Write {
+        private final int key;
+        private final byte[] value; // null for delete
+        private final CompletableFuture<Void> future;
+
+        Write(int key, byte[] value, CompletableFuture<Void> future) {
+            this.key = key;
+            this.value = value;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.io.IOException;
+
+// BlobEvacuation appends live values of sealed blob segment to active blob segment, then deletes sealed segment.
+//
+// Value is live, if index points to pointer entry, which points to the value. Pointer to the copy is appended
+// to storage log, and index is updated as values are copied. Copies are forced before sealed segment is deleted.
+final class BlobEvacuation extends Compaction {
+    private final SegmentedLog.Segment source;
+    private long copiedBytes;
+
+    BlobEvacuation(KVStorageImpl storage, SegmentedLog.Segment source) {
+        super(storage);
+        this.source = source;
+        sourceEnd = source.size();
+    }
+
+    @Override
+    boolean step(long stepBytes) throws IOException {
+        final long stepEnd = Math.min(sourceEnd, sourceOffset + stepBytes);
+        while (sourceOffset < stepEnd) {
+            readHeader(source.file());
+            if (bytesCount < Entry.HEADER_BYTES || bytesCount > sourceEnd - sourceOffset) {
+                throw new KVStorageDamagedException("Blob segment " + source.sequence + " is damaged");
+            }
+            final long position = source.position(sourceOffset);
+
+            final long location = storage.index.get(key);
+            if (location != IntLongHashMap.NO_VALUE
+                    && EntryLocation.isBlob(location)
+                    && EntryLocation.position(storage.readBlobLocation(location)) == position) {
+                final long copyPosition = storage.blobLog.log.appendFrom(position, bytesCount);
+                final byte[] pointer = storage.blobLog.appended(copyPosition, bytesCount);
+                source.liveBytes -= bytesCount;
+                copiedBytes += bytesCount;
+                final long relocated = storage.appendPointer(key, pointer, false);
+                storage.indexPut(key, relocated);
+                storage.addLiveBytes(location, -Entry.BLOB_POINTER_ENTRY_BYTES);
+                storage.addLiveBytes(relocated, Entry.BLOB_POINTER_ENTRY_BYTES);
+            }
+            sourceOffset += bytesCount;
+        }
+        if (sourceOffset < sourceEnd) {
+            return false;
+        }
+        complete();
+        return true;
+    }
+
+    @Override
+    void abort() {
+        // Copied values are referenced by appended pointers, sealed segment is evacuated again later
+    }
+
+    private void complete() throws IOException {
+        // Copies and pointers to them should be durable before originals are deleted
+        storage.blobLog.log.sync();
+        storage.log.sync();
+        storage.deleteSegment(storage.blobLog.log, source);
+        storage.compacted(sourceEnd - copiedBytes);
+    }
+}
@@ -0,0 +1,73 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Log of values, longer than blob threshold, see KVStorageImpl header comment.
+//
+// Blob log is segmented log of normal entries, storage log keeps blob pointer entries to them (see Entry).
+// Blob log tracks live bytes of its segments: bytes of appended value are live, until storage releases them,
+// when pointer entry is overwritten or deleted. Sealed segment with enough garbage is compacted by BlobEvacuation.
+// Blob log is appended under append lock of storage.
+final class BlobLog {
+    final SegmentedLog log;
+    private final ByteBuffer entryHeader = ByteBuffer.allocate(Entry.HEADER_BYTES);
+
+    BlobLog(SegmentedLog log) {
+        this.log = log;
+    }
+
+    // Appends entry of stored value and returns blob pointer to it.
+    byte[] append(byte status, int key, int checksum, byte[] value) throws IOException {
+        final int bytesCount = Entry.HEADER_BYTES + value.length;
+        final long position = log.startAppend(bytesCount);
+        try {
+            Entry.append(log, entryHeader, status, key, checksum, value);
+        } catch (IOException | RuntimeException | Error e) {
+            log.dropAppend(position, e);
+            throw e;
+        }
+        return appended(position, bytesCount);
+    }
+
+    // Accounts entry, appended at position, as live and returns blob pointer to it.
+    byte[] appended(long position, int bytesCount) {
+        final SegmentedLog.Segment segment = log.segment(position);
+        segment.liveBytes += bytesCount;
+        return Entry.blobPointer(segment.sequence, log.offset(position), bytesCount);
+    }
+
+    // Returns location of value entry, which blob pointer points to.
+    long location(byte[] pointer) throws KVStorageDamagedException {
+        final ByteBuffer bf = ByteBuffer.wrap(pointer);
+        final long sequence = bf.getLong();
+        final long position = log.position(sequence, bf.getLong());
+        if (position < 0) {
+            throw new KVStorageDamagedException("Blob segment " + sequence + " is missing");
+        }
+        return EntryLocation.of(position, bf.getInt());
+    }
+
+    // Subtracts bytes of value entry at position from live bytes of its segment. Returns the segment.
+    SegmentedLog.Segment release(long position, int bytesCount) {
+        final SegmentedLog.Segment segment = log.segment(position);
+        segment.liveBytes -= bytesCount;
+        return segment;
+    }
+
+    // Subtracts bytes of value entry, which blob pointer points to, from live bytes of its segment.
+    // Releases blob, which pointer entry failed to be appended for.
+    void release(byte[] pointer) {
+        final ByteBuffer bf = ByteBuffer.wrap(pointer);
+        final long sequence = bf.getLong();
+        final long offset = bf.getLong();
+        log.segment(log.position(sequence, offset)).liveBytes -= bf.getInt();
+    }
+
+    // Returns whether share of garbage in segment exceeds garbage ratio.
+    static boolean isGarbage(SegmentedLog.Segment segment, double garbageRatio) {
+        return garbageRatio < 1 && segment.size() - segment.liveBytes > segment.size() * garbageRatio;
+    }
+}
@@ -0,0 +1,85 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Bloom filter of keys of sorted table.
+//
+// Key is hashed into 64 bits, halves of hash are combined into hash count bit indexes (double hashing).
+// With 10 bits per key and 7 hashes false positive rate is about 1%.
+//
+// Serialized filter:
+// | hash count | words count |  words   |
+// |     4      |      4      | 8 * count |
+final class BloomFilter {
+    private final long[] words;
+    private final int hashCount;
+    private final long bitCount;
+
+    private BloomFilter(long[] words, int hashCount) {
+        this.words = words;
+        this.hashCount = hashCount;
+        this.bitCount = (long) words.length * 64;
+    }
+
+    static BloomFilter create(long expectedKeys, int bitsPerKey) {
+        final long bits = Math.max(64, Math.min(expectedKeys * bitsPerKey, 1L << 32));
+        final int hashCount = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+        return new BloomFilter(new long[(int) ((bits + 63) / 64)], hashCount);
+    }
+
+    static BloomFilter read(ByteBuffer src) {
+        final int hashCount = src.getInt();
+        final long[] words = new long[src.getInt()];
+        src.asLongBuffer().get(words);
+        src.position(src.position() + words.length * 8);
+        return new BloomFilter(words, hashCount);
+    }
+
+    void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(hashCount);
+        dos.writeInt(words.length);
+        for (long word : words) {
+            dos.writeLong(word);
+        }
+    }
+
+    int serializedBytes() {
+        return 4 + 4 + words.length * 8;
+    }
+
+    void add(int key) {
+        final long hash = hash(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % bitCount;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(int key) {
+        final long hash = hash(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % bitCount;
+            if ((words[(int) (bit >>> 6)] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Finalizer of MurmurHash3, spreads every bit of key over whole hash.
+    private static long hash(int key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
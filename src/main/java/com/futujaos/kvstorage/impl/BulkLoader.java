@@ -0,0 +1,52 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.KV;
+import com.futujaos.kvstorage.KVStorageConfig;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+// Bulk loader writes new storage from stream of key-value pairs in one pass, see KVStorageFactory#bulkLoad.
+//
+// Pairs are appended to files of storage as they come, structures for reads are not maintained. Files, which
+// are read on open instead of data (hint file, meta file, manifest), are written once, when loading is finished,
+// so loaded storage opens without replay. Loader, which is not finished, does not write them.
+public abstract class BulkLoader {
+
+    BulkLoader() {
+    }
+
+    public static void load(KVStorageConfig config, Iterator<KV> data) throws IOException {
+        final BulkLoader loader = open(config);
+        try {
+            while (data.hasNext()) {
+                final KV kv = data.next();
+                loader.add(kv.getKey(), kv.getValue());
+            }
+            loader.finish();
+        } catch (IOException | RuntimeException | Error e) {
+            loader.abort(e);
+            throw e;
+        }
+    }
+
+    // Opens loader of new storage, throws IllegalArgumentException if storage already has data.
+    static BulkLoader open(KVStorageConfig config) throws IOException {
+        ShardedKVStorageImpl.checkShards(config);
+        if (config.getShards() > 1) {
+            return ShardedKVStorageImpl.openLoader(config);
+        }
+        if (config.getEngine() == KVStorageConfig.Engine.LSM) {
+            return LsmKVStorageImpl.openLoader(config);
+        }
+        return KVStorageImpl.openLoader(config);
+    }
+
+    abstract void add(int key, byte[] value) throws IOException;
+
+    // Makes loaded pairs durable and writes files, which are read on open.
+    abstract void finish() throws IOException;
+
+    // Closes files of storage after failure, failures of close are suppressed by failure.
+    abstract void abort(Throwable failure);
+}
@@ -0,0 +1,109 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Small file, written at once and replaced atomically.
+//
+// File structure:
+// |    magic    |   content   |    CRC32    |
+// | xx xx xx xx | xx xx .. xx | xx xx xx xx |
+//
+// CRC32 covers magic and content, file with other magic or checksum is considered missing.
+final class ChecksummedFile {
+    private final File file;
+    private final int magic;
+
+    ChecksummedFile(File file, int magic) {
+        this.file = file;
+        this.magic = magic;
+    }
+
+    interface Content {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    // Writes content into temporary file and atomically replaces previous file with it. Temporary file is forced
+    // before it replaces previous file, and directory is forced after it, so replaced file survives power loss
+    // with complete content.
+    void write(Content content) throws IOException {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmpFile);
+        final CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+        final DataOutputStream dos = new DataOutputStream(cos);
+
+        dos.writeInt(magic);
+        content.write(dos);
+
+        dos.flush();
+        dos.writeInt((int) cos.getChecksum().getValue());
+        dos.flush();
+        fos.getChannel().force(true);
+        dos.close();
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    // Forces entries of directory (created, renamed and deleted files) to storage device. Directory can not be
+    // opened on some platforms (Windows), there it is not forced.
+    static void syncDirectory(File directory) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Returns stream of content or null, if there is no valid file.
+    DataInputStream open() throws IOException {
+        if (!file.exists() || !isValid()) {
+            return null;
+        }
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        dis.readInt(); // magic
+        return dis;
+    }
+
+    // Checks magic and checksum of whole file.
+    private boolean isValid() throws IOException {
+        final long length = file.length();
+        if (length < 4 + 4) {
+            return false;
+        }
+        final CheckedInputStream cis = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), new CRC32());
+        try (DataInputStream dis = new DataInputStream(cis)) {
+            if (dis.readInt() != magic) {
+                return false;
+            }
+            final byte[] buffer = new byte[8192];
+            long remaining = length - 4 - 4;
+            while (remaining > 0) {
+                final int readResult = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (readResult < 0) {
+                    return false;
+                }
+                remaining -= readResult;
+            }
+            final int checksum = (int) cis.getChecksum().getValue();
+            return dis.readInt() == checksum;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Compaction is performed in steps, so storage stays available for reads and writes while compaction
+// is running.
+abstract class Compaction {
+    final KVStorageImpl storage;
+    final ByteBuffer header = ByteBuffer.allocate(Entry.HEADER_BYTES);
+    long sourceOffset;
+    long sourceEnd;
+    int bytesCount;
+    byte status;
+    int key;
+    int checksum;
+
+    Compaction(KVStorageImpl storage) {
+        this.storage = storage;
+    }
+
+    // Reads header of entry at source offset. Legacy entries may be shorter than header buffer.
+    void readHeader(LogFile source) throws IOException {
+        header.clear();
+        header.limit((int) Math.min(Entry.HEADER_BYTES, sourceEnd - sourceOffset));
+        source.read(header, sourceOffset);
+        bytesCount = header.getInt(0);
+        status = header.get(4);
+        key = header.getInt(5);
+        checksum = Entry.hasChecksum(status) ? header.getInt(9) : 0;
+        if (bytesCount < Entry.headerBytes(status) || bytesCount > sourceEnd - sourceOffset) {
+            throw new KVStorageDamagedException("Entry at offset " + sourceOffset + " of " + source.getFile()
+                    + " is damaged");
+        }
+    }
+
+    // Reads entry at source offset, which continues batch, and returns its copy without batch flag.
+    // Batch is already complete, and the copy should not be taken for incomplete batch on recovery.
+    Entry readUnbatched(LogFile source) throws IOException {
+        final byte[] entryBytes = new byte[bytesCount];
+        source.read(ByteBuffer.wrap(entryBytes), sourceOffset);
+        return Entry.fromBytes(entryBytes).withoutBatch();
+    }
+
+    // Processes up to step bytes of source. Returns true, when compaction is completed.
+    abstract boolean step(long stepBytes) throws IOException;
+
+    // Drops results of compaction, which are not valid without its completion.
+    abstract void abort() throws IOException;
+}
@@ -0,0 +1,215 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+// Entry structure:
+//
+// | bytes count | status |     key     |  checksum   |    value    |
+// | xx xx xx xx |   xx   | xx xx xx xx | xx xx xx xx | xx xx .. xx |
+//
+// Status:
+// |  codec  | batch continued | checksum |   kind   |
+// | 2 bits  |     1 bit       |  1 bit   |  4 bits  |
+//
+// Kind is normal, deleted or blob. Value of blob pointer entry is location of value entry in blob log:
+// | blob segment sequence | offset in blob segment | bytes count |
+// | xx xx xx xx xx xx xx xx | xx xx xx xx xx xx xx xx | xx xx xx xx |
+// Entries of blob log are normal entries. Sequence and offset do not depend on layout of blob log positions,
+// so blob segment size may be changed.
+//
+// Value is stored as encoded by codec (see ValueCodec), codec 0 is raw value.
+// Checksum is CRC32 of status, key and stored value. Entries, written by earlier versions of storage,
+// have no checksum field and no STATUS_CHECKSUM flag in status.
+//
+// All entries of batch, except the last one, have STATUS_BATCH_CONTINUED flag, so batch, torn by crash,
+// is recognized on recovery. Compaction copies such entries without the flag.
+//
+// Writes and recovery scan encode and decode entries in place by static methods, without entry instances.
+final class Entry {
+    static final byte[] EMPTY_VALUE = new byte[0];
+    private static final byte STATUS_NORMAL = 0;
+    private static final byte STATUS_DELETED = 1;
+    private static final byte STATUS_BLOB = 2;
+    private static final byte STATUS_CHECKSUM = 0x10;
+    private static final byte STATUS_BATCH_CONTINUED = 0x20;
+    private static final int STATUS_KIND_MASK = 0x0F;
+    private static final int STATUS_CODEC_SHIFT = 6;
+    static final int LEGACY_HEADER_BYTES = 4 + 1 + 4;
+    static final int HEADER_BYTES = 4 + 1 + 4 + 4;
+    static final int BLOB_POINTER_BYTES = 8 + 8 + 4;
+    static final int BLOB_POINTER_ENTRY_BYTES = HEADER_BYTES + BLOB_POINTER_BYTES;
+    private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+    private final int bytesCount;
+    private final byte status;
+    private final int key;
+    final int checksum; // 0 for legacy entries
+    final byte[] value; // stored value, encoded by codec of status
+
+    public Entry(int bytesCount, byte status, int key, int checksum, byte[] value) {
+        this.bytesCount = bytesCount;
+        this.status = status;
+        this.key = key;
+        this.checksum = checksum;
+        this.value = value;
+    }
+
+    public static boolean hasChecksum(byte status) {
+        return (status & STATUS_CHECKSUM) != 0;
+    }
+
+    public static boolean isDeleted(byte status) {
+        return (status & STATUS_KIND_MASK) == STATUS_DELETED;
+    }
+
+    public static boolean isBlob(byte status) {
+        return (status & STATUS_KIND_MASK) == STATUS_BLOB;
+    }
+
+    public boolean isBlob() {
+        return isBlob(status);
+    }
+
+    public static int codec(byte status) {
+        return (status & 0xFF) >>> STATUS_CODEC_SHIFT;
+    }
+
+    public static int headerBytes(byte status) {
+        return hasChecksum(status) ? HEADER_BYTES : LEGACY_HEADER_BYTES;
+    }
+
+    // Returns whether value, read apart from header, matches checksum of header.
+    public static boolean isChecksumValid(ByteBuffer header, ByteBuffer value) {
+        final byte status = header.get(4);
+        return !hasChecksum(status) || header.getInt(9) == checksum(status, header.getInt(5), value);
+    }
+
+    public static boolean isBatchContinued(byte status) {
+        return (status & STATUS_BATCH_CONTINUED) != 0;
+    }
+
+    // Returns whether entry bytes are of length and layout, specified by entry header.
+    public static boolean isComplete(byte[] bytes) {
+        if (bytes.length < LEGACY_HEADER_BYTES) {
+            return false;
+        }
+        final ByteBuffer bf = ByteBuffer.wrap(bytes);
+        return bf.getInt(0) == bytes.length && (!hasChecksum(bf.get(4)) || bytes.length >= HEADER_BYTES);
+    }
+
+    public boolean isChecksumValid() {
+        return !hasChecksum(status) || checksum == checksum(status, key, value);
+    }
+
+    // Returns status of entry with checksum.
+    public static byte status(int codec, boolean deleted, boolean batchContinued) {
+        return (byte) ((deleted ? STATUS_DELETED : STATUS_NORMAL) | STATUS_CHECKSUM
+                | (batchContinued ? STATUS_BATCH_CONTINUED : 0) | codec << STATUS_CODEC_SHIFT);
+    }
+
+    // Returns status of blob pointer entry.
+    public static byte blobStatus(boolean batchContinued) {
+        return (byte) (STATUS_BLOB | STATUS_CHECKSUM | (batchContinued ? STATUS_BATCH_CONTINUED : 0));
+    }
+
+    // Returns value of blob pointer entry, which points to value entry at offset of blob segment.
+    public static byte[] blobPointer(long sequence, long offset, int bytesCount) {
+        return ByteBuffer.allocate(BLOB_POINTER_BYTES).putLong(sequence).putLong(offset).putInt(bytesCount).array();
+    }
+
+    // Returns status, which does not continue batch.
+    public static byte withoutBatch(byte status) {
+        return (byte) (status & ~STATUS_BATCH_CONTINUED);
+    }
+
+    // Returns copy of entry, which does not continue batch.
+    public Entry withoutBatch() {
+        final byte unbatched = withoutBatch(status);
+        return new Entry(bytesCount, unbatched, key, checksum(unbatched, key, value), value);
+    }
+
+    // Returns raw value, decoded from stored value.
+    public byte[] value() throws KVStorageDamagedException {
+        return decode(status, value);
+    }
+
+    // Returns raw value, decoded from stored value by codec of status.
+    public static byte[] decode(byte status, byte[] value) throws KVStorageDamagedException {
+        final int codec = codec(status);
+        return codec == ValueCodec.RAW ? value : ValueCodec.decompress(codec, value);
+    }
+
+    public static Entry fromBytes(byte[] bytes) {
+        final ByteBuffer bf = ByteBuffer.wrap(bytes);
+
+        final int bytesCount = bf.getInt();
+        final byte status = bf.get();
+        final int key = bf.getInt();
+        final int checksum = hasChecksum(status) ? bf.getInt() : 0;
+        final byte[] value = new byte[bytesCount - bf.position()];
+        bf.get(value);
+
+        return new Entry(
+                bytesCount,
+                status,
+                key,
+                checksum,
+                value
+        );
+    }
+
+    public byte[] toByteArray() {
+        final ByteBuffer bf = ByteBuffer.allocate(bytesCount);
+        bf.putInt(bytesCount)
+                .put(status)
+                .putInt(key)
+                .putInt(checksum)
+                .put(value);
+        return bf.array();
+    }
+
+    // Appends entry to target log. Header is encoded into reused buffer and value is copied into output buffer
+    // of log, so append does not allocate.
+    static void append(SegmentedLog target, ByteBuffer header, byte status, int key, int checksum, byte[] value)
+            throws IOException {
+        header.clear();
+        header.putInt(HEADER_BYTES + value.length).put(status).putInt(key).putInt(checksum).flip();
+        target.appendPart(header);
+        if (value.length > 0) {
+            target.appendPart(value);
+        }
+    }
+
+    public static int checksum(byte status, int key, byte[] value) {
+        final CRC32 crc = startChecksum(status, key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+
+    private static int checksum(byte status, int key, ByteBuffer value) {
+        final CRC32 crc = startChecksum(status, key);
+        final int position = value.position();
+        crc.update(value);
+        value.position(position);
+        return (int) crc.getValue();
+    }
+
+    // Returns checksum of thread, reset and updated by status and key, to be updated by stored value.
+    public static CRC32 startChecksum(byte status, int key) {
+        return startChecksum(CRC.get(), status, key);
+    }
+
+    // Resets checksum and updates it by status and key, to be updated by stored value.
+    public static CRC32 startChecksum(CRC32 crc, byte status, int key) {
+        crc.reset();
+        crc.update(status);
+        crc.update(key >>> 24);
+        crc.update(key >>> 16);
+        crc.update(key >>> 8);
+        crc.update(key);
+        return crc;
+    }
+}
@@ -0,0 +1,43 @@
+package com.futujaos.kvstorage.impl;
+
+// Location of entry in storage, packed into index value:
+//
+// |     position (40 bits)     | bytes count (24 bits) |
+// | xx xx xx xx xx             | xx xx xx              |
+//
+// Position is entry position in SegmentedLog.
+// Bytes count of large entries does not fit into location and is read from entry itself.
+// Bytes count of blob pointer entries is replaced by BLOB, so blob values are recognized
+// without reading pointer entry.
+final class EntryLocation {
+    static final int LARGE_ENTRY = (1 << 24) - 1;
+    static final int BLOB = (1 << 24) - 2;
+
+    private EntryLocation() {
+    }
+
+    static long of(long position, int bytesCount) {
+        return position << 24 | (bytesCount < BLOB ? bytesCount : LARGE_ENTRY);
+    }
+
+    static long blob(long position) {
+        return position << 24 | BLOB;
+    }
+
+    static boolean isBlob(long location) {
+        return bytesCount(location) == BLOB;
+    }
+
+    // Returns location of the same entry, moved to position.
+    static long relocate(long location, long position) {
+        return isBlob(location) ? blob(position) : of(position, bytesCount(location));
+    }
+
+    static long position(long location) {
+        return location >>> 24;
+    }
+
+    static int bytesCount(long location) {
+        return (int) (location & LARGE_ENTRY);
+    }
+}
@@ -0,0 +1,111 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+// Sequential reader of segment entries, which reads file channel into reused direct buffer.
+//
+// Header of the last read entry is decoded into reader fields. Stored value is checksummed in buffer
+// and copied to heap only if values are read, so reading allocates nothing per entry otherwise.
+final class EntryReader {
+    private static final int BUFFER_BYTES = 1 << 16;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final boolean readValues;
+    private FileChannel channel;
+    int bytesCount;
+    byte status;
+    int key;
+    int checksum; // 0 for legacy entries
+    byte[] value; // stored value, null unless values are read or if entry is deleted
+
+    EntryReader(boolean readValues) {
+        this.readValues = readValues;
+    }
+
+    // Starts reading entries from current position of channel.
+    void start(FileChannel channel) {
+        this.channel = channel;
+        buffer.clear();
+        buffer.limit(0);
+    }
+
+    // Reads next entry, remaining bytes are left in segment before it. Returns false if entry
+    // is incomplete or damaged.
+    boolean next(long remainingBytes) throws IOException {
+        if (!readHeader(remainingBytes)) {
+            return false;
+        }
+        final int valueBytes = bytesCount - Entry.headerBytes(status);
+        value = readValues && !Entry.isDeleted(status) ? new byte[valueBytes] : null;
+        final CRC32 crc = Entry.startChecksum(status, key);
+        int read = 0;
+        while (read < valueBytes) {
+            fill(Math.min(valueBytes - read, BUFFER_BYTES));
+            final int count = Math.min(valueBytes - read, buffer.remaining());
+            if (value != null) {
+                buffer.get(value, read, count);
+                crc.update(value, read, count);
+            } else {
+                final int limit = buffer.limit();
+                buffer.limit(buffer.position() + count);
+                crc.update(buffer);
+                buffer.limit(limit);
+            }
+            read += count;
+        }
+        return !Entry.hasChecksum(status) || (int) crc.getValue() == checksum;
+    }
+
+    // Reads header of next entry and skips its value, which is not verified. Returns false if entry
+    // is incomplete.
+    boolean skip(long remainingBytes) throws IOException {
+        if (!readHeader(remainingBytes)) {
+            return false;
+        }
+        final int valueBytes = bytesCount - Entry.headerBytes(status);
+        if (valueBytes <= buffer.remaining()) {
+            buffer.position(buffer.position() + valueBytes);
+        } else {
+            channel.position(channel.position() + valueBytes - buffer.remaining());
+            buffer.clear();
+            buffer.limit(0);
+        }
+        return true;
+    }
+
+    private boolean readHeader(long remainingBytes) throws IOException {
+        if (remainingBytes < Entry.LEGACY_HEADER_BYTES) {
+            return false;
+        }
+        fill(Entry.LEGACY_HEADER_BYTES);
+        bytesCount = buffer.getInt();
+        status = buffer.get();
+        key = buffer.getInt();
+        if (bytesCount < Entry.headerBytes(status) || bytesCount > remainingBytes) {
+            return false;
+        }
+        checksum = 0;
+        if (Entry.hasChecksum(status)) {
+            fill(4);
+            checksum = buffer.getInt();
+        }
+        return true;
+    }
+
+    // Reads channel until at least count bytes are remaining in buffer.
+    private void fill(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < count) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of segment file");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,83 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+
+// Evacuation appends live entries of sealed segment to active segment, then deletes sealed segment.
+//
+// Index is updated as entries are copied, sealed segment stays readable until evacuation completes.
+// Tombstones are copied as well, unless there are no older segments, which may contain deleted entries.
+final class Evacuation extends Compaction {
+    private final SegmentedLog.Segment source;
+    private long copiedBytes;
+
+    Evacuation(KVStorageImpl storage, SegmentedLog.Segment source) {
+        super(storage);
+        this.source = source;
+        sourceEnd = source.size();
+    }
+
+    @Override
+    boolean step(long stepBytes) throws IOException {
+        final long stepEnd = Math.min(sourceEnd, sourceOffset + stepBytes);
+        while (sourceOffset < stepEnd) {
+            readHeader(source.file());
+            final long position = source.position(sourceOffset);
+
+            final long location = storage.index.get(key);
+            if (Entry.isDeleted(status)) {
+                if (location == IntLongHashMap.NO_VALUE && source != storage.log.oldest()) {
+                    copy(position);
+                }
+            } else if (location != IntLongHashMap.NO_VALUE && EntryLocation.position(location) == position) {
+                final long relocated = EntryLocation.relocate(location, copy(position));
+                storage.indexPut(key, relocated);
+                storage.addLiveBytes(location, -bytesCount);
+                storage.addLiveBytes(relocated, bytesCount);
+            }
+            sourceOffset += bytesCount;
+        }
+        if (sourceOffset < sourceEnd) {
+            return false;
+        }
+        complete();
+        return true;
+    }
+
+    // Copies entry at position to active segment and returns position of copy.
+    private long copy(long position) throws IOException {
+        final long copyPosition;
+        int copyChecksum = checksum;
+        if (Entry.isBatchContinued(status)) {
+            final Entry entry = readUnbatched(source.file());
+            copyPosition = storage.log.append(entry.toByteArray());
+            copyChecksum = entry.checksum;
+        } else {
+            copyPosition = storage.log.appendFrom(position, bytesCount);
+        }
+        final SegmentedLog.Segment target = storage.log.segment(copyPosition);
+        target.checksum = SegmentState.roll(target.checksum, copyChecksum);
+        copiedBytes += bytesCount;
+        return copyPosition;
+    }
+
+    @Override
+    void abort() {
+        // Copied entries are valid duplicates, sealed segment is evacuated again later
+    }
+
+    private void complete() throws IOException {
+        // Copies should be durable before originals are deleted
+        storage.log.sync();
+        if (storage.hintFile != null) {
+            // Hint file locations become invalid
+            storage.hintFile.delete();
+        }
+        // Segment is removed from meta file first, so its deletion is not taken for damage
+        final NavigableMap<Long, SegmentState> states = storage.log.states();
+        states.remove(source.sequence);
+        storage.metaFile.write(states);
+        storage.deleteSegment(storage.log, source);
+        storage.compacted(sourceEnd - copiedBytes);
+    }
+}
@@ -0,0 +1,72 @@
+package com.futujaos.kvstorage.impl;
+
+// Count-min sketch of key access frequencies with 4-bit counters.
+//
+// Sketch has 4 rows of counters, every key is counted in one counter of each row, and its frequency is
+// the minimum of them. Counters are packed 16 per long:
+// | counter 15 | .. | counter 1 | counter 0 |
+// |  4 bits    | .. |  4 bits   |  4 bits   |
+//
+// When count of increments reaches sample size, all counters are halved, so frequencies of keys,
+// which were popular long ago, decay.
+final class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNTER = 15;
+    private final long[][] rows;
+    private final int counterMask;
+    private final int sampleSize;
+    private int increments;
+
+    // countersPerRow is rounded up to power of two
+    FrequencySketch(int countersPerRow) {
+        int counters = 16;
+        while (counters < countersPerRow && counters < 1 << 30) {
+            counters <<= 1;
+        }
+        rows = new long[ROWS][counters / 16];
+        counterMask = counters - 1;
+        sampleSize = counters * 10;
+    }
+
+    int frequency(int key) {
+        int frequency = MAX_COUNTER;
+        for (int row = 0; row < ROWS; row++) {
+            frequency = Math.min(frequency, counter(row, counterIndex(key, row)));
+        }
+        return frequency;
+    }
+
+    void increment(int key) {
+        boolean incremented = false;
+        for (int row = 0; row < ROWS; row++) {
+            final int index = counterIndex(key, row);
+            if (counter(row, index) < MAX_COUNTER) {
+                rows[row][index >>> 4] += 1L << ((index & 15) << 2);
+                incremented = true;
+            }
+        }
+        if (incremented && ++increments >= sampleSize) {
+            reset();
+        }
+    }
+
+    private int counter(int row, int index) {
+        return (int) (rows[row][index >>> 4] >>> ((index & 15) << 2)) & 0xF;
+    }
+
+    private int counterIndex(int key, int row) {
+        final int h = (key ^ SEEDS[row]) * SEEDS[(row + 1) % ROWS];
+        return (h ^ (h >>> 15)) & counterMask;
+    }
+
+    private void reset() {
+        for (long[] counters : rows) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = (counters[i] >>> 1) & RESET_MASK;
+            }
+        }
+        increments /= 2;
+    }
+}
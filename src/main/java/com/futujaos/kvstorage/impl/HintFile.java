@@ -0,0 +1,84 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.NavigableMap;
+import java.util.function.Predicate;
+
+// Hint file is a snapshot of index, taken at checkpoint.
+//
+// Hint file content (see ChecksummedFile):
+// | offset bits | segment states | entries count |  key (4 bytes), location (8 bytes)  | .. |
+// | xx xx xx xx |  xx xx .. xx   |  xx xx xx xx  |        xx .. xx, xx .. xx           | .. |
+//
+// Segment states are states of log segments at checkpoint (see SegmentState), entries written after checkpoint
+// are replayed from log. Offset bits define layout of log positions in locations, hint file of other layout
+// is ignored.
+final class HintFile {
+    private static final int MAGIC = 0x4B564833; // "KVH3"
+    private final ChecksummedFile file;
+
+    HintFile(File file) {
+        this.file = new ChecksummedFile(file, MAGIC);
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    void write(int offsetBits, NavigableMap<Long, SegmentState> segmentStates, IntLongHashMap index) throws IOException {
+        file.write(dos -> {
+            dos.writeInt(offsetBits);
+            SegmentState.writeAll(dos, segmentStates);
+
+            final int[] keys = index.keys();
+            dos.writeInt(keys.length);
+            for (int key : keys) {
+                dos.writeInt(key);
+                dos.writeLong(index.get(key));
+            }
+        });
+    }
+
+    // Writes count of keys and their locations from arrays, so bulk loaded storage needs no index to be written.
+    void write(int offsetBits, NavigableMap<Long, SegmentState> segmentStates, int[] keys, long[] locations, int count)
+            throws IOException {
+        file.write(dos -> {
+            dos.writeInt(offsetBits);
+            SegmentState.writeAll(dos, segmentStates);
+
+            dos.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                dos.writeInt(keys[i]);
+                dos.writeLong(locations[i]);
+            }
+        });
+    }
+
+    // Reads hint file of specified layout into index, if segment states at checkpoint are consistent with log.
+    // Returns segment states at checkpoint or null, if there is no valid hint file, index is not modified then.
+    NavigableMap<Long, SegmentState> read(int offsetBits, Predicate<NavigableMap<Long, SegmentState>> isConsistent,
+                                          IntLongHashMap index) throws IOException {
+        final DataInputStream dis = file.open();
+        if (dis == null) {
+            return null;
+        }
+        try {
+            if (dis.readInt() != offsetBits) {
+                return null;
+            }
+            final NavigableMap<Long, SegmentState> segmentStates = SegmentState.readAll(dis);
+            if (!isConsistent.test(segmentStates)) {
+                return null;
+            }
+            final int entriesCount = dis.readInt();
+            for (int i = 0; i < entriesCount; i++) {
+                index.put(dis.readInt(), dis.readLong());
+            }
+            return segmentStates;
+        } finally {
+            dis.close();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.futujaos.kvstorage.impl;
+
+import java.nio.ByteBuffer;
+
+// Open-addressing hash map from primitive 'int' keys to primitive 'long' values.
+//
+// Slots are kept in single ByteBuffer, heap or direct (off-heap):
+// |     key     |          value          |
+// | xx xx xx xx | xx xx xx xx xx xx xx xx |
+//
+// Collisions are resolved with linear probing, removal uses backward shift, so active table
+// never contains tombstones.
+//
+// Resize is incremental: when load factor is exceeded, table of double capacity is allocated,
+// and every following put/remove migrates few slots of old table into new one. While resize
+// is in progress, old table only loses entries (marked with tombstones), so lookups may probe
+// both tables. Each key is contained in at most one of the tables.
+//
+// Values NO_VALUE (0) and TOMBSTONE (-1) are reserved and can not be stored.
+//
+// Map is not thread-safe, but lookups never fail or hang when they race with modifications, so map
+// may be read optimistically and lookup results validated afterwards (see KVStorageImpl).
+final class IntLongHashMap {
+    static final long NO_VALUE = 0;
+    private static final long TOMBSTONE = -1;
+    private static final int SLOT_BYTES = 4 + 8;
+    private static final int MAX_CAPACITY = 1 << 27; // slots of max table still fit in single ByteBuffer
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIGRATION_STEP = 16;
+
+    private final boolean offHeap;
+    private Table table;
+    private Table oldTable;   // not null while resize is in progress
+    private int migratedSlots; // count of old table slots already moved to new table
+    private int size;
+
+    IntLongHashMap(int expectedSize, boolean offHeap) {
+        this.offHeap = offHeap;
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        table = new Table(capacity, offHeap);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(int key) {
+        return get(key) != NO_VALUE;
+    }
+
+    // Returns value for key or NO_VALUE if there is no such key.
+    long get(int key) {
+        final long value = table.get(key);
+        final Table oldTable = this.oldTable;
+        if (value == NO_VALUE && oldTable != null) {
+            return oldTable.get(key);
+        }
+        return value;
+    }
+
+    // Returns previous value for key or NO_VALUE if there was no such key.
+    long put(int key, long value) {
+        if (value == NO_VALUE || value == TOMBSTONE) {
+            throw new IllegalArgumentException("Value " + value + " is reserved");
+        }
+        long previous = table.put(key, value);
+        if (previous == NO_VALUE) {
+            if (oldTable != null) {
+                previous = oldTable.markRemoved(key);
+            }
+            if (previous == NO_VALUE) {
+                size++;
+            }
+        }
+        if (oldTable != null) {
+            migrate();
+        } else if (table.isOverloaded()) {
+            startResize();
+        }
+        return previous;
+    }
+
+    // Returns removed value for key or NO_VALUE if there was no such key.
+    long remove(int key) {
+        long previous = table.remove(key);
+        if (previous == NO_VALUE && oldTable != null) {
+            previous = oldTable.markRemoved(key);
+        }
+        if (previous != NO_VALUE) {
+            size--;
+        }
+        if (oldTable != null) {
+            migrate();
+        }
+        return previous;
+    }
+
+    // Returns all keys in table order.
+    int[] keys() {
+        final int[] keys = new int[size];
+        int count = table.collectKeys(keys, 0);
+        if (oldTable != null) {
+            count = oldTable.collectKeys(keys, count);
+        }
+        return keys;
+    }
+
+    private void startResize() {
+        if (table.capacity() >= MAX_CAPACITY) {
+            // Table of max capacity is filled above load factor until last free slot
+            return;
+        }
+        oldTable = table;
+        migratedSlots = 0;
+        table = new Table(oldTable.capacity() << 1, offHeap);
+    }
+
+    private void migrate() {
+        final int end = Math.min(migratedSlots + MIGRATION_STEP, oldTable.capacity());
+        for (; migratedSlots < end; migratedSlots++) {
+            final long value = oldTable.valueAt(migratedSlots);
+            if (value != NO_VALUE && value != TOMBSTONE) {
+                table.put(oldTable.keyAt(migratedSlots), value);
+                oldTable.setValueAt(migratedSlots, TOMBSTONE);
+            }
+        }
+        if (migratedSlots == oldTable.capacity()) {
+            oldTable = null;
+        }
+    }
+
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Table {
+        private final ByteBuffer slots;
+        private final int mask;
+        private final int threshold;
+        private int used; // occupied slots, including tombstones
+
+        Table(int capacity, boolean offHeap) {
+            slots = offHeap ? ByteBuffer.allocateDirect(capacity * SLOT_BYTES) : ByteBuffer.allocate(capacity * SLOT_BYTES);
+            mask = capacity - 1;
+            threshold = capacity / 4 * 3;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        boolean isOverloaded() {
+            return used > threshold;
+        }
+
+        int keyAt(int slot) {
+            return slots.getInt(slot * SLOT_BYTES);
+        }
+
+        long valueAt(int slot) {
+            return slots.getLong(slot * SLOT_BYTES + 4);
+        }
+
+        void setValueAt(int slot, long value) {
+            slots.putLong(slot * SLOT_BYTES + 4, value);
+        }
+
+        private void setAt(int slot, int key, long value) {
+            slots.putInt(slot * SLOT_BYTES, key);
+            slots.putLong(slot * SLOT_BYTES + 4, value);
+        }
+
+        // Returns slot with key or -1 if there is no such key.
+        // Probing is bounded by capacity, as racing modification may shift entries of cluster.
+        private int find(int key) {
+            int slot = hash(key) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                final long value = valueAt(slot);
+                if (value == NO_VALUE) {
+                    return -1;
+                }
+                if (value != TOMBSTONE && keyAt(slot) == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        long get(int key) {
+            final int slot = find(key);
+            return slot < 0 ? NO_VALUE : valueAt(slot);
+        }
+
+        // Must not be called for table with tombstones.
+        long put(int key, long value) {
+            int slot = hash(key) & mask;
+            while (true) {
+                final long current = valueAt(slot);
+                if (current == NO_VALUE) {
+                    if (used == mask) {
+                        // At least one free slot is required to terminate probing
+                        throw new IllegalStateException("Index capacity exceeded");
+                    }
+                    setAt(slot, key, value);
+                    used++;
+                    return NO_VALUE;
+                }
+                if (keyAt(slot) == key) {
+                    setValueAt(slot, value);
+                    return current;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        // Removes key with backward shift of following entries of cluster.
+        // Must not be called for table with tombstones.
+        long remove(int key) {
+            int hole = find(key);
+            if (hole < 0) {
+                return NO_VALUE;
+            }
+            final long previous = valueAt(hole);
+            int slot = hole;
+            while (true) {
+                slot = (slot + 1) & mask;
+                final long value = valueAt(slot);
+                if (value == NO_VALUE) {
+                    break;
+                }
+                final int home = hash(keyAt(slot)) & mask;
+                // Entry can be moved to hole only if its home slot is not in cyclic range (hole, slot]
+                final boolean stays = hole <= slot
+                        ? hole < home && home <= slot
+                        : hole < home || home <= slot;
+                if (!stays) {
+                    setAt(hole, keyAt(slot), value);
+                    hole = slot;
+                }
+            }
+            setValueAt(hole, NO_VALUE);
+            used--;
+            return previous;
+        }
+
+        // Replaces entry with tombstone, so probe sequences of other keys stay intact.
+        long markRemoved(int key) {
+            final int slot = find(key);
+            if (slot < 0) {
+                return NO_VALUE;
+            }
+            final long previous = valueAt(slot);
+            setValueAt(slot, TOMBSTONE);
+            return previous;
+        }
+
+        int collectKeys(int[] keys, int count) {
+            for (int slot = 0; slot <= mask; slot++) {
+                final long value = valueAt(slot);
+                if (value != NO_VALUE && value != TOMBSTONE) {
+                    keys[count++] = keyAt(slot);
+                }
+            }
+            return count;
+        }
+    }
+}
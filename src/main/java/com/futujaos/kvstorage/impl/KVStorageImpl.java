@@ -1,223 +1,2202 @@
 package com.futujaos.kvstorage.impl;
 
+import com.futujaos.kvstorage.CacheStats;
+import com.futujaos.kvstorage.CompactionStats;
+import com.futujaos.kvstorage.KV;
 import com.futujaos.kvstorage.KVStorage;
 import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageMXBean;
+import com.futujaos.kvstorage.KVStorageSnapshot;
+import com.futujaos.kvstorage.KVStorageStats;
+import com.futujaos.kvstorage.WriteBatch;
 import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 // Storage structure:
-// <file_name>.kvs      - file with (key, value) pairs
-// <file_name>.kvs.meta - file with storage meta data (such as MD5 of data)
+// <file_name>.kvs         - file with (key, value) pairs
+// <file_name>.kvs.meta    - file with storage meta data (see MetaFile)
+// <file_name>.kvs.compact - file with live entries, written by running compaction
+// <file_name>.kvs.hint    - snapshot of index, written at checkpoint (see HintFile)
+// <file_name>.kvs.blobs   - directory of blob log segments, if blob log is enabled
+// <file_name>.kvs.streams - directory of values, written by open value writers (see ValueWriter)
 //
 // <file_name>.kvs
 // | entry bytes | entry bytes | .. | entry bytes |
 // | xx xx .. xx | xx xx .. xx | .. | xx xx .. xx |
 //
-// <file_name>.kvs.meta
-// |     MD5     |
-// | xx xx .. xx |
+// With segment size configured, <file_name>.kvs is a directory of segment files with the same structure,
+// see SegmentedLog.
 //
-public class KVStorageImpl implements KVStorage {
-    private final File metaFile;
-    private final OutputStream os;
-    private final InputStream is;
-    private final MessageDigest md5Provider;
-    private final Map<Integer, Entry> index = new HashMap<>(); // key to entry
+// Values, longer than blob threshold, are appended to blob log, which is segmented log of normal entries,
+// and storage log keeps blob pointer entries to them (see Entry). Index points to pointer entry, so replay and
+// compaction of storage log read only pointers. Blob log has no meta file: after index is built, tail of active
+// blob segment, which is not referenced by index, is truncated, as it holds only garbage or value torn by crash.
+// Sealed blob segments are compacted separately from storage log (see BlobEvacuation). Blob is appended
+// before its pointer, and blob log is forced before storage log, so durable pointer points to durable blob.
+//
+// Writes, compaction and close are serialized by append lock, so log is appended by single thread.
+// Reads do not take append lock:
+// - index is read optimistically, every index modification holds write lock of index lock,
+//   so lookup, which raced with modification, is repeated;
+// - file generation is incremented under index lock, before storage files are replaced or deleted
+//   by compaction, so value read from replaced file is read again;
+// - only entries, still in output buffer of log, are read under append lock.
+// Values, kept in memory, are kept in concurrent map, if storage is opened for concurrent access.
+//
+// Snapshot keeps segment states at the moment it was taken, data of log up to them is never changed, while
+// compaction is postponed. Index is copied on write: while snapshots are open, index modification preserves
+// previous location of key in every snapshot, which has not preserved the key yet, under the same write lock.
+// So snapshot location of key is its preserved location, or its current location, if key was not modified.
+//
+// Log is forced to storage device outside of append lock, so writes are not blocked by sync.
+// Sync lock serializes syncs: writer, waiting for durability, either finds its entries already forced
+// by previous sync, or forces all entries appended so far, so concurrent writers share single force.
+//
+public class KVStorageImpl implements KVStorage, KVStorageMXBean {
+    private static final int READ_ALL_CHUNK_BITS = 23; // entry position (40 bits) and key index fit in long
+    private static final int READ_ALL_CHUNK_KEYS = 1 << READ_ALL_CHUNK_BITS;
+    private static final int COMPACTION_RETRY_STEPS = 16; // see failCompaction
+    final KVStorageConfig config;
+    private final File storageFile;
+    final File compactionFile;
+    private final File streamsDirectory;
+    final MetaFile metaFile;
+    volatile IntLongHashMap index; // key to entry location in storage, replaced by rewrite under index lock
+    private final Map<Integer, byte[]> values; // key to value, null if values are not kept in memory
+    private final NavigableSet<Integer> sortedKeys; // keys of index, null if index is not sorted
+    final SegmentedLog log;
+    final BlobLog blobLog; // null if storage has no blob log
+    final HintFile hintFile; // null if index is always rebuilt from log
+    private final ValueCache cache; // null if values are not cached
+    private final ValueCodec codec; // null if values are not compressed
+    private final StorageMetrics metrics;
+    private final ObjectName mbeanName; // null if storage is not registered in JMX
+    private long liveBytes; // bytes of entries referenced by index
+    private Compaction compaction; // null if compaction is not running
+    private Compaction blobCompaction; // null if compaction of blob log is not running
+    private final List<Snapshot> snapshots = new ArrayList<>(); // guarded by append lock and index lock write lock
+    private long completedCompactions;
+    private long reclaimedBytes;
+    private long failedCompactions;
+    private Exception compactionFailure; // the last failure of compaction, null if compaction has not failed
+    private long compactionRetryBytes; // appended bytes, before which compaction is not resumed after failure
+    private boolean compactionRetry; // whether sealed segments are checked for garbage, when compaction is resumed
+    private long checkpointBytes; // bytes appended since last checkpoint
+    private final ByteBuffer entryHeader = ByteBuffer.allocate(Entry.HEADER_BYTES); // guarded by append lock
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final StampedLock indexLock = new StampedLock();
+    private volatile long fileGeneration;
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final ScheduledExecutorService syncExecutor; // null unless durability mode is periodic
+    private long appendSequence; // count of appended entries
+    private long syncedSequence; // count of appended entries, forced to storage device
+    private volatile IOException syncFailure; // failure of periodic sync, reported by next write
+    private volatile boolean closed; // set under append lock
 
     public KVStorageImpl(KVStorageConfig config) throws IOException {
-        final File storageFile = new File(config.getStorageFilePath());
-        metaFile = new File(config.getMetaFilePath());
+        this(config, false);
+    }
 
-        storageFile.createNewFile();
-        metaFile.createNewFile();
+    public KVStorageImpl(KVStorageConfig config, boolean concurrent) throws IOException {
+        final long openStart = System.nanoTime();
+        this.config = config;
+        metrics = new StorageMetrics(config.isLatencyHistograms());
+        storageFile = new File(config.getStorageFilePath());
+        compactionFile = new File(config.getStorageFilePath() + ".compact");
+        metaFile = new MetaFile(new File(config.getMetaFilePath()));
+        hintFile = config.isHintFile() ? new HintFile(new File(config.getStorageFilePath() + ".hint")) : null;
 
-        is = new BufferedInputStream(new FileInputStream(storageFile.getAbsolutePath()));
-        os = new BufferedOutputStream(new FileOutputStream(storageFile.getAbsolutePath(), true));
+        // Compaction, interrupted by crash, is started from scratch
+        compactionFile.delete();
+        // Values of value writers, which were not closed before crash, are dropped
+        streamsDirectory = new File(config.getStorageFilePath() + ".streams");
+        final File[] streams = streamsDirectory.listFiles();
+        if (streams != null) {
+            for (File stream : streams) {
+                stream.delete();
+            }
+        }
 
-        try {
-            md5Provider = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Runtime does not support MD5 MessageDigest");
+        final int mappedSegmentSize = config.isMemoryMappedReads() ? config.getMappedSegmentSize() : 0;
+        log = config.getSegmentSize() > 0
+                ? SegmentedLog.openDirectory(storageFile, config.getSegmentSize(), mappedSegmentSize)
+                : SegmentedLog.openFile(storageFile, mappedSegmentSize);
+        // Blob log of existing storage is opened, even if it is disabled, so its values stay readable
+        final File blobDirectory = new File(config.getStorageFilePath() + ".blobs");
+        blobLog = config.getBlobThresholdBytes() > 0 || blobDirectory.isDirectory()
+                ? new BlobLog(SegmentedLog.openDirectory(blobDirectory, config.getBlobSegmentSize(), 0))
+                : null;
+
+        index = new IntLongHashMap(0, config.isOffHeapIndex());
+        if (config.getIndexMode() != KVStorageConfig.IndexMode.VALUES) {
+            values = null;
+        } else {
+            values = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+        }
+        if (!config.isSortedIndex()) {
+            sortedKeys = null;
+        } else {
+            sortedKeys = concurrent ? new ConcurrentSkipListSet<>() : new TreeSet<>();
         }
+        cache = values == null && config.getValueCacheBytes() > 0 ? new ValueCache(config.getValueCacheBytes()) : null;
+        codec = config.getCompression() != KVStorageConfig.Compression.NONE
+                ? new ValueCodec(config.getCompression(), config.getCompressionMinBytes())
+                : null;
+
         buildIndex();
+
+        if (config.getDurabilityMode() == KVStorageConfig.DurabilityMode.PERIODIC) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "kvstorage-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = config.getSyncIntervalMillis();
+            syncExecutor.scheduleWithFixedDelay(this::periodicSync, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            syncExecutor = null;
+        }
+        metrics.openNanos = System.nanoTime() - openStart;
+
+        mbeanName = config.isJmx() ? registerMBean() : null;
     }
 
     @Override
     public Optional<byte[]> read(int key) {
-        if (!index.containsKey(key)) {
-            return Optional.empty();
+        final long start = metrics.start();
+        final Optional<byte[]> value = readKey(key);
+        metrics.read(start, 1);
+        return value;
+    }
+
+    @Override
+    public int readInto(int key, ByteBuffer dst) {
+        final long start = metrics.start();
+        final int length = readKeyInto(key, dst);
+        metrics.read(start, 1);
+        return length;
+    }
+
+    @Override
+    public Optional<ByteBuffer> readView(int key) {
+        final long start = metrics.start();
+        final Optional<ByteBuffer> view = viewKey(key);
+        metrics.read(start, 1);
+        return view;
+    }
+
+    @Override
+    public long transferTo(int key, WritableByteChannel target) throws IOException {
+        final long start = metrics.start();
+        final long length = transferKey(key, target);
+        metrics.read(start, 1);
+        return length;
+    }
+
+    @Override
+    public Optional<InputStream> openReader(int key) throws IOException {
+        final long start = metrics.start();
+        final Optional<InputStream> reader = openKeyReader(key);
+        metrics.read(start, 1);
+        return reader;
+    }
+
+    @Override
+    public OutputStream openWriter(int key) throws IOException {
+        checkSyncFailure();
+        if (!streamsDirectory.mkdirs() && !streamsDirectory.isDirectory()) {
+            throw new IOException("Directory " + streamsDirectory + " is not created");
         }
-        final Entry entry = index.get(key);
-        return Optional.of(entry.value);
+        return new ValueWriter(this, streamsDirectory, key, metrics.start());
     }
 
     @Override
     public void persist(int key, byte[] value) throws IOException {
-        final Entry entry = Entry.fromKV(key, value);
-        os.write(entry.toByteArray());
-        index.put(key, entry);
+        final long start = metrics.start();
+        persistKey(key, value);
+        metrics.write(start, 1, 0);
     }
 
     @Override
     public void delete(int key) throws IOException {
-        final Entry entry = Entry.deleted(key);
-        if (!index.containsKey(key)) {
-            return;
+        final long start = metrics.start();
+        deleteKey(key);
+        metrics.write(start, 0, 1);
+    }
+
+    @Override
+    public Map<Integer, byte[]> readAll(int[] keys) {
+        final long start = metrics.start();
+        final Map<Integer, byte[]> values = readKeys(keys);
+        metrics.read(start, keys.length);
+        return values;
+    }
+
+    @Override
+    public Iterator<KV> scan(int fromKey, int toKey) {
+        if (fromKey > toKey) {
+            throw new IllegalArgumentException("From key should not be greater than to key");
         }
-        os.write(entry.toByteArray());
-        index.remove(key);
+        return new Scan(fromKey, toKey, false);
     }
 
     @Override
-    public void close() throws IOException {
-        os.close();
-        is.close();
+    public Iterator<KV> scan() {
+        return new Scan(Integer.MIN_VALUE, Integer.MAX_VALUE, true);
+    }
 
-        // Persist storage MD5 in meta file
+    @Override
+    public void persistAll(WriteBatch batch) throws IOException {
+        final long start = metrics.start();
+        applyBatch(batch);
+        int deleteCount = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getValue(i) == null) {
+                deleteCount++;
+            }
+        }
+        metrics.writeBatch(start, batch.size() - deleteCount, deleteCount);
+    }
 
-        index.forEach((key, entry) -> md5Provider.update(entry.toByteArray()));
+    private Optional<byte[]> readKey(int key) {
+        if (values != null) {
+            return Optional.ofNullable(values.get(key));
+        }
+        if (cache != null) {
+            final byte[] cached = cache.get(key);
+            if (cached != null) {
+                return Optional.of(cached);
+            }
+        }
+        try {
+            while (true) {
+                final long generation = fileGeneration;
+                final long location = indexGet(key);
+                if (location == IntLongHashMap.NO_VALUE) {
+                    return Optional.empty();
+                }
+                try {
+                    final byte[] value = readValue(location);
+                    if (generation == fileGeneration) {
+                        cacheLoaded(key, location, value);
+                        return Optional.of(value);
+                    }
+                } catch (IOException e) {
+                    if (generation == fileGeneration) {
+                        throw e;
+                    }
+                }
+                // Storage file was replaced by compaction, while value was read
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        final byte[] md5 = md5Provider.digest();
-        final FileOutputStream fosMeta = new FileOutputStream(metaFile);
-        fosMeta.write(md5);
-        fosMeta.close();
+    private int readKeyInto(int key, ByteBuffer dst) {
+        if (values != null) {
+            return copyInto(values.get(key), dst);
+        }
+        if (cache != null) {
+            final byte[] cached = cache.get(key);
+            if (cached != null) {
+                return copyInto(cached, dst);
+            }
+        }
+        try {
+            final int dstPosition = dst.position();
+            while (true) {
+                final long generation = fileGeneration;
+                final long location = indexGet(key);
+                if (location == IntLongHashMap.NO_VALUE) {
+                    return -1;
+                }
+                try {
+                    final int length = readValueInto(location, dst);
+                    if (generation == fileGeneration) {
+                        return length;
+                    }
+                } catch (IOException e) {
+                    if (generation == fileGeneration) {
+                        throw e;
+                    }
+                }
+                // Storage file was replaced by compaction, while value was read
+                dst.position(dstPosition);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    private void buildIndex() throws IOException {
-        final FileInputStream fisMeta = new FileInputStream(metaFile);
-        final byte[] md5 = new byte[16];
-        final int md5ReadResult = fisMeta.read(md5);
+    private Optional<ByteBuffer> viewKey(int key) {
+        if (values != null) {
+            final byte[] value = values.get(key);
+            return value != null ? Optional.of(ByteBuffer.wrap(value).asReadOnlyBuffer()) : Optional.empty();
+        }
+        if (cache != null) {
+            final byte[] cached = cache.get(key);
+            if (cached != null) {
+                return Optional.of(ByteBuffer.wrap(cached).asReadOnlyBuffer());
+            }
+        }
+        try {
+            while (true) {
+                final long generation = fileGeneration;
+                final long location = indexGet(key);
+                if (location == IntLongHashMap.NO_VALUE) {
+                    return Optional.empty();
+                }
+                try {
+                    final ByteBuffer view = viewValue(location);
+                    if (generation == fileGeneration) {
+                        return Optional.of(view);
+                    }
+                } catch (IOException e) {
+                    if (generation == fileGeneration) {
+                        throw e;
+                    }
+                }
+                // Storage file was replaced by compaction, while value was read
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        boolean hasData = false;
+    private long transferKey(int key, WritableByteChannel target) throws IOException {
+        ValueTransfer.checkBlocking(target);
+        if (values != null) {
+            return ValueTransfer.writeFully(values.get(key), target);
+        }
+        if (cache != null) {
+            final byte[] cached = cache.get(key);
+            if (cached != null) {
+                return ValueTransfer.writeFully(cached, target);
+            }
+        }
+        while (true) {
+            final long generation = fileGeneration;
+            final long location = indexGet(key);
+            if (location == IntLongHashMap.NO_VALUE) {
+                return -1;
+            }
+            final SegmentedLog valueLog = valueLog(location);
+            final long valueLocation;
+            final FileChannel channel;
+            final ByteBuffer header;
+            try {
+                valueLocation = valueLocation(location);
+                header = readHeader(valueLog, valueLocation);
+                if (Entry.codec(header.get(4)) != ValueCodec.RAW) {
+                    final byte[] value = readValue(valueLog, valueLocation);
+                    if (generation == fileGeneration) {
+                        return ValueTransfer.writeFully(value, target);
+                    }
+                    continue;
+                }
+                flushLog(valueLog, EntryLocation.position(valueLocation), header.getInt(0));
+                channel = valueLog.openReadChannel(EntryLocation.position(valueLocation));
+            } catch (IOException e) {
+                if (generation == fileGeneration) {
+                    throw e;
+                }
+                continue;
+            }
+            try (FileChannel source = channel) {
+                // Opened file contains entry, if it was not replaced by compaction after location was looked up
+                if (generation != fileGeneration) {
+                    continue;
+                }
+                final int headerBytes = Entry.headerBytes(header.get(4));
+                final long valueOffset = valueLog.offset(EntryLocation.position(valueLocation)) + headerBytes;
+                final long length = header.getInt(0) - headerBytes;
+                ValueTransfer.transferFully(source, valueOffset, length, target);
+                return length;
+            }
+        }
+    }
 
+    private Optional<InputStream> openKeyReader(int key) throws IOException {
+        if (values != null) {
+            final byte[] value = values.get(key);
+            return value != null ? Optional.of(new ByteArrayInputStream(value)) : Optional.empty();
+        }
+        if (cache != null) {
+            final byte[] cached = cache.get(key);
+            if (cached != null) {
+                return Optional.of(new ByteArrayInputStream(cached));
+            }
+        }
         while (true) {
-            final byte[] countBytes = new byte[4];
-            final int countReadResult = is.read(countBytes);
-            if (countReadResult < 4) {
-                break;
+            final long generation = fileGeneration;
+            final long location = indexGet(key);
+            if (location == IntLongHashMap.NO_VALUE) {
+                return Optional.empty();
+            }
+            final SegmentedLog valueLog = valueLog(location);
+            final long valueLocation;
+            final FileChannel channel;
+            final ByteBuffer header;
+            try {
+                valueLocation = valueLocation(location);
+                header = readHeader(valueLog, valueLocation);
+                if (Entry.codec(header.get(4)) != ValueCodec.RAW) {
+                    final byte[] value = readValue(valueLog, valueLocation);
+                    if (generation == fileGeneration) {
+                        return Optional.of(new ByteArrayInputStream(value));
+                    }
+                    continue;
+                }
+                flushLog(valueLog, EntryLocation.position(valueLocation), header.getInt(0));
+                channel = valueLog.openReadChannel(EntryLocation.position(valueLocation));
+            } catch (IOException e) {
+                if (generation == fileGeneration) {
+                    throw e;
+                }
+                continue;
+            }
+            // Opened file contains entry, if it was not replaced by compaction after location was looked up
+            if (generation != fileGeneration) {
+                channel.close();
+                continue;
+            }
+            return Optional.of(new ValueReader(channel, EntryLocation.position(valueLocation),
+                    valueLog.offset(EntryLocation.position(valueLocation)), header));
+        }
+    }
+
+    private void persistKey(int key, byte[] value) throws IOException {
+        // Value is compressed and checksummed before append lock is taken, so concurrent writers do it in parallel
+        final byte[] stored = encode(value);
+        final byte status = Entry.status(stored != value ? codec.codec() : ValueCodec.RAW, false, false);
+        final int checksum = Entry.checksum(status, key, stored);
+        final long sequence;
+        appendLock.lock();
+        try {
+            checkSyncFailure();
+            if (isBlobValue(value)) {
+                final byte[] pointer = blobLog.append(status, key, checksum, stored);
+                final long location;
+                try {
+                    location = appendPointer(key, pointer, false);
+                } catch (IOException | RuntimeException | Error e) {
+                    blobLog.release(pointer);
+                    throw e;
+                }
+                putAppended(key, location, Entry.BLOB_POINTER_ENTRY_BYTES, value);
+            } else {
+                final long location = append(status, key, checksum, stored);
+                putAppended(key, location, Entry.HEADER_BYTES + stored.length, value);
+            }
+            sequence = appendSequence;
+        } finally {
+            appendLock.unlock();
+        }
+        afterAppend(sequence);
+    }
+
+    // Points key to appended entry. Value is kept in index, if values are kept in memory.
+    private void putAppended(int key, long location, int bytesCount, byte[] value) throws IOException {
+        if (values != null) {
+            values.put(key, value);
+        }
+        final long previous = indexPut(key, location);
+        invalidateCached(key);
+        if (previous != IntLongHashMap.NO_VALUE) {
+            releaseEntry(previous);
+        }
+        addLiveBytes(location, bytesCount);
+        afterWrite(previous);
+    }
+
+    // Subtracts bytes of entry, which index does not point to anymore, and bytes of its blob from live bytes.
+    // Starts compaction of sealed blob segment, which got enough garbage.
+    private void releaseEntry(long location) throws IOException {
+        addLiveBytes(location, -entryBytesCount(location));
+        if (!EntryLocation.isBlob(location)) {
+            return;
+        }
+        final long blobLocation = readBlobLocation(location);
+        final SegmentedLog.Segment segment = blobLog.release(EntryLocation.position(blobLocation),
+                entryBytesCount(blobLog.log, blobLocation));
+        if (blobCompaction == null && isCompactionResumed() && segment.isSealed() && isBlobGarbage(segment)) {
+            blobCompaction = new BlobEvacuation(this, segment);
+        }
+    }
+
+    private void deleteKey(int key) throws IOException {
+        final long sequence;
+        appendLock.lock();
+        try {
+            checkSyncFailure();
+            if (!index.containsKey(key)) {
+                return;
+            }
+            final byte status = Entry.status(ValueCodec.RAW, true, false);
+            append(status, key, Entry.checksum(status, key, Entry.EMPTY_VALUE), Entry.EMPTY_VALUE);
+            if (values != null) {
+                values.remove(key);
             }
+            final long previous = indexRemove(key);
+            invalidateCached(key);
+            releaseEntry(previous);
+            afterWrite(previous);
+            sequence = appendSequence;
+        } finally {
+            appendLock.unlock();
+        }
+        afterAppend(sequence);
+    }
 
-            final int bytesCount = ByteBuffer.wrap(countBytes).getInt();
-            final byte[] entryBytesWithoutCount = new byte[bytesCount - 4];
+    private Map<Integer, byte[]> readKeys(int[] keys) {
+        final Map<Integer, byte[]> result = new HashMap<>();
+        if (values != null) {
+            for (int key : keys) {
+                final byte[] value = values.get(key);
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+            return result;
+        }
+        int[] uncachedKeys = keys;
+        if (cache != null) {
+            int uncachedCount = 0;
+            uncachedKeys = new int[keys.length];
+            for (int key : keys) {
+                final byte[] cached = cache.get(key);
+                if (cached != null) {
+                    result.put(key, cached);
+                } else {
+                    uncachedKeys[uncachedCount++] = key;
+                }
+            }
+            uncachedKeys = Arrays.copyOf(uncachedKeys, uncachedCount);
+        }
+        try {
+            // Keys are read in chunks, as index of key in chunk is packed next to entry position for sorting
+            for (int from = 0; from < uncachedKeys.length; from += READ_ALL_CHUNK_KEYS) {
+                readChunk(uncachedKeys, from, Math.min(uncachedKeys.length, from + READ_ALL_CHUNK_KEYS), result);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
 
-            final int entryReadResult = is.read(entryBytesWithoutCount);
-            if (entryReadResult < bytesCount - 4) {
-                break;
+    private void applyBatch(WriteBatch batch) throws IOException {
+        final int count = batch.size();
+        if (count == 0) {
+            return;
+        }
+        final byte[] statuses = new byte[count];
+        final int[] checksums = new int[count];
+        final byte[][] stored = new byte[count][];
+        boolean hasBlobs = false;
+        for (int i = 0; i < count; i++) {
+            final byte[] value = batch.getValue(i);
+            final boolean blob = value != null && isBlobValue(value);
+            stored[i] = value != null ? encode(value) : Entry.EMPTY_VALUE;
+            // Entries of blob log do not continue batch, their pointers do
+            statuses[i] = Entry.status(value != null && stored[i] != value ? codec.codec() : ValueCodec.RAW,
+                    value == null, i < count - 1 && !blob);
+            checksums[i] = Entry.checksum(statuses[i], batch.getKey(i), stored[i]);
+            hasBlobs |= blob;
+        }
+        final long sequence;
+        appendLock.lock();
+        try {
+            checkSyncFailure();
+            final int[] entries = changingEntries(batch);
+            if (entries.length == 0) {
+                return;
+            }
+            final int last = entries[entries.length - 1];
+            if (Entry.isBatchContinued(statuses[last])) {
+                // Entries after the last appended one were skipped, so it completes batch
+                statuses[last] = Entry.withoutBatch(statuses[last]);
+                checksums[last] = Entry.checksum(statuses[last], batch.getKey(last), stored[last]);
+            }
+            final long position;
+            try {
+                if (hasBlobs) {
+                    // Blobs are appended before batch, blobs of batch, torn by crash, are garbage
+                    for (int i : entries) {
+                        final byte[] value = batch.getValue(i);
+                        if (value != null && isBlobValue(value)) {
+                            stored[i] = blobLog.append(statuses[i], batch.getKey(i), checksums[i], stored[i]);
+                            statuses[i] = Entry.blobStatus(i != last);
+                            checksums[i] = Entry.checksum(statuses[i], batch.getKey(i), stored[i]);
+                        }
+                    }
+                }
+                position = append(batch, entries, statuses, checksums, stored);
+            } catch (IOException | RuntimeException | Error e) {
+                // Blobs of failed batch are garbage as well
+                for (int i : entries) {
+                    if (Entry.isBlob(statuses[i])) {
+                        blobLog.release(stored[i]);
+                    }
+                }
+                throw e;
             }
 
-            final byte[] entryBytes = new byte[bytesCount];
-            for (int i = 0; i < entryBytes.length; i++) {
-                if (i < 4) {
-                    entryBytes[i] = countBytes[i];
+            // Compaction is stepped after index points to all entries of batch
+            final long[] previous = new long[entries.length];
+            long entryPosition = position;
+            for (int j = 0; j < entries.length; j++) {
+                final int i = entries[j];
+                final int key = batch.getKey(i);
+                final int bytesCount = Entry.HEADER_BYTES + stored[i].length;
+                if (Entry.isDeleted(statuses[i])) {
+                    if (values != null) {
+                        values.remove(key);
+                    }
+                    previous[j] = indexRemove(key);
+                    invalidateCached(key);
                 } else {
-                    entryBytes[i] = entryBytesWithoutCount[i - 4];
+                    final long location = Entry.isBlob(statuses[i])
+                            ? EntryLocation.blob(entryPosition)
+                            : EntryLocation.of(entryPosition, bytesCount);
+                    if (values != null) {
+                        values.put(key, batch.getValue(i));
+                    }
+                    previous[j] = indexPut(key, location);
+                    invalidateCached(key);
+                    addLiveBytes(location, bytesCount);
+                }
+                if (previous[j] != IntLongHashMap.NO_VALUE) {
+                    releaseEntry(previous[j]);
                 }
+                entryPosition += bytesCount;
             }
+            for (long previousLocation : previous) {
+                afterWrite(previousLocation);
+            }
+            sequence = appendSequence;
+        } finally {
+            appendLock.unlock();
+        }
+        if (batch.isSync()) {
+            sync(sequence);
+        } else {
+            afterAppend(sequence);
+        }
+    }
+
+    // Returns indexes of batch entries, which change storage. Delete of key, which is absent at its place
+    // in batch, is skipped, as by delete, so log does not grow with useless tombstones.
+    private int[] changingEntries(WriteBatch batch) {
+        final int[] entries = new int[batch.size()];
+        final Map<Integer, Boolean> written = new HashMap<>(); // whether key exists after earlier entries of batch
+        int count = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            final int key = batch.getKey(i);
+            final boolean deleted = batch.getValue(i) == null;
+            if (deleted) {
+                final Boolean exists = written.get(key);
+                if (exists != null ? !exists : !index.containsKey(key)) {
+                    continue;
+                }
+            }
+            written.put(key, !deleted);
+            entries[count++] = i;
+        }
+        return count == entries.length ? entries : Arrays.copyOf(entries, count);
+    }
 
-            final Entry entry = Entry.fromBytes(entryBytes);
+    @Override
+    public void compact() throws IOException {
+        appendLock.lock();
+        try {
+            if (!snapshots.isEmpty()) {
+                throw new IllegalStateException("Storage has open snapshots");
+            }
+            if (blobLog != null) {
+                // Blobs are compacted first, so storage log compaction reclaims their old pointers
+                if (blobCompaction != null) {
+                    stepBlobCompaction(Long.MAX_VALUE);
+                }
+                for (SegmentedLog.Segment segment : new ArrayList<>(blobLog.log.segments())) {
+                    if (segment.isSealed() && segment.size() > segment.liveBytes) {
+                        blobCompaction = new BlobEvacuation(this, segment);
+                        stepBlobCompaction(Long.MAX_VALUE);
+                    }
+                }
+            }
+            if (compaction != null) {
+                stepCompaction(Long.MAX_VALUE);
+            }
+            if (!log.isSegmented()) {
+                startRewrite();
+                stepCompaction(Long.MAX_VALUE);
+                return;
+            }
+            // Active segment is not compacted, as it is still appended
+            for (SegmentedLog.Segment segment : new ArrayList<>(log.segments())) {
+                if (segment.isSealed() && segment.size() > segment.liveBytes) {
+                    compaction = new Evacuation(this, segment);
+                    stepCompaction(Long.MAX_VALUE);
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
 
-            if (entry.isDeleted()) {
-                // Old entries with same key may exist in storage.
-                index.remove(entry.key);
-                continue;
+    @Override
+    public KVStorageSnapshot snapshot() throws IOException {
+        appendLock.lock();
+        try {
+            // Compaction would delete or replace files, which snapshot reads. Aborted compaction starts again,
+            // when snapshots are closed.
+            abortCompactions();
+            // Logs are flushed, so their data up to snapshot states is in files for backup
+            log.flush();
+            if (blobLog != null) {
+                blobLog.log.flush();
+            }
+            final Snapshot snapshot = new Snapshot(log.states(), blobLog != null ? blobLog.log.states() : null);
+            final long stamp = indexLock.writeLock();
+            try {
+                snapshots.add(snapshot);
+            } finally {
+                indexLock.unlockWrite(stamp);
+            }
+            return snapshot;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public CompactionStats getCompactionStats() {
+        appendLock.lock();
+        try {
+            final long storageBytes = log.size();
+            return new CompactionStats(
+                    compaction != null,
+                    compaction != null ? compaction.sourceOffset : 0,
+                    compaction != null ? compaction.sourceEnd : 0,
+                    completedCompactions,
+                    reclaimedBytes,
+                    storageBytes,
+                    storageBytes - liveBytes,
+                    failedCompactions,
+                    compactionFailure != null ? compactionFailure.toString() : null
+            );
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0);
+    }
+
+    @Override
+    public KVStorageStats getStats() {
+        appendLock.lock();
+        try {
+            return new KVStorageStats(
+                    metrics.readCount(),
+                    metrics.persistCount(),
+                    metrics.deleteCount(),
+                    metrics.writeBatchCount(),
+                    metrics.syncCount(),
+                    metrics.appendedBytes,
+                    log.size(),
+                    liveBytes,
+                    index.size(),
+                    metrics.readLatency(),
+                    metrics.writeLatency(),
+                    metrics.syncLatency(),
+                    StorageMetrics.millis(metrics.openNanos),
+                    StorageMetrics.millis(metrics.hintFileLoadNanos),
+                    StorageMetrics.millis(metrics.logReplayNanos),
+                    metrics.replayedBytes,
+                    metrics.checkpoints,
+                    StorageMetrics.millis(metrics.checkpointNanos)
+            );
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mbeanName != null) {
+            unregisterMBean();
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            try {
+                syncExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for periodic sync");
+            }
+        }
+        appendLock.lock();
+        try {
+            closed = true;
+            // Snapshots read files of storage, so they become invalid, see Snapshot#checkOpen
+            final long stamp = indexLock.writeLock();
+            try {
+                snapshots.clear();
+            } finally {
+                indexLock.unlockWrite(stamp);
+            }
+            abortCompactions();
+
+            if (blobLog != null) {
+                blobLog.log.sync();
+                blobLog.log.close();
+            }
+            log.sync();
+            log.close();
+            metaFile.write(log.states());
+            if (hintFile != null) {
+                hintFile.write(log.offsetBits(), log.states(), index);
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Closes storage as if process crashed: periodic sync is stopped, entries, which are not flushed yet, are
+    // lost, meta file and hint file are not written. Test hook, storage should not be used afterwards.
+    void crash() throws IOException {
+        if (mbeanName != null) {
+            unregisterMBean();
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+            try {
+                syncExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for periodic sync");
+            }
+        }
+        appendLock.lock();
+        try {
+            abortCompactions();
+            if (blobLog != null) {
+                blobLog.log.closeUnflushed();
             }
+            log.closeUnflushed();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Opens loader of new storage. Storage is opened without JMX and periodic sync, as it is not used for reads
+    // and is forced once, when loading is finished.
+    static BulkLoader openLoader(KVStorageConfig config) throws IOException {
+        final KVStorageImpl storage = new KVStorageImpl(config.withJmx(false)
+                .withDurabilityMode(KVStorageConfig.DurabilityMode.NONE));
+        if (storage.log.size() > 0 || storage.blobLog != null && storage.blobLog.log.size() > 0) {
+            storage.close();
+            throw new IllegalArgumentException("Storage " + config.getStorageFilePath() + " is not empty");
+        }
+        return storage.new Loader();
+    }
 
-            index.put(entry.key, entry);
+    private ObjectName registerMBean() throws IOException {
+        try {
+            final ObjectName name = new ObjectName("com.futujaos.kvstorage:type=KVStorage,name="
+                    + ObjectName.quote(storageFile.getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            return name;
+        } catch (JMException e) {
+            close();
+            throw new IOException("Storage is not registered in JMX", e);
+        }
+    }
 
-            hasData = true;
+    private void unregisterMBean() throws IOException {
+        try {
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(mbeanName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            }
+        } catch (JMException e) {
+            throw new IOException("Storage is not unregistered from JMX", e);
         }
+    }
 
-        if (hasData) {
-            if (md5ReadResult < 16) {
-                throw new IOException("Storage contains data, but meta file does not contain proper MD5.");
+    // Appends entry of value, streamed by ValueWriter to flushed stream file, and points key to it.
+    // Returns append sequence of entry.
+    long appendStream(int key, byte status, int checksum, LogFile stream, long length) throws IOException {
+        final int bytesCount = (int) (Entry.HEADER_BYTES + length);
+        appendLock.lock();
+        try {
+            checkOpen();
+            checkSyncFailure();
+            final SegmentedLog target = config.getBlobThresholdBytes() > 0 ? blobLog.log : log;
+            final long position = target.startAppend(bytesCount);
+            try {
+                entryHeader.clear();
+                entryHeader.putInt(bytesCount).put(status).putInt(key).putInt(checksum).flip();
+                target.appendPart(entryHeader);
+                target.appendPartFrom(stream, 0, length);
+            } catch (IOException | RuntimeException | Error e) {
+                target.dropAppend(position, e);
+                throw e;
+            }
+
+            if (target != log) {
+                final long location = appendPointer(key, blobLog.appended(position, bytesCount), false);
+                putAppended(key, location, Entry.BLOB_POINTER_ENTRY_BYTES, values != null ? readValue(location) : null);
+            } else {
+                appendSequence++;
+                checkpointBytes += bytesCount;
+                metrics.appendedBytes += bytesCount;
+                final SegmentedLog.Segment segment = log.segment(position);
+                segment.checksum = SegmentState.roll(segment.checksum, checksum);
+                final long location = EntryLocation.of(position, bytesCount);
+                putAppended(key, location, bytesCount, values != null ? readValue(location) : null);
             }
+            return appendSequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
 
-            index.forEach((key, entry) -> md5Provider.update(entry.toByteArray()));
+    // Completes write of streamed value, appended at sequence.
+    void completeStream(long sequence, long start) throws IOException {
+        afterAppend(sequence);
+        metrics.write(start, 1, 0);
+    }
 
-            byte[] checkMD5 = md5Provider.digest();
+    // Waits for durability of appended entries, as required by durability mode.
+    private void afterAppend(long sequence) throws IOException {
+        if (config.getDurabilityMode() == KVStorageConfig.DurabilityMode.PER_WRITE) {
+            sync(sequence);
+        }
+    }
 
-            if (!Arrays.equals(md5, checkMD5)) {
-                throw new KVStorageDamagedException();
+    // Forces entries, appended before specified sequence, to storage device.
+    private void sync(long sequence) throws IOException {
+        syncLock.lock();
+        try {
+            if (syncedSequence >= sequence) {
+                // Entries were forced by sync of other writer
+                return;
+            }
+            final long appendedSequence;
+            final LogFile active;
+            final LogFile blobActive;
+            appendLock.lock();
+            try {
+                log.flush();
+                appendedSequence = appendSequence;
+                active = log.active().file();
+                if (blobLog != null) {
+                    blobLog.log.flush();
+                    blobActive = blobLog.log.active().file();
+                } else {
+                    blobActive = null;
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            if (appendedSequence == syncedSequence) {
+                return;
+            }
+            // Sealed segments are forced when log rolls, so only active segments are forced
+            final long start = metrics.start();
+            try {
+                if (blobActive != null) {
+                    // Blobs are forced before pointers to them
+                    blobActive.force();
+                }
+                active.force();
+            } catch (ClosedChannelException e) {
+                // Active file was replaced by compaction, entries are copied to new file
+                appendLock.lock();
+                try {
+                    log.sync();
+                } finally {
+                    appendLock.unlock();
+                }
             }
+            syncedSequence = appendedSequence;
+            metrics.sync(start);
+        } finally {
+            syncLock.unlock();
         }
     }
 
-    // Entry structure:
-    //
-    // | bytes count | status |     key     |    value    |
-    // | xx xx xx xx |   xx   | xx xx xx xx | xx xx .. xx |
-    private static final class Entry {
-        private static final byte[] EMPTY_VALUE = new byte[0];
-        private static final byte STATUS_NORMAL = 0;
-        private static final byte STATUS_DELETED = 1;
-        private final int bytesCount;
-        private final byte status;
-        private final int key;
-        private final byte[] value;
-
-        public Entry(int bytesCount, byte status, int key, byte[] value) {
-            this.bytesCount = bytesCount;
-            this.status = status;
-            this.key = key;
-            this.value = value;
-        }
-
-        public boolean isDeleted() {
-            return status == STATUS_DELETED;
-        }
-
-        public static Entry fromKV(int key, byte[] value) {
-            return new Entry(
-                    value.length + 4 + 4 + 1,
-                    STATUS_NORMAL,
-                    key,
-                    value
-            );
+    private void periodicSync() {
+        try {
+            sync(Long.MAX_VALUE);
+        } catch (IOException e) {
+            syncFailure = e;
         }
+    }
 
-        public static Entry deleted(int key) {
-            return new Entry(
-                    4 + 4 + 1,
-                    STATUS_DELETED,
-                    key,
-                    EMPTY_VALUE
-            );
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Storage is closed");
         }
+    }
 
-        public static Entry fromBytes(byte[] bytes) {
-            final ByteBuffer bf = ByteBuffer.wrap(bytes);
+    private void checkSyncFailure() throws IOException {
+        final IOException failure = syncFailure;
+        if (failure != null) {
+            throw new IOException("Periodic sync failed", failure);
+        }
+    }
 
-            final int bytesCount = bf.getInt();
-            final int valueLength = bytesCount - (4 + 4 + 1);
+    // Caches value, read from location, unless key was written since location was looked up.
+    private void cacheLoaded(int key, long location, byte[] value) {
+        if (cache != null) {
+            cache.put(key, value, () -> indexGet(key) == location);
+        }
+    }
 
-            final byte status = bf.get();
-            final int key = bf.getInt();
-            final byte[] value = new byte[valueLength];
-            bf.get(value);
+    // Called after index is updated, so value, loaded concurrently, is either invalidated or not cached.
+    private void invalidateCached(int key) {
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
 
-            return new Entry(
-                    bytesCount,
-                    status,
-                    key,
-                    value
-            );
+    private long indexGet(int key) {
+        final long stamp = indexLock.tryOptimisticRead();
+        if (stamp != 0) {
+            final long location = index.get(key);
+            if (indexLock.validate(stamp)) {
+                return location;
+            }
+        }
+        final long readStamp = indexLock.readLock();
+        try {
+            return index.get(key);
+        } finally {
+            indexLock.unlockRead(readStamp);
         }
+    }
+
+    long indexPut(int key, long location) {
+        final long previous;
+        final long stamp = indexLock.writeLock();
+        try {
+            previous = index.put(key, location);
+            preserve(key, previous);
+        } finally {
+            indexLock.unlockWrite(stamp);
+        }
+        if (sortedKeys != null && previous == IntLongHashMap.NO_VALUE) {
+            sortedKeys.add(key);
+        }
+        return previous;
+    }
+
+    private long indexRemove(int key) {
+        final long previous;
+        final long stamp = indexLock.writeLock();
+        try {
+            previous = index.remove(key);
+            preserve(key, previous);
+        } finally {
+            indexLock.unlockWrite(stamp);
+        }
+        if (sortedKeys != null) {
+            sortedKeys.remove(key);
+        }
+        return previous;
+    }
+
+    // Preserves previous location of modified key in snapshots. Called under index lock write lock.
+    private void preserve(int key, long previous) {
+        for (int i = 0; i < snapshots.size(); i++) {
+            snapshots.get(i).preserve(key, previous);
+        }
+    }
+
+    // Returns stored value: compressed value if compression is enabled and pays off, or value itself.
+    private byte[] encode(byte[] value) {
+        final byte[] compressed = codec != null ? codec.compress(value) : null;
+        return compressed != null ? compressed : value;
+    }
 
-        public byte[] toByteArray() {
-            return ByteBuffer.allocate(bytesCount)
-                    .putInt(bytesCount)
-                    .put(status)
-                    .putInt(key)
-                    .put(value)
-                    .array();
+    // Appends entry and returns its location. Header is encoded into reused buffer and value is copied
+    // into output buffer of log, so append does not allocate.
+    private long append(byte status, int key, int checksum, byte[] value) throws IOException {
+        final int bytesCount = Entry.HEADER_BYTES + value.length;
+        final long position = log.startAppend(bytesCount);
+        try {
+            Entry.append(log, entryHeader, status, key, checksum, value);
+        } catch (IOException | RuntimeException | Error e) {
+            log.dropAppend(position, e);
+            throw e;
+        }
+        appendSequence++;
+        checkpointBytes += bytesCount;
+        metrics.appendedBytes += bytesCount;
+        final SegmentedLog.Segment segment = log.segment(position);
+        segment.checksum = SegmentState.roll(segment.checksum, checksum);
+        return EntryLocation.of(position, bytesCount);
+    }
+
+    // Appends blob pointer entry and returns its location.
+    long appendPointer(int key, byte[] pointer, boolean batchContinued) throws IOException {
+        final byte status = Entry.blobStatus(batchContinued);
+        final long location = append(status, key, Entry.checksum(status, key, pointer), pointer);
+        return EntryLocation.blob(EntryLocation.position(location));
+    }
+
+    // Returns whether value is kept in blob log.
+    private boolean isBlobValue(byte[] value) {
+        return config.getBlobThresholdBytes() > 0 && value.length > config.getBlobThresholdBytes();
+    }
+
+    // Appends entries of batch into the same segment and returns position of the first one.
+    private long append(WriteBatch batch, int[] entries, byte[] statuses, int[] checksums, byte[][] values)
+            throws IOException {
+        long bytesCount = 0;
+        for (int i : entries) {
+            bytesCount += Entry.HEADER_BYTES + values[i].length;
+        }
+
+        final long position = log.startAppend(bytesCount);
+        final SegmentedLog.Segment segment = log.segment(position);
+        long checksum = segment.checksum;
+        try {
+            for (int i : entries) {
+                Entry.append(log, entryHeader, statuses[i], batch.getKey(i), checksums[i], values[i]);
+                checksum = SegmentState.roll(checksum, checksums[i]);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            // Entries of failed batch are dropped, otherwise entries appended after them would be cut on replay
+            log.dropAppend(position, e);
+            throw e;
+        }
+        appendSequence++;
+        checkpointBytes += bytesCount;
+        metrics.appendedBytes += bytesCount;
+        segment.checksum = checksum;
+        return position;
+    }
+
+    // Reads values by keys[from, to) in order of entry positions.
+    private void readChunk(int[] keys, int from, int to, Map<Integer, byte[]> result) throws IOException {
+        while (true) {
+            final long generation = fileGeneration;
+            final long[] order = new long[to - from]; // entry position and index of key in chunk
+            final long[] locations = new long[to - from];
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                final long location = indexGet(keys[i]);
+                if (location != IntLongHashMap.NO_VALUE) {
+                    locations[i - from] = location;
+                    order[count++] = EntryLocation.position(location) << READ_ALL_CHUNK_BITS | (i - from);
+                }
+            }
+            Arrays.sort(order, 0, count);
+
+            final Map<Integer, byte[]> chunkResult = new HashMap<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    final int keyIndex = (int) (order[i] & (READ_ALL_CHUNK_KEYS - 1));
+                    chunkResult.put(keys[from + keyIndex], readValue(locations[keyIndex]));
+                }
+                if (generation == fileGeneration) {
+                    result.putAll(chunkResult);
+                    for (int i = 0; i < count; i++) {
+                        final int keyIndex = (int) (order[i] & (READ_ALL_CHUNK_KEYS - 1));
+                        cacheLoaded(keys[from + keyIndex], locations[keyIndex], chunkResult.get(keys[from + keyIndex]));
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                if (generation == fileGeneration) {
+                    throw e;
+                }
+            }
+            // Storage file was replaced by compaction, while values were read
+        }
+    }
+
+    // Writes meta file and hint file, so log entries appended before checkpoint are verified
+    // and are not replayed on open.
+    private void checkpoint() throws IOException {
+        final long start = System.nanoTime();
+        if (blobLog != null) {
+            blobLog.log.sync();
+        }
+        log.sync();
+        metaFile.write(log.states());
+        hintFile.write(log.offsetBits(), log.states(), index);
+        checkpointBytes = 0;
+        metrics.checkpoints++;
+        metrics.checkpointNanos += System.nanoTime() - start;
+    }
+
+    void addLiveBytes(long location, int bytesCount) {
+        log.segment(EntryLocation.position(location)).liveBytes += bytesCount;
+        liveBytes += bytesCount;
+    }
+
+    // Replaces segment with file, rewritten by compaction, and index with index of its entries.
+    void replaceSegment(SegmentedLog.Segment segment, File file, IntLongHashMap relocatedIndex) throws IOException {
+        final long stamp = indexLock.writeLock();
+        try {
+            fileGeneration++;
+            log.replace(segment, file);
+            index = relocatedIndex;
+        } finally {
+            indexLock.unlockWrite(stamp);
+        }
+    }
+
+    // Deletes segment of target log, evacuated by compaction.
+    void deleteSegment(SegmentedLog target, SegmentedLog.Segment segment) throws IOException {
+        final long stamp = indexLock.writeLock();
+        try {
+            fileGeneration++;
+            target.delete(segment);
+        } finally {
+            indexLock.unlockWrite(stamp);
+        }
+    }
+
+    void compacted(long compactedBytes) {
+        completedCompactions++;
+        reclaimedBytes += compactedBytes;
+    }
+
+    // Starts or continues compaction after entry at previous location was overwritten or deleted.
+    //
+    // Write is already applied, so failure of compaction does not fail it: failed compaction is aborted,
+    // its failure is reported by compaction stats, and compaction is retried later, see failCompaction.
+    private void afterWrite(long previous) throws IOException {
+        if (hintFile != null && config.getCheckpointBytes() > 0 && checkpointBytes >= config.getCheckpointBytes()) {
+            checkpoint();
+        }
+        if (!isCompactionResumed()) {
+            return;
+        }
+        try {
+            if (compactionRetry) {
+                compactionRetry = false;
+                startGarbageCompactions();
+            }
+            if (blobCompaction != null) {
+                stepBlobCompaction(config.getCompactionStepBytes());
+            } else if (blobLog != null && blobLog.log.isCrowded()) {
+                blobCompaction = new BlobEvacuation(this, blobLog.log.oldest());
+            }
+            if (compaction != null) {
+                stepCompaction(config.getCompactionStepBytes());
+            } else {
+                startCompaction(previous);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Failure is recorded
+        }
+    }
+
+    // Returns whether compaction may run: it is postponed, while snapshots are open, and after failure.
+    private boolean isCompactionResumed() {
+        return snapshots.isEmpty() && metrics.appendedBytes >= compactionRetryBytes;
+    }
+
+    // Starts compaction of storage log, if it got enough garbage.
+    private void startCompaction(long previous) throws IOException {
+        if (!log.isSegmented()) {
+            if (isGarbage(log.size(), liveBytes)) {
+                startRewrite();
+            }
+            return;
+        }
+        if (log.isCrowded()) {
+            compaction = new Evacuation(this, log.oldest());
+            return;
+        }
+        if (previous == IntLongHashMap.NO_VALUE) {
+            return;
+        }
+        // Only segment of previous entry got more garbage
+        final SegmentedLog.Segment segment = log.segment(EntryLocation.position(previous));
+        if (segment.isSealed() && isGarbage(segment.size(), segment.liveBytes)) {
+            compaction = new Evacuation(this, segment);
+        }
+    }
+
+    private void startRewrite() throws IOException {
+        try {
+            compaction = new Rewrite(this);
+        } catch (IOException | RuntimeException e) {
+            failCompaction(null, e);
+            throw e;
+        }
+    }
+
+    // Starts compactions of sealed segments, which got enough garbage. Segment of failed evacuation may get
+    // no more garbage from writes, so it is found here, when compaction is retried.
+    private void startGarbageCompactions() {
+        if (blobLog != null && blobCompaction == null) {
+            for (SegmentedLog.Segment segment : blobLog.log.segments()) {
+                if (segment.isSealed() && isBlobGarbage(segment)) {
+                    blobCompaction = new BlobEvacuation(this, segment);
+                    break;
+                }
+            }
+        }
+        if (log.isSegmented() && compaction == null) {
+            for (SegmentedLog.Segment segment : log.segments()) {
+                if (segment.isSealed() && isGarbage(segment.size(), segment.liveBytes)) {
+                    compaction = new Evacuation(this, segment);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void stepCompaction(long stepBytes) throws IOException {
+        try {
+            if (compaction.step(stepBytes)) {
+                compaction = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            final Compaction failed = compaction;
+            compaction = null;
+            failCompaction(failed, e);
+            throw e;
+        }
+    }
+
+    private void stepBlobCompaction(long stepBytes) throws IOException {
+        try {
+            if (blobCompaction.step(stepBytes)) {
+                blobCompaction = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            final Compaction failed = blobCompaction;
+            blobCompaction = null;
+            failCompaction(failed, e);
+            throw e;
+        }
+    }
+
+    // Aborts failed compaction, if it was started, and records failure. Compaction is resumed, when
+    // COMPACTION_RETRY_STEPS compaction steps of bytes are appended, so failing compaction does not slow down
+    // every write.
+    private void failCompaction(Compaction failed, Exception failure) {
+        if (failed != null) {
+            try {
+                failed.abort();
+            } catch (IOException | RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+        }
+        failedCompactions++;
+        compactionFailure = failure;
+        compactionRetryBytes = metrics.appendedBytes + (long) COMPACTION_RETRY_STEPS * config.getCompactionStepBytes();
+        compactionRetry = true;
+    }
+
+    private void abortCompactions() throws IOException {
+        final Compaction aborted = compaction;
+        final Compaction blobAborted = blobCompaction;
+        compaction = null;
+        blobCompaction = null;
+        if (aborted != null) {
+            aborted.abort();
+        }
+        if (blobAborted != null) {
+            blobAborted.abort();
+        }
+    }
+
+    private boolean isBlobGarbage(SegmentedLog.Segment segment) {
+        return BlobLog.isGarbage(segment, config.getCompactionGarbageRatio());
+    }
+
+    private boolean isGarbage(long bytes, long liveBytes) {
+        final double garbageRatio = config.getCompactionGarbageRatio();
+        return garbageRatio < 1
+                && log.size() >= config.getCompactionMinStorageSize()
+                && bytes - liveBytes > bytes * garbageRatio;
+    }
+
+    private byte[] readValue(long location) throws IOException {
+        return readValue(valueLog(location), valueLocation(location));
+    }
+
+    // Reads value of entry at location of source log.
+    private byte[] readValue(SegmentedLog source, long location) throws IOException {
+        final byte[] entryBytes = new byte[entryBytesCount(source, location)];
+        readLog(source, ByteBuffer.wrap(entryBytes), EntryLocation.position(location));
+        final Entry entry = Entry.isComplete(entryBytes) ? Entry.fromBytes(entryBytes) : null;
+        if (entry == null || !entry.isChecksumValid()) {
+            throw new KVStorageDamagedException("Entry at position " + EntryLocation.position(location)
+                    + " is damaged");
+        }
+        return entry.value();
+    }
+
+    // Reads value at location into dst, if it fits, and returns its length.
+    // Raw value is read right into dst and verified there, without copy on heap.
+    private int readValueInto(long location, ByteBuffer dst) throws IOException {
+        final SegmentedLog source = valueLog(location);
+        final long valueLocation = valueLocation(location);
+        final ByteBuffer header = readHeader(source, valueLocation);
+        final byte status = header.get(4);
+        if (Entry.codec(status) != ValueCodec.RAW) {
+            return copyInto(readValue(source, valueLocation), dst);
+        }
+        final int headerBytes = Entry.headerBytes(status);
+        final int length = header.getInt(0) - headerBytes;
+        if (length > dst.remaining()) {
+            return length;
+        }
+        final ByteBuffer value = dst.duplicate();
+        value.limit(value.position() + length);
+        readLog(source, value, EntryLocation.position(valueLocation) + headerBytes);
+        value.flip().position(dst.position());
+        if (!Entry.isChecksumValid(header, value)) {
+            throw new KVStorageDamagedException("Entry at position " + EntryLocation.position(valueLocation)
+                    + " is damaged");
+        }
+        dst.position(dst.position() + length);
+        return length;
+    }
+
+    // Returns read-only view of value at location. Raw value of memory mapped storage is viewed in place,
+    // other values, including values of blob log, are read on heap.
+    private ByteBuffer viewValue(long location) throws IOException {
+        if (EntryLocation.isBlob(location)) {
+            return ByteBuffer.wrap(readValue(location)).asReadOnlyBuffer();
+        }
+        final long position = EntryLocation.position(location);
+        final int bytesCount = entryBytesCount(location);
+        flushLog(log, position, bytesCount);
+        final ByteBuffer entry = log.view(position, bytesCount);
+        if (entry == null || bytesCount < Entry.LEGACY_HEADER_BYTES
+                || entry.getInt(0) != bytesCount || Entry.codec(entry.get(4)) != ValueCodec.RAW) {
+            return ByteBuffer.wrap(readValue(location)).asReadOnlyBuffer();
+        }
+        final int headerBytes = Entry.headerBytes(entry.get(4));
+        if (bytesCount < headerBytes) {
+            throw new KVStorageDamagedException("Entry at position " + position + " is damaged");
+        }
+        entry.position(headerBytes);
+        final ByteBuffer value = entry.slice().asReadOnlyBuffer();
+        if (!Entry.isChecksumValid(entry, value)) {
+            throw new KVStorageDamagedException("Entry at position " + position + " is damaged");
+        }
+        return value;
+    }
+
+    // Reads header of entry at location of source log. Header of legacy entry is shorter than returned buffer.
+    private ByteBuffer readHeader(SegmentedLog source, long location) throws IOException {
+        final int bytesCount = entryBytesCount(source, location);
+        final ByteBuffer header = ByteBuffer.allocate(Entry.HEADER_BYTES);
+        header.limit(Math.min(Entry.HEADER_BYTES, bytesCount));
+        readLog(source, header, EntryLocation.position(location));
+        if (bytesCount < Entry.LEGACY_HEADER_BYTES || header.getInt(0) != bytesCount
+                || bytesCount < Entry.headerBytes(header.get(4))) {
+            throw new KVStorageDamagedException("Entry at position " + EntryLocation.position(location)
+                    + " is damaged");
+        }
+        return header;
+    }
+
+    // Flushes source log, if count bytes starting from position are still in output buffer.
+    private void flushLog(SegmentedLog source, long position, int count) throws IOException {
+        if (source.isFlushed(position, count)) {
+            return;
+        }
+        appendLock.lock();
+        try {
+            source.flush();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Copies value into dst, if it fits, and returns its length, or -1 if value is null.
+    private static int copyInto(byte[] value, ByteBuffer dst) {
+        if (value == null) {
+            return -1;
+        }
+        if (value.length <= dst.remaining()) {
+            dst.put(value);
+        }
+        return value.length;
+    }
+
+    private void readLog(ByteBuffer dst, long position) throws IOException {
+        readLog(log, dst, position);
+    }
+
+    private void readLog(SegmentedLog source, ByteBuffer dst, long position) throws IOException {
+        if (source.isFlushed(position, dst.remaining())) {
+            source.read(dst, position);
+            return;
+        }
+        // Bytes are still in output buffer, which is flushed by reading
+        appendLock.lock();
+        try {
+            source.read(dst, position);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    int entryBytesCount(long location) throws IOException {
+        return entryBytesCount(log, location);
+    }
+
+    private int entryBytesCount(SegmentedLog source, long location) throws IOException {
+        final int bytesCount = EntryLocation.bytesCount(location);
+        if (bytesCount == EntryLocation.BLOB) {
+            return Entry.BLOB_POINTER_ENTRY_BYTES;
+        }
+        if (bytesCount != EntryLocation.LARGE_ENTRY) {
+            return bytesCount;
+        }
+        final ByteBuffer countBytes = ByteBuffer.allocate(4);
+        readLog(source, countBytes, EntryLocation.position(location));
+        final int largeBytesCount = countBytes.getInt(0);
+        if (largeBytesCount < EntryLocation.BLOB) {
+            throw new KVStorageDamagedException("Entry at position " + EntryLocation.position(location)
+                    + " is damaged");
+        }
+        return largeBytesCount;
+    }
+
+    // Returns log, which keeps value of entry at location: blob log for blob pointer entry, or log itself.
+    private SegmentedLog valueLog(long location) {
+        return EntryLocation.isBlob(location) ? blobLog.log : log;
+    }
+
+    // Returns location of entry, which keeps value of entry at location, in its value log.
+    private long valueLocation(long location) throws IOException {
+        return EntryLocation.isBlob(location) ? readBlobLocation(location) : location;
+    }
+
+    // Reads blob pointer entry at location and returns location of value entry in blob log.
+    long readBlobLocation(long location) throws IOException {
+        final byte[] entryBytes = new byte[Entry.BLOB_POINTER_ENTRY_BYTES];
+        readLog(log, ByteBuffer.wrap(entryBytes), EntryLocation.position(location));
+        final Entry entry = Entry.isComplete(entryBytes) ? Entry.fromBytes(entryBytes) : null;
+        if (entry == null || !entry.isBlob() || !entry.isChecksumValid()) {
+            throw new KVStorageDamagedException("Entry at position " + EntryLocation.position(location)
+                    + " is damaged");
+        }
+        if (blobLog == null) {
+            throw new KVStorageDamagedException("Blob log is missing");
+        }
+        return blobLog.location(entry.value);
+    }
+
+    private void buildIndex() throws IOException {
+        final NavigableMap<Long, SegmentState> metaStates = metaFile.read();
+        final byte[] legacyDigest = metaStates == null ? metaFile.readLegacyDigest() : null;
+        if (legacyDigest != null) {
+            verifyLegacyDigest(legacyDigest);
+        }
+        final long hintFileLoadStart = System.nanoTime();
+        final NavigableMap<Long, SegmentState> checkpointStates = hintFile != null
+                ? hintFile.read(log.offsetBits(), this::isCheckpointConsistent, index)
+                : null;
+
+        if (metaStates != null) {
+            for (long sequence : metaStates.keySet()) {
+                if (!log.states().containsKey(sequence)) {
+                    throw new KVStorageDamagedException("Segment " + sequence + " is missing");
+                }
+            }
+        }
+
+        if (checkpointStates != null) {
+            loadCheckpointIndex();
+            metrics.hintFileLoadNanos = System.nanoTime() - hintFileLoadStart;
+        }
+
+        final long logReplayStart = System.nanoTime();
+        final List<SegmentReplay> replays = new ArrayList<>();
+        long replayBytes = 0;
+        for (SegmentedLog.Segment segment : log.segments()) {
+            final SegmentState metaState = metaStates != null ? metaStates.get(segment.sequence) : null;
+            if (checkpointStates == null || segment.sequence > checkpointStates.lastKey()) {
+                replays.add(new SegmentReplay(segment, 0, 0, metaState));
+                replayBytes += segment.size();
+                continue;
+            }
+            // Only entries, appended after checkpoint, are replayed
+            final SegmentState checkpointState = checkpointStates.get(segment.sequence);
+            if (segment.sequence == checkpointStates.lastKey()) {
+                replays.add(new SegmentReplay(segment, checkpointState.size, checkpointState.checksum, metaState));
+                replayBytes += segment.size() - checkpointState.size;
+                continue;
+            }
+            if (metaState != null && (metaState.size != checkpointState.size || metaState.checksum != checkpointState.checksum)) {
+                throw new KVStorageDamagedException("Segment " + segment.sequence + " differs from meta file");
+            }
+            segment.checksum = checkpointState.checksum;
+        }
+
+        if (config.getRecoveryThreads() > 1 && replayBytes >= 2L * config.getRecoveryChunkBytes()) {
+            new ParallelReplay(this, values != null).run(replays);
+        } else {
+            final EntryReader reader = new EntryReader(values != null);
+            final ReplayBatch batch = new ReplayBatch();
+            for (SegmentReplay replay : replays) {
+                replaySegment(replay, reader, batch);
+            }
+        }
+        loadBlobs();
+        if (legacyDigest != null) {
+            // Verified log is covered by segment states, so legacy digest is not verified again
+            log.sync();
+            metaFile.write(log.states());
+        }
+        metrics.logReplayNanos = System.nanoTime() - logReplayStart;
+    }
+
+    // Verifies storage file against MD5 of legacy meta file, see MetaFile#readLegacyDigest. Digest covers
+    // legacy entries, which have no checksum, so entries, appended by this version before crash, are skipped.
+    // Index of legacy storage is rebuilt by the same sequence of puts and removes, so its iteration order is the
+    // order of digested entries. Incomplete tail is not digested, as by legacy storage.
+    private void verifyLegacyDigest(byte[] legacyDigest) throws IOException {
+        if (log.isSegmented()) {
+            throw new KVStorageDamagedException("Meta file of single file storage is found for segmented storage");
+        }
+        final SegmentedLog.Segment segment = log.active();
+        final long segmentSize = segment.size();
+        final Map<Integer, Long> legacyIndex = new HashMap<>(); // key to offset of live entry
+        try (FileChannel channel = segment.file().openReadChannel()) {
+            final EntryReader reader = new EntryReader(false);
+            reader.start(channel);
+            long offset = 0;
+            while (offset < segmentSize && reader.skip(segmentSize - offset) && !Entry.hasChecksum(reader.status)) {
+                if (Entry.isDeleted(reader.status)) {
+                    legacyIndex.remove(reader.key);
+                } else {
+                    legacyIndex.put(reader.key, offset);
+                }
+                offset += reader.bytesCount;
+            }
+        }
+
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Runtime does not support MD5 MessageDigest");
+        }
+        final ByteBuffer countBytes = ByteBuffer.allocate(4);
+        for (long offset : legacyIndex.values()) {
+            countBytes.clear();
+            segment.file().read(countBytes, offset);
+            final byte[] entryBytes = new byte[countBytes.getInt(0)];
+            segment.file().read(ByteBuffer.wrap(entryBytes), offset);
+            md5.update(entryBytes);
+        }
+        if (!Arrays.equals(legacyDigest, md5.digest())) {
+            throw new KVStorageDamagedException("Storage differs from MD5 of legacy meta file");
+        }
+    }
+
+    // Restores live bytes of blob segments and values of blobs for built index. Truncates tail of active
+    // blob segment after the last blob, which index points to: blobs of overwritten keys and of torn batches,
+    // and blob torn by crash, are garbage, and blob compaction expects only complete entries in sealed segments.
+    private void loadBlobs() throws IOException {
+        if (blobLog == null) {
+            return;
+        }
+        final SegmentedLog.Segment active = blobLog.log.active();
+        long activeEnd = 0;
+        for (int key : index.keys()) {
+            final long location = index.get(key);
+            if (!EntryLocation.isBlob(location)) {
+                continue;
+            }
+            final long blobLocation = readBlobLocation(location);
+            final long blobPosition = EntryLocation.position(blobLocation);
+            final SegmentedLog.Segment segment = blobLog.log.segment(blobPosition);
+            final int bytesCount = entryBytesCount(blobLog.log, blobLocation);
+            final long blobEnd = blobLog.log.offset(blobPosition) + bytesCount;
+            if (blobEnd > segment.size()) {
+                throw new KVStorageDamagedException("Blob at position " + blobPosition + " is incomplete");
+            }
+            segment.liveBytes += bytesCount;
+            if (segment == active) {
+                activeEnd = Math.max(activeEnd, blobEnd);
+            }
+            if (values != null) {
+                values.put(key, readValue(blobLog.log, blobLocation));
+            }
+        }
+        if (activeEnd < active.size()) {
+            blobLog.log.truncate(active.position(activeEnd));
+        }
+    }
+
+    // Checkpoint is consistent with log, if all segments at checkpoint are still in log, sealed segments
+    // are not changed, and last segment at checkpoint was only appended since then.
+    private boolean isCheckpointConsistent(NavigableMap<Long, SegmentState> checkpointStates) {
+        if (checkpointStates.isEmpty()) {
+            return false;
+        }
+        final long lastSequence = checkpointStates.lastKey();
+        final NavigableMap<Long, SegmentState> states = log.states();
+        for (Map.Entry<Long, SegmentState> state : states.entrySet()) {
+            final SegmentState checkpointState = checkpointStates.get(state.getKey());
+            if (state.getKey() > lastSequence) {
+                continue;
+            }
+            if (checkpointState == null
+                    || state.getValue().size < checkpointState.size
+                    || state.getKey() < lastSequence && state.getValue().size != checkpointState.size) {
+                return false;
+            }
+        }
+        return states.keySet().containsAll(checkpointStates.keySet());
+    }
+
+    // Restores live bytes and values for index, loaded from hint file. Blobs are loaded after replay.
+    private void loadCheckpointIndex() throws IOException {
+        for (int key : index.keys()) {
+            final long location = index.get(key);
+            addLiveBytes(location, entryBytesCount(location));
+            if (values != null && !EntryLocation.isBlob(location)) {
+                values.put(key, readValue(location));
+            }
+            if (sortedKeys != null) {
+                sortedKeys.add(key);
+            }
+        }
+    }
+
+    // Replays segment entries, starting from specified offset and segment checksum at this offset,
+    // and verifies segment checksum against its state in meta file.
+    //
+    // Entries, covered by meta file, and entries of sealed segments should be valid. First invalid entry
+    // beyond them is considered a tail, torn by crash, so segment is truncated to last valid entry.
+    // Entries of batch are applied when last entry of batch is replayed, incomplete batch is truncated as well.
+    //
+    // Reader and batch are reused by all segments, so replay allocates nothing per entry, except values
+    // of values index mode.
+    private void replaySegment(SegmentReplay replay, EntryReader reader, ReplayBatch batch) throws IOException {
+        final SegmentedLog.Segment segment = replay.segment;
+        final SegmentState metaState = replay.metaState;
+        final long fromOffset = replay.fromOffset;
+        final long segmentSize = segment.size();
+        final long verifiedSize = replay.verifiedSize();
+        long checksum = replay.checksum;
+
+        batch.clear();
+        long batchOffset = fromOffset;
+        long batchChecksum = checksum;
+        long offset = fromOffset;
+        boolean torn = false;
+
+        try (FileChannel channel = segment.file().openReadChannel()) {
+            reader.start(channel.position(fromOffset));
+            while (offset < segmentSize) {
+                if (offset == verifiedSize && metaState != null && checksum != metaState.checksum) {
+                    break;
+                }
+
+                if (!reader.next(segmentSize - offset)
+                        || (offset < verifiedSize && offset + reader.bytesCount > verifiedSize)) {
+                    replay.checkTornEntry(offset, verifiedSize);
+                    torn = true;
+                    break;
+                }
+
+                if (batch.size == 0) {
+                    batchOffset = offset;
+                    batchChecksum = checksum;
+                }
+                batch.add(reader);
+                offset += reader.bytesCount;
+                checksum = SegmentState.roll(checksum, reader.checksum);
+
+                if (!Entry.isBatchContinued(reader.status)) {
+                    applyReplayed(segment, batch, batchOffset);
+                }
+            }
+        }
+
+        if (batch.size != 0) {
+            replay.checkTornBatch(batchOffset, verifiedSize);
+            offset = batchOffset;
+            checksum = batchChecksum;
+            torn = true;
+        }
+        if (torn) {
+            segment.file().truncate(offset);
+        }
+        completeReplay(replay, offset, checksum);
+    }
+
+    // Verifies checksum of segment, replayed up to offset, against its state in meta file.
+    void completeReplay(SegmentReplay replay, long offset, long checksum) throws IOException {
+        final SegmentedLog.Segment segment = replay.segment;
+        final SegmentState metaState = replay.metaState;
+        metrics.replayedBytes += offset - replay.fromOffset;
+        final long verifiedSize = metaState != null ? metaState.size : 0;
+        if (offset == verifiedSize && metaState != null && checksum != metaState.checksum
+                || offset < verifiedSize) {
+            throw new KVStorageDamagedException("Segment " + segment.sequence + " checksum differs from meta file");
+        }
+        segment.checksum = checksum;
+    }
+
+    // Applies entries of completed batch, starting from offset of segment, and clears batch.
+    private void applyReplayed(SegmentedLog.Segment segment, ReplayBatch batch, long offset) throws IOException {
+        for (int i = 0; i < batch.size; i++) {
+            if (Entry.isDeleted(batch.statuses[i])) {
+                applyReplayedDelete(batch.keys[i]);
+            } else if (Entry.isBlob(batch.statuses[i])) {
+                applyReplayedPut(batch.keys[i], EntryLocation.blob(segment.position(offset)), batch.bytesCounts[i],
+                        null);
+            } else {
+                applyReplayedPut(batch.keys[i], EntryLocation.of(segment.position(offset), batch.bytesCounts[i]),
+                        batch.bytesCounts[i], batch.values[i]);
+            }
+            offset += batch.bytesCounts[i];
+        }
+        batch.clear();
+    }
+
+    void applyReplayedDelete(int key) throws IOException {
+        // Old entries with same key may exist in storage.
+        final long previous = index.remove(key);
+        if (previous != IntLongHashMap.NO_VALUE) {
+            addLiveBytes(previous, -entryBytesCount(previous));
+        }
+        if (values != null) {
+            values.remove(key);
+        }
+        if (sortedKeys != null) {
+            sortedKeys.remove(key);
+        }
+    }
+
+    // Value is null, unless values are kept in index. Values of blobs are loaded after replay, see loadBlobs.
+    void applyReplayedPut(int key, long location, int bytesCount, byte[] value) throws IOException {
+        final long previous = index.put(key, location);
+        if (sortedKeys != null) {
+            sortedKeys.add(key);
+        }
+        if (previous != IntLongHashMap.NO_VALUE) {
+            addLiveBytes(previous, -entryBytesCount(previous));
+        }
+        addLiveBytes(location, bytesCount);
+        if (values != null) {
+            if (value != null) {
+                values.put(key, value);
+            } else {
+                values.remove(key);
+            }
+        }
+    }
+
+    // Iterator of entries in key order, which reads values by batches of keys.
+    //
+    // Next batch is looked up in sorted keys after last key of previous batch, rather than by iterator of
+    // sorted keys, so keys, written during scan, do not break iteration. Values of batch are read by readKeys,
+    // in order of their placement in storage. Keys, deleted since they were looked up, are skipped.
+    private final class Scan implements Iterator<KV> {
+        private final int toKey;
+        private final boolean toInclusive;
+        private final ArrayDeque<KV> batch = new ArrayDeque<>();
+        private int fromKey;
+        private boolean fromInclusive = true;
+        private boolean exhausted; // whether all keys are looked up
+
+        Scan(int fromKey, int toKey, boolean toInclusive) {
+            if (sortedKeys == null) {
+                throw new UnsupportedOperationException("Scan requires sorted index");
+            }
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            this.toInclusive = toInclusive;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (batch.isEmpty() && !exhausted) {
+                readBatch();
+            }
+            return !batch.isEmpty();
+        }
+
+        @Override
+        public KV next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.poll();
+        }
+
+        private void readBatch() {
+            final long start = metrics.start();
+            final int[] keys = new int[config.getScanBatchSize()];
+            int count = 0;
+            for (int key : sortedKeys.subSet(fromKey, fromInclusive, toKey, toInclusive)) {
+                keys[count++] = key;
+                if (count == keys.length) {
+                    break;
+                }
+            }
+            if (count < keys.length) {
+                exhausted = true;
+            } else {
+                fromKey = keys[count - 1];
+                fromInclusive = false;
+            }
+
+            final Map<Integer, byte[]> batchValues = readKeys(Arrays.copyOf(keys, count));
+            for (int i = 0; i < count; i++) {
+                final byte[] value = batchValues.get(keys[i]);
+                if (value != null) {
+                    batch.add(new KV(keys[i], value));
+                }
+            }
+            metrics.read(start, count);
+        }
+    }
+
+    // Snapshot of storage, see header comment. Snapshot reads values from log, even if values are kept in memory.
+    private final class Snapshot implements KVStorageSnapshot {
+        private static final long ABSENT = 1L << 24; // preserved location of absent key, no entry has zero bytes
+        private final NavigableMap<Long, SegmentState> states;
+        private final NavigableMap<Long, SegmentState> blobStates; // null if storage has no blob log
+        private final IntLongHashMap preserved; // key to location at snapshot, guarded by index lock
+        private volatile boolean closed;
+
+        Snapshot(NavigableMap<Long, SegmentState> states, NavigableMap<Long, SegmentState> blobStates) {
+            this.states = states;
+            this.blobStates = blobStates;
+            preserved = new IntLongHashMap(0, config.isOffHeapIndex());
+        }
+
+        // Called under index lock write lock.
+        void preserve(int key, long previous) {
+            if (!preserved.containsKey(key)) {
+                preserved.put(key, previous != IntLongHashMap.NO_VALUE ? previous : ABSENT);
+            }
+        }
+
+        @Override
+        public Optional<byte[]> read(int key) {
+            checkOpen();
+            final long start = metrics.start();
+            try {
+                final long location = location(key);
+                return location != IntLongHashMap.NO_VALUE ? Optional.of(readValue(location)) : Optional.empty();
+            } catch (IOException e) {
+                // Files may be closed by storage close, while value was read
+                checkOpen();
+                throw new UncheckedIOException(e);
+            } finally {
+                metrics.read(start, 1);
+            }
+        }
+
+        // Returns location of key at snapshot or NO_VALUE.
+        private long location(int key) {
+            final long stamp = indexLock.tryOptimisticRead();
+            if (stamp != 0) {
+                final long location = location(preserved.get(key), key);
+                if (indexLock.validate(stamp)) {
+                    return location;
+                }
+            }
+            final long readStamp = indexLock.readLock();
+            try {
+                return location(preserved.get(key), key);
+            } finally {
+                indexLock.unlockRead(readStamp);
+            }
+        }
+
+        private long location(long preservedLocation, int key) {
+            if (preservedLocation == IntLongHashMap.NO_VALUE) {
+                return index.get(key);
+            }
+            return preservedLocation != ABSENT ? preservedLocation : IntLongHashMap.NO_VALUE;
+        }
+
+        @Override
+        public void backup(File directory) throws IOException {
+            checkOpen();
+            try {
+                backupInto(directory);
+            } catch (IOException e) {
+                // Files may be closed by storage close, while they were exported
+                checkOpen();
+                throw e;
+            }
+        }
+
+        private void backupInto(File directory) throws IOException {
+            final File backupMetaFile = new File(directory, new File(config.getMetaFilePath()).getName());
+            if (new File(directory, storageFile.getName()).exists() || backupMetaFile.exists()) {
+                throw new IllegalArgumentException("Directory " + directory + " already contains storage");
+            }
+            // Shards of storage are backed up into the same directory concurrently
+            if (!directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Directory " + directory + " is not created");
+            }
+            log.export(new File(directory, storageFile.getName()), states);
+            if (blobStates != null) {
+                blobLog.log.export(new File(directory, storageFile.getName() + ".blobs"), blobStates);
+            }
+
+            // Keys of snapshot are keys of index and preserved keys, which are not in index anymore
+            final int[] indexKeys;
+            int[] preservedKeys;
+            final long stamp = indexLock.readLock();
+            try {
+                indexKeys = index.keys();
+                preservedKeys = preserved.keys();
+                int count = 0;
+                for (int key : preservedKeys) {
+                    if (!index.containsKey(key)) {
+                        preservedKeys[count++] = key;
+                    }
+                }
+                preservedKeys = Arrays.copyOf(preservedKeys, count);
+            } finally {
+                indexLock.unlockRead(stamp);
+            }
+            final int[] keys = new int[indexKeys.length + preservedKeys.length];
+            final long[] locations = new long[keys.length];
+            int count = 0;
+            for (int[] snapshotKeys : new int[][]{indexKeys, preservedKeys}) {
+                for (int key : snapshotKeys) {
+                    final long location = location(key);
+                    if (location != IntLongHashMap.NO_VALUE) {
+                        keys[count] = key;
+                        locations[count] = location;
+                        count++;
+                    }
+                }
+            }
+            new HintFile(new File(directory, storageFile.getName() + ".hint"))
+                    .write(log.offsetBits(), states, keys, locations, count);
+            new MetaFile(backupMetaFile).write(states);
+        }
+
+        @Override
+        public void close() {
+            appendLock.lock();
+            try {
+                final long stamp = indexLock.writeLock();
+                try {
+                    closed = true;
+                    snapshots.remove(this);
+                } finally {
+                    indexLock.unlockWrite(stamp);
+                }
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        private void checkOpen() {
+            if (KVStorageImpl.this.closed) {
+                throw new IllegalStateException("Storage is closed");
+            }
+            if (closed) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+        }
+    }
+
+    // Loader appends entries through output buffer of log as regular writes do, but does not maintain index:
+    // keys and locations of entries are collected into plain arrays and written as hint file, when loading
+    // is finished. Segment checksums are rolled as entries are appended, so meta file needs no pass over log.
+    // Later entry of duplicate key wins, when hint file is read, as on replay.
+    private final class Loader extends BulkLoader {
+        private int[] keys = new int[1024];
+        private long[] locations = new long[1024];
+        private int count;
+
+        @Override
+        void add(int key, byte[] value) throws IOException {
+            final byte[] stored = encode(value);
+            final byte status = Entry.status(stored != value ? codec.codec() : ValueCodec.RAW, false, false);
+            final int checksum = Entry.checksum(status, key, stored);
+            final long location = isBlobValue(value)
+                    ? appendPointer(key, blobLog.append(status, key, checksum, stored), false)
+                    : append(status, key, checksum, stored);
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                locations = Arrays.copyOf(locations, count * 2);
+            }
+            keys[count] = key;
+            locations[count] = location;
+            count++;
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (blobLog != null) {
+                blobLog.log.sync();
+                blobLog.log.close();
+            }
+            log.sync();
+            log.close();
+            metaFile.write(log.states());
+            if (hintFile != null) {
+                hintFile.write(log.offsetBits(), log.states(), keys, locations, count);
+            }
+        }
+
+        @Override
+        void abort(Throwable failure) {
+            // Meta file and hint file are not written, so appended entries are replayed on open
+            try {
+                if (blobLog != null) {
+                    blobLog.log.close();
+                }
+                log.close();
+            } catch (IOException | RuntimeException e) {
+                failure.addSuppressed(e);
+            }
         }
     }
-}
\ No newline at end of file
+}
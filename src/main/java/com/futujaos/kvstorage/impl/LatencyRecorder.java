@@ -0,0 +1,74 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram of operation latencies, recorded concurrently.
+//
+// Latencies below 16 ns have own buckets. Larger latencies are bucketed by position of highest bit
+// and next 3 bits, so width of bucket is at most 1/8 of its lower bound:
+// | latency, ns  | 0 .. 15 | 16 .. 31 | 32 .. 63 | 64 .. 127 | .. |
+// | buckets      | 0 .. 15 | 16 .. 23 | 24 .. 31 | 32 .. 39  | .. |
+// | bucket width |    1    |    2     |    4     |     8     | .. |
+//
+// Buckets are LongAdders, so threads, recording latencies at the same time, do not contend on single counter.
+final class LatencyRecorder {
+    private static final int EXACT_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MIN_EXPONENT = 4; // highest bit of the first inexact bucket
+    private static final int BUCKETS = EXACT_BUCKETS + (63 - MIN_EXPONENT) * SUB_BUCKETS;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyRecorder() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[bucket(nanos)].increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    LatencyHistogram snapshot() {
+        final long[] upperBounds = new long[BUCKETS];
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            upperBounds[i] = upperBound(i);
+            counts[i] = buckets[i].sum();
+        }
+        return new LatencyHistogram(upperBounds, counts, totalNanos.sum(), maxNanos.get());
+    }
+
+    static LatencyHistogram empty() {
+        return new LatencyHistogram(new long[0], new long[0], 0, 0);
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < EXACT_BUCKETS) {
+            return (int) nanos;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        final int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT_BUCKETS + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < EXACT_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = (bucket - EXACT_BUCKETS) / SUB_BUCKETS + MIN_EXPONENT;
+        final long subBucket = (bucket - EXACT_BUCKETS) % SUB_BUCKETS;
+        final long upperBound = ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        return upperBound > 0 ? upperBound : Long.MAX_VALUE;
+    }
+}
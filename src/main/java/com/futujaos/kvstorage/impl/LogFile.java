@@ -0,0 +1,220 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Append-only file with random access reads.
+//
+// Appends are buffered in direct buffer, which is allocated on the first append and reused, so appends do not
+// allocate, and written to file channel without copying. Bytes, which do not fit into empty buffer, are written
+// to channel directly. Reads of not yet flushed bytes flush buffer first.
+// Reads go through file channel or through memory mapped segments.
+//
+// File is appended by single thread. Reads of flushed bytes may be performed by any threads concurrently
+// with appends, reads of not yet flushed bytes should be serialized with appends.
+final class LogFile implements Closeable {
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+    private final File file;
+    private final FileChannel writeChannel;
+    private ByteBuffer writeBuffer; // null until the first append, sealed files are never appended
+    private final FileChannel channel;
+    private final MappedFileReader mappedReader; // null if file is read through channel
+    private long writeOffset;   // offset of next appended bytes
+    private volatile long flushedOffset; // file bytes before this offset are readable through channel
+
+    // mappedSegmentSize is 0 if file should not be memory mapped
+    LogFile(File file, int mappedSegmentSize) throws IOException {
+        this.file = file;
+        file.createNewFile();
+
+        writeChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        writeChannel.position(writeChannel.size());
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        mappedReader = mappedSegmentSize > 0 ? new MappedFileReader(channel, mappedSegmentSize) : null;
+
+        writeOffset = channel.size();
+        flushedOffset = writeOffset;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long size() {
+        return writeOffset;
+    }
+
+    // Returns offset of appended bytes.
+    long append(byte[] bytes) throws IOException {
+        return append(bytes, 0, bytes.length);
+    }
+
+    // Appends length bytes of array, starting from offset in array. Returns offset of appended bytes.
+    long append(byte[] bytes, int offset, int length) throws IOException {
+        final long appendOffset = writeOffset;
+        if (!reserve(length)) {
+            writeFully(ByteBuffer.wrap(bytes, offset, length));
+        } else {
+            writeBuffer.put(bytes, offset, length);
+        }
+        writeOffset += length;
+        return appendOffset;
+    }
+
+    // Appends remaining bytes of src. Returns offset of appended bytes.
+    long append(ByteBuffer src) throws IOException {
+        final long offset = writeOffset;
+        final int count = src.remaining();
+        if (!reserve(count)) {
+            writeFully(src);
+        } else {
+            writeBuffer.put(src);
+        }
+        writeOffset += count;
+        return offset;
+    }
+
+    // Appends count bytes of source file, starting from position, without copying them to heap.
+    // Returns offset of appended bytes.
+    long appendFrom(LogFile source, long position, long count) throws IOException {
+        source.flushIfNeeded(position + count);
+        flushBuffer();
+
+        final long offset = writeOffset;
+        long transferred = 0;
+        while (transferred < count) {
+            final long transferredNow = source.channel.transferTo(position + transferred, count - transferred,
+                    writeChannel);
+            if (transferredNow <= 0) {
+                throw new EOFException("Unexpected end of storage file at " + (position + transferred));
+            }
+            transferred += transferredNow;
+        }
+        writeOffset += count;
+        flushedOffset = writeOffset;
+        return offset;
+    }
+
+    // Returns whether bytes before end are readable without flush.
+    boolean isFlushed(long end) {
+        return end <= flushedOffset;
+    }
+
+    // Reads bytes starting from position, until dst is full.
+    void read(ByteBuffer dst, long position) throws IOException {
+        flushIfNeeded(position + dst.remaining());
+        if (mappedReader != null) {
+            mappedReader.read(dst, position);
+            return;
+        }
+        while (dst.hasRemaining()) {
+            final int readResult = channel.read(dst, position);
+            if (readResult < 0) {
+                throw new EOFException("Unexpected end of storage file at " + position);
+            }
+            position += readResult;
+        }
+    }
+
+    // Returns read-only view of count bytes starting from position, or null if file is not memory mapped,
+    // see MappedFileReader.
+    ByteBuffer view(long position, int count) throws IOException {
+        flushIfNeeded(position + count);
+        return mappedReader != null ? mappedReader.view(position, count) : null;
+    }
+
+    // Opens new read channel of file. Unlike channel of this file, new channel stays readable, when this file
+    // is closed and replaced or deleted by compaction.
+    FileChannel openReadChannel() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        flushedOffset = writeOffset;
+    }
+
+    // Drops file bytes starting from size. Buffered bytes after size are dropped without writing them,
+    // so bytes of failed append are dropped, even if they can not be written.
+    void truncate(long size) throws IOException {
+        if (writeBuffer != null) {
+            final long bufferOffset = writeOffset - writeBuffer.position();
+            writeBuffer.position((int) Math.max(0, Math.min(writeBuffer.position(), size - bufferOffset)));
+        }
+        writeOffset = Math.min(writeOffset, size);
+        flush();
+        writeChannel.truncate(size);
+        writeOffset = size;
+        flushedOffset = size;
+    }
+
+    // Flushes and forces file content to storage device.
+    void sync() throws IOException {
+        flush();
+        force();
+    }
+
+    // Forces flushed file content to storage device. May be called concurrently with appends.
+    void force() throws IOException {
+        writeChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            writeChannel.close();
+            channel.close();
+        }
+    }
+
+    // Closes file without flushing buffered bytes, so they are lost, as if process crashed.
+    void closeUnflushed() throws IOException {
+        try {
+            writeChannel.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Makes room for count bytes in write buffer. Returns false, if bytes do not fit into empty buffer,
+    // so they should be written directly after buffer is flushed.
+    private boolean reserve(int count) throws IOException {
+        if (writeBuffer == null) {
+            writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+        }
+        if (count > writeBuffer.remaining()) {
+            flushBuffer();
+        }
+        return count <= writeBuffer.remaining();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (writeBuffer == null || writeBuffer.position() == 0) {
+            return;
+        }
+        writeBuffer.flip();
+        try {
+            writeFully(writeBuffer);
+        } finally {
+            // Bytes, which are not written by failed write, stay buffered
+            writeBuffer.compact();
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            writeChannel.write(src);
+        }
+    }
+
+    private void flushIfNeeded(long end) throws IOException {
+        if (end > flushedOffset) {
+            // Bytes are still in output buffer
+            flush();
+        }
+    }
+}
@@ -0,0 +1,1199 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.CacheStats;
+import com.futujaos.kvstorage.CompactionStats;
+import com.futujaos.kvstorage.KV;
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageMXBean;
+import com.futujaos.kvstorage.KVStorageSnapshot;
+import com.futujaos.kvstorage.KVStorageStats;
+import com.futujaos.kvstorage.WriteBatch;
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Storage structure of LSM engine:
+// <file_name>.kvs/<id>.log - write-ahead log of memtable (see WriteAheadLog)
+// <file_name>.kvs/<id>.sst - sorted table (see SortedTable)
+// <file_name>.kvs.meta     - manifest with list of sorted tables (see LsmManifest)
+//
+// Writes are appended to write-ahead log and put into memtable. Full memtable becomes immutable and is flushed
+// into sorted table of level 0 by background thread, while writes go to fresh memtable and fresh log.
+// When count of tables of one level reaches merge threshold, background thread merges them into single table
+// of the next level. Levels of tables do not decrease from the newest table to the oldest one, so tables
+// of one level are adjacent and merged table takes their place:
+//
+// | memtable | immutable memtable | table, level 0 | .. | table, level 1 | .. | table, level N |
+// | newest                                                                           oldest |
+//
+// Value of key is looked up from the newest to the oldest, the first found entry wins. Deleted key is kept
+// as entry without value, until it is merged into the oldest table.
+//
+// Memtables and tables are published together as immutable version:
+// - writes are serialized by write lock, flushes and merges run in single background thread;
+// - memtables are read without locks;
+// - tables are read under read lock of tables lock, tables, replaced by merge, are closed under its write lock.
+//
+// Snapshot pins version, it was taken from: it freezes memtable as immutable one, and retains tables, so tables,
+// replaced by merge, are closed and deleted, when the last snapshot, which reads them, is closed.
+public class LsmKVStorageImpl implements KVStorage, KVStorageMXBean {
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String LOG_SUFFIX = ".log";
+    private final KVStorageConfig config;
+    private final File directory;
+    private final LsmManifest manifest;
+    private final StorageMetrics metrics;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition flushed = writeLock.newCondition();
+    private final ReentrantReadWriteLock tablesLock = new ReentrantReadWriteLock();
+    private final Set<Snapshot> snapshots = new HashSet<>(); // guarded by tables lock
+    private final ExecutorService background;
+    private final ScheduledExecutorService syncExecutor;
+    private final ObjectName mbeanName;
+    private volatile Version version;
+    private boolean tablesClosed; // guarded by tables lock
+    private WriteAheadLog log;
+    private long logId;
+    private long nextFileId;
+    private boolean closed;
+    private volatile IOException backgroundFailure;
+    private volatile IOException syncFailure;
+    private volatile boolean closing;
+    private volatile long mergingBytes; // size of tables, merged now, 0 if merge is not running
+    private volatile long completedMerges;
+    private volatile long reclaimedBytes;
+
+    public LsmKVStorageImpl(KVStorageConfig config) throws IOException {
+        final long openStart = System.nanoTime();
+        this.config = config;
+        directory = new File(config.getStorageFilePath());
+        manifest = new LsmManifest(new File(config.getMetaFilePath()));
+        metrics = new StorageMetrics(config.isLatencyHistograms());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Storage directory " + directory + " is not created");
+        }
+
+        final List<SortedTable> tables = new ArrayList<>();
+        try {
+            final LsmManifest.State state = manifest.read();
+            final Set<Long> listedIds = new HashSet<>();
+            long replayedLogId = 0;
+            nextFileId = 1;
+            if (state != null) {
+                for (int i = 0; i < state.tableIds.length; i++) {
+                    final File tableFile = tableFile(state.tableIds[i]);
+                    if (!tableFile.exists()) {
+                        throw new KVStorageDamagedException("Sorted table " + tableFile + " is missing");
+                    }
+                    tables.add(SortedTable.open(tableFile, state.tableIds[i], state.tableLevels[i]));
+                    listedIds.add(state.tableIds[i]);
+                }
+                replayedLogId = state.logId;
+                nextFileId = state.nextFileId;
+            }
+            for (long id : fileIds(TABLE_SUFFIX)) {
+                if (state == null) {
+                    throw new KVStorageDamagedException("Manifest of storage " + directory + " is missing");
+                }
+                nextFileId = Math.max(nextFileId, id + 1);
+                if (!listedIds.contains(id)) {
+                    // Table of interrupted flush or merge
+                    tableFile(id).delete();
+                }
+            }
+
+            final long replayStart = System.nanoTime();
+            final Memtable replayed = new Memtable();
+            for (long id : fileIds(LOG_SUFFIX)) {
+                nextFileId = Math.max(nextFileId, id + 1);
+                if (id >= replayedLogId) {
+                    metrics.replayedBytes += WriteAheadLog.replay(logFile(id), replayed::put);
+                }
+            }
+            metrics.logReplayNanos = System.nanoTime() - replayStart;
+
+            logId = nextFileId++;
+            log = new WriteAheadLog(logFile(logId));
+            version = new Version(new Memtable(), replayed.isEmpty() ? null : replayed, tables);
+            // Replayed writes are flushed, so replayed logs are deleted
+            flushImmutable();
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(tables, e);
+            if (log != null) {
+                log.close();
+            }
+            throw e;
+        }
+
+        background = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "kvstorage-lsm-merge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (config.getDurabilityMode() == KVStorageConfig.DurabilityMode.PERIODIC) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "kvstorage-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = config.getSyncIntervalMillis();
+            syncExecutor.scheduleWithFixedDelay(this::periodicSync, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            syncExecutor = null;
+        }
+        background.execute(this::mergeInBackground);
+        metrics.openNanos = System.nanoTime() - openStart;
+
+        mbeanName = config.isJmx() ? registerMBean() : null;
+    }
+
+    @Override
+    public Optional<byte[]> read(int key) {
+        final long start = metrics.start();
+        final Optional<byte[]> value = Optional.ofNullable(readKey(key));
+        metrics.read(start, 1);
+        return value;
+    }
+
+    // Value is copied from sorted table block or memtable, there is no file to view or transfer.
+    @Override
+    public int readInto(int key, ByteBuffer dst) {
+        final long start = metrics.start();
+        final byte[] value = readKey(key);
+        metrics.read(start, 1);
+        if (value == null) {
+            return -1;
+        }
+        if (value.length <= dst.remaining()) {
+            dst.put(value);
+        }
+        return value.length;
+    }
+
+    @Override
+    public Optional<ByteBuffer> readView(int key) {
+        return read(key).map(value -> ByteBuffer.wrap(value).asReadOnlyBuffer());
+    }
+
+    @Override
+    public long transferTo(int key, WritableByteChannel target) throws IOException {
+        ValueTransfer.checkBlocking(target);
+        return ValueTransfer.writeFully(read(key).orElse(null), target);
+    }
+
+    @Override
+    public Optional<InputStream> openReader(int key) {
+        return read(key).map(ByteArrayInputStream::new);
+    }
+
+    // Memtable keeps value as a whole, so value is collected in memory and persisted on close. Value longer than
+    // memtable is rejected, so memory of writer is bounded.
+    @Override
+    public OutputStream openWriter(int key) {
+        final long maxBytes = Math.min(config.getMemtableBytes(), Integer.MAX_VALUE - 8);
+        return new OutputStream() {
+            private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (off < 0 || len < 0 || len > b.length - off) {
+                    throw new IndexOutOfBoundsException();
+                }
+                if (closed) {
+                    throw new IOException("Value writer is closed");
+                }
+                if (value.size() + (long) len > maxBytes) {
+                    closed = true;
+                    value.reset();
+                    throw new IOException("Streamed value exceeds memtable size " + maxBytes
+                            + " of LSM storage, value is dropped");
+                }
+                value.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    persist(key, value.toByteArray());
+                }
+            }
+        };
+    }
+
+    @Override
+    public void persist(int key, byte[] value) throws IOException {
+        final long start = metrics.start();
+        write(key, value);
+        metrics.write(start, 1, 0);
+    }
+
+    @Override
+    public void delete(int key) throws IOException {
+        final long start = metrics.start();
+        write(key, Memtable.DELETED);
+        metrics.write(start, 0, 1);
+    }
+
+    // Keys are looked up in key order, so sequential keys read the same blocks one after another.
+    @Override
+    public Map<Integer, byte[]> readAll(int[] keys) {
+        final long start = metrics.start();
+        final int[] sortedKeys = keys.clone();
+        Arrays.sort(sortedKeys);
+        final Map<Integer, byte[]> values = new HashMap<>();
+        for (int key : sortedKeys) {
+            final byte[] value = readKey(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        metrics.read(start, keys.length);
+        return values;
+    }
+
+    @Override
+    public Iterator<KV> scan(int fromKey, int toKey) {
+        if (fromKey > toKey) {
+            throw new IllegalArgumentException("From key should not be greater than to key");
+        }
+        return new Scan(fromKey, toKey, false);
+    }
+
+    @Override
+    public Iterator<KV> scan() {
+        return new Scan(Integer.MIN_VALUE, Integer.MAX_VALUE, true);
+    }
+
+    @Override
+    public void persistAll(WriteBatch batch) throws IOException {
+        final long start = metrics.start();
+        if (batch.size() == 0) {
+            return;
+        }
+        int deleteCount = 0;
+        writeLock.lock();
+        try {
+            checkWritable();
+            makeRoom();
+            for (int i = 0; i < batch.size(); i++) {
+                final byte[] value = batch.getValue(i);
+                metrics.appendedBytes += log.append(batch.getKey(i), value != null ? value : Memtable.DELETED,
+                        i < batch.size() - 1);
+            }
+            final Memtable memtable = version.memtable;
+            for (int i = 0; i < batch.size(); i++) {
+                final byte[] value = batch.getValue(i);
+                memtable.put(batch.getKey(i), value != null ? value : Memtable.DELETED);
+                if (value == null) {
+                    deleteCount++;
+                }
+            }
+            afterAppend(batch.isSync());
+        } finally {
+            writeLock.unlock();
+        }
+        metrics.writeBatch(start, batch.size() - deleteCount, deleteCount);
+    }
+
+    // Memtable is modified in place, so it is not copied, but rotated: it becomes immutable memtable, which
+    // snapshot reads, and is flushed, as full memtable is. As on rotation of full memtable, previous immutable
+    // memtable is flushed first. Empty memtable is not rotated, snapshot reads immutable memtable then.
+    @Override
+    public KVStorageSnapshot snapshot() throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Storage is closed");
+            }
+            if (!version.memtable.isEmpty()) {
+                awaitFlush();
+                rotate();
+            }
+            final Version current = version;
+            final Snapshot snapshot = new Snapshot(current.immutable, current.tables);
+            tablesLock.writeLock().lock();
+            try {
+                for (SortedTable table : current.tables) {
+                    table.retain();
+                }
+                snapshots.add(snapshot);
+            } finally {
+                tablesLock.writeLock().unlock();
+            }
+            return snapshot;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Flushes memtable and merges all tables into one, dropping overwritten values and deleted keys.
+    @Override
+    public void compact() throws IOException {
+        writeLock.lock();
+        try {
+            checkWritable();
+            awaitFlush();
+            if (!version.memtable.isEmpty()) {
+                rotate();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        final Future<?> merge = background.submit(() -> {
+            final List<SortedTable> tables = version.tables;
+            if (tables.size() > 1) {
+                merge(tables, tables.get(tables.size() - 1).level(), true);
+            }
+            return null;
+        });
+        try {
+            merge.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compaction");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Compaction failed", e.getCause());
+        }
+        final IOException failure = backgroundFailure;
+        if (failure != null) {
+            throw new IOException("Background flush failed", failure);
+        }
+    }
+
+    @Override
+    public CompactionStats getCompactionStats() {
+        final long merging = mergingBytes;
+        return new CompactionStats(
+                merging > 0,
+                0,
+                merging,
+                completedMerges,
+                reclaimedBytes,
+                storageBytes(),
+                0 // overwritten values are not tracked, they are found by merge only
+        );
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return new CacheStats(0, 0, 0, 0, 0);
+    }
+
+    // Key count is estimated as count of entries of memtables and tables, so it counts overwritten
+    // and deleted keys, until they are merged. Stats are read from the current version without write lock,
+    // so they do not stall writers, and may miss concurrent writes.
+    @Override
+    public KVStorageStats getStats() {
+        final Version current = version;
+        long keyCount = current.memtable.size() + (current.immutable != null ? current.immutable.size() : 0);
+        for (SortedTable table : current.tables) {
+            keyCount += table.entryCount();
+        }
+        final long storageBytes = storageBytes();
+        return new KVStorageStats(
+                metrics.readCount(),
+                metrics.persistCount(),
+                metrics.deleteCount(),
+                metrics.writeBatchCount(),
+                metrics.syncCount(),
+                metrics.appendedBytes,
+                storageBytes,
+                storageBytes,
+                keyCount,
+                metrics.readLatency(),
+                metrics.writeLatency(),
+                metrics.syncLatency(),
+                StorageMetrics.millis(metrics.openNanos),
+                0,
+                StorageMetrics.millis(metrics.logReplayNanos),
+                metrics.replayedBytes,
+                metrics.checkpoints,
+                StorageMetrics.millis(metrics.checkpointNanos)
+        );
+    }
+
+    // Waits for background flush and merges, then flushes memtable, so next open replays nothing.
+    @Override
+    public void close() throws IOException {
+        if (mbeanName != null) {
+            unregisterMBean();
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            awaitTermination(syncExecutor, "Interrupted while waiting for periodic sync");
+        }
+        closing = true;
+        background.shutdown();
+        awaitTermination(background, "Interrupted while waiting for background merge");
+
+        try {
+            writeLock.lock();
+            try {
+                closed = true;
+                log.sync();
+                log.close();
+                final IOException failure = backgroundFailure;
+                if (failure != null) {
+                    throw new IOException("Background flush failed", failure);
+                }
+                // Log is flushed with memtable, there is no log from next id
+                logId = nextFileId++;
+                final Version current = version;
+                version = new Version(new Memtable(), current.memtable.isEmpty() ? null : current.memtable,
+                        current.tables);
+            } finally {
+                writeLock.unlock();
+            }
+            flushImmutable();
+        } finally {
+            closeTables();
+        }
+    }
+
+    // Closes storage as if process crashed: periodic sync and background thread are stopped, records of log,
+    // which are not flushed yet, are lost, memtable is not flushed. Test hook, storage should not be used
+    // afterwards.
+    void crash() throws IOException {
+        if (mbeanName != null) {
+            unregisterMBean();
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+            awaitTermination(syncExecutor, "Interrupted while waiting for periodic sync");
+        }
+        closing = true;
+        background.shutdown();
+        awaitTermination(background, "Interrupted while waiting for background merge");
+
+        writeLock.lock();
+        try {
+            closed = true;
+            log.closeUnflushed();
+        } finally {
+            writeLock.unlock();
+        }
+        closeTables();
+    }
+
+    // Invalidates open snapshots and closes tables, which storage and snapshots read.
+    private void closeTables() throws IOException {
+        tablesLock.writeLock().lock();
+        try {
+            tablesClosed = true;
+            for (Snapshot snapshot : snapshots) {
+                snapshot.releaseTables();
+            }
+            snapshots.clear();
+            for (SortedTable table : version.tables) {
+                table.release();
+            }
+        } finally {
+            tablesLock.writeLock().unlock();
+        }
+    }
+
+    private byte[] readKey(int key) {
+        final Version current = version;
+        byte[] value = current.memtable.get(key);
+        if (value == null && current.immutable != null) {
+            value = current.immutable.get(key);
+        }
+        if (value == null) {
+            value = readTables(key);
+        }
+        return value != Memtable.DELETED ? value : null;
+    }
+
+    // Tables of the latest version contain all entries of memtables of earlier versions,
+    // so key is not missed, if memtables were flushed after they were looked up.
+    private byte[] readTables(int key) {
+        tablesLock.readLock().lock();
+        try {
+            for (SortedTable table : version.tables) {
+                final byte[] value = table.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            tablesLock.readLock().unlock();
+        }
+    }
+
+    private void write(int key, byte[] value) throws IOException {
+        writeLock.lock();
+        try {
+            checkWritable();
+            makeRoom();
+            metrics.appendedBytes += log.append(key, value, false);
+            version.memtable.put(key, value);
+            afterAppend(false);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Replaces full memtable with fresh one. Waits, if previous memtable is not flushed yet,
+    // so memory is bounded by two memtables.
+    private void makeRoom() throws IOException {
+        if (version.memtable.bytes() < config.getMemtableBytes()) {
+            return;
+        }
+        awaitFlush();
+        rotate();
+    }
+
+    private void awaitFlush() throws IOException {
+        while (version.immutable != null) {
+            checkWritable();
+            try {
+                flushed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memtable flush");
+            }
+        }
+    }
+
+    // Makes memtable immutable and starts its flush, writes go to fresh memtable and log.
+    private void rotate() throws IOException {
+        log.sync();
+        log.close();
+        logId = nextFileId++;
+        log = new WriteAheadLog(logFile(logId));
+        final Version current = version;
+        version = new Version(new Memtable(), current.memtable, current.tables);
+        background.execute(this::flushInBackground);
+    }
+
+    private void afterAppend(boolean sync) throws IOException {
+        if (sync || config.getDurabilityMode() == KVStorageConfig.DurabilityMode.PER_WRITE) {
+            final long start = metrics.start();
+            log.sync();
+            metrics.sync(start);
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed) {
+            throw new IOException("Storage is closed");
+        }
+        final IOException failure = backgroundFailure;
+        if (failure != null) {
+            throw new IOException("Background flush failed", failure);
+        }
+        final IOException periodicSyncFailure = syncFailure;
+        if (periodicSyncFailure != null) {
+            throw new IOException("Periodic sync failed", periodicSyncFailure);
+        }
+    }
+
+    private void flushInBackground() {
+        try {
+            flushImmutable();
+            mergeIfNeeded();
+        } catch (IOException | RuntimeException e) {
+            backgroundFailure = e instanceof IOException ? (IOException) e : new IOException(e);
+            writeLock.lock();
+            try {
+                flushed.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void mergeInBackground() {
+        try {
+            mergeIfNeeded();
+        } catch (IOException | RuntimeException e) {
+            backgroundFailure = e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    // Writes immutable memtable into table of level 0, publishes table in manifest and deletes logs,
+    // flushed into it. Runs in background thread, or on open and close, when there is no background thread.
+    private void flushImmutable() throws IOException {
+        final long start = System.nanoTime();
+        final Version current = version;
+        final Memtable immutable = current.immutable;
+        SortedTable table = null;
+        if (immutable != null) {
+            final long tableId = allocateFileId();
+            table = SortedTable.write(tableFile(tableId), tableId, 0, immutable.iterator(Integer.MIN_VALUE),
+                    immutable.size(), config.getTableBlockBytes(), config.getBloomBitsPerKey(),
+                    current.tables.isEmpty());
+            if (table.entryCount() == 0) {
+                table.close();
+                table.delete();
+                table = null;
+            } else {
+                // Table is durable in directory before manifest lists it and logs, flushed into it, are deleted
+                ChecksummedFile.syncDirectory(directory);
+            }
+        }
+
+        final long flushedLogId;
+        writeLock.lock();
+        try {
+            // Tables are modified by this thread only
+            final List<SortedTable> tables = new ArrayList<>(current.tables.size() + 1);
+            if (table != null) {
+                tables.add(table);
+            }
+            tables.addAll(current.tables);
+            manifest.write(nextFileId, logId, tables);
+            version = new Version(version.memtable, null, Collections.unmodifiableList(tables));
+            flushedLogId = logId;
+            if (immutable != null) {
+                metrics.checkpoints++;
+                metrics.checkpointNanos += System.nanoTime() - start;
+            }
+            flushed.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+        for (long id : fileIds(LOG_SUFFIX)) {
+            if (id < flushedLogId) {
+                logFile(id).delete();
+            }
+        }
+    }
+
+    // Merges tables of the lowest level, which has merge threshold tables, until there is no such level.
+    private void mergeIfNeeded() throws IOException {
+        while (!closing) {
+            final List<SortedTable> tables = version.tables;
+            int from = 0;
+            int to = 0;
+            while (from < tables.size()) {
+                to = from;
+                while (to < tables.size() && tables.get(to).level() == tables.get(from).level()) {
+                    to++;
+                }
+                if (to - from >= config.getTableMergeThreshold()) {
+                    break;
+                }
+                from = to;
+            }
+            if (from == tables.size()) {
+                return;
+            }
+            merge(tables.subList(from, to), tables.get(from).level() + 1, to == tables.size());
+        }
+    }
+
+    // Merges adjacent tables into table of specified level, which takes their place.
+    private void merge(List<SortedTable> merged, int level, boolean oldest) throws IOException {
+        long mergedBytes = 0;
+        long expectedKeys = 0;
+        final List<Iterator<Map.Entry<Integer, byte[]>>> iterators = new ArrayList<>(merged.size());
+        for (SortedTable table : merged) {
+            mergedBytes += table.size();
+            expectedKeys += table.entryCount();
+            iterators.add(table.iterator(Integer.MIN_VALUE));
+        }
+        mergingBytes = mergedBytes;
+        try {
+            final long tableId = allocateFileId();
+            SortedTable table;
+            try {
+                table = SortedTable.write(tableFile(tableId), tableId, level, new MergingIterator(iterators),
+                        expectedKeys, config.getTableBlockBytes(), config.getBloomBitsPerKey(), oldest);
+            } catch (IOException | RuntimeException e) {
+                tableFile(tableId).delete();
+                if (e instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e).getCause();
+                }
+                throw e;
+            }
+            if (table.entryCount() == 0) {
+                table.close();
+                table.delete();
+                table = null;
+            } else {
+                // Table is durable in directory before manifest lists it instead of merged tables
+                ChecksummedFile.syncDirectory(directory);
+            }
+
+            writeLock.lock();
+            try {
+                final List<SortedTable> tables = new ArrayList<>(version.tables);
+                final int index = tables.indexOf(merged.get(0));
+                tables.subList(index, index + merged.size()).clear();
+                if (table != null) {
+                    tables.add(index, table);
+                }
+                manifest.write(nextFileId, logId, tables);
+                final Version current = version;
+                version = new Version(current.memtable, current.immutable, Collections.unmodifiableList(tables));
+            } finally {
+                writeLock.unlock();
+            }
+
+            // Tables, which snapshots read, are closed and deleted, when snapshots are closed
+            tablesLock.writeLock().lock();
+            try {
+                for (SortedTable mergedTable : merged) {
+                    mergedTable.replace();
+                }
+            } finally {
+                tablesLock.writeLock().unlock();
+            }
+            completedMerges++;
+            reclaimedBytes += mergedBytes - (table != null ? table.size() : 0);
+        } finally {
+            mergingBytes = 0;
+        }
+    }
+
+    // Opens loader of new storage, which writes pairs into single sorted table.
+    static BulkLoader openLoader(KVStorageConfig config) throws IOException {
+        final File directory = new File(config.getStorageFilePath());
+        final LsmManifest manifest = new LsmManifest(new File(config.getMetaFilePath()));
+        final String[] names = directory.list();
+        if (manifest.read() != null || names != null && names.length > 0) {
+            throw new IllegalArgumentException("Storage " + directory + " is not empty");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Storage directory " + directory + " is not created");
+        }
+        return new TableLoader(config, new File(directory, TableLoader.TABLE_ID + TABLE_SUFFIX), manifest);
+    }
+
+    private long allocateFileId() {
+        writeLock.lock();
+        try {
+            return nextFileId++;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private long storageBytes() {
+        long bytes = 0;
+        for (SortedTable table : version.tables) {
+            bytes += table.size();
+        }
+        return bytes + logBytes();
+    }
+
+    private long logBytes() {
+        long bytes = 0;
+        for (long id : fileIds(LOG_SUFFIX)) {
+            bytes += logFile(id).length();
+        }
+        return bytes;
+    }
+
+    private File tableFile(long id) {
+        return new File(directory, id + TABLE_SUFFIX);
+    }
+
+    private File logFile(long id) {
+        return new File(directory, id + LOG_SUFFIX);
+    }
+
+    // Returns sorted ids of files with specified suffix.
+    private long[] fileIds(String suffix) {
+        final String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.endsWith(suffix)) {
+                try {
+                    ids[count] = Long.parseLong(name.substring(0, name.length() - suffix.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // Not a storage file
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private void periodicSync() {
+        writeLock.lock();
+        try {
+            if (!closed) {
+                final long start = metrics.start();
+                log.sync();
+                metrics.sync(start);
+            }
+        } catch (IOException e) {
+            syncFailure = e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor, String message) throws InterruptedIOException {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(message);
+        }
+    }
+
+    private static void closeQuietly(List<SortedTable> tables, Exception failure) {
+        for (SortedTable table : tables) {
+            try {
+                table.close();
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private ObjectName registerMBean() throws IOException {
+        try {
+            final ObjectName name = new ObjectName("com.futujaos.kvstorage:type=KVStorage,name="
+                    + ObjectName.quote(directory.getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            return name;
+        } catch (JMException e) {
+            close();
+            throw new IOException("Storage is not registered in JMX", e);
+        }
+    }
+
+    private void unregisterMBean() throws IOException {
+        try {
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(mbeanName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            }
+        } catch (JMException e) {
+            throw new IOException("Storage is not unregistered from JMX", e);
+        }
+    }
+
+    // Loader writes pairs, sorted by key, straight into sorted table, without write-ahead log and memtable,
+    // and lists the table in manifest, when loading is finished.
+    //
+    // Table gets the level, which merges would give to table of its size, built from full memtables,
+    // so it is not merged with every few flushed tables.
+    private static final class TableLoader extends BulkLoader {
+        static final long TABLE_ID = 1;
+        private final KVStorageConfig config;
+        private final File file;
+        private final LsmManifest manifest;
+        private final SortedTable.Writer writer;
+        private boolean empty = true;
+        private int lastKey;
+
+        TableLoader(KVStorageConfig config, File file, LsmManifest manifest) throws IOException {
+            this.config = config;
+            this.file = file;
+            this.manifest = manifest;
+            writer = new SortedTable.Writer(file, TABLE_ID, -1, config.getTableBlockBytes(), config.getBloomBitsPerKey());
+        }
+
+        @Override
+        void add(int key, byte[] value) throws IOException {
+            if (!empty && key <= lastKey) {
+                throw new IllegalArgumentException("Keys of LSM storage should be loaded in ascending order, "
+                        + key + " follows " + lastKey);
+            }
+            writer.add(key, value);
+            empty = false;
+            lastKey = key;
+        }
+
+        @Override
+        void finish() throws IOException {
+            int level = 0;
+            for (double bytes = config.getMemtableBytes(); bytes < writer.dataBytes();
+                 bytes *= config.getTableMergeThreshold()) {
+                level++;
+            }
+            try (SortedTable table = writer.finish(level)) {
+                ChecksummedFile.syncDirectory(file.getAbsoluteFile().getParentFile());
+                manifest.write(TABLE_ID + 1, TABLE_ID + 1, Collections.singletonList(table));
+            }
+        }
+
+        @Override
+        void abort(Throwable failure) {
+            // Table, which is not listed in manifest, would be taken for damage of storage
+            try {
+                writer.close();
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+            file.delete();
+        }
+    }
+
+    // Memtables and tables, which are read together.
+    private static final class Version {
+        final Memtable memtable;
+        final Memtable immutable; // null if there is no memtable to flush
+        final List<SortedTable> tables; // from the newest to the oldest
+
+        Version(Memtable memtable, Memtable immutable, List<SortedTable> tables) {
+            this.memtable = memtable;
+            this.immutable = immutable;
+            this.tables = tables;
+        }
+    }
+
+    // Snapshot of storage, see header comment. Values are looked up as in storage, in pinned memtables and tables.
+    private final class Snapshot implements KVStorageSnapshot {
+        private final Memtable memtable; // immutable memtable, null if there was no memtable to flush
+        private final List<SortedTable> tables;
+        private boolean closed; // guarded by tables lock
+
+        Snapshot(Memtable memtable, List<SortedTable> tables) {
+            this.memtable = memtable;
+            this.tables = tables;
+        }
+
+        @Override
+        public Optional<byte[]> read(int key) {
+            final long start = metrics.start();
+            final byte[] value = readKey(key);
+            metrics.read(start, 1);
+            return value != Memtable.DELETED ? Optional.ofNullable(value) : Optional.empty();
+        }
+
+        private byte[] readKey(int key) {
+            tablesLock.readLock().lock();
+            try {
+                checkOpen();
+                byte[] value = memtable != null ? memtable.get(key) : null;
+                for (int i = 0; value == null && i < tables.size(); i++) {
+                    value = tables.get(i).get(key);
+                }
+                return value;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                tablesLock.readLock().unlock();
+            }
+        }
+
+        // Memtable is written as the newest table of backup, tables are hard-linked, or copied if file system
+        // does not support links. Manifest lists all of them, and no logs, so backup opens without replay.
+        @Override
+        public void backup(File target) throws IOException {
+            final File backupDirectory = new File(target, directory.getName());
+            final File backupManifest = new File(target, new File(config.getMetaFilePath()).getName());
+            tablesLock.readLock().lock();
+            try {
+                checkOpen();
+            } finally {
+                tablesLock.readLock().unlock();
+            }
+            final String[] names = backupDirectory.list();
+            if (names != null && names.length > 0 || backupManifest.exists()) {
+                throw new IllegalArgumentException("Directory " + target + " already contains storage");
+            }
+            if (!backupDirectory.mkdirs() && !backupDirectory.isDirectory()) {
+                throw new IOException("Directory " + backupDirectory + " is not created");
+            }
+
+            long nextId = 1;
+            for (SortedTable table : tables) {
+                nextId = Math.max(nextId, table.id() + 1);
+            }
+            final List<SortedTable> backupTables = new ArrayList<>(tables.size() + 1);
+            SortedTable memtableTable = null;
+            try {
+                if (memtable != null) {
+                    final long tableId = nextId++;
+                    memtableTable = SortedTable.write(new File(backupDirectory, tableId + TABLE_SUFFIX), tableId, 0,
+                            memtable.iterator(Integer.MIN_VALUE), memtable.size(), config.getTableBlockBytes(),
+                            config.getBloomBitsPerKey(), tables.isEmpty());
+                    if (memtableTable.entryCount() > 0) {
+                        backupTables.add(memtableTable);
+                    }
+                }
+
+                tablesLock.readLock().lock();
+                try {
+                    checkOpen();
+                    for (SortedTable table : tables) {
+                        final File copy = new File(backupDirectory, table.file().getName());
+                        try {
+                            Files.createLink(copy.toPath(), table.file().toPath());
+                        } catch (UnsupportedOperationException | IOException e) {
+                            // File system does not support links, or target is on other file system
+                            copy.delete();
+                            SegmentedLog.copy(table.file(), copy, table.size());
+                        }
+                        backupTables.add(table);
+                    }
+                } finally {
+                    tablesLock.readLock().unlock();
+                }
+                new LsmManifest(backupManifest).write(nextId, nextId, backupTables);
+            } finally {
+                if (memtableTable != null) {
+                    memtableTable.close();
+                    if (memtableTable.entryCount() == 0) {
+                        memtableTable.delete();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            tablesLock.writeLock().lock();
+            try {
+                if (!closed && !tablesClosed) {
+                    snapshots.remove(this);
+                    releaseTables();
+                }
+            } finally {
+                tablesLock.writeLock().unlock();
+            }
+        }
+
+        // Called under tables lock write lock.
+        void releaseTables() throws IOException {
+            closed = true;
+            for (SortedTable table : tables) {
+                table.release();
+            }
+        }
+
+        // Called under tables lock.
+        private void checkOpen() {
+            if (tablesClosed) {
+                throw new IllegalStateException("Storage is closed");
+            }
+            if (closed) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+        }
+    }
+
+    // Iterates keys in batches, every batch is merged from memtables and tables of the latest version,
+    // starting after the last key of previous batch. So iterator is weakly consistent and does not keep
+    // tables from being closed by merge.
+    private final class Scan implements Iterator<KV> {
+        private final int toKey;
+        private final boolean toInclusive;
+        private final ArrayDeque<KV> batch = new ArrayDeque<>();
+        private int fromKey;
+        private boolean fromInclusive = true;
+        private boolean exhausted; // whether all keys are merged
+
+        Scan(int fromKey, int toKey, boolean toInclusive) {
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            this.toInclusive = toInclusive;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (batch.isEmpty() && !exhausted) {
+                readBatch();
+            }
+            return !batch.isEmpty();
+        }
+
+        @Override
+        public KV next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.poll();
+        }
+
+        private void readBatch() {
+            final long start = metrics.start();
+            exhausted = true;
+            tablesLock.readLock().lock();
+            try {
+                final Version current = version;
+                final List<Iterator<Map.Entry<Integer, byte[]>>> iterators = new ArrayList<>();
+                iterators.add(current.memtable.iterator(fromKey));
+                if (current.immutable != null) {
+                    iterators.add(current.immutable.iterator(fromKey));
+                }
+                for (SortedTable table : current.tables) {
+                    iterators.add(table.iterator(fromKey));
+                }
+                final MergingIterator entries = new MergingIterator(iterators);
+                while (entries.hasNext()) {
+                    final Map.Entry<Integer, byte[]> entry = entries.next();
+                    final int key = entry.getKey();
+                    if (key == fromKey && !fromInclusive) {
+                        continue;
+                    }
+                    if (key > toKey || key == toKey && !toInclusive) {
+                        break;
+                    }
+                    fromKey = key;
+                    fromInclusive = false;
+                    if (entry.getValue() != Memtable.DELETED) {
+                        batch.add(new KV(key, entry.getValue()));
+                        if (batch.size() == config.getScanBatchSize()) {
+                            exhausted = false;
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                tablesLock.readLock().unlock();
+            }
+            metrics.read(start, batch.size());
+        }
+    }
+}
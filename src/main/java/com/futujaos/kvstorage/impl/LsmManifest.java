@@ -0,0 +1,72 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// Manifest of LSM storage keeps list of its sorted tables, replaced atomically after every flush and merge.
+//
+// Manifest content (see ChecksummedFile):
+// | next file id | log id | tables count | table id | table level | .. |
+// |      8       |   8    |      4       |    8     |      4      | .. |
+//
+// Tables are listed from the newest to the oldest. Write-ahead logs with id less than log id are flushed
+// into listed tables, so only logs from log id are replayed on open. Table files, which are not listed,
+// are left by interrupted flush or merge.
+final class LsmManifest {
+    private static final int MAGIC = 0x4B564C31; // "KVL1"
+    private final ChecksummedFile file;
+
+    LsmManifest(File file) {
+        this.file = new ChecksummedFile(file, MAGIC);
+    }
+
+    static final class State {
+        final long nextFileId;
+        final long logId;
+        final long[] tableIds;
+        final int[] tableLevels;
+
+        State(long nextFileId, long logId, long[] tableIds, int[] tableLevels) {
+            this.nextFileId = nextFileId;
+            this.logId = logId;
+            this.tableIds = tableIds;
+            this.tableLevels = tableLevels;
+        }
+    }
+
+    void write(long nextFileId, long logId, List<SortedTable> tables) throws IOException {
+        file.write(dos -> {
+            dos.writeLong(nextFileId);
+            dos.writeLong(logId);
+            dos.writeInt(tables.size());
+            for (SortedTable table : tables) {
+                dos.writeLong(table.id());
+                dos.writeInt(table.level());
+            }
+        });
+    }
+
+    // Returns state or null, if there is no valid manifest.
+    State read() throws IOException {
+        final DataInputStream dis = file.open();
+        if (dis == null) {
+            return null;
+        }
+        try {
+            final long nextFileId = dis.readLong();
+            final long logId = dis.readLong();
+            final int count = dis.readInt();
+            final long[] tableIds = new long[count];
+            final int[] tableLevels = new int[count];
+            for (int i = 0; i < count; i++) {
+                tableIds[i] = dis.readLong();
+                tableLevels[i] = dis.readInt();
+            }
+            return new State(nextFileId, logId, tableIds, tableLevels);
+        } finally {
+            dis.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Reads append-only file through memory mapped segments of fixed size.
+//
+// | segment 0 | segment 1 | .. | segment N (partial) |
+//
+// All segments except the last one are mapped once. The last segment is mapped up to current
+// file size and is remapped when read goes beyond its end, as file grows.
+//
+// Reads are thread-safe: segments array is replaced on remap, so readers never lock mapped segments.
+final class MappedFileReader {
+    private final FileChannel channel;
+    private final int segmentSize;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    MappedFileReader(FileChannel channel, int segmentSize) {
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+    }
+
+    // Copies bytes starting from position to dst, until dst is full.
+    void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            final int segmentIndex = (int) (position / segmentSize);
+            final int segmentOffset = (int) (position % segmentSize);
+            final int length = Math.min(dst.remaining(), segmentSize - segmentOffset);
+
+            final ByteBuffer src = segment(segmentIndex, segmentOffset + length).duplicate();
+            src.position(segmentOffset);
+            src.limit(segmentOffset + length);
+            dst.put(src);
+
+            position += length;
+        }
+    }
+
+    // Returns read-only view of count bytes starting from position, or null if bytes span mapped segments.
+    // View stays readable after file is closed or deleted, as mapping is released only when view is collected.
+    ByteBuffer view(long position, int count) throws IOException {
+        final int segmentIndex = (int) (position / segmentSize);
+        final int segmentOffset = (int) (position % segmentSize);
+        if (count > segmentSize - segmentOffset) {
+            return null;
+        }
+        final ByteBuffer view = segment(segmentIndex, segmentOffset + count).duplicate();
+        view.position(segmentOffset);
+        view.limit(segmentOffset + count);
+        return view.slice();
+    }
+
+    private MappedByteBuffer segment(int segmentIndex, int requiredSize) throws IOException {
+        final MappedByteBuffer[] segments = this.segments;
+        if (segmentIndex < segments.length) {
+            final MappedByteBuffer segment = segments[segmentIndex];
+            if (segment != null && segment.capacity() >= requiredSize) {
+                return segment;
+            }
+        }
+        return map(segmentIndex, requiredSize);
+    }
+
+    private synchronized MappedByteBuffer map(int segmentIndex, int requiredSize) throws IOException {
+
+        final long segmentStart = (long) segmentIndex * segmentSize;
+        final long mappedSize = Math.min(segmentSize, channel.size() - segmentStart);
+        if (mappedSize < requiredSize) {
+            throw new EOFException("Unexpected end of storage file at " + (segmentStart + requiredSize));
+        }
+
+        final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, mappedSize);
+        final MappedByteBuffer[] remapped = Arrays.copyOf(segments, Math.max(segments.length, segmentIndex + 1));
+        remapped[segmentIndex] = segment;
+        segments = remapped;
+        return segment;
+    }
+}
@@ -0,0 +1,53 @@
+package com.futujaos.kvstorage.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Sorted in-memory buffer of recent writes of LSM storage, flushed into sorted table, when it is full.
+//
+// Deleted key is kept with DELETED value, so delete hides value of key in older tables.
+// Memtable is modified by single writer at a time, reads do not block.
+final class Memtable {
+    static final byte[] DELETED = new byte[0]; // compared by identity
+    private static final int ENTRY_OVERHEAD_BYTES = 64; // skip list node, boxed key and array header
+    private final ConcurrentSkipListMap<Integer, byte[]> entries;
+    private volatile long bytes;
+    private volatile int size; // skip list counts its entries by traversal
+
+    Memtable() {
+        entries = new ConcurrentSkipListMap<>();
+    }
+
+    // Returns value of key, DELETED if key is deleted, or null if memtable has no entry of key.
+    byte[] get(int key) {
+        return entries.get(key);
+    }
+
+    void put(int key, byte[] value) {
+        final byte[] previous = entries.put(key, value);
+        bytes += value.length + (previous != null ? -previous.length : ENTRY_OVERHEAD_BYTES);
+        if (previous == null) {
+            size++;
+        }
+    }
+
+    // Iterates entries with keys from specified key in key order, including deleted keys.
+    Iterator<Map.Entry<Integer, byte[]>> iterator(int fromKey) {
+        return entries.tailMap(fromKey, true).entrySet().iterator();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // Count of entries, including deleted keys. Read without locks, so it may miss concurrent write.
+    int size() {
+        return size;
+    }
+
+    // Estimated memory, taken by entries.
+    long bytes() {
+        return bytes;
+    }
+}
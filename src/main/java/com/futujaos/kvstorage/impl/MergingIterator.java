@@ -0,0 +1,74 @@
+package com.futujaos.kvstorage.impl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+// Merges key ordered iterators of memtables and sorted tables into single key ordered iterator.
+//
+// Iterators are passed from the newest to the oldest. If several iterators have entry of the same key,
+// only entry of the newest one is returned, so overwritten values are skipped. Deleted keys are returned
+// with Memtable.DELETED value, so merge into sorted table keeps them, if there are older tables.
+final class MergingIterator implements Iterator<Map.Entry<Integer, byte[]>> {
+    private final PriorityQueue<Source> sources;
+
+    MergingIterator(List<Iterator<Map.Entry<Integer, byte[]>>> iterators) {
+        sources = new PriorityQueue<>(Math.max(1, iterators.size()));
+        for (int i = 0; i < iterators.size(); i++) {
+            final Source source = new Source(iterators.get(i), i);
+            if (source.advance()) {
+                sources.add(source);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !sources.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<Integer, byte[]> next() {
+        final Source newest = sources.poll();
+        if (newest == null) {
+            throw new NoSuchElementException();
+        }
+        final Map.Entry<Integer, byte[]> entry = newest.head;
+        advance(newest);
+        // Skip overwritten entries of the same key in older sources
+        while (!sources.isEmpty() && sources.peek().head.getKey().equals(entry.getKey())) {
+            advance(sources.poll());
+        }
+        return entry;
+    }
+
+    private void advance(Source source) {
+        if (source.advance()) {
+            sources.add(source);
+        }
+    }
+
+    private static final class Source implements Comparable<Source> {
+        private final Iterator<Map.Entry<Integer, byte[]>> iterator;
+        private final int age; // 0 for the newest source
+        private Map.Entry<Integer, byte[]> head;
+
+        Source(Iterator<Map.Entry<Integer, byte[]>> iterator, int age) {
+            this.iterator = iterator;
+            this.age = age;
+        }
+
+        boolean advance() {
+            head = iterator.hasNext() ? iterator.next() : null;
+            return head != null;
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            final int byKey = Integer.compare(head.getKey(), other.head.getKey());
+            return byKey != 0 ? byKey : Integer.compare(age, other.age);
+        }
+    }
+}
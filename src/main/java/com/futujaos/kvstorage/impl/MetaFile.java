@@ -0,0 +1,67 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.NavigableMap;
+
+// Meta file keeps states of log segments at last close, checkpoint or compaction, when log was synced.
+//
+// Meta file content (see ChecksummedFile):
+// | segment states |
+// |  xx xx .. xx   |
+//
+// Log data, covered by meta file, is durable, so any damage of it is storage damage.
+// Log data beyond it may be lost by crash, so damaged tail of it is truncated.
+//
+// Meta file of legacy storage, written before segment states, keeps MD5 of live entries (see readLegacyDigest).
+// It is verified once, when legacy storage is opened, and replaced by segment states then.
+final class MetaFile {
+    private static final int MAGIC = 0x4B564D32; // "KVM2"
+    private static final int LEGACY_DIGEST_BYTES = 16;
+    private final File path;
+    private final ChecksummedFile file;
+
+    MetaFile(File file) {
+        this.path = file;
+        this.file = new ChecksummedFile(file, MAGIC);
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    void write(NavigableMap<Long, SegmentState> segmentStates) throws IOException {
+        file.write(dos -> SegmentState.writeAll(dos, segmentStates));
+    }
+
+    // Returns segment states or null, if there is no valid meta file.
+    NavigableMap<Long, SegmentState> read() throws IOException {
+        final DataInputStream dis = file.open();
+        if (dis == null) {
+            return null;
+        }
+        try {
+            return SegmentState.readAll(dis);
+        } finally {
+            dis.close();
+        }
+    }
+
+    // Returns MD5 of live entries of legacy storage or null, if meta file is not of legacy format.
+    // Meta file with segment states is never of legacy length.
+    //
+    // Legacy meta file content:
+    // |     MD5     |
+    // | xx xx .. xx |
+    //
+    // MD5 is digest of bytes of live entries, in iteration order of HashMap<Integer, ...> of keys, which was
+    // built by applying entries of storage file in log order.
+    byte[] readLegacyDigest() throws IOException {
+        if (path.length() != LEGACY_DIGEST_BYTES) {
+            return null;
+        }
+        return Files.readAllBytes(path.toPath());
+    }
+}
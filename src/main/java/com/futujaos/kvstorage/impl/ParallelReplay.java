@@ -0,0 +1,399 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Replay of log by fork-join workers, see KVStorageConfig.withRecoveryThreads.
+//
+// Replayed part of every segment is split into chunks at entry boundaries, which are found by walk over
+// entry headers. The walk runs on own thread and submits scan of every chunk, once its end is found. The walk
+// is not run by worker: worker, blocked by full queue of scans, would keep submitted scans in its own queue.
+// Workers read, verify and decode entries of chunks in parallel. Opening thread takes scanned chunks in log
+// order and only rolls segment checksums and finds invalid entries and incomplete batches, as sequential replay
+// does, see KVStorageImpl#replaySegment. Entries of completed batches are applied by workers: keys are split
+// into partitions by hash, and every partition applies entries of its keys in log order into own map, so the last
+// write of key wins and deleted keys are removed without locks. Maps of partitions hold distinct keys, they are
+// merged into index, when log is replayed, so index, live bytes and values are updated once per replayed key.
+// Chunks are scanned and applied only few ahead of checked chunk, so scanned entries do not take much memory.
+final class ParallelReplay {
+    private static final long DELETED = 1L << 24; // replayed location of deleted key, no entry has zero bytes
+    private final KVStorageImpl storage;
+    private final boolean readValues; // whether values are kept in index
+    private final ForkJoinPool pool;
+    private Thread planner; // thread of walk, which splits segments into chunks
+    private final BlockingQueue<Future<Chunk>> scans; // scans of chunks in log order
+    private final Partition[] partitions;
+    private final ArrayDeque<Future<Void>> applies = new ArrayDeque<>(); // applies of entries in log order
+    private final ArrayDeque<Chunk> held = new ArrayDeque<>(); // checked chunks with entries, which are not applied
+    private int heldEntry; // first entry of the first held chunk, which is not applied
+    private long heldOffset; // offset of this entry in segment
+    private volatile boolean cancelled;
+
+    ParallelReplay(KVStorageImpl storage, boolean readValues) {
+        this.storage = storage;
+        this.readValues = readValues;
+        pool = new ForkJoinPool(storage.config.getRecoveryThreads());
+        scans = new ArrayBlockingQueue<>(2 * pool.getParallelism());
+        partitions = new Partition[pool.getParallelism()];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(i, partitions.length, storage.config.isOffHeapIndex(), readValues);
+        }
+    }
+
+    void run(List<SegmentReplay> replays) throws IOException {
+        try {
+            planner = new Thread(() -> plan(replays), "kvstorage-replay");
+            planner.setDaemon(true);
+            planner.start();
+            for (SegmentReplay replay : replays) {
+                apply(replay);
+            }
+            awaitApplies(0);
+        } finally {
+            stop();
+        }
+        merge();
+    }
+
+    // Splits segments into chunks and submits scans of chunks. Runs concurrently with apply, and is blocked,
+    // while two scans per thread are queued.
+    private void plan(List<SegmentReplay> replays) {
+        try {
+            for (SegmentReplay replay : replays) {
+                planSegment(replay);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            final CompletableFuture<Chunk> failure = new CompletableFuture<>();
+            failure.completeExceptionally(e);
+            enqueue(failure);
+        }
+    }
+
+    private void planSegment(SegmentReplay replay) throws IOException {
+        final SegmentedLog.Segment segment = replay.segment;
+        final long segmentSize = segment.size();
+        replay.verifiedSize();
+        final int chunkBytes = storage.config.getRecoveryChunkBytes();
+        long chunkOffset = replay.fromOffset;
+        if (segmentSize - chunkOffset > chunkBytes) {
+            try (FileChannel channel = segment.file().openReadChannel()) {
+                final EntryReader reader = new EntryReader(false);
+                reader.start(channel.position(chunkOffset));
+                long offset = chunkOffset;
+                // Walk stops at incomplete entry, which is left to the last chunk
+                while (offset < segmentSize && reader.skip(segmentSize - offset)) {
+                    offset += reader.bytesCount;
+                    if (offset - chunkOffset >= chunkBytes && offset < segmentSize) {
+                        if (!submit(new Chunk(replay, chunkOffset, offset))) {
+                            return;
+                        }
+                        chunkOffset = offset;
+                    }
+                }
+            }
+        }
+        submit(new Chunk(replay, chunkOffset, segmentSize));
+    }
+
+    private boolean submit(Chunk chunk) {
+        return enqueue(pool.submit(() -> {
+            chunk.scan(readValues);
+            return chunk;
+        }));
+    }
+
+    // Returns false, if replay is cancelled.
+    private boolean enqueue(Future<Chunk> scan) {
+        try {
+            while (!scans.offer(scan, 10, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void apply(SegmentReplay replay) throws IOException {
+        final SegmentedLog.Segment segment = replay.segment;
+        final SegmentState metaState = replay.metaState;
+        final long verifiedSize = metaState != null ? metaState.size : 0;
+        Chunk batchChunk = null; // chunk of the first entry of batch, which is not completed yet
+        int batchEntry = 0;
+        long batchOffset = replay.fromOffset;
+        long batchChecksum = replay.checksum;
+        long checksum = replay.checksum;
+        long offset = replay.fromOffset;
+        boolean stopped = false;
+        boolean torn = false;
+        heldEntry = 0;
+        heldOffset = replay.fromOffset;
+
+        // The last chunk of segment ends at segment size
+        for (Chunk chunk = null; !stopped && (chunk == null || chunk.toOffset < segment.size()); ) {
+            chunk = nextScanned();
+            held.add(chunk);
+            for (int entry = 0; entry <= chunk.entries.size && !stopped; entry++) {
+                if (offset == verifiedSize && metaState != null && checksum != metaState.checksum) {
+                    stopped = true;
+                    break;
+                }
+                if (entry == chunk.entries.size) {
+                    if (chunk.isDamaged()) {
+                        replay.checkTornEntry(offset, verifiedSize);
+                        // Only the last segment may be torn, so its remaining chunks are not applied
+                        stopped = true;
+                        torn = true;
+                    }
+                    break;
+                }
+                final int bytesCount = chunk.entries.bytesCounts[entry];
+                if (offset < verifiedSize && offset + bytesCount > verifiedSize) {
+                    replay.checkTornEntry(offset, verifiedSize);
+                }
+
+                if (batchChunk == null) {
+                    batchChunk = chunk;
+                    batchEntry = entry;
+                    batchOffset = offset;
+                    batchChecksum = checksum;
+                }
+                offset += bytesCount;
+                checksum = SegmentState.roll(checksum, chunk.checksums[entry]);
+
+                if (!Entry.isBatchContinued(chunk.entries.statuses[entry])) {
+                    batchChunk = null;
+                }
+            }
+            submitApplies(segment, batchChunk, batchEntry, batchOffset);
+        }
+
+        if (batchChunk != null) {
+            replay.checkTornBatch(batchOffset, verifiedSize);
+            offset = batchOffset;
+            checksum = batchChecksum;
+            torn = true;
+        }
+        held.clear();
+        if (torn) {
+            awaitApplies(0);
+            stop();
+            segment.file().truncate(offset);
+        }
+        storage.completeReplay(replay, offset, checksum);
+    }
+
+    // Submits applies of held entries, which precede batch, which is not completed yet, or all held entries,
+    // if batch chunk is null. Every partition applies entries after entries of previous submit.
+    // Waits for old applies, so only two applies per thread are pending.
+    private void submitApplies(SegmentedLog.Segment segment, Chunk batchChunk, int batchEntry, long batchOffset)
+            throws IOException {
+        while (!held.isEmpty()) {
+            final Chunk chunk = held.peek();
+            final int toEntry = chunk == batchChunk ? batchEntry : chunk.entries.size;
+            if (heldEntry < toEntry) {
+                final int fromEntry = heldEntry;
+                final long fromOffset = heldOffset;
+                final CompletableFuture<?>[] partitionApplies = new CompletableFuture<?>[partitions.length];
+                for (int i = 0; i < partitions.length; i++) {
+                    final Partition partition = partitions[i];
+                    partition.applied = partition.applied.thenRunAsync(
+                            () -> partition.apply(segment, chunk.entries, fromEntry, toEntry, fromOffset), pool);
+                    partitionApplies[i] = partition.applied;
+                }
+                applies.add(CompletableFuture.allOf(partitionApplies));
+            }
+            if (chunk == batchChunk) {
+                heldEntry = batchEntry;
+                heldOffset = batchOffset;
+                break;
+            }
+            held.remove();
+            heldEntry = 0;
+            heldOffset = chunk.toOffset;
+        }
+        awaitApplies(2 * pool.getParallelism());
+    }
+
+    // Waits for submitted applies, until only specified count of them is pending.
+    private void awaitApplies(int pendingCount) throws IOException {
+        while (applies.size() > pendingCount) {
+            get(applies.remove());
+        }
+    }
+
+    // Merges maps of partitions into index. Key of replayed location was either absent in index or pointed
+    // to entry of checkpoint, which is overwritten by replayed entry.
+    private void merge() throws IOException {
+        for (Partition partition : partitions) {
+            final IntLongHashMap locations = partition.locations;
+            for (int key : locations.keys()) {
+                final long location = locations.get(key);
+                if (location == DELETED) {
+                    storage.applyReplayedDelete(key);
+                } else {
+                    storage.applyReplayedPut(key, location, storage.entryBytesCount(location),
+                            partition.values != null ? partition.values.get(key) : null);
+                }
+            }
+        }
+    }
+
+    // Returns next chunk in log order, once it is scanned.
+    private Chunk nextScanned() throws IOException {
+        final Future<Chunk> scan;
+        try {
+            scan = scans.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replay is interrupted");
+        }
+        return get(scan);
+    }
+
+    // Waits for result of worker task, failure of task is rethrown.
+    private static <T> T get(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replay is interrupted");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // Cancels scans and waits for workers and walk, so segment may be truncated.
+    private void stop() throws IOException {
+        cancelled = true;
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (planner != null) {
+                planner.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replay is interrupted");
+        }
+    }
+
+    // Part of replayed segment, which is scanned by single worker of parallel replay.
+    //
+    // Worker reads and verifies entries, and decodes their values, if values are kept in index. Scan stops
+    // at the end of chunk or at the first invalid entry. Valid entries are kept in log order, so they are rolled
+    // into segment checksum and applied by partitions as by sequential replay.
+    static final class Chunk {
+        final SegmentReplay replay;
+        final long fromOffset;
+        final long toOffset;
+        final ReplayBatch entries = new ReplayBatch();
+        int[] checksums = new int[1024];
+        long endOffset; // offset after the last valid entry
+
+        Chunk(SegmentReplay replay, long fromOffset, long toOffset) {
+            this.replay = replay;
+            this.fromOffset = fromOffset;
+            this.toOffset = toOffset;
+        }
+
+        // Returns whether scan stopped at invalid entry.
+        boolean isDamaged() {
+            return endOffset < toOffset;
+        }
+
+        void scan(boolean readValues) throws IOException {
+            final SegmentedLog.Segment segment = replay.segment;
+            final long segmentSize = segment.size();
+            final EntryReader reader = new EntryReader(readValues);
+            long offset = fromOffset;
+            try (FileChannel channel = segment.file().openReadChannel()) {
+                reader.start(channel.position(fromOffset));
+                while (offset < toOffset && reader.next(segmentSize - offset)) {
+                    if (entries.size == checksums.length) {
+                        checksums = Arrays.copyOf(checksums, entries.size * 2);
+                    }
+                    checksums[entries.size] = reader.checksum;
+                    entries.add(reader);
+                    offset += reader.bytesCount;
+                }
+            }
+            endOffset = offset;
+        }
+    }
+
+    // Keys of single hash partition with their replayed locations and values.
+    //
+    // Entries of partition are applied by one worker at a time, in log order, since every apply is chained
+    // after the previous one. Locations of deleted keys are kept as DELETED, so merge removes them from index.
+    static final class Partition {
+        private final int number;
+        private final int count;
+        final IntLongHashMap locations; // key to location of the last replayed entry
+        final Map<Integer, byte[]> values; // key to value of the last replayed entry, null unless values are kept
+        CompletableFuture<Void> applied = CompletableFuture.completedFuture(null); // the last submitted apply
+
+        Partition(int number, int count, boolean offHeap, boolean keepValues) {
+            this.number = number;
+            this.count = count;
+            locations = new IntLongHashMap(0, offHeap);
+            values = keepValues ? new HashMap<>() : null;
+        }
+
+        // Applies entries of partition keys, starting from offset of segment.
+        void apply(SegmentedLog.Segment segment, ReplayBatch entries, int fromEntry, int toEntry, long offset) {
+            for (int i = fromEntry; i < toEntry; i++) {
+                final int key = entries.keys[i];
+                if (partition(key, count) == number) {
+                    final byte status = entries.statuses[i];
+                    if (Entry.isDeleted(status)) {
+                        locations.put(key, DELETED);
+                    } else if (Entry.isBlob(status)) {
+                        locations.put(key, EntryLocation.blob(segment.position(offset)));
+                    } else {
+                        locations.put(key, EntryLocation.of(segment.position(offset), entries.bytesCounts[i]));
+                    }
+                    if (values != null) {
+                        if (Entry.isDeleted(status) || Entry.isBlob(status)) {
+                            values.remove(key);
+                        } else {
+                            values.put(key, entries.values[i]);
+                        }
+                    }
+                }
+                offset += entries.bytesCounts[i];
+            }
+        }
+
+        // Returns partition of key. High bits of multiplicative hash are taken, since index maps of partitions
+        // place keys by low bits.
+        static int partition(int key, int count) {
+            return (int) (((key * 0x9E3779B9) & 0xFFFFFFFFL) * count >>> 32);
+        }
+    }
+}
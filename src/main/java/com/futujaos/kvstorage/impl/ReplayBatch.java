@@ -0,0 +1,39 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.util.Arrays;
+
+// Replayed entries, kept in arrays. Arrays are reused by replay of all batches of segment.
+// Values are decoded, they are read only if values are kept in index.
+final class ReplayBatch {
+    int size;
+    int[] keys = new int[16];
+    byte[] statuses = new byte[16];
+    int[] bytesCounts = new int[16];
+    byte[][] values = new byte[16][];
+
+    void add(EntryReader entry) throws KVStorageDamagedException {
+        add(entry.key, entry.status, entry.bytesCount,
+                entry.value != null ? Entry.decode(entry.status, entry.value) : null);
+    }
+
+    void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    private void add(int key, byte status, int bytesCount, byte[] value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            statuses = Arrays.copyOf(statuses, size * 2);
+            bytesCounts = Arrays.copyOf(bytesCounts, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        statuses[size] = status;
+        bytesCounts[size] = bytesCount;
+        values[size] = value;
+        size++;
+    }
+}
@@ -0,0 +1,109 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.IOException;
+
+// Rewrite copies live entries of single storage file into compaction file, then replaces storage file with it.
+//
+// Index keeps pointing to storage file until compaction completes. Entries, appended after
+// compaction was started, are copied as is when compaction completes. Relocations map becomes index of
+// compaction file: it is completed outside of index lock (writes are excluded by append lock, reads
+// use current index), and only swapped with index under the lock, so readers are not blocked for O(keys).
+final class Rewrite extends Compaction {
+    private final SegmentedLog.Segment source;
+    private final LogFile target;
+    private final IntLongHashMap relocations; // key to entry location in compaction file
+
+    Rewrite(KVStorageImpl storage) throws IOException {
+        super(storage);
+        source = storage.log.active();
+        target = new LogFile(storage.compactionFile, 0);
+        sourceEnd = source.size();
+        relocations = new IntLongHashMap(0, storage.config.isOffHeapIndex());
+    }
+
+    @Override
+    boolean step(long stepBytes) throws IOException {
+        final long stepEnd = Math.min(sourceEnd, sourceOffset + stepBytes);
+        while (sourceOffset < stepEnd) {
+            readHeader(source.file());
+
+            // Entry is live, if index still points to it
+            final long location = storage.index.get(key);
+            if (!Entry.isDeleted(status)
+                    && location != IntLongHashMap.NO_VALUE
+                    && EntryLocation.position(location) == source.position(sourceOffset)) {
+                final long targetOffset = Entry.isBatchContinued(status)
+                        ? target.append(readUnbatched(source.file()).toByteArray())
+                        : target.appendFrom(source.file(), sourceOffset, bytesCount);
+                relocations.put(key, EntryLocation.relocate(location, source.position(targetOffset)));
+            }
+            sourceOffset += bytesCount;
+        }
+        if (sourceOffset < sourceEnd) {
+            return false;
+        }
+        complete();
+        return true;
+    }
+
+    @Override
+    void abort() throws IOException {
+        target.close();
+        storage.compactionFile.delete();
+    }
+
+    private void complete() throws IOException {
+        final long storageBytes = source.size();
+        final long tailOffset = target.appendFrom(source.file(), sourceEnd, storageBytes - sourceEnd);
+        target.sync();
+        final IntLongHashMap relocatedIndex = relocateIndex(source.position(tailOffset));
+        target.close();
+
+        if (storage.hintFile != null) {
+            // Hint file locations become invalid
+            storage.hintFile.delete();
+        }
+        // Meta file state of storage file becomes invalid, until checksum of new file is calculated
+        storage.metaFile.delete();
+        storage.replaceSegment(source, storage.compactionFile, relocatedIndex);
+        source.checksum = checksum(source);
+        storage.metaFile.write(storage.log.states());
+        storage.compacted(storageBytes - source.size());
+    }
+
+    // Completes relocations with entries of tail, copied to tail position, and drops keys, which are not
+    // in index anymore. Throws, if live entry of key was not relocated, so index never points to
+    // wrong entry; compaction is aborted by storage then, and storage file is kept.
+    private IntLongHashMap relocateIndex(long tailPosition) throws IOException {
+        final IntLongHashMap index = storage.index;
+        final long endPosition = source.position(sourceEnd);
+        for (int key : index.keys()) {
+            final long location = index.get(key);
+            final long position = EntryLocation.position(location);
+            if (position >= endPosition) {
+                relocations.put(key, EntryLocation.relocate(location, position - endPosition + tailPosition));
+            } else if (relocations.get(key) == IntLongHashMap.NO_VALUE) {
+                throw new IOException("Live entry of key " + key + " was not relocated by compaction");
+            }
+        }
+        for (int key : relocations.keys()) {
+            if (!index.containsKey(key)) {
+                relocations.remove(key);
+            }
+        }
+        return relocations;
+    }
+
+    // Calculates rolling checksum of rewritten segment from entry headers.
+    private long checksum(SegmentedLog.Segment segment) throws IOException {
+        long segmentChecksum = 0;
+        sourceOffset = 0;
+        sourceEnd = segment.size();
+        while (sourceOffset < sourceEnd) {
+            readHeader(segment.file());
+            segmentChecksum = SegmentState.roll(segmentChecksum, checksum);
+            sourceOffset += bytesCount;
+        }
+        return segmentChecksum;
+    }
+}
@@ -0,0 +1,45 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.io.IOException;
+
+// Segment, which is replayed from offset with specified checksum at this offset.
+final class SegmentReplay {
+    final SegmentedLog.Segment segment;
+    final long fromOffset;
+    final long checksum;
+    final SegmentState metaState; // null if segment is not in meta file
+
+    SegmentReplay(SegmentedLog.Segment segment, long fromOffset, long checksum, SegmentState metaState) {
+        this.segment = segment;
+        this.fromOffset = fromOffset;
+        this.checksum = checksum;
+        this.metaState = metaState;
+    }
+
+    // Returns size of segment, verified by meta file.
+    long verifiedSize() throws IOException {
+        final long verifiedSize = metaState != null ? metaState.size : 0;
+        if (segment.size() < verifiedSize) {
+            throw new KVStorageDamagedException("Segment " + segment.sequence + " is shorter than in meta file");
+        }
+        return verifiedSize;
+    }
+
+    // Fails, unless entry, which is incomplete or damaged, may be tail of segment, torn by crash.
+    void checkTornEntry(long offset, long verifiedSize) throws IOException {
+        if (offset < verifiedSize || segment.isSealed()) {
+            throw new KVStorageDamagedException(
+                    "Entry at offset " + offset + " of segment " + segment.sequence + " is damaged");
+        }
+    }
+
+    // Fails, unless incomplete batch may be tail of segment, torn by crash.
+    void checkTornBatch(long batchOffset, long verifiedSize) throws IOException {
+        if (batchOffset < verifiedSize || segment.isSealed()) {
+            throw new KVStorageDamagedException(
+                    "Batch at offset " + batchOffset + " of segment " + segment.sequence + " is incomplete");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Size and rolling checksum of log segment at some point of time.
+//
+// Segment states structure:
+// | segments count |  sequence, size, checksum  | .. |
+// |  xx xx xx xx   | 8 bytes, 8 bytes, 8 bytes  | .. |
+final class SegmentState {
+    final long size;
+    final long checksum;
+
+    SegmentState(long size, long checksum) {
+        this.size = size;
+        this.checksum = checksum;
+    }
+
+    // Returns rolling checksum of segment after entry with specified checksum is appended.
+    static long roll(long segmentChecksum, int entryChecksum) {
+        return (segmentChecksum ^ (entryChecksum & 0xFFFFFFFFL)) * 0x100000001B3L;
+    }
+
+    static void writeAll(DataOutputStream dos, Map<Long, SegmentState> states) throws IOException {
+        dos.writeInt(states.size());
+        for (Map.Entry<Long, SegmentState> state : states.entrySet()) {
+            dos.writeLong(state.getKey());
+            dos.writeLong(state.getValue().size);
+            dos.writeLong(state.getValue().checksum);
+        }
+    }
+
+    static NavigableMap<Long, SegmentState> readAll(DataInputStream dis) throws IOException {
+        final NavigableMap<Long, SegmentState> states = new TreeMap<>();
+        final int segmentsCount = dis.readInt();
+        for (int i = 0; i < segmentsCount; i++) {
+            states.put(dis.readLong(), new SegmentState(dis.readLong(), dis.readLong()));
+        }
+        return states;
+    }
+}
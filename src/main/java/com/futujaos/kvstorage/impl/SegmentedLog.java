@@ -0,0 +1,379 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Append-only log, stored in segment files.
+//
+// Segmented log is a directory of numbered segment files:
+// <directory>/00000000000000000001.kvs
+// <directory>/00000000000000000002.kvs
+// ..
+// Entries are appended to the last (active) segment, when it exceeds segment size, new segment is started.
+// All other segments are sealed and are never appended again.
+//
+// Single file log consists of single segment, which is never sealed.
+//
+// Position of bytes in log is packed into 40 bits:
+// |     segment slot     |   offset in segment   |
+// | (40 - offset bits)   |     (offset bits)     |
+// Segment slot is segment sequence number modulo count of slots, so sequence numbers
+// of all segments should fit into slots window.
+final class SegmentedLog implements Closeable {
+    static final long MAX_POSITION = (1L << 40) - 2; // all ones position is reserved by index
+    private static final String SEGMENT_SUFFIX = ".kvs";
+    private static final int MIN_OFFSET_BITS = 24;
+    private final File directory; // null for single file log
+    private final long segmentSize;
+    private final int mappedSegmentSize;
+    private final int offsetBits;
+    private final Segment[] slots;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>(); // sequence to segment
+    private Segment active;
+
+    private SegmentedLog(File directory, long segmentSize, int mappedSegmentSize, int offsetBits) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.mappedSegmentSize = mappedSegmentSize;
+        this.offsetBits = offsetBits;
+        this.slots = new Segment[1 << (40 - offsetBits)];
+    }
+
+    static SegmentedLog openFile(File file, int mappedSegmentSize) throws IOException {
+        final SegmentedLog log = new SegmentedLog(null, Long.MAX_VALUE, mappedSegmentSize, 40);
+        log.active = log.addSegment(0, file);
+        return log;
+    }
+
+    static SegmentedLog openDirectory(File directory, long segmentSize, int mappedSegmentSize) throws IOException {
+        int offsetBits = MIN_OFFSET_BITS;
+        while (offsetBits < 39 && 1L << offsetBits < segmentSize) {
+            offsetBits++;
+        }
+        final SegmentedLog log = new SegmentedLog(directory, segmentSize, mappedSegmentSize, offsetBits);
+
+        directory.mkdirs();
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            throw new IOException("Can not list segments directory " + directory);
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            final long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            log.segments.put(sequence, null);
+        }
+        if (!log.segments.isEmpty() && log.segments.lastKey() - log.segments.firstKey() >= log.slots.length) {
+            throw new IOException("Segments sequence numbers do not fit into " + log.slots.length + " slots");
+        }
+        for (long sequence : new ArrayList<>(log.segments.keySet())) {
+            log.addSegment(sequence, log.segmentFile(sequence));
+        }
+        log.active = log.segments.isEmpty() ? log.addSegment(1, log.segmentFile(1)) : log.segments.lastEntry().getValue();
+        return log;
+    }
+
+    int offsetBits() {
+        return offsetBits;
+    }
+
+    boolean isSegmented() {
+        return directory != null;
+    }
+
+    // Returns segments in log order.
+    Collection<Segment> segments() {
+        return segments.values();
+    }
+
+    Segment active() {
+        return active;
+    }
+
+    // Returns sequence numbers of segments to segment states.
+    NavigableMap<Long, SegmentState> states() {
+        final NavigableMap<Long, SegmentState> states = new TreeMap<>();
+        for (Segment segment : segments.values()) {
+            states.put(segment.sequence, new SegmentState(segment.size(), segment.checksum));
+        }
+        return states;
+    }
+
+    Segment oldest() {
+        return segments.firstEntry().getValue();
+    }
+
+    // Returns whether half of segment slots are taken, so old segments should be compacted.
+    boolean isCrowded() {
+        return active.sequence - oldest().sequence >= slots.length / 2;
+    }
+
+    Segment segment(long position) {
+        return slots[(int) (position >>> offsetBits)];
+    }
+
+    // Returns position of offset in segment of specified sequence number, or -1 if there is no such segment.
+    long position(long sequence, long offset) {
+        final Segment segment = slots[(int) (sequence & (slots.length - 1))];
+        return segment != null && segment.sequence == sequence && offset < segment.size()
+                ? segment.position(offset)
+                : -1;
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    // Returns position of appended bytes.
+    long append(byte[] bytes) throws IOException {
+        rollIfNeeded(bytes.length);
+        return active.position(active.file.append(bytes));
+    }
+
+    // Starts append of count bytes, which are then appended in parts by appendPart, so they are placed
+    // in the same segment. Returns position of appended bytes.
+    long startAppend(long count) throws IOException {
+        rollIfNeeded(count);
+        return active.position(active.file.size());
+    }
+
+    void appendPart(ByteBuffer bytes) throws IOException {
+        active.file.append(bytes);
+    }
+
+    void appendPart(byte[] bytes) throws IOException {
+        active.file.append(bytes);
+    }
+
+    void appendPart(byte[] bytes, int offset, int length) throws IOException {
+        active.file.append(bytes, offset, length);
+    }
+
+    // Appends count bytes of source file, starting from offset in it, without copying them to heap.
+    void appendPartFrom(LogFile source, long offset, long count) throws IOException {
+        active.file.appendFrom(source, offset, count);
+    }
+
+    // Drops bytes of active segment, appended starting from position.
+    void truncate(long position) throws IOException {
+        if (segment(position) != active) {
+            throw new IllegalArgumentException("Only active segment can be truncated");
+        }
+        active.file.truncate(offset(position));
+    }
+
+    // Drops bytes of failed append, started at position, so log is not left with damaged tail, which would cut
+    // entries, appended after it, on replay. Failure of truncation is suppressed by failure of append.
+    void dropAppend(long position, Throwable failure) {
+        try {
+            truncate(position);
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    // Appends count bytes of log, starting from position. Returns position of appended bytes.
+    long appendFrom(long position, long count) throws IOException {
+        rollIfNeeded(count);
+        final Segment source = segment(position);
+        return active.position(active.file.appendFrom(source.file, offset(position), count));
+    }
+
+    // Returns whether count bytes starting from position are readable without flush, see LogFile.
+    boolean isFlushed(long position, int count) throws IOException {
+        return existingSegment(position).file.isFlushed(offset(position) + count);
+    }
+
+    // Reads bytes starting from position, until dst is full.
+    void read(ByteBuffer dst, long position) throws IOException {
+        existingSegment(position).file.read(dst, offset(position));
+    }
+
+    // Returns read-only view of count bytes starting from position, or null if view is not available,
+    // see LogFile.
+    ByteBuffer view(long position, int count) throws IOException {
+        return existingSegment(position).file.view(offset(position), count);
+    }
+
+    // Opens new read channel of segment file at position. Bytes are read from channel at offset(position).
+    FileChannel openReadChannel(long position) throws IOException {
+        return existingSegment(position).file.openReadChannel();
+    }
+
+    void flush() throws IOException {
+        active.file.flush();
+    }
+
+    void sync() throws IOException {
+        active.file.sync();
+    }
+
+    // Exports log, as it was at specified segment states, into target: directory of segments, or file
+    // for single file log. Segments, sealed at states, are hard-linked, as they are never appended again,
+    // or copied, if links are not supported. The last segment is copied up to its size at states.
+    // Segments of states should not be deleted or replaced, until export completes.
+    void export(File target, NavigableMap<Long, SegmentState> states) throws IOException {
+        if (directory == null) {
+            copy(active.file.getFile(), target, states.lastEntry().getValue().size);
+            return;
+        }
+        if (!target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Directory " + target + " is not created");
+        }
+        for (Map.Entry<Long, SegmentState> state : states.entrySet()) {
+            final File source = segmentFile(state.getKey());
+            final File copy = new File(target, source.getName());
+            if (state.getKey() < states.lastKey()) {
+                try {
+                    Files.createLink(copy.toPath(), source.toPath());
+                    continue;
+                } catch (UnsupportedOperationException | IOException e) {
+                    // File system does not support links, or target is on other file system
+                    copy.delete();
+                }
+            }
+            copy(source, copy, state.getValue().size);
+        }
+    }
+
+    // Copies first size bytes of source file into new file and forces it to storage device.
+    static void copy(File source, File target, long size) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < size) {
+                final long count = in.transferTo(copied, size - copied, out);
+                if (count <= 0) {
+                    throw new IOException("File " + source + " is shorter than " + size + " bytes");
+                }
+                copied += count;
+            }
+            out.force(true);
+        }
+    }
+
+    // Deletes sealed segment.
+    void delete(Segment segment) throws IOException {
+        if (segment == active) {
+            throw new IllegalArgumentException("Active segment can not be deleted");
+        }
+        segment.file.close();
+        Files.delete(segment.file.getFile().toPath());
+        segments.remove(segment.sequence);
+        slots[segment.slot()] = null;
+    }
+
+    // Atomically replaces content of segment with content of specified file.
+    void replace(Segment segment, File file) throws IOException {
+        final File segmentFile = segment.file.getFile();
+        segment.file.close();
+        try {
+            Files.move(file.toPath(), segmentFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // If segment file was not replaced, it is reopened with old content
+            segment.file = new LogFile(segmentFile, mappedSegmentSize);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.file.close();
+        }
+    }
+
+    // Closes segments without flushing buffered bytes of active segment, see LogFile#closeUnflushed.
+    void closeUnflushed() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.file.closeUnflushed();
+        }
+    }
+
+    // Segment may be already deleted, if position was read concurrently with compaction.
+    private Segment existingSegment(long position) throws IOException {
+        final Segment segment = segment(position);
+        if (segment == null) {
+            throw new IOException("No segment at position " + position);
+        }
+        return segment;
+    }
+
+    long offset(long position) {
+        return position & ((1L << offsetBits) - 1);
+    }
+
+    private void rollIfNeeded(long count) throws IOException {
+        final long activeSize = active.size();
+        if (activeSize == 0 || activeSize + count <= segmentSize) {
+            return;
+        }
+        final long sequence = active.sequence + 1;
+        if (sequence - oldest().sequence >= slots.length) {
+            throw new IllegalStateException("Segments do not fit into " + slots.length + " slots, old segments should be compacted");
+        }
+        active.file.sync();
+        active = addSegment(sequence, segmentFile(sequence));
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%020d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    private Segment addSegment(long sequence, File file) throws IOException {
+        final Segment segment = new Segment(sequence, new LogFile(file, mappedSegmentSize));
+        segments.put(sequence, segment);
+        slots[segment.slot()] = segment;
+        return segment;
+    }
+
+    final class Segment {
+        final long sequence;
+        long liveBytes; // bytes of entries referenced by index, maintained by storage
+        long checksum;  // rolling checksum of segment entries, maintained by storage
+        private LogFile file;
+
+        private Segment(long sequence, LogFile file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+
+        LogFile file() {
+            return file;
+        }
+
+        long size() {
+            return file.size();
+        }
+
+        boolean isSealed() {
+            return this != active;
+        }
+
+        // Returns log position of offset in segment.
+        long position(long offset) {
+            if (offset >= 1L << offsetBits || ((long) slot() << offsetBits | offset) > MAX_POSITION) {
+                throw new IllegalStateException("Segment exceeds max size " + (1L << offsetBits));
+            }
+            return (long) slot() << offsetBits | offset;
+        }
+
+        private int slot() {
+            return (int) (sequence & (slots.length - 1));
+        }
+    }
+}
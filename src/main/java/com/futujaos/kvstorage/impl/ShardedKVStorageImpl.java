@@ -0,0 +1,546 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.CacheStats;
+import com.futujaos.kvstorage.CompactionStats;
+import com.futujaos.kvstorage.KV;
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.KVStorageFactory;
+import com.futujaos.kvstorage.KVStorageSnapshot;
+import com.futujaos.kvstorage.KVStorageStats;
+import com.futujaos.kvstorage.LatencyHistogram;
+import com.futujaos.kvstorage.WriteBatch;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Storage structure:
+// <file_name>.kvs.<shard>      - storage file of shard (see KVStorageImpl)
+// <file_name>.kvs.meta.<shard> - meta file of shard
+// <file_name>.kvs.meta.shards  - count of shards (see ChecksummedFile)
+//
+// Keys are partitioned into shards by hash, every shard is independent storage of configured engine.
+// Shards share no locks, so writes to different shards of concurrent storage proceed in parallel,
+// and every shard has its own output buffer and file, so writes are spread over device queues.
+//
+// Opening, compaction and close are done for all shards in parallel, so recovery of storage takes
+// about as long as recovery of its largest shard, if there are enough processors.
+//
+// Count of shards is checked on every open, including open of unsharded storage, as keys of storage, opened
+// with other count of shards, would be looked up in wrong shards.
+public class ShardedKVStorageImpl implements KVStorage {
+    private static final String SHARDS_SUFFIX = ".shards";
+    private static final int SHARDS_MAGIC = 0x4B565331; // "KVS1"
+    private final KVStorage[] shards;
+    private final long openNanos;
+
+    public ShardedKVStorageImpl(KVStorageConfig config, boolean concurrent) throws IOException {
+        final long openStart = System.nanoTime();
+        final int count = config.getShards();
+        shards = new KVStorage[count];
+        try {
+            inParallel(count, shard -> shards[shard] = concurrent
+                    ? KVStorageFactory.openConcurrentStorage(shardConfig(config, shard))
+                    : KVStorageFactory.openStorage(shardConfig(config, shard)));
+        } catch (IOException | RuntimeException | Error e) {
+            for (KVStorage shard : shards) {
+                if (shard != null) {
+                    try {
+                        shard.close();
+                    } catch (IOException | RuntimeException closeException) {
+                        e.addSuppressed(closeException);
+                    }
+                }
+            }
+            throw e;
+        }
+        openNanos = System.nanoTime() - openStart;
+    }
+
+    @Override
+    public Optional<byte[]> read(int key) {
+        return shard(key).read(key);
+    }
+
+    @Override
+    public int readInto(int key, ByteBuffer dst) {
+        return shard(key).readInto(key, dst);
+    }
+
+    @Override
+    public Optional<ByteBuffer> readView(int key) {
+        return shard(key).readView(key);
+    }
+
+    @Override
+    public long transferTo(int key, WritableByteChannel target) throws IOException {
+        return shard(key).transferTo(key, target);
+    }
+
+    @Override
+    public Optional<InputStream> openReader(int key) throws IOException {
+        return shard(key).openReader(key);
+    }
+
+    @Override
+    public OutputStream openWriter(int key) throws IOException {
+        return shard(key).openWriter(key);
+    }
+
+    @Override
+    public void persist(int key, byte[] value) throws IOException {
+        shard(key).persist(key, value);
+    }
+
+    @Override
+    public void delete(int key) throws IOException {
+        shard(key).delete(key);
+    }
+
+    @Override
+    public Map<Integer, byte[]> readAll(int[] keys) {
+        final int[] counts = new int[shards.length];
+        for (int key : keys) {
+            counts[shardIndex(key, shards.length)]++;
+        }
+        final int[][] shardKeys = new int[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            shardKeys[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int key : keys) {
+            final int shard = shardIndex(key, shards.length);
+            shardKeys[shard][counts[shard]++] = key;
+        }
+
+        final Map<Integer, byte[]> values = new HashMap<>();
+        for (int i = 0; i < shards.length; i++) {
+            if (shardKeys[i].length > 0) {
+                values.putAll(shards[i].readAll(shardKeys[i]));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Iterator<KV> scan(int fromKey, int toKey) {
+        return new MergedScan(shard -> shard.scan(fromKey, toKey));
+    }
+
+    @Override
+    public Iterator<KV> scan() {
+        return new MergedScan(KVStorage::scan);
+    }
+
+    // Batch is split by shards, every part is applied atomically by its shard. Parts are not committed together,
+    // so batch, which spans shards, is not atomic as a whole, see KVStorage#persistAll.
+    @Override
+    public void persistAll(WriteBatch batch) throws IOException {
+        final WriteBatch[] shardBatches = new WriteBatch[shards.length];
+        for (int i = 0; i < batch.size(); i++) {
+            final int key = batch.getKey(i);
+            final int shard = shardIndex(key, shards.length);
+            if (shardBatches[shard] == null) {
+                shardBatches[shard] = new WriteBatch().setSync(batch.isSync());
+            }
+            final byte[] value = batch.getValue(i);
+            if (value != null) {
+                shardBatches[shard].persist(key, value);
+            } else {
+                shardBatches[shard].delete(key);
+            }
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (shardBatches[i] != null) {
+                shards[i].persistAll(shardBatches[i]);
+            }
+        }
+    }
+
+    @Override
+    public void compact() throws IOException {
+        inParallel(shards.length, shard -> shards[shard].compact());
+    }
+
+    // Shards are independent, so snapshots of shards are taken one by one, every one is consistent within shard.
+    @Override
+    public KVStorageSnapshot snapshot() throws IOException {
+        final KVStorageSnapshot[] snapshots = new KVStorageSnapshot[shards.length];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                snapshots[i] = shards[i].snapshot();
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            for (KVStorageSnapshot snapshot : snapshots) {
+                if (snapshot != null) {
+                    try {
+                        snapshot.close();
+                    } catch (IOException | RuntimeException closeException) {
+                        e.addSuppressed(closeException);
+                    }
+                }
+            }
+            throw e;
+        }
+        return new ShardsSnapshot(snapshots);
+    }
+
+    @Override
+    public CompactionStats getCompactionStats() {
+        boolean running = false;
+        long processedBytes = 0;
+        long totalBytes = 0;
+        long completedCount = 0;
+        long reclaimedBytes = 0;
+        long storageBytes = 0;
+        long garbageBytes = 0;
+        long failedCount = 0;
+        String lastFailure = null;
+        for (KVStorage shard : shards) {
+            final CompactionStats stats = shard.getCompactionStats();
+            running |= stats.isRunning();
+            processedBytes += stats.getProcessedBytes();
+            totalBytes += stats.getTotalBytes();
+            completedCount += stats.getCompletedCount();
+            reclaimedBytes += stats.getReclaimedBytes();
+            storageBytes += stats.getStorageBytes();
+            garbageBytes += stats.getGarbageBytes();
+            failedCount += stats.getFailedCount();
+            if (stats.getLastFailure() != null) {
+                lastFailure = stats.getLastFailure();
+            }
+        }
+        return new CompactionStats(running, processedBytes, totalBytes, completedCount, reclaimedBytes,
+                storageBytes, garbageBytes, failedCount, lastFailure);
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long entries = 0;
+        long bytes = 0;
+        for (KVStorage shard : shards) {
+            final CacheStats stats = shard.getCacheStats();
+            hits += stats.getHits();
+            misses += stats.getMisses();
+            evictions += stats.getEvictions();
+            entries += stats.getEntries();
+            bytes += stats.getBytes();
+        }
+        return new CacheStats(hits, misses, evictions, entries, bytes);
+    }
+
+    // Counters and latencies are summed over shards. Shards are recovered in parallel,
+    // so hint file load and log replay take as long as in the slowest shard.
+    @Override
+    public KVStorageStats getStats() {
+        final KVStorageStats[] stats = new KVStorageStats[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            stats[i] = shards[i].getStats();
+        }
+        long readCount = 0;
+        long persistCount = 0;
+        long deleteCount = 0;
+        long writeBatchCount = 0;
+        long syncCount = 0;
+        long appendedBytes = 0;
+        long storageBytes = 0;
+        long liveBytes = 0;
+        long keyCount = 0;
+        LatencyHistogram readLatency = LatencyRecorder.empty();
+        LatencyHistogram writeLatency = LatencyRecorder.empty();
+        LatencyHistogram syncLatency = LatencyRecorder.empty();
+        long hintFileLoadMillis = 0;
+        long logReplayMillis = 0;
+        long replayedBytes = 0;
+        long checkpointCount = 0;
+        long checkpointMillis = 0;
+        for (KVStorageStats shardStats : stats) {
+            readCount += shardStats.getReadCount();
+            persistCount += shardStats.getPersistCount();
+            deleteCount += shardStats.getDeleteCount();
+            writeBatchCount += shardStats.getWriteBatchCount();
+            syncCount += shardStats.getSyncCount();
+            appendedBytes += shardStats.getAppendedBytes();
+            storageBytes += shardStats.getStorageBytes();
+            liveBytes += shardStats.getLiveBytes();
+            keyCount += shardStats.getKeyCount();
+            readLatency = readLatency.merge(shardStats.getReadLatency());
+            writeLatency = writeLatency.merge(shardStats.getWriteLatency());
+            syncLatency = syncLatency.merge(shardStats.getSyncLatency());
+            hintFileLoadMillis = Math.max(hintFileLoadMillis, shardStats.getHintFileLoadMillis());
+            logReplayMillis = Math.max(logReplayMillis, shardStats.getLogReplayMillis());
+            replayedBytes += shardStats.getReplayedBytes();
+            checkpointCount += shardStats.getCheckpointCount();
+            checkpointMillis += shardStats.getCheckpointMillis();
+        }
+        return new KVStorageStats(readCount, persistCount, deleteCount, writeBatchCount, syncCount,
+                appendedBytes, storageBytes, liveBytes, keyCount, readLatency, writeLatency, syncLatency,
+                StorageMetrics.millis(openNanos), hintFileLoadMillis, logReplayMillis, replayedBytes,
+                checkpointCount, checkpointMillis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inParallel(shards.length, shard -> shards[shard].close());
+    }
+
+    // Opens loaders of all shards. Pairs are routed to shards by key, and shards are finished in parallel.
+    static BulkLoader openLoader(KVStorageConfig config) throws IOException {
+        final int count = config.getShards();
+        final BulkLoader[] loaders = new BulkLoader[count];
+        try {
+            for (int shard = 0; shard < count; shard++) {
+                loaders[shard] = BulkLoader.open(shardConfig(config, shard));
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            for (BulkLoader loader : loaders) {
+                if (loader != null) {
+                    loader.abort(e);
+                }
+            }
+            throw e;
+        }
+        return new ShardsLoader(loaders);
+    }
+
+    // Checks that storage has count of shards of config, throws IllegalArgumentException otherwise.
+    // Count of shards is written, when new sharded storage is opened, before its shards are created.
+    // Storage without it is new, unsharded or sharded before count was kept, then shard files are counted.
+    public static void checkShards(KVStorageConfig config) throws IOException {
+        final ChecksummedFile shardsFile = new ChecksummedFile(
+                new File(config.getMetaFilePath() + SHARDS_SUFFIX), SHARDS_MAGIC);
+        int shards = 0;
+        try (DataInputStream dis = shardsFile.open()) {
+            if (dis != null) {
+                shards = dis.readInt();
+            }
+        }
+        if (shards == 0) {
+            while (new File(shardPath(config.getStorageFilePath(), shards)).exists()) {
+                shards++;
+            }
+            if (shards == 0) {
+                shards = hasData(new File(config.getStorageFilePath())) ? 1 : config.getShards();
+            }
+            if (shards > 1 && shards == config.getShards()) {
+                final int count = shards;
+                shardsFile.write(dos -> dos.writeInt(count));
+            }
+        }
+        if (shards != config.getShards()) {
+            throw new IllegalArgumentException("Storage has " + shards + " shards, not " + config.getShards());
+        }
+    }
+
+    // Returns whether file or directory of unsharded storage has data.
+    private static boolean hasData(File file) {
+        final String[] files = file.list();
+        return files != null ? files.length > 0 : file.length() > 0;
+    }
+
+    static String shardPath(String path, int shard) {
+        return path + "." + shard;
+    }
+
+    // Spreads keys by multiplicative hash, then maps hash to shard by its high bits,
+    // so consecutive keys land in different shards.
+    static int shardIndex(int key, int shards) {
+        int hash = key * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (int) (((hash & 0xFFFFFFFFL) * shards) >>> 32);
+    }
+
+    private KVStorage shard(int key) {
+        return shards[shardIndex(key, shards.length)];
+    }
+
+    // Shards are opened in parallel, so recovery threads are divided between them.
+    private static KVStorageConfig shardConfig(KVStorageConfig config, int shard) {
+        return config.withFilePaths(shardPath(config.getStorageFilePath(), shard),
+                shardPath(config.getMetaFilePath(), shard))
+                .withShards(1)
+                .withRecoveryThreads(Math.max(1, config.getRecoveryThreads() / config.getShards()));
+    }
+
+    // Runs action for every shard in parallel and waits for all of them. Failure of one shard
+    // does not stop actions for other shards, first failure is thrown with others suppressed.
+    private static void inParallel(int count, ShardAction action) throws IOException {
+        final AtomicInteger threadsCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(count, Runtime.getRuntime().availableProcessors()),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "kvstorage-shard-" + threadsCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        try {
+            final List<Future<?>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int shard = i;
+                futures.add(executor.submit(() -> {
+                    action.run(shard);
+                    return null;
+                }));
+            }
+            Throwable failure = null;
+            boolean interrupted = false;
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause();
+                        } else {
+                            failure.addSuppressed(e.getCause());
+                        }
+                        break;
+                    } catch (InterruptedException e) {
+                        // Shards are left consistent, only if all actions are completed
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                final InterruptedIOException interruptedException =
+                        new InterruptedIOException("Interrupted while waiting for shards");
+                if (failure != null) {
+                    interruptedException.addSuppressed(failure);
+                }
+                throw interruptedException;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ShardAction {
+        void run(int shard) throws IOException;
+    }
+
+    private static final class ShardsLoader extends BulkLoader {
+        private final BulkLoader[] loaders;
+
+        ShardsLoader(BulkLoader[] loaders) {
+            this.loaders = loaders;
+        }
+
+        @Override
+        void add(int key, byte[] value) throws IOException {
+            loaders[shardIndex(key, loaders.length)].add(key, value);
+        }
+
+        @Override
+        void finish() throws IOException {
+            inParallel(loaders.length, shard -> loaders[shard].finish());
+        }
+
+        @Override
+        void abort(Throwable failure) {
+            for (BulkLoader loader : loaders) {
+                loader.abort(failure);
+            }
+        }
+    }
+
+    private static final class ShardsSnapshot implements KVStorageSnapshot {
+        private final KVStorageSnapshot[] snapshots;
+
+        ShardsSnapshot(KVStorageSnapshot[] snapshots) {
+            this.snapshots = snapshots;
+        }
+
+        @Override
+        public Optional<byte[]> read(int key) {
+            return snapshots[shardIndex(key, snapshots.length)].read(key);
+        }
+
+        // Files of shards have different names, so all shards are backed up into the same directory.
+        @Override
+        public void backup(File directory) throws IOException {
+            inParallel(snapshots.length, shard -> snapshots[shard].backup(directory));
+        }
+
+        @Override
+        public void close() throws IOException {
+            inParallel(snapshots.length, shard -> snapshots[shard].close());
+        }
+    }
+
+    // Merges key ordered iterators of shards. Shards have disjoint keys, so next entry is the least
+    // of current entries of shards.
+    private final class MergedScan implements Iterator<KV> {
+        private final List<Iterator<KV>> iterators = new ArrayList<>(shards.length);
+        private final KV[] heads = new KV[shards.length];
+
+        MergedScan(Function<KVStorage, Iterator<KV>> scan) {
+            for (int i = 0; i < shards.length; i++) {
+                final Iterator<KV> iterator = scan.apply(shards[i]);
+                iterators.add(iterator);
+                heads[i] = iterator.hasNext() ? iterator.next() : null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (KV head : heads) {
+                if (head != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public KV next() {
+            int least = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] != null && (least < 0 || heads[i].getKey() < heads[least].getKey())) {
+                    least = i;
+                }
+            }
+            if (least < 0) {
+                throw new NoSuchElementException();
+            }
+            final KV next = heads[least];
+            final Iterator<KV> iterator = iterators.get(least);
+            heads[least] = iterator.hasNext() ? iterator.next() : null;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+// Immutable file of entries, sorted by key.
+//
+// Sorted table file:
+// | data block | .. | data block | block index | bloom filter | footer |
+//
+// Data block is sequence of entries with ascending keys, block is closed when it exceeds block size:
+// | key | value length | value |
+// |  4  |      4       |  xx   |
+// Value length of deleted key is -1, it has no value.
+//
+// Block index has entry per data block, it is kept in memory, so only one block is read per lookup:
+// | first key | offset | length | checksum |
+// |     4     |   8    |   4    |    4     |
+//
+// Footer:
+// | index offset | block count | max key | entry count | checksum | magic |
+// |      8       |      4      |    4    |      8      |    4     |   4   |
+// Checksum covers block index and bloom filter. Checksum of data block is verified, when block is read.
+final class SortedTable implements Closeable {
+    private static final int MAGIC = 0x4B565354; // "KVST"
+    private static final int FOOTER_BYTES = 32;
+    private static final int ENTRY_HEADER_BYTES = 8;
+    private final long id;
+    private final int level;
+    private final File file;
+    private final FileChannel channel;
+    private final long size;
+    private final int[] firstKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int[] blockChecksums;
+    private final int maxKey;
+    private final long entryCount;
+    private final BloomFilter bloomFilter;
+    private int references = 1; // storage and snapshots, which read table, guarded by tables lock of storage
+    private boolean replaced; // whether table is replaced by merge, guarded by tables lock of storage
+
+    private SortedTable(long id, int level, File file, FileChannel channel, long size, int[] firstKeys,
+                        long[] blockOffsets, int[] blockLengths, int[] blockChecksums, int maxKey, long entryCount,
+                        BloomFilter bloomFilter) {
+        this.id = id;
+        this.level = level;
+        this.file = file;
+        this.channel = channel;
+        this.size = size;
+        this.firstKeys = firstKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.blockChecksums = blockChecksums;
+        this.maxKey = maxKey;
+        this.entryCount = entryCount;
+        this.bloomFilter = bloomFilter;
+    }
+
+    static SortedTable open(File file, long id, int level) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            if (size < FOOTER_BYTES) {
+                throw new KVStorageDamagedException("Sorted table " + file + " is damaged");
+            }
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+            read(channel, footer, size - FOOTER_BYTES);
+            final long indexOffset = footer.getLong(0);
+            final int blockCount = footer.getInt(8);
+            final int maxKey = footer.getInt(12);
+            final long entryCount = footer.getLong(16);
+            if (footer.getInt(28) != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER_BYTES
+                    || blockCount < 0 || size - FOOTER_BYTES - indexOffset > Integer.MAX_VALUE) {
+                throw new KVStorageDamagedException("Sorted table " + file + " is damaged");
+            }
+
+            final ByteBuffer meta = ByteBuffer.allocate((int) (size - FOOTER_BYTES - indexOffset));
+            read(channel, meta, indexOffset);
+            meta.flip();
+            final CRC32 crc = new CRC32();
+            crc.update(meta.duplicate());
+            if ((int) crc.getValue() != footer.getInt(24)) {
+                throw new KVStorageDamagedException("Sorted table " + file + " is damaged");
+            }
+            final int[] firstKeys = new int[blockCount];
+            final long[] blockOffsets = new long[blockCount];
+            final int[] blockLengths = new int[blockCount];
+            final int[] blockChecksums = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                firstKeys[i] = meta.getInt();
+                blockOffsets[i] = meta.getLong();
+                blockLengths[i] = meta.getInt();
+                blockChecksums[i] = meta.getInt();
+            }
+            final BloomFilter bloomFilter = BloomFilter.read(meta);
+            return new SortedTable(id, level, file, channel, size, firstKeys, blockOffsets, blockLengths,
+                    blockChecksums, maxKey, entryCount, bloomFilter);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException) {
+                throw e;
+            }
+            throw new KVStorageDamagedException("Sorted table " + file + " is damaged");
+        }
+    }
+
+    // Writes entries, sorted by key, into new table and forces it to storage device.
+    // Deleted keys are not written, if table is the oldest one, so there is nothing to delete in older tables.
+    static SortedTable write(File file, long id, int level, Iterator<Map.Entry<Integer, byte[]>> entries,
+                             long expectedKeys, int blockBytes, int bloomBitsPerKey, boolean dropDeleted)
+            throws IOException {
+        try (Writer writer = new Writer(file, id, expectedKeys, blockBytes, bloomBitsPerKey)) {
+            while (entries.hasNext()) {
+                final Map.Entry<Integer, byte[]> entry = entries.next();
+                if (entry.getValue() != Memtable.DELETED || !dropDeleted) {
+                    writer.add(entry.getKey(), entry.getValue());
+                }
+            }
+            return writer.finish(level);
+        }
+    }
+
+    // Writer of new table, which takes entries one by one in ascending key order.
+    //
+    // Bloom filter is sized by expected count of keys. If count is not known in advance (negative),
+    // keys are kept in memory, and filter is sized by actual count, when table is finished.
+    static final class Writer implements Closeable {
+        private final File file;
+        private final long id;
+        private final int blockBytes;
+        private final int bloomBitsPerKey;
+        private final FileOutputStream fos;
+        private final DataOutputStream dos;
+        private final ByteArrayOutputStream block;
+        private final DataOutputStream blockDos;
+        private final CRC32 crc = new CRC32();
+        private BloomFilter bloomFilter; // null until table is finished, if count of keys is not known
+        private int[] keys; // keys of table, if count of keys is not known
+        private int[] firstKeys = new int[16];
+        private long[] blockOffsets = new long[16];
+        private int[] blockLengths = new int[16];
+        private int[] blockChecksums = new int[16];
+        private int blockCount;
+        private int maxKey;
+        private long entryCount;
+        private long offset;
+
+        Writer(File file, long id, long expectedKeys, int blockBytes, int bloomBitsPerKey) throws IOException {
+            this.file = file;
+            this.id = id;
+            this.blockBytes = blockBytes;
+            this.bloomBitsPerKey = bloomBitsPerKey;
+            if (expectedKeys >= 0) {
+                bloomFilter = BloomFilter.create(expectedKeys, bloomBitsPerKey);
+            } else {
+                keys = new int[1024];
+            }
+            fos = new FileOutputStream(file);
+            dos = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            block = new ByteArrayOutputStream(blockBytes + blockBytes / 4);
+            blockDos = new DataOutputStream(block);
+        }
+
+        // Adds entry with key greater than keys of added entries. Value is Memtable.DELETED for deleted key.
+        void add(int key, byte[] value) throws IOException {
+            if (block.size() == 0) {
+                if (blockCount == firstKeys.length) {
+                    firstKeys = Arrays.copyOf(firstKeys, blockCount * 2);
+                    blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+                    blockLengths = Arrays.copyOf(blockLengths, blockCount * 2);
+                    blockChecksums = Arrays.copyOf(blockChecksums, blockCount * 2);
+                }
+                firstKeys[blockCount] = key;
+            }
+            blockDos.writeInt(key);
+            if (value == Memtable.DELETED) {
+                blockDos.writeInt(-1);
+            } else {
+                blockDos.writeInt(value.length);
+                blockDos.write(value);
+            }
+            if (bloomFilter != null) {
+                bloomFilter.add(key);
+            } else {
+                if (entryCount == keys.length) {
+                    keys = Arrays.copyOf(keys, keys.length * 2);
+                }
+                keys[(int) entryCount] = key;
+            }
+            maxKey = key;
+            entryCount++;
+            if (block.size() >= blockBytes) {
+                writeBlock();
+            }
+        }
+
+        // Returns bytes of added entries.
+        long dataBytes() {
+            return offset + block.size();
+        }
+
+        // Writes block index, bloom filter and footer, forces table to storage device and opens it.
+        SortedTable finish(int level) throws IOException {
+            if (block.size() > 0) {
+                writeBlock();
+            }
+            if (bloomFilter == null) {
+                bloomFilter = BloomFilter.create(entryCount, bloomBitsPerKey);
+                for (int i = 0; i < entryCount; i++) {
+                    bloomFilter.add(keys[i]);
+                }
+                keys = null;
+            }
+
+            final ByteArrayOutputStream meta = new ByteArrayOutputStream(blockCount * 20 + bloomFilter.serializedBytes());
+            final DataOutputStream metaDos = new DataOutputStream(meta);
+            for (int i = 0; i < blockCount; i++) {
+                metaDos.writeInt(firstKeys[i]);
+                metaDos.writeLong(blockOffsets[i]);
+                metaDos.writeInt(blockLengths[i]);
+                metaDos.writeInt(blockChecksums[i]);
+            }
+            bloomFilter.write(metaDos);
+            crc.reset();
+            crc.update(meta.toByteArray(), 0, meta.size());
+            meta.writeTo(dos);
+
+            dos.writeLong(offset);
+            dos.writeInt(blockCount);
+            dos.writeInt(maxKey);
+            dos.writeLong(entryCount);
+            dos.writeInt((int) crc.getValue());
+            dos.writeInt(MAGIC);
+            dos.flush();
+            fos.getChannel().force(true);
+            dos.close();
+            return open(file, id, level);
+        }
+
+        @Override
+        public void close() throws IOException {
+            dos.close();
+        }
+
+        private void writeBlock() throws IOException {
+            crc.reset();
+            crc.update(block.toByteArray(), 0, block.size());
+            blockOffsets[blockCount] = offset;
+            blockLengths[blockCount] = block.size();
+            blockChecksums[blockCount] = (int) crc.getValue();
+            blockCount++;
+            block.writeTo(dos);
+            offset += block.size();
+            block.reset();
+        }
+    }
+
+    long id() {
+        return id;
+    }
+
+    int level() {
+        return level;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long entryCount() {
+        return entryCount;
+    }
+
+    // Returns value of key, Memtable.DELETED if key is deleted, or null if table has no entry of key.
+    byte[] get(int key) throws IOException {
+        if (firstKeys.length == 0 || key < firstKeys[0] || key > maxKey || !bloomFilter.mightContain(key)) {
+            return null;
+        }
+        final ByteBuffer block = readBlock(blockOf(key));
+        while (block.hasRemaining()) {
+            final int entryKey = block.getInt();
+            final int valueLength = block.getInt();
+            if (entryKey == key) {
+                return value(block, valueLength);
+            }
+            if (entryKey > key) {
+                return null;
+            }
+            if (valueLength > 0) {
+                block.position(block.position() + valueLength);
+            }
+        }
+        return null;
+    }
+
+    // Iterates entries with keys from specified key in key order, including deleted keys.
+    // Blocks are read lazily, iterator throws UncheckedIOException if block is not read.
+    Iterator<Map.Entry<Integer, byte[]>> iterator(int fromKey) {
+        return new TableIterator(fromKey);
+    }
+
+    File file() {
+        return file;
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    // Keeps table open for snapshot, until snapshot releases it.
+    void retain() {
+        references++;
+    }
+
+    // Drops reference to table. Table is closed, when the last reference is dropped, and its file is deleted,
+    // if table was replaced by merge meanwhile.
+    void release() throws IOException {
+        if (--references == 0) {
+            close();
+            if (replaced) {
+                delete();
+            }
+        }
+    }
+
+    // Drops reference of storage to table, which is replaced by merge.
+    void replace() throws IOException {
+        replaced = true;
+        release();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Returns index of last block with first key not greater than key.
+    private int blockOf(int key) {
+        final int index = Arrays.binarySearch(firstKeys, key);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    private ByteBuffer readBlock(int index) throws IOException {
+        final ByteBuffer block = ByteBuffer.allocate(blockLengths[index]);
+        read(channel, block, blockOffsets[index]);
+        block.flip();
+        final CRC32 crc = new CRC32();
+        crc.update(block.array(), 0, block.limit());
+        if ((int) crc.getValue() != blockChecksums[index]) {
+            throw new KVStorageDamagedException("Block at offset " + blockOffsets[index] + " of sorted table "
+                    + file + " is damaged");
+        }
+        return block;
+    }
+
+    private byte[] value(ByteBuffer block, int valueLength) throws KVStorageDamagedException {
+        if (valueLength < 0) {
+            return Memtable.DELETED;
+        }
+        if (valueLength > block.remaining()) {
+            throw new KVStorageDamagedException("Sorted table " + file + " is damaged");
+        }
+        final byte[] value = new byte[valueLength];
+        block.get(value);
+        return value;
+    }
+
+    private static void read(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            final int readResult = channel.read(dst, position);
+            if (readResult < 0) {
+                throw new EOFException("Unexpected end of sorted table at " + position);
+            }
+            position += readResult;
+        }
+    }
+
+    private final class TableIterator implements Iterator<Map.Entry<Integer, byte[]>> {
+        private final int fromKey;
+        private int nextBlock;
+        private ByteBuffer block;
+        private Map.Entry<Integer, byte[]> next;
+
+        TableIterator(int fromKey) {
+            this.fromKey = fromKey;
+            nextBlock = firstKeys.length == 0 || fromKey > maxKey ? firstKeys.length : blockOf(fromKey);
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    if (block == null || !block.hasRemaining()) {
+                        if (nextBlock == firstKeys.length) {
+                            return false;
+                        }
+                        block = readBlock(nextBlock++);
+                    }
+                    final int key = block.getInt();
+                    final byte[] value = value(block, block.getInt());
+                    if (key >= fromKey) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Map.Entry<Integer, byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<Integer, byte[]> entry = next;
+            next = null;
+            return entry;
+        }
+    }
+}
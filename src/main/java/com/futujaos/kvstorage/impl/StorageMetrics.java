@@ -0,0 +1,106 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Operation counters, latencies and startup timings of storage.
+//
+// Operation counters are LongAdders, so concurrent readers do not contend on single counter.
+// Latencies are measured only if latency histograms are enabled, as pair of System.nanoTime calls costs
+// about as much as read of value, kept in memory.
+//
+// Startup timings are written on open only. Appended bytes and checkpoint counters are written under append lock
+// and are volatile, so stats read them without the lock.
+final class StorageMetrics {
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder persists = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder writeBatches = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LatencyRecorder readLatency;  // null if latencies are not measured
+    private final LatencyRecorder writeLatency; // null if latencies are not measured
+    private final LatencyRecorder syncLatency;  // null if latencies are not measured
+    long openNanos;
+    long hintFileLoadNanos;
+    long logReplayNanos;
+    long replayedBytes;
+    volatile long appendedBytes;
+    volatile long checkpoints;
+    volatile long checkpointNanos;
+
+    StorageMetrics(boolean latencyHistograms) {
+        readLatency = latencyHistograms ? new LatencyRecorder() : null;
+        writeLatency = latencyHistograms ? new LatencyRecorder() : null;
+        syncLatency = latencyHistograms ? new LatencyRecorder() : null;
+    }
+
+    // Returns start time of operation, which is passed to operation counter.
+    long start() {
+        return readLatency != null ? System.nanoTime() : 0;
+    }
+
+    void read(long start, int keys) {
+        reads.add(keys);
+        record(readLatency, start);
+    }
+
+    void write(long start, int persistCount, int deleteCount) {
+        persists.add(persistCount);
+        deletes.add(deleteCount);
+        record(writeLatency, start);
+    }
+
+    void writeBatch(long start, int persistCount, int deleteCount) {
+        writeBatches.increment();
+        write(start, persistCount, deleteCount);
+    }
+
+    void sync(long start) {
+        syncs.increment();
+        record(syncLatency, start);
+    }
+
+    long readCount() {
+        return reads.sum();
+    }
+
+    long persistCount() {
+        return persists.sum();
+    }
+
+    long deleteCount() {
+        return deletes.sum();
+    }
+
+    long writeBatchCount() {
+        return writeBatches.sum();
+    }
+
+    long syncCount() {
+        return syncs.sum();
+    }
+
+    LatencyHistogram readLatency() {
+        return readLatency != null ? readLatency.snapshot() : LatencyRecorder.empty();
+    }
+
+    LatencyHistogram writeLatency() {
+        return writeLatency != null ? writeLatency.snapshot() : LatencyRecorder.empty();
+    }
+
+    LatencyHistogram syncLatency() {
+        return syncLatency != null ? syncLatency.snapshot() : LatencyRecorder.empty();
+    }
+
+    static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static void record(LatencyRecorder latency, long start) {
+        if (latency != null) {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+}
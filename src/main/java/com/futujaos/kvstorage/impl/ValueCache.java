@@ -0,0 +1,300 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.CacheStats;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+// Byte-budgeted cache of values with W-TinyLFU eviction policy.
+//
+// Cache is split into stripes by key hash, every stripe has its own lock and equal share of budget.
+//
+// Reads do not take the lock: value is looked up in concurrent map of stripe, and access is recorded into
+// lossy read buffer of stripe. Buffered accesses are applied to frequency sketch and LRU queues under the lock,
+// by reader, which fills buffer enough and acquires free lock, or by the next write of stripe. Access, which
+// does not fit into full buffer, is dropped, so policy is updated on a best-effort basis under contention,
+// and readers are never blocked by each other or by writes. Writes and invalidations take the lock.
+//
+// Stripe keeps entries in three LRU queues:
+// - window (1% of budget) takes new entries;
+// - probation (20% of the rest) and protected (80% of the rest) form main space.
+// Entry, evicted from window, is admitted to main space only if it is accessed more frequently than
+// entries it would evict from there, frequencies are estimated by FrequencySketch. Entry, accessed
+// in probation, is promoted to protected, protected overflow is demoted back to probation.
+// So scan of many keys passes through window without evicting frequently accessed entries.
+//
+// Entry weight is value length plus ENTRY_OVERHEAD_BYTES for node and map entry.
+final class ValueCache {
+    static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static final int STRIPES = 16;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    ValueCache(long budgetBytes) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(budgetBytes / STRIPES);
+        }
+    }
+
+    // Returns cached value or null if value is not cached.
+    byte[] get(int key) {
+        return stripe(key).get(key);
+    }
+
+    // Caches value, loaded from storage. Value is cached only if isCurrent confirms under stripe lock,
+    // that value was not overwritten since it was loaded, as writes invalidate key under the same lock.
+    void put(int key, byte[] value, BooleanSupplier isCurrent) {
+        stripe(key).put(key, value, isCurrent);
+    }
+
+    void invalidate(int key) {
+        stripe(key).invalidate(key);
+    }
+
+    CacheStats stats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long entries = 0;
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            hits += stripe.hits.sum();
+            misses += stripe.misses.sum();
+            stripe.lock.lock();
+            try {
+                evictions += stripe.evictions;
+                entries += stripe.nodes.size();
+                bytes += stripe.window.weight + stripe.probation.weight + stripe.protectedQueue.weight;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return new CacheStats(hits, misses, evictions, entries, bytes);
+    }
+
+    private Stripe stripe(int key) {
+        final int h = key * 0x9E3779B9;
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static final class Stripe {
+        private static final int READ_BUFFER_SIZE = 64;
+        private static final int READ_BUFFER_DRAIN_THRESHOLD = 16;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<Integer, Node> nodes = new ConcurrentHashMap<>(); // modified under lock
+        // Keys of recorded accesses, 0 for empty slot, see recordAccess
+        private final AtomicLongArray readBuffer = new AtomicLongArray(READ_BUFFER_SIZE);
+        private final AtomicLong readBufferWrites = new AtomicLong();
+        private volatile long readBufferReads; // modified under lock
+        private final Queue window = new Queue();
+        private final Queue probation = new Queue();
+        private final Queue protectedQueue = new Queue();
+        private final FrequencySketch sketch;
+        private final long windowMaxWeight;
+        private final long mainMaxWeight;
+        private final long protectedMaxWeight;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private long evictions;
+
+        Stripe(long maxWeight) {
+            windowMaxWeight = maxWeight / 100;
+            mainMaxWeight = maxWeight - windowMaxWeight;
+            protectedMaxWeight = mainMaxWeight / 5 * 4;
+            // Sketch counts about as many keys, as entries of 128 bytes fit into budget
+            sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(16, maxWeight / 128)));
+        }
+
+        byte[] get(int key) {
+            final Node node = nodes.get(key);
+            if (node == null) {
+                misses.increment();
+            } else {
+                hits.increment();
+            }
+            recordAccess(key);
+            return node != null ? node.value : null;
+        }
+
+        // Records access into read buffer, unless buffer is full, and drains buffer, if it has enough accesses
+        // and lock is free. Slot keeps key with bit 32 set, so slot, which is not written yet, is recognized.
+        private void recordAccess(int key) {
+            final long index = readBufferWrites.get();
+            if (index - readBufferReads >= READ_BUFFER_SIZE
+                    || !readBufferWrites.compareAndSet(index, index + 1)) {
+                // Access is dropped: buffer is full, or slot is taken by concurrent reader
+                return;
+            }
+            readBuffer.lazySet((int) index & (READ_BUFFER_SIZE - 1), 1L << 32 | key & 0xFFFFFFFFL);
+            if (index + 1 - readBufferReads >= READ_BUFFER_DRAIN_THRESHOLD && lock.tryLock()) {
+                try {
+                    drainReadBuffer();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        // Applies recorded accesses to sketch and queues. Called under lock.
+        private void drainReadBuffer() {
+            long reads = readBufferReads;
+            final long writes = readBufferWrites.get();
+            while (reads < writes) {
+                final int slot = (int) reads & (READ_BUFFER_SIZE - 1);
+                final long access = readBuffer.get(slot);
+                if (access == 0) {
+                    // Slot is taken, but access is not written yet, it is applied by the next drain
+                    break;
+                }
+                readBuffer.lazySet(slot, 0);
+                applyAccess((int) access);
+                reads++;
+            }
+            readBufferReads = reads;
+        }
+
+        private void applyAccess(int key) {
+            sketch.increment(key);
+            final Node node = nodes.get(key);
+            if (node == null) {
+                return;
+            }
+            if (node.queue == probation) {
+                probation.remove(node);
+                protectedQueue.add(node);
+                while (protectedQueue.weight > protectedMaxWeight) {
+                    final Node demoted = protectedQueue.head;
+                    protectedQueue.remove(demoted);
+                    probation.add(demoted);
+                }
+            } else {
+                node.queue.moveToTail(node);
+            }
+        }
+
+        void put(int key, byte[] value, BooleanSupplier isCurrent) {
+            final long weight = (long) value.length + ENTRY_OVERHEAD_BYTES;
+            if (weight > mainMaxWeight) {
+                return;
+            }
+            lock.lock();
+            try {
+                // Recorded accesses are applied first, so admission compares current frequencies
+                drainReadBuffer();
+                if (!isCurrent.getAsBoolean()) {
+                    return;
+                }
+                remove(key);
+
+                final Node node = new Node(key, value, weight);
+                nodes.put(key, node);
+                window.add(node);
+                while (window.weight > windowMaxWeight) {
+                    final Node candidate = window.head;
+                    window.remove(candidate);
+                    admit(candidate);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void invalidate(int key) {
+            lock.lock();
+            try {
+                remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(int key) {
+            final Node node = nodes.remove(key);
+            if (node != null) {
+                node.queue.remove(node);
+            }
+        }
+
+        // Moves candidate, evicted from window, to probation, if it is more frequent than entries it evicts.
+        private void admit(Node candidate) {
+            final int candidateFrequency = sketch.frequency(candidate.key);
+            while (probation.weight + protectedQueue.weight + candidate.weight > mainMaxWeight) {
+                final Node victim = probation.head != null ? probation.head : protectedQueue.head;
+                if (candidateFrequency <= sketch.frequency(victim.key)) {
+                    evict(candidate);
+                    return;
+                }
+                victim.queue.remove(victim);
+                evict(victim);
+            }
+            probation.add(candidate);
+        }
+
+        private void evict(Node node) {
+            nodes.remove(node.key);
+            evictions++;
+        }
+    }
+
+    // LRU queue, head is least recently used.
+    private static final class Queue {
+        private Node head;
+        private Node tail;
+        private long weight;
+
+        void add(Node node) {
+            node.queue = this;
+            node.prev = tail;
+            node.next = null;
+            if (tail != null) {
+                tail.next = node;
+            } else {
+                head = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToTail(Node node) {
+            if (node != tail) {
+                remove(node);
+                add(node);
+            }
+        }
+    }
+
+    private static final class Node {
+        private final int key;
+        private final byte[] value;
+        private final long weight;
+        private Queue queue;
+        private Node prev;
+        private Node next;
+
+        Node(int key, byte[] value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compression of values, stored in entries.
+//
+// Compressed value:
+// | raw length  | compressed bytes |
+// | xx xx xx xx | xx xx .. xx      |
+//
+// Codec of every value is kept in its entry status, so storage may mix values of different codecs,
+// and compression may be enabled or disabled for existing storage. Value is stored raw, if it is shorter
+// than min bytes, or if compression saves less than 1/8 of its length, as then decompression on read
+// is not paid off by smaller entry.
+//
+// Codecs are numbered, numbers are stored in entry status and should not be changed:
+// - RAW     - value is stored as is;
+// - DEFLATE - raw deflate stream (no zlib header and trailer, as entry has its own checksum).
+//
+// Deflater and inflater hold native memory, which is expensive to allocate per value, so they are kept
+// per thread.
+final class ValueCodec {
+    static final int RAW = 0;
+    static final int DEFLATE = 1;
+    private static final int RAW_LENGTH_BYTES = 4;
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+    private final int codec;
+    private final int minBytes;
+
+    ValueCodec(KVStorageConfig.Compression compression, int minBytes) {
+        switch (compression) {
+            case DEFLATE:
+                codec = DEFLATE;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported compression " + compression);
+        }
+        this.minBytes = minBytes;
+    }
+
+    // Codec of values, returned by compress.
+    int codec() {
+        return codec;
+    }
+
+    // Returns compressed value, or null if value should be stored raw.
+    byte[] compress(byte[] value) {
+        if (value.length < minBytes) {
+            return null;
+        }
+        final int maxBytes = value.length - value.length / 8;
+        if (maxBytes <= RAW_LENGTH_BYTES) {
+            return null;
+        }
+        final byte[] buffer = new byte[maxBytes];
+        final Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        int bytesCount = RAW_LENGTH_BYTES;
+        while (!deflater.finished() && bytesCount < maxBytes) {
+            bytesCount += deflater.deflate(buffer, bytesCount, maxBytes - bytesCount);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        putInt(buffer, value.length);
+        final byte[] compressed = new byte[bytesCount];
+        System.arraycopy(buffer, 0, compressed, 0, bytesCount);
+        return compressed;
+    }
+
+    // Returns raw value of stored value, compressed with codec.
+    static byte[] decompress(int codec, byte[] stored) throws KVStorageDamagedException {
+        if (codec != DEFLATE) {
+            throw new KVStorageDamagedException("Unknown value codec " + codec);
+        }
+        final int rawLength = stored.length >= RAW_LENGTH_BYTES ? getInt(stored) : -1;
+        if (rawLength < 0) {
+            throw new KVStorageDamagedException("Compressed value is damaged");
+        }
+        final byte[] value = new byte[rawLength];
+        final Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(stored, RAW_LENGTH_BYTES, stored.length - RAW_LENGTH_BYTES);
+        try {
+            int bytesCount = 0;
+            while (bytesCount < rawLength) {
+                final int inflated = inflater.inflate(value, bytesCount, rawLength - bytesCount);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new KVStorageDamagedException("Compressed value is shorter than its raw length");
+                }
+                bytesCount += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new KVStorageDamagedException("Compressed value is damaged: " + e.getMessage());
+        }
+        return value;
+    }
+
+    private static void putInt(byte[] bytes, int value) {
+        bytes[0] = (byte) (value >>> 24);
+        bytes[1] = (byte) (value >>> 16);
+        bytes[2] = (byte) (value >>> 8);
+        bytes[3] = (byte) value;
+    }
+
+    private static int getInt(byte[] bytes) {
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+    }
+}
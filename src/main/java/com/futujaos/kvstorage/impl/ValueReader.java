@@ -0,0 +1,74 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+// Stream of raw value, which is read from storage file by parts, see KVStorage#openReader.
+//
+// Value is read through own channel of file, opened before stream is returned, so it is read from file,
+// which contained entry, even if file is replaced or deleted by compaction later. Checksum is verified,
+// when the last byte of value is read.
+final class ValueReader extends InputStream {
+    private final FileChannel channel;
+    private final long position; // position of entry in log
+    private final long end; // end offset of value in file
+    private final CRC32 crc; // null for legacy entry without checksum
+    private final int checksum;
+    private final byte[] single = new byte[1];
+    private long offset; // offset of next read byte in file
+
+    ValueReader(FileChannel channel, long position, long entryOffset, ByteBuffer header) {
+        this.channel = channel;
+        this.position = position;
+        final byte status = header.get(4);
+        offset = entryOffset + Entry.headerBytes(status);
+        end = entryOffset + header.getInt(0);
+        crc = Entry.hasChecksum(status) ? Entry.startChecksum(new CRC32(), status, header.getInt(5)) : null;
+        checksum = crc != null ? header.getInt(9) : 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) > 0 ? single[0] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (offset == end) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        final int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - offset)), offset);
+        if (count < 0) {
+            throw new KVStorageDamagedException("Entry at position " + position + " is damaged");
+        }
+        if (crc != null) {
+            crc.update(b, off, count);
+        }
+        offset += count;
+        if (offset == end && crc != null && (int) crc.getValue() != checksum) {
+            throw new KVStorageDamagedException("Entry at position " + position + " is damaged");
+        }
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(end - offset, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
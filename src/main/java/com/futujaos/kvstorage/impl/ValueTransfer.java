@@ -0,0 +1,57 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Writes values into channels of callers, see KVStorage#transferTo.
+//
+// Target channel should be blocking. Non-blocking channel may accept no bytes, and write loop would spin
+// until it accepts them, so selectable channel in non-blocking mode is rejected before any byte is written.
+// Transfer, which makes no progress otherwise, fails instead of being repeated.
+final class ValueTransfer {
+
+    private ValueTransfer() {
+    }
+
+    static void checkBlocking(WritableByteChannel target) {
+        if (target instanceof SelectableChannel && !((SelectableChannel) target).isBlocking()) {
+            throw new IllegalArgumentException("Target channel should be blocking");
+        }
+    }
+
+    // Writes value into target and returns its length, or -1 if value is null.
+    static long writeFully(byte[] value, WritableByteChannel target) throws IOException {
+        if (value == null) {
+            return -1;
+        }
+        final ByteBuffer src = ByteBuffer.wrap(value);
+        while (src.hasRemaining()) {
+            if (target.write(src) <= 0) {
+                throw new IOException("Target channel accepts no bytes");
+            }
+        }
+        return value.length;
+    }
+
+    // Transfers count bytes of source file, starting from offset, into target without copying them to heap.
+    static void transferFully(FileChannel source, long offset, long count, WritableByteChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            final long transferredNow = source.transferTo(offset + transferred, count - transferred, target);
+            if (transferredNow <= 0) {
+                if (offset + transferred >= source.size()) {
+                    throw new KVStorageDamagedException("Storage file ends at " + source.size()
+                            + " before value at offset " + offset + " ends");
+                }
+                throw new IOException("Target channel accepts no bytes");
+            }
+            transferred += transferredNow;
+        }
+    }
+}
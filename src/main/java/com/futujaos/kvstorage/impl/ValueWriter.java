@@ -0,0 +1,94 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+// Stream of value, which is written by parts, see KVStorage#openWriter.
+//
+// Parts are appended to private stream file in streams directory, without append lock, so writes and syncs
+// of storage are not blocked, while value is written. When stream is closed, entry is appended by storage
+// under append lock: its header, then value, transferred from stream file without copying to heap. Entry is
+// appended to blob log, if blob log is enabled, and blob pointer entry is appended to storage log then.
+// Stream file is deleted, when stream is closed or fails. Stream files, left by crash, are deleted on open.
+final class ValueWriter extends OutputStream {
+    static final long MAX_VALUE_BYTES = Integer.MAX_VALUE - Entry.HEADER_BYTES;
+    private final KVStorageImpl storage;
+    private final int key;
+    private final long start;
+    private final byte status = Entry.status(ValueCodec.RAW, false, false);
+    private final LogFile stream;
+    private final CRC32 crc = new CRC32();
+    private final byte[] single = new byte[1];
+    private long length;
+    private boolean closed;
+
+    ValueWriter(KVStorageImpl storage, File streamsDirectory, int key, long start) throws IOException {
+        this.storage = storage;
+        this.key = key;
+        this.start = start;
+        stream = new LogFile(File.createTempFile("value", ".stream", streamsDirectory), 0);
+        Entry.startChecksum(crc, status, key);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (closed) {
+            throw new IOException("Value writer is closed");
+        }
+        try {
+            if (length + len > MAX_VALUE_BYTES) {
+                throw new IOException("Value exceeds max length " + MAX_VALUE_BYTES);
+            }
+            stream.append(b, off, len);
+        } catch (IOException | RuntimeException | Error e) {
+            closed = true;
+            deleteStream(e);
+            throw e;
+        }
+        crc.update(b, off, len);
+        length += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        final long sequence;
+        try {
+            stream.flush();
+            sequence = storage.appendStream(key, status, (int) crc.getValue(), stream, length);
+        } catch (IOException | RuntimeException | Error e) {
+            deleteStream(e);
+            throw e;
+        }
+        deleteStream(null);
+        storage.completeStream(sequence, start);
+    }
+
+    // Closes and deletes stream file. Failure of close is suppressed by failure, if there is one.
+    private void deleteStream(Throwable failure) throws IOException {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        } finally {
+            stream.getFile().delete();
+        }
+    }
+}
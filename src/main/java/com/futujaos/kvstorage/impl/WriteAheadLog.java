@@ -0,0 +1,137 @@
+package com.futujaos.kvstorage.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Log of writes of memtable of LSM storage, replayed into memtable on open.
+//
+// Record:
+// | bytes count | checksum | flags | key | value |
+// |      4      |    4     |   1   |  4  |  xx   |
+// Checksum covers flags, key and value. Records of write batch, except the last one, have BATCH_CONTINUED flag,
+// so torn batch is discarded on replay.
+//
+// Log is replayed up to the first incomplete or damaged record: writes beyond it were not synced,
+// so they may be lost by crash anyway.
+final class WriteAheadLog implements Closeable {
+    private static final byte DELETED = 0x01;
+    private static final byte BATCH_CONTINUED = 0x02;
+    private static final int HEADER_BYTES = 4 + 4 + 1 + 4;
+    private final FileOutputStream fos;
+    private final DataOutputStream dos;
+    private final CRC32 crc = new CRC32();
+    private long size;
+
+    WriteAheadLog(File file) throws IOException {
+        fos = new FileOutputStream(file, true);
+        dos = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+        size = file.length();
+    }
+
+    interface Replay {
+        void apply(int key, byte[] value);
+    }
+
+    // Returns count of bytes appended, value is Memtable.DELETED for delete.
+    int append(int key, byte[] value, boolean batchContinued) throws IOException {
+        final boolean deleted = value == Memtable.DELETED;
+        final byte flags = (byte) ((deleted ? DELETED : 0) | (batchContinued ? BATCH_CONTINUED : 0));
+        crc.reset();
+        crc.update(flags);
+        crc.update(key >>> 24);
+        crc.update(key >>> 16);
+        crc.update(key >>> 8);
+        crc.update(key);
+        crc.update(value);
+        final int bytesCount = HEADER_BYTES + value.length;
+        dos.writeInt(bytesCount);
+        dos.writeInt((int) crc.getValue());
+        dos.writeByte(flags);
+        dos.writeInt(key);
+        dos.write(value);
+        size += bytesCount;
+        return bytesCount;
+    }
+
+    void flush() throws IOException {
+        dos.flush();
+    }
+
+    void sync() throws IOException {
+        dos.flush();
+        fos.getChannel().force(false);
+    }
+
+    long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dos.close();
+    }
+
+    // Closes log without flushing buffered records, so they are lost, as if process crashed.
+    void closeUnflushed() throws IOException {
+        fos.close();
+    }
+
+    // Applies complete records and batches of log, returns count of replayed bytes.
+    static long replay(File file, Replay replay) throws IOException {
+        final long length = file.length();
+        final List<Integer> batchKeys = new ArrayList<>();
+        final List<byte[]> batchValues = new ArrayList<>();
+        final CRC32 crc = new CRC32();
+        long position = 0;
+        long replayed = 0;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (length - position >= HEADER_BYTES) {
+                final int bytesCount = dis.readInt();
+                if (bytesCount < HEADER_BYTES || bytesCount > length - position) {
+                    break;
+                }
+                final int checksum = dis.readInt();
+                final byte flags = dis.readByte();
+                final int key = dis.readInt();
+                final byte[] value = new byte[bytesCount - HEADER_BYTES];
+                dis.readFully(value);
+                crc.reset();
+                crc.update(flags);
+                crc.update(key >>> 24);
+                crc.update(key >>> 16);
+                crc.update(key >>> 8);
+                crc.update(key);
+                crc.update(value);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                position += bytesCount;
+
+                batchKeys.add(key);
+                batchValues.add((flags & DELETED) != 0 ? Memtable.DELETED : value);
+                if ((flags & BATCH_CONTINUED) == 0) {
+                    for (int i = 0; i < batchKeys.size(); i++) {
+                        replay.apply(batchKeys.get(i), batchValues.get(i));
+                    }
+                    batchKeys.clear();
+                    batchValues.clear();
+                    replayed = position;
+                }
+            }
+        } catch (EOFException e) {
+            // Incomplete record at the end of log
+        }
+        return replayed;
+    }
+}
@@ -0,0 +1,96 @@
+package com.futujaos.kvstorage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link com.futujaos.kvstorage.AsyncKVStorage}
+ */
+public class AsyncKVStorageTests extends KVStorageBaseTester {
+
+    @Test
+    public void testReadAfterCompletedWrites() throws Exception {
+        final int key = 42;
+        final byte[] value = new byte[]{7, -80, 6, 3};
+
+        try (AsyncKVStorage storage = KVStorageFactory.openAsyncStorage(testConfig())) {
+            storage.persistAsync(key, value).get();
+            assertArrayEquals("Value should equals to original", value, storage.readAsync(key).get().get());
+
+            storage.deleteAsync(key).get();
+            assertFalse("Value should not exist, because it was deleted", storage.readAsync(key).get().isPresent());
+        }
+    }
+
+    @Test
+    public void testQueuedWritesAreAppliedInOrderAndCoalesced() throws Exception {
+        final int count = 10000;
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        try (AsyncKVStorage storage = KVStorageFactory.openAsyncStorage(testConfig())) {
+            for (int i = 0; i < count; i++) {
+                futures.add(storage.persistAsync(i % 100, new byte[]{(byte) (i % 100), (byte) (i / 100)}));
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.get();
+            }
+
+            final AsyncQueueStats stats = storage.getQueueStats();
+            assertEquals("All writes should be completed", count, stats.getCompletedWrites());
+            assertTrue("Queued writes should be coalesced", stats.getWriteBatches() < count);
+            assertTrue("Queue depth should be tracked", stats.getMaxWriteQueueDepth() > 0);
+        }
+
+        try (KVStorage storage = openTestStorage()) {
+            for (int key = 0; key < 100; key++) {
+                assertArrayEquals("Value should equal to later value", new byte[]{(byte) key, 99}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testWritesAreRejectedWhenQueueIsFull() throws Exception {
+        final KVStorageConfig config = testConfig()
+                .withAsyncWriteQueueCapacity(1)
+                .withDurabilityMode(KVStorageConfig.DurabilityMode.PER_WRITE);
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        try (AsyncKVStorage storage = KVStorageFactory.openAsyncStorage(config)) {
+            for (int i = 0; i < 1000; i++) {
+                futures.add(storage.persistAsync(i, new byte[]{(byte) i}));
+            }
+            int rejected = 0;
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    assertTrue("Write should be rejected", e.getCause() instanceof RejectedExecutionException);
+                    rejected++;
+                }
+            }
+            assertTrue("Writes should be rejected", rejected > 0);
+            assertEquals("Rejected writes should be counted", rejected, storage.getQueueStats().getRejectedWrites());
+        }
+    }
+
+    @Test
+    public void testWritesAfterCloseAreRejected() throws IOException, InterruptedException {
+        final AsyncKVStorage storage = KVStorageFactory.openAsyncStorage(testConfig());
+        storage.close();
+
+        try {
+            storage.persistAsync(1, new byte[]{1}).get();
+            fail("Write should be rejected");
+        } catch (ExecutionException e) {
+            assertTrue("Write should be rejected", e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -5,15 +5,18 @@ import org.junit.Before;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.regex.Pattern;
 
 public abstract class KVStorageBaseTester {
     File storageFile;
     File metaFile;
+    File segmentsDirectory;
 
     @Before
     public void before() throws IOException {
         storageFile = new File("test.kvs");
         metaFile = new File("test.kvs.meta");
+        segmentsDirectory = new File("test.kvs.segments");
         final boolean storageFileCreated = storageFile.createNewFile();
         final boolean metaFileCreated = metaFile.createNewFile();
         if (!storageFileCreated || !metaFileCreated) {
@@ -28,10 +31,62 @@ public abstract class KVStorageBaseTester {
         if (!storageFileDeleted || !metaFileCreated) {
             throw new IllegalStateException("Test storage file does not deleted properly");
         }
+        new File(storageFile.getPath() + ".hint").delete();
+        new File(segmentsDirectory.getPath() + ".hint").delete();
+        for (File directory : new File[]{segmentsDirectory, new File(storageFile.getPath() + ".blobs"),
+                new File(segmentsDirectory.getPath() + ".blobs"), new File(storageFile.getPath() + ".streams"),
+                new File(segmentsDirectory.getPath() + ".streams")}) {
+            final File[] segmentFiles = directory.listFiles();
+            if (segmentFiles != null) {
+                for (File segmentFile : segmentFiles) {
+                    segmentFile.delete();
+                }
+                if (!directory.delete()) {
+                    throw new IllegalStateException("Test segments directory does not deleted properly");
+                }
+            }
+        }
+        final Pattern shardFileName = Pattern.compile(
+                "(" + Pattern.quote(storageFile.getName()) + "|" + Pattern.quote(metaFile.getName())
+                        + ")\\.(\\d+(\\.hint)?|shards)");
+        final File[] shardFiles = new File(".").listFiles((dir, name) -> shardFileName.matcher(name).matches());
+        if (shardFiles != null) {
+            for (File shardFile : shardFiles) {
+                if (!shardFile.delete()) {
+                    throw new IllegalStateException("Test shard file does not deleted properly");
+                }
+            }
+        }
+    }
+
+    KVStorageConfig testConfig() {
+        return KVStorageConfig.create(storageFile.getPath(), metaFile.getPath());
+    }
+
+    KVStorageConfig segmentedTestConfig(long segmentSize) {
+        return KVStorageConfig.create(segmentsDirectory.getPath(), metaFile.getPath()).withSegmentSize(segmentSize);
+    }
+
+    KVStorageConfig lsmTestConfig() {
+        return KVStorageConfig.create(segmentsDirectory.getPath(), metaFile.getPath())
+                .withEngine(KVStorageConfig.Engine.LSM);
     }
 
     KVStorage openTestStorage() throws IOException {
-        final KVStorageConfig config = KVStorageConfig.create(storageFile.getPath(), metaFile.getPath());
+        return openTestStorage(testConfig());
+    }
+
+    KVStorage openTestStorage(KVStorageConfig config) throws IOException {
         return KVStorageFactory.openStorage(config);
     }
-}
\ No newline at end of file
+
+    static void deleteRecursively(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -1,13 +1,41 @@
 package com.futujaos.kvstorage;
 
 import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+import com.futujaos.kvstorage.impl.CrashSimulator;
+import com.futujaos.kvstorage.impl.WriteFailureSimulator;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import static org.junit.Assert.*;
 
@@ -197,4 +225,1976 @@ public class KVStorageTests extends KVStorageBaseTester {
             assertFalse("Value should not exist, because it was deleted", deletedValue.isPresent());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOffsetsIndexReadInSameSession() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final int key1 = 7;
+        final int key2 = -42;
+
+        final byte[] value1 = new byte[]{1, -50, 2};
+        final byte[] value2 = new byte[]{66, -8, 13, 0, 20};
+        final byte[] newValue2 = new byte[]{9};
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(key1, value1);
+            storage.persist(key2, value2);
+
+            assertArrayEquals("Value should equals to original", value2, storage.read(key2).get());
+
+            storage.persist(key2, newValue2);
+
+            assertArrayEquals("Value should equal to later value", newValue2, storage.read(key2).get());
+            assertArrayEquals("Value should equals to original", value1, storage.read(key1).get());
+        }
+    }
+
+    @Test
+    public void testOffsetsIndexReadInNewSession() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final int key1 = 7;
+        final int key2 = -42;
+
+        final byte[] value1 = new byte[]{1, -50, 2};
+        final byte[] value2 = new byte[]{66, -8, 13, 0, 20};
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(key1, value1);
+            storage.persist(key2, value2);
+            storage.delete(key1);
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertFalse("Value should not exist, because it was deleted", storage.read(key1).isPresent());
+            assertArrayEquals("Value should equals to original", value2, storage.read(key2).get());
+        }
+
+        try (KVStorage storage = openTestStorage()) {
+            assertArrayEquals("Value should be readable with other index mode", value2, storage.read(key2).get());
+        }
+    }
+
+    @Test
+    public void testOffHeapIndexReadInNewSession() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withOffHeapIndex(true);
+        final int count = 1000;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < count; key++) {
+                storage.persist(key, new byte[]{(byte) key});
+            }
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < count; key++) {
+                assertArrayEquals("Value should equals to original", new byte[]{(byte) key}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testMemoryMappedReadsAcrossSegments() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withMemoryMappedReads(true)
+                .withMappedSegmentSize(64);
+        final int count = 100;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < count; key++) {
+                storage.persist(key, new byte[]{(byte) key, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+                // Read right after persist makes tail segment to be remapped as file grows
+                assertEquals("Value should be read right after persist", (byte) key, storage.read(key).get()[0]);
+            }
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < count; key++) {
+                assertArrayEquals("Value should equals to original",
+                        new byte[]{(byte) key, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final int count = 100;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int round = 0; round < 10; round++) {
+                for (int key = 0; key < count; key++) {
+                    storage.persist(key, new byte[]{(byte) key, (byte) round});
+                }
+            }
+            for (int key = 0; key < count; key += 2) {
+                storage.delete(key);
+            }
+
+            final long sizeBefore = storage.getCompactionStats().getStorageBytes();
+
+            storage.compact();
+
+            final CompactionStats stats = storage.getCompactionStats();
+            assertEquals("Compaction should be completed", 1, stats.getCompletedCount());
+            assertEquals("Storage should not contain garbage", 0, stats.getGarbageBytes());
+            assertEquals("Reclaimed bytes should match", sizeBefore - stats.getStorageBytes(), stats.getReclaimedBytes());
+            assertEquals("Storage file should be compacted", stats.getStorageBytes(), storageFile.length());
+            assertValuesAfterCompaction(storage, count, 9);
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertValuesAfterCompaction(storage, count, 9);
+        }
+    }
+
+    @Test
+    public void testAutomaticCompactionInterleavedWithWrites() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withCompactionMinStorageSize(1000)
+                .withCompactionGarbageRatio(0.5)
+                .withCompactionStepBytes(50);
+        final int count = 100;
+        boolean compactionWasRunning = false;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int round = 0; round < 20; round++) {
+                for (int key = 0; key < count; key++) {
+                    storage.persist(key, new byte[]{(byte) key, (byte) round});
+                    compactionWasRunning |= storage.getCompactionStats().isRunning();
+                }
+                for (int key = 0; key < count; key += 2) {
+                    storage.delete(key);
+                }
+            }
+
+            final CompactionStats stats = storage.getCompactionStats();
+            assertTrue("Compaction should be running in steps", compactionWasRunning);
+            assertTrue("Compaction should be completed", stats.getCompletedCount() > 0);
+            assertTrue("Space should be reclaimed", stats.getReclaimedBytes() > 0);
+            assertValuesAfterCompaction(storage, count, 19);
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertValuesAfterCompaction(storage, count, 19);
+        }
+    }
+
+    private void assertValuesAfterCompaction(KVStorage storage, int count, int lastRound) {
+        for (int key = 0; key < count; key++) {
+            final Optional<byte[]> value = storage.read(key);
+            if (key % 2 == 0) {
+                assertFalse("Value should not exist, because it was deleted", value.isPresent());
+            } else {
+                assertArrayEquals("Value should equal to later value", new byte[]{(byte) key, (byte) lastRound}, value.get());
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentedReadInNewSession() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(100).withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final int count = 100;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < count; key++) {
+                storage.persist(key, new byte[]{(byte) key, 1, 2, 3});
+            }
+            storage.delete(0);
+        }
+
+        assertTrue("Storage should be split into segments", segmentsDirectory.list().length > 1);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertFalse("Value should not exist, because it was deleted", storage.read(0).isPresent());
+            for (int key = 1; key < count; key++) {
+                assertArrayEquals("Value should equals to original", new byte[]{(byte) key, 1, 2, 3}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentedCompaction() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(200).withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final int count = 100;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int round = 0; round < 10; round++) {
+                for (int key = 0; key < count; key++) {
+                    storage.persist(key, new byte[]{(byte) key, (byte) round});
+                }
+            }
+            for (int key = 0; key < count; key += 2) {
+                storage.delete(key);
+            }
+
+            final int segmentsBefore = segmentsDirectory.list().length;
+
+            storage.compact();
+
+            final CompactionStats stats = storage.getCompactionStats();
+            assertTrue("Sealed segments should be compacted", stats.getCompletedCount() > 0);
+            assertTrue("Space should be reclaimed", stats.getReclaimedBytes() > 0);
+            assertTrue("Segments should be deleted", segmentsDirectory.list().length < segmentsBefore);
+            assertValuesAfterCompaction(storage, count, 9);
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertValuesAfterCompaction(storage, count, 9);
+        }
+    }
+
+    @Test
+    public void testSegmentedAutomaticCompaction() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(200)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withCompactionMinStorageSize(0)
+                .withCompactionStepBytes(50);
+        final int count = 100;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int round = 0; round < 20; round++) {
+                for (int key = 0; key < count; key++) {
+                    storage.persist(key, new byte[]{(byte) key, (byte) round});
+                }
+                for (int key = 0; key < count; key += 2) {
+                    storage.delete(key);
+                }
+            }
+
+            final CompactionStats stats = storage.getCompactionStats();
+            assertTrue("Compaction should be completed", stats.getCompletedCount() > 0);
+            assertTrue("Garbage should be bounded", stats.getGarbageBytes() < stats.getStorageBytes());
+            assertValuesAfterCompaction(storage, count, 19);
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertValuesAfterCompaction(storage, count, 19);
+        }
+    }
+
+    @Test
+    public void testFailedCompactionDoesNotFailWrites() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(200)
+                .withDurabilityMode(KVStorageConfig.DurabilityMode.PER_WRITE)
+                .withCompactionMinStorageSize(0)
+                .withCompactionStepBytes(50);
+        final File firstSegment = new File(segmentsDirectory, String.format("%020d", 1) + ".kvs");
+        final int count = 20;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < count; key++) {
+                storage.persist(key, new byte[]{(byte) key, 0, 0, 0});
+            }
+            // Bytes count of the first entry of sealed segment is damaged, so its evacuation fails
+            final byte[] bytesCount = new byte[4];
+            try (RandomAccessFile file = new RandomAccessFile(firstSegment, "rw")) {
+                file.readFully(bytesCount);
+                file.seek(0);
+                file.writeInt(Integer.MAX_VALUE);
+            }
+            final long syncCount = storage.getStats().getSyncCount();
+            for (int key = 0; key < count; key++) {
+                storage.persist(key, new byte[]{(byte) key, 1, 0, 0});
+            }
+
+            CompactionStats stats = storage.getCompactionStats();
+            assertEquals("Failed compaction should be recorded", 1, stats.getFailedCount());
+            assertTrue("Failure should be described", stats.getLastFailure().contains("is damaged"));
+            assertFalse("Failed compaction should be aborted", stats.isRunning());
+            assertEquals("Every write should be synced", syncCount + count, storage.getStats().getSyncCount());
+            assertValuesOfRound(storage, count, 1);
+
+            try (RandomAccessFile file = new RandomAccessFile(firstSegment, "rw")) {
+                file.write(bytesCount);
+            }
+            for (int round = 2; round < 6; round++) {
+                for (int key = 0; key < count; key++) {
+                    storage.persist(key, new byte[]{(byte) key, (byte) round, 0, 0});
+                }
+            }
+            stats = storage.getCompactionStats();
+            assertEquals("Compaction should not fail again", 1, stats.getFailedCount());
+            assertFalse("Failed compaction should be retried", firstSegment.exists());
+            assertValuesOfRound(storage, count, 5);
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertValuesOfRound(storage, count, 5);
+        }
+    }
+
+    private void assertValuesOfRound(KVStorage storage, int count, int round) {
+        for (int key = 0; key < count; key++) {
+            assertArrayEquals("Value should equal to value of the last round",
+                    new byte[]{(byte) key, (byte) round, 0, 0}, storage.read(key).get());
+        }
+    }
+
+    @Test
+    public void testHintFileWithLogTail() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(100).withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final File hintFile = new File(segmentsDirectory.getPath() + ".hint");
+        final int count = 100;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < count / 2; key++) {
+                storage.persist(key, new byte[]{(byte) key, 1, 2, 3});
+            }
+        }
+
+        assertTrue("Hint file should be written on close", hintFile.exists());
+
+        // Hint file is not updated, so entries of this session are replayed from log on next open
+        try (KVStorage storage = openTestStorage(config.withHintFile(false))) {
+            for (int key = count / 2; key < count; key++) {
+                storage.persist(key, new byte[]{(byte) key, 1, 2, 3});
+            }
+            storage.persist(1, new byte[]{1});
+            storage.delete(0);
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertFalse("Value should not exist, because it was deleted", storage.read(0).isPresent());
+            assertArrayEquals("Value should equal to later value", new byte[]{1}, storage.read(1).get());
+            for (int key = 2; key < count; key++) {
+                assertArrayEquals("Value should equals to original", new byte[]{(byte) key, 1, 2, 3}, storage.read(key).get());
+            }
+
+            storage.compact();
+
+            assertFalse("Hint file should be invalidated by compaction", hintFile.exists());
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertArrayEquals("Value should be read after compaction", new byte[]{2, 1, 2, 3}, storage.read(2).get());
+        }
+    }
+
+    @Test
+    public void testDamagedHintFileIsIgnored() throws IOException {
+        final int key = 42;
+        final byte[] value = new byte[]{7, -80, 6, 3};
+        final File hintFile = new File(storageFile.getPath() + ".hint");
+
+        try (KVStorage storage = openTestStorage()) {
+            storage.persist(key, value);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(hintFile, "rw");
+        file.seek(file.length() - 6);
+        file.write(new byte[]{22, -90});
+        file.close();
+
+        try (KVStorage storage = openTestStorage()) {
+            assertArrayEquals("Value should be read from log", value, storage.read(key).get());
+        }
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws IOException {
+        final int key = 42;
+        final byte[] value = new byte[]{7, -80, 6, 3};
+
+        try (KVStorage storage = openTestStorage()) {
+            storage.persist(key, value);
+        }
+        final long storageSize = storageFile.length();
+
+        // Partial entry, as if crash happened in the middle of write
+        RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+        file.seek(storageSize);
+        file.write(new byte[]{0, 0, 0, 20, 16, 0});
+        file.close();
+
+        try (KVStorage storage = openTestStorage(testConfig().withHintFile(false))) {
+            assertArrayEquals("Value should be read after torn tail", value, storage.read(key).get());
+            assertEquals("Torn tail should be truncated", storageSize, storageFile.length());
+            storage.persist(key + 1, value);
+        }
+
+        try (KVStorage storage = openTestStorage()) {
+            assertArrayEquals("Value written after truncation should be read", value, storage.read(key + 1).get());
+        }
+    }
+
+    @Test
+    public void testReplayOfEntriesAcrossReadBuffer() throws IOException {
+        // Values are larger than read buffer of replay, and entries are split by its boundaries
+        final int[] lengths = new int[]{0, 1, 70000, 65523, 100, 200000, 3};
+        final Random random = new Random(42);
+        final byte[][] values = new byte[lengths.length][];
+        final KVStorageConfig config = testConfig().withHintFile(false);
+        try (KVStorage storage = openTestStorage(config)) {
+            final WriteBatch batch = new WriteBatch();
+            for (int key = 0; key < lengths.length; key++) {
+                values[key] = new byte[lengths[key]];
+                random.nextBytes(values[key]);
+                if (key % 2 == 0) {
+                    storage.persist(key, values[key]);
+                } else {
+                    batch.persist(key, values[key]);
+                }
+            }
+            batch.delete(0);
+            storage.persistAll(batch);
+        }
+
+        for (KVStorageConfig.IndexMode indexMode : KVStorageConfig.IndexMode.values()) {
+            try (KVStorage storage = openTestStorage(config.withIndexMode(indexMode))) {
+                assertFalse("Deleted key should not be read", storage.read(0).isPresent());
+                for (int key = 1; key < lengths.length; key++) {
+                    assertArrayEquals("Value should be replayed", values[key], storage.read(key).get());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelReplay() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withHintFile(false)
+                .withRecoveryThreads(4)
+                .withRecoveryChunkBytes(1000);
+        final Random random = new Random(42);
+        final Map<Integer, byte[]> expected = new HashMap<>();
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int i = 0; i < 3000; i++) {
+                final int key = random.nextInt(300);
+                if (i % 10 == 0) {
+                    storage.delete(key);
+                    expected.remove(key);
+                } else if (i % 50 == 1) {
+                    // Batches are split between chunks
+                    final WriteBatch batch = new WriteBatch();
+                    for (int j = 0; j < 20; j++) {
+                        final byte[] value = new byte[100];
+                        random.nextBytes(value);
+                        batch.persist(key + j, value);
+                        expected.put(key + j, value);
+                    }
+                    batch.delete(key + 1);
+                    expected.remove(key + 1);
+                    storage.persistAll(batch);
+                } else {
+                    final byte[] value = new byte[random.nextInt(200)];
+                    random.nextBytes(value);
+                    storage.persist(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        for (KVStorageConfig.IndexMode indexMode : KVStorageConfig.IndexMode.values()) {
+            final KVStorageStats sequentialStats;
+            try (KVStorage storage = openTestStorage(config.withIndexMode(indexMode).withRecoveryThreads(1))) {
+                sequentialStats = storage.getStats();
+            }
+            try (KVStorage storage = openTestStorage(config.withIndexMode(indexMode))) {
+                for (int key = 0; key < 320; key++) {
+                    final Optional<byte[]> value = storage.read(key);
+                    assertEquals("Key should exist, if it was not deleted", expected.containsKey(key), value.isPresent());
+                    if (value.isPresent()) {
+                        assertArrayEquals("Value should equal to the last written", expected.get(key), value.get());
+                    }
+                }
+                final KVStorageStats stats = storage.getStats();
+                assertEquals("Key count should equal to sequential replay",
+                        sequentialStats.getKeyCount(), stats.getKeyCount());
+                assertEquals("Live bytes should equal to sequential replay",
+                        sequentialStats.getLiveBytes(), stats.getLiveBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelReplayDiscardsTornBatch() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withHintFile(false)
+                .withRecoveryThreads(4)
+                .withRecoveryChunkBytes(100);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 50; key++) {
+                storage.persist(key, new byte[]{(byte) key});
+            }
+        }
+        final long storageSize = storageFile.length();
+
+        // Storage is not closed, as if process crashed
+        final KVStorage crashedStorage = openTestStorage(config);
+        final WriteBatch batch = new WriteBatch().setSync(true);
+        for (int key = 0; key < 30; key++) {
+            batch.persist(key, new byte[20]);
+        }
+        crashedStorage.persistAll(batch);
+        CrashSimulator.crash(crashedStorage);
+
+        // Last entry of batch, which is split between chunks, is torn
+        RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 50; key++) {
+                assertArrayEquals("Value should be kept, because batch was not completed",
+                        new byte[]{(byte) key}, storage.read(key).get());
+            }
+            assertEquals("Torn batch should be truncated", storageSize, storageFile.length());
+        }
+    }
+
+    @Test
+    public void testParallelReplayAfterCheckpoint() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withRecoveryThreads(4)
+                .withRecoveryChunkBytes(100);
+        final Map<Integer, byte[]> expected = new HashMap<>();
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 200; key++) {
+                final byte[] value = new byte[]{(byte) key, 1};
+                storage.persist(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        // Entries after checkpoint overwrite and delete keys of hint file, and keys, which are replayed only
+        final KVStorage crashedStorage = openTestStorage(config);
+        for (int key = 100; key < 300; key++) {
+            if (key % 3 == 0) {
+                crashedStorage.delete(key);
+                expected.remove(key);
+            } else {
+                final byte[] value = new byte[]{(byte) key, 2, 2};
+                crashedStorage.persist(key, value);
+                expected.put(key, value);
+            }
+        }
+        // Synced batch forces all entries, appended before it
+        final WriteBatch batch = new WriteBatch().setSync(true);
+        for (int key = 250; key < 300; key += 2) {
+            final byte[] value = new byte[]{(byte) key, 3, 3, 3};
+            batch.persist(key, value);
+            expected.put(key, value);
+        }
+        crashedStorage.persistAll(batch);
+        CrashSimulator.crash(crashedStorage);
+
+        for (KVStorageConfig.IndexMode indexMode : KVStorageConfig.IndexMode.values()) {
+            final KVStorage sequentialStorage = openTestStorage(config.withIndexMode(indexMode).withRecoveryThreads(1));
+            final KVStorageStats sequentialStats = sequentialStorage.getStats();
+            CrashSimulator.crash(sequentialStorage);
+
+            final KVStorage storage = openTestStorage(config.withIndexMode(indexMode));
+            for (int key = 0; key < 300; key++) {
+                final Optional<byte[]> value = storage.read(key);
+                assertEquals("Key should exist, if it was not deleted", expected.containsKey(key), value.isPresent());
+                if (value.isPresent()) {
+                    assertArrayEquals("Value should equal to the last written", expected.get(key), value.get());
+                }
+            }
+            final KVStorageStats stats = storage.getStats();
+            assertEquals("Key count should equal to sequential replay",
+                    sequentialStats.getKeyCount(), stats.getKeyCount());
+            assertEquals("Live bytes should equal to sequential replay",
+                    sequentialStats.getLiveBytes(), stats.getLiveBytes());
+            CrashSimulator.crash(storage);
+        }
+    }
+
+    @Test
+    public void testFailedAppendDoesNotDamageLog() throws IOException {
+        final byte[] largeValue = new byte[100_000];
+        new Random(42).nextBytes(largeValue);
+
+        try (KVStorage storage = openTestStorage()) {
+            for (int key = 0; key < 10; key++) {
+                storage.persist(key, new byte[10]);
+            }
+            // Buffered entries and header fit, value is written partially
+            WriteFailureSimulator.failWriteAfter(storage, 1000);
+            try {
+                storage.persist(100, largeValue);
+                fail("Append should fail");
+            } catch (IOException expected) {
+                // write failure is simulated
+            }
+            assertFalse("Value of failed append should not be read", storage.read(100).isPresent());
+            storage.persist(10, new byte[10]);
+        }
+
+        try (KVStorage storage = openTestStorage()) {
+            for (int key = 0; key <= 10; key++) {
+                assertTrue("Value, written before or after failed append, should be kept",
+                        storage.read(key).isPresent());
+            }
+            assertFalse("Value of failed append should not be replayed", storage.read(100).isPresent());
+        }
+    }
+
+    @Test
+    public void testFailedBatchDoesNotDamageLog() throws IOException {
+        final byte[] largeValue = new byte[100_000];
+        new Random(42).nextBytes(largeValue);
+
+        try (KVStorage storage = openTestStorage()) {
+            for (int key = 0; key < 10; key++) {
+                storage.persist(key, new byte[]{1});
+            }
+            // The first entry of batch is written, value of the second one is written partially
+            WriteFailureSimulator.failWriteAfter(storage, 1000);
+            try {
+                storage.persistAll(new WriteBatch().persist(0, new byte[]{2}).persist(1, largeValue));
+                fail("Batch should fail");
+            } catch (IOException expected) {
+                // write failure is simulated
+            }
+            storage.persist(10, new byte[]{1});
+        }
+
+        try (KVStorage storage = openTestStorage()) {
+            for (int key = 0; key <= 10; key++) {
+                assertArrayEquals("Value should be kept, because batch failed", new byte[]{1}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testDamageDetectionOnRead() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final int key = 42;
+        final byte[] value = new byte[]{7, -80, 6, 3};
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(key, value);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+        file.seek(file.length() - 1);
+        file.write(new byte[]{22});
+        file.close();
+
+        // Index is loaded from hint file, so entry is verified when it is read
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.read(key);
+            fail("Damaged entry should not be read");
+        } catch (UncheckedIOException e) {
+            assertTrue("Damage should be detected", e.getCause() instanceof KVStorageDamagedException);
+        }
+    }
+
+    @Test
+    public void testSegmentedDamageDetection() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(100).withHintFile(false);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 20; key++) {
+                storage.persist(key, new byte[]{(byte) key, 1, 2, 3});
+            }
+        }
+
+        // Sealed segment is damaged, it can not be taken for torn tail
+        RandomAccessFile file = new RandomAccessFile(new File(segmentsDirectory, String.format("%020d", 1) + ".kvs"), "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        exception.expect(KVStorageDamagedException.class);
+
+        openTestStorage(config);
+    }
+
+    @Test
+    public void testLegacyStorageIsVerifiedAndMigrated() throws IOException {
+        final Map<Integer, byte[]> expected = writeLegacyStorage();
+        final long legacySize = storageFile.length();
+
+        // Migrated storage crashes, so meta file is not written by close
+        final KVStorage crashedStorage = openTestStorage(testConfig().withHintFile(false)
+                .withDurabilityMode(KVStorageConfig.DurabilityMode.PER_WRITE));
+        for (int key = 0; key < 100; key++) {
+            assertArrayEquals("Legacy value should be read", expected.get(key), crashedStorage.read(key).orElse(null));
+        }
+        crashedStorage.persist(1000, new byte[]{1});
+        CrashSimulator.crash(crashedStorage);
+        assertTrue("Legacy entries should be kept", storageFile.length() > legacySize);
+        assertTrue("Meta file should be migrated", metaFile.length() != 16);
+
+        try (KVStorage storage = openTestStorage(testConfig().withHintFile(false))) {
+            assertArrayEquals("Legacy value should be read after migration", expected.get(7), storage.read(7).get());
+            assertArrayEquals("Value written after migration should be read", new byte[]{1}, storage.read(1000).get());
+        }
+    }
+
+    @Test
+    public void testLegacyStorageDamageDetection() throws IOException {
+        writeLegacyStorage();
+
+        // Value byte of the last entry is changed, its length is kept
+        RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+        file.seek(file.length() - 1);
+        file.write(new byte[]{22});
+        file.close();
+
+        exception.expect(KVStorageDamagedException.class);
+
+        openTestStorage();
+    }
+
+    // Writes storage file and meta file, as storage did before entry checksums, and returns its values.
+    private Map<Integer, byte[]> writeLegacyStorage() throws IOException {
+        final Map<Integer, byte[]> values = new HashMap<>();
+        final Map<Integer, byte[]> legacyIndex = new HashMap<>(); // key to entry bytes, as legacy storage kept
+        try (RandomAccessFile file = new RandomAccessFile(storageFile, "rw")) {
+            for (int i = 0; i < 300; i++) {
+                final int key = i % 100;
+                final boolean deleted = i % 7 == 3;
+                final byte[] value = deleted ? new byte[0] : new byte[]{(byte) i, (byte) key, 100, (byte) (i * 31)};
+                final byte[] entry = ByteBuffer.allocate(9 + value.length)
+                        .putInt(9 + value.length).put((byte) (deleted ? 1 : 0)).putInt(key).put(value).array();
+                file.write(entry);
+                if (deleted) {
+                    legacyIndex.remove(key);
+                    values.remove(key);
+                } else {
+                    legacyIndex.put(key, entry);
+                    values.put(key, value);
+                }
+            }
+        }
+        try {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            legacyIndex.forEach((key, entry) -> md5.update(entry));
+            Files.write(metaFile.toPath(), md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return values;
+    }
+
+    @Test
+    public void testConcurrentReadsDuringWritesAndCompaction() throws Exception {
+        assertConcurrentReads(testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withCompactionMinStorageSize(1000)
+                .withCompactionStepBytes(50));
+    }
+
+    @Test
+    public void testSegmentedConcurrentReadsDuringWritesAndCompaction() throws Exception {
+        assertConcurrentReads(segmentedTestConfig(200)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withMemoryMappedReads(true)
+                .withCompactionMinStorageSize(1000)
+                .withCompactionStepBytes(50));
+    }
+
+    // Odd keys are overwritten and even keys are overwritten and deleted by writer,
+    // while readers check that odd keys are always readable.
+    private void assertConcurrentReads(KVStorageConfig config) throws Exception {
+        final int count = 100;
+        final int readersCount = 4;
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try (KVStorage storage = KVStorageFactory.openConcurrentStorage(config)) {
+            for (int key = 0; key < count; key++) {
+                storage.persist(key, new byte[]{(byte) key, 0});
+            }
+
+            final List<Thread> readers = new ArrayList<>();
+            for (int i = 0; i < readersCount; i++) {
+                final Thread reader = new Thread(() -> {
+                    try {
+                        while (writing.get()) {
+                            for (int key = 1; key < count; key += 2) {
+                                final Optional<byte[]> value = storage.read(key);
+                                assertTrue("Value should exist, because it was never deleted", value.isPresent());
+                                assertEquals("Value should belong to its key", (byte) key, value.get()[0]);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+
+            for (int round = 1; round < 50; round++) {
+                for (int key = 0; key < count; key++) {
+                    storage.persist(key, new byte[]{(byte) key, (byte) round, 1, 2, 3});
+                }
+                for (int key = 0; key < count; key += 2) {
+                    storage.delete(key);
+                }
+            }
+            writing.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+
+            if (failure.get() != null) {
+                throw new AssertionError("Concurrent read failed", failure.get());
+            }
+            assertTrue("Compaction should be completed", storage.getCompactionStats().getCompletedCount() > 0);
+            assertArrayEquals("Value should equal to later value", new byte[]{1, 49, 1, 2, 3}, storage.read(1).get());
+        }
+    }
+
+    @Test
+    public void testPerWriteDurability() throws Exception {
+        final KVStorageConfig config = testConfig()
+                .withDurabilityMode(KVStorageConfig.DurabilityMode.PER_WRITE)
+                .withHintFile(false);
+        final int count = 100;
+        final int writersCount = 4;
+
+        // Storage is not closed, as if process crashed
+        final KVStorage crashedStorage = KVStorageFactory.openConcurrentStorage(config);
+        final List<Thread> writers = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < writersCount; i++) {
+            final int writer = i;
+            final Thread thread = new Thread(() -> {
+                try {
+                    for (int key = writer; key < count; key += writersCount) {
+                        crashedStorage.persist(key, new byte[]{(byte) key, 1, 2, 3});
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            thread.start();
+            writers.add(thread);
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("Concurrent write failed", failure.get());
+        }
+        CrashSimulator.crash(crashedStorage);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < count; key++) {
+                assertArrayEquals("Value should be durable after write", new byte[]{(byte) key, 1, 2, 3}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testPeriodicDurability() throws Exception {
+        final KVStorageConfig config = testConfig()
+                .withDurabilityMode(KVStorageConfig.DurabilityMode.PERIODIC)
+                .withSyncIntervalMillis(10)
+                .withHintFile(false);
+        final int key = 42;
+        final byte[] value = new byte[]{7, -80, 6, 3};
+
+        // Storage is not closed, as if process crashed
+        final KVStorage crashedStorage = openTestStorage(config);
+        crashedStorage.persist(key, value);
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (crashedStorage.getStats().getSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("Write should be forced by periodic sync", 1, crashedStorage.getStats().getSyncCount());
+        CrashSimulator.crash(crashedStorage);
+
+        try (KVStorage storage = openTestStorage(config.withDurabilityMode(KVStorageConfig.DurabilityMode.NONE))) {
+            assertArrayEquals("Value should be durable after sync interval", value, storage.read(key).get());
+        }
+    }
+
+    @Test
+    public void testWriteBatch() throws IOException {
+        try (KVStorage storage = openTestStorage()) {
+            storage.persist(1, new byte[]{1});
+            storage.persistAll(new WriteBatch()
+                    .persist(2, new byte[]{2})
+                    .persist(3, new byte[]{3})
+                    .delete(1)
+                    .persist(2, new byte[]{2, 2}));
+
+            assertFalse("Value should not exist, because it was deleted", storage.read(1).isPresent());
+            assertArrayEquals("Value should equal to later value", new byte[]{2, 2}, storage.read(2).get());
+        }
+
+        try (KVStorage storage = openTestStorage()) {
+            assertFalse("Value should not exist, because it was deleted", storage.read(1).isPresent());
+            assertArrayEquals("Value should equal to later value", new byte[]{2, 2}, storage.read(2).get());
+            assertArrayEquals("Value should equals to original", new byte[]{3}, storage.read(3).get());
+        }
+    }
+
+    @Test
+    public void testWriteBatchSkipsDeletesOfAbsentKeys() throws IOException {
+        final KVStorageConfig config = testConfig().withHintFile(false);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[]{1});
+            final long storageBytes = storage.getStats().getStorageBytes();
+            storage.persistAll(new WriteBatch().delete(2).delete(3));
+            assertEquals("Deletes of absent keys should not be appended", storageBytes, storage.getStats().getStorageBytes());
+
+            // Delete of key, persisted earlier in batch, is kept, while trailing delete of absent key is skipped
+            storage.persistAll(new WriteBatch()
+                    .persist(2, new byte[]{2})
+                    .delete(2)
+                    .persist(3, new byte[]{3})
+                    .delete(4));
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertArrayEquals("Value should equals to original", new byte[]{1}, storage.read(1).get());
+            assertFalse("Value should not exist, because it was deleted", storage.read(2).isPresent());
+            assertArrayEquals("Batch should be complete without skipped delete", new byte[]{3}, storage.read(3).get());
+        }
+    }
+
+    @Test
+    public void testTornWriteBatchIsDiscarded() throws IOException {
+        final KVStorageConfig config = testConfig().withHintFile(false);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[]{1});
+        }
+        final long storageSize = storageFile.length();
+
+        // Storage is not closed, as if process crashed
+        final KVStorage crashedStorage = openTestStorage(config);
+        crashedStorage.persistAll(new WriteBatch()
+                .persist(2, new byte[]{2})
+                .delete(1)
+                .persist(3, new byte[]{3})
+                .setSync(true));
+        CrashSimulator.crash(crashedStorage);
+
+        // Last entry of batch is torn, as if crash happened in the middle of write
+        RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertArrayEquals("Value should be kept, because batch was not completed", new byte[]{1}, storage.read(1).get());
+            assertFalse("Value of torn batch should not exist", storage.read(2).isPresent());
+            assertEquals("Torn batch should be truncated", storageSize, storageFile.length());
+        }
+    }
+
+    @Test
+    public void testSegmentedCompactionOfWriteBatch() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(100).withCompactionGarbageRatio(1).withHintFile(false);
+        final WriteBatch batch = new WriteBatch();
+        for (int key = 0; key < 10; key++) {
+            batch.persist(key, new byte[]{(byte) key, 1, 2, 3});
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persistAll(batch);
+            // Last entry of batch becomes garbage, so the last copied entry is in the middle of batch
+            storage.persist(9, new byte[]{9, 1, 2, 3});
+            for (int key = 10; key < 30; key++) {
+                storage.persist(key, new byte[]{(byte) key});
+            }
+            // Batch entries are copied to the end of log
+            storage.compact();
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 10; key++) {
+                assertArrayEquals("Value should equals to original", new byte[]{(byte) key, 1, 2, 3}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testReadAll() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final int count = 100;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = count - 1; key >= 0; key--) {
+                storage.persist(key, new byte[]{(byte) key, 1, 2, 3});
+            }
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            final int[] keys = new int[count + 1];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = i;
+            }
+            final Map<Integer, byte[]> values = storage.readAll(keys);
+
+            assertEquals("Only existing values should be read", count, values.size());
+            for (int key = 0; key < count; key++) {
+                assertArrayEquals("Value should equals to original", new byte[]{(byte) key, 1, 2, 3}, values.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void testValueCache() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withValueCacheBytes(1 << 20);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[]{1, 2, 3});
+            storage.persist(2, new byte[]{4, 5, 6});
+
+            assertArrayEquals("Value should equals to original", new byte[]{1, 2, 3}, storage.read(1).get());
+            assertArrayEquals("Value should be read from cache", new byte[]{1, 2, 3}, storage.read(1).get());
+            assertEquals("Second read should hit cache", 1, storage.getCacheStats().getHits());
+            assertEquals("First read should miss cache", 1, storage.getCacheStats().getMisses());
+
+            storage.persist(1, new byte[]{7, 8});
+            assertArrayEquals("Persist should invalidate cached value", new byte[]{7, 8}, storage.read(1).get());
+
+            storage.read(2);
+            storage.delete(2);
+            assertFalse("Delete should invalidate cached value", storage.read(2).isPresent());
+
+            final Map<Integer, byte[]> values = storage.readAll(new int[]{1, 2});
+            assertEquals("Only existing values should be read", 1, values.size());
+            assertArrayEquals("Value should be read from cache", new byte[]{7, 8}, values.get(1));
+        }
+    }
+
+    @Test
+    public void testValueCacheKeepsFrequentValues() throws IOException {
+        final long budget = 64 * 1024;
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withValueCacheBytes(budget);
+        final int hotKeys = 100;
+        final int coldKeys = 5000;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < hotKeys + coldKeys; key++) {
+                storage.persist(key, new byte[100]);
+            }
+            for (int i = 0; i < 5; i++) {
+                for (int key = 0; key < hotKeys; key++) {
+                    storage.read(key);
+                }
+            }
+            for (int key = hotKeys; key < hotKeys + coldKeys; key++) {
+                storage.read(key);
+            }
+
+            final long hitsBefore = storage.getCacheStats().getHits();
+            for (int key = 0; key < hotKeys; key++) {
+                storage.read(key);
+            }
+            final CacheStats stats = storage.getCacheStats();
+
+            assertTrue("Scan of cold values should not evict frequent values",
+                    stats.getHits() - hitsBefore >= hotKeys * 9 / 10);
+            assertTrue("Cold values should be evicted", stats.getEvictions() > 0);
+            assertTrue("Cached values should fit into budget", stats.getBytes() <= budget);
+        }
+    }
+
+    @Test
+    public void testCompression() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final KVStorageConfig compressedConfig = config.withCompression(KVStorageConfig.Compression.DEFLATE);
+        final byte[] compressible = new byte[1000];
+        for (int i = 0; i < compressible.length; i++) {
+            compressible[i] = (byte) (i % 10);
+        }
+        final byte[] incompressible = new byte[1000];
+        new Random(42).nextBytes(incompressible);
+        final byte[] small = new byte[]{1, 1, 1, 1, 1, 1, 1, 1};
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(0, compressible);
+        }
+        final long rawLength = storageFile.length();
+
+        try (KVStorage storage = openTestStorage(compressedConfig)) {
+            storage.persist(1, compressible);
+            storage.persist(2, incompressible);
+            storage.persist(3, small);
+            assertArrayEquals("Value should equals to original", compressible, storage.read(1).get());
+        }
+        assertTrue("Compressible value should be stored compressed",
+                storageFile.length() - rawLength < rawLength / 2 + incompressible.length + small.length + 100);
+
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config, compressedConfig.withHintFile(false),
+                compressedConfig.withIndexMode(KVStorageConfig.IndexMode.VALUES)}) {
+            try (KVStorage storage = openTestStorage(reopenConfig)) {
+                assertArrayEquals("Raw value should be read", compressible, storage.read(0).get());
+                assertArrayEquals("Compressed value should be read", compressible, storage.read(1).get());
+                assertArrayEquals("Incompressible value should be read", incompressible, storage.read(2).get());
+                assertArrayEquals("Small value should be read", small, storage.read(3).get());
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentedCompactionOfCompressedWriteBatch() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(4096)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withCompression(KVStorageConfig.Compression.DEFLATE)
+                .withHintFile(false);
+        final byte[] value = new byte[500];
+        Arrays.fill(value, (byte) 7);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            final WriteBatch batch = new WriteBatch();
+            for (int key = 0; key < 10; key++) {
+                batch.persist(key, value);
+            }
+            storage.persistAll(batch);
+            final byte[] incompressible = new byte[1000];
+            new Random(42).nextBytes(incompressible);
+            for (int i = 0; i < 100; i++) {
+                storage.persist(100, incompressible);
+            }
+            storage.compact();
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 10; key++) {
+                assertArrayEquals("Value should equals to original", value, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testStats() throws IOException {
+        final KVStorageConfig config = testConfig().withLatencyHistograms(true).withHintFile(false);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[]{1, 2, 3});
+            storage.persist(2, new byte[]{4, 5, 6});
+            storage.read(1);
+            storage.readAll(new int[]{1, 2, 3});
+            storage.delete(2);
+            final WriteBatch batch = new WriteBatch();
+            batch.persist(3, new byte[]{7});
+            batch.delete(1);
+            storage.persistAll(batch);
+
+            final KVStorageStats stats = storage.getStats();
+            assertEquals("Every read key should be counted", 4, stats.getReadCount());
+            assertEquals("Persists should be counted", 3, stats.getPersistCount());
+            assertEquals("Deletes should be counted", 2, stats.getDeleteCount());
+            assertEquals("Write batches should be counted", 1, stats.getWriteBatchCount());
+            assertEquals("Read calls should be measured", 2, stats.getReadLatency().getCount());
+            assertEquals("Write calls should be measured", 4, stats.getWriteLatency().getCount());
+            assertTrue("Percentiles should be ordered",
+                    stats.getReadLatency().getP50Nanos() <= stats.getReadLatency().getP999Nanos());
+            assertTrue("Percentile should not exceed max latency",
+                    stats.getWriteLatency().getP999Nanos() <= stats.getWriteLatency().getMaxNanos());
+            assertEquals("Live keys should be counted", 1, stats.getKeyCount());
+            assertEquals("Appended entries should be in storage", stats.getAppendedBytes(), stats.getStorageBytes());
+            assertTrue("Overwritten entries should not be live", stats.getLiveBytes() < stats.getStorageBytes());
+        }
+
+        try (KVStorage storage = openTestStorage(config.withLatencyHistograms(false))) {
+            final KVStorageStats stats = storage.getStats();
+            assertEquals("Whole storage should be replayed", storageFile.length(), stats.getReplayedBytes());
+            storage.read(3);
+            assertEquals("Reads should be counted", 1, storage.getStats().getReadCount());
+            assertEquals("Latencies should not be measured", 0, storage.getStats().getReadLatency().getCount());
+        }
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName("com.futujaos.kvstorage:type=KVStorage,name="
+                + ObjectName.quote(storageFile.getAbsolutePath()));
+
+        try (KVStorage storage = openTestStorage(testConfig().withJmx(true))) {
+            storage.persist(1, new byte[]{1});
+            storage.read(1);
+
+            final CompositeData stats = (CompositeData) server.getAttribute(name, "Stats");
+            assertEquals("Stats should be exposed", 1L, stats.get("readCount"));
+            assertEquals("Stats should be exposed", 1L, stats.get("keyCount"));
+        }
+        assertFalse("Storage should be unregistered on close", server.isRegistered(name));
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withSortedIndex(true)
+                .withScanBatchSize(3);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 10; key >= -10; key--) {
+                storage.persist(key, new byte[]{(byte) key});
+            }
+            storage.delete(0);
+            storage.persist(Integer.MAX_VALUE, new byte[]{1});
+        }
+
+        // Index is sorted, when it is loaded from hint file and when log is replayed
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config, config.withHintFile(false)}) {
+            try (KVStorage storage = openTestStorage(reopenConfig)) {
+                final List<Integer> keys = new ArrayList<>();
+                final Iterator<KV> range = storage.scan(-5, 5);
+                while (range.hasNext()) {
+                    final KV kv = range.next();
+                    assertArrayEquals("Value should equals to original", new byte[]{(byte) kv.getKey()}, kv.getValue());
+                    keys.add(kv.getKey());
+                }
+                assertEquals("Range should be scanned in key order", Arrays.asList(-5, -4, -3, -2, -1, 1, 2, 3, 4), keys);
+
+                int count = 0;
+                int lastKey = Integer.MIN_VALUE;
+                for (Iterator<KV> all = storage.scan(); all.hasNext(); count++) {
+                    final int key = all.next().getKey();
+                    assertTrue("Keys should be scanned in order", count == 0 || key > lastKey);
+                    lastKey = key;
+                }
+                assertEquals("All keys should be scanned", 21, count);
+                assertEquals("Max key should be scanned", Integer.MAX_VALUE, lastKey);
+            }
+        }
+    }
+
+    @Test
+    public void testScanWithWrites() throws IOException {
+        final KVStorageConfig config = testConfig().withSortedIndex(true).withScanBatchSize(2);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 10; key++) {
+                storage.persist(key, new byte[]{(byte) key});
+            }
+
+            final List<Integer> keys = new ArrayList<>();
+            final Iterator<KV> scan = storage.scan(0, 100);
+            while (scan.hasNext()) {
+                final int key = scan.next().getKey();
+                keys.add(key);
+                if (key == 3) {
+                    storage.delete(6);
+                    storage.persist(50, new byte[]{50});
+                    storage.persist(-1, new byte[]{-1});
+                }
+            }
+            assertEquals("Writes beyond current batch should be visible",
+                    Arrays.asList(0, 1, 2, 3, 4, 5, 7, 8, 9, 50), keys);
+        }
+    }
+
+    @Test
+    public void testScanRequiresSortedIndex() throws IOException {
+        try (KVStorage storage = openTestStorage()) {
+            exception.expect(UnsupportedOperationException.class);
+            storage.scan(0, 10);
+        }
+    }
+
+    @Test
+    public void testReadInto() throws IOException {
+        final byte[] value = new byte[]{1, -50, 2, 7};
+        final byte[] compressible = new byte[1000];
+        Arrays.fill(compressible, (byte) 3);
+
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withCompression(KVStorageConfig.Compression.DEFLATE);
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, value);
+            storage.persist(2, compressible);
+        }
+
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config, testConfig()}) {
+            try (KVStorage storage = openTestStorage(reopenConfig)) {
+                final ByteBuffer dst = ByteBuffer.allocateDirect(1010);
+                dst.position(3);
+                assertEquals("Value length should be returned", value.length, storage.readInto(1, dst));
+                assertEquals("Position should be advanced", 3 + value.length, dst.position());
+                final byte[] read = new byte[value.length];
+                ((ByteBuffer) dst.duplicate().position(3)).get(read);
+                assertArrayEquals("Value should equals to original", value, read);
+
+                final ByteBuffer small = ByteBuffer.allocate(value.length - 1);
+                assertEquals("Length of value, which does not fit, should be returned",
+                        value.length, storage.readInto(1, small));
+                assertEquals("Buffer should not be changed", 0, small.position());
+
+                final ByteBuffer large = ByteBuffer.allocate(compressible.length);
+                assertEquals("Value length should be returned", compressible.length, storage.readInto(2, large));
+                assertArrayEquals("Compressed value should be read", compressible, large.array());
+
+                assertEquals("Absent key should not be read", -1, storage.readInto(3, dst));
+            }
+        }
+    }
+
+    @Test
+    public void testReadView() throws IOException {
+        final byte[] value = new byte[]{66, -8, 13, 0, 20};
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withMemoryMappedReads(true);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[]{1});
+            storage.persist(2, value);
+
+            // Value, written in same session, is viewed after flush of output buffer
+            final ByteBuffer view = storage.readView(2).get();
+            assertTrue("View should be read-only", view.isReadOnly());
+            final byte[] read = new byte[view.remaining()];
+            view.get(read);
+            assertArrayEquals("Value should equals to original", value, read);
+            assertFalse("Absent key should not be viewed", storage.readView(3).isPresent());
+        }
+
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config, config.withMemoryMappedReads(false),
+                testConfig()}) {
+            try (KVStorage storage = openTestStorage(reopenConfig)) {
+                final ByteBuffer view = storage.readView(2).get();
+                assertTrue("View should be read-only", view.isReadOnly());
+                assertEquals("View should contain value", ByteBuffer.wrap(value), view);
+            }
+        }
+    }
+
+    @Test
+    public void testReadViewOfDamagedValue() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withMemoryMappedReads(true);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[]{1, 2, 3, 4});
+        }
+        try (RandomAccessFile file = new RandomAccessFile(storageFile, "rw")) {
+            file.seek(file.length() - 1);
+            file.write(42);
+        }
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.readView(1);
+            fail("Damaged entry should not be viewed");
+        } catch (UncheckedIOException e) {
+            assertTrue("Damage should be detected", e.getCause() instanceof KVStorageDamagedException);
+        }
+    }
+
+    @Test
+    public void testTransferTo() throws IOException {
+        final byte[] value = new byte[3000];
+        new Random(42).nextBytes(value);
+        final byte[] compressible = new byte[1000];
+        Arrays.fill(compressible, (byte) 3);
+        final KVStorageConfig config = segmentedTestConfig(4096)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withCompression(KVStorageConfig.Compression.DEFLATE);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            // Value is written into second segment, so it is transferred from offset in segment file
+            storage.persist(0, value);
+            storage.persist(1, value);
+            storage.persist(2, compressible);
+            assertTransferred(storage, value, compressible);
+        }
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config,
+                config.withIndexMode(KVStorageConfig.IndexMode.VALUES)}) {
+            try (KVStorage storage = openTestStorage(reopenConfig)) {
+                assertTransferred(storage, value, compressible);
+            }
+        }
+    }
+
+    @Test
+    public void testTransferToRejectsNonBlockingChannel() throws IOException {
+        try (KVStorage storage = openTestStorage(testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS))) {
+            storage.persist(1, new byte[100000]);
+            final Pipe pipe = Pipe.open();
+            try {
+                pipe.sink().configureBlocking(false);
+                storage.transferTo(1, pipe.sink());
+                fail("Non-blocking channel should be rejected");
+            } catch (IllegalArgumentException e) {
+                // Value is not written into channel, which would not accept it
+            } finally {
+                pipe.sink().close();
+                pipe.source().close();
+            }
+        }
+    }
+
+    @Test
+    public void testTransferToFailsOnTruncatedFile() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[3000]);
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            // File ends in the middle of value, after location of value was looked up
+            try (RandomAccessFile file = new RandomAccessFile(storageFile, "rw")) {
+                file.setLength(file.length() - 1000);
+            }
+            storage.transferTo(1, Channels.newChannel(new ByteArrayOutputStream()));
+            fail("Value should not be transferred from truncated file");
+        } catch (KVStorageDamagedException e) {
+            // Transfer stops, when file ends
+        }
+    }
+
+    private void assertTransferred(KVStorage storage, byte[] value, byte[] compressible) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WritableByteChannel channel = Channels.newChannel(out);
+        assertEquals("Value length should be returned", value.length, storage.transferTo(1, channel));
+        assertEquals("Value length should be returned", compressible.length, storage.transferTo(2, channel));
+        assertEquals("Absent key should not be transferred", -1, storage.transferTo(3, channel));
+
+        final byte[] transferred = out.toByteArray();
+        assertArrayEquals("Value should equals to original", value, Arrays.copyOf(transferred, value.length));
+        assertArrayEquals("Compressed value should be transferred decoded", compressible,
+                Arrays.copyOfRange(transferred, value.length, transferred.length));
+    }
+
+    @Test
+    public void testStreamedValue() throws Exception {
+        final byte[] value = new byte[200000];
+        new Random(42).nextBytes(value);
+        final KVStorageConfig config = segmentedTestConfig(65536)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withCompression(KVStorageConfig.Compression.DEFLATE);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(0, new byte[]{1, 2, 3});
+            storage.persist(1, new byte[]{4, 5});
+            try (OutputStream out = storage.openWriter(1)) {
+                out.write(value[0]);
+                for (int offset = 1; offset < value.length; offset += 7000) {
+                    out.write(value, offset, Math.min(7000, value.length - offset));
+                }
+                // Writes are not blocked by open value writer
+                final Thread writer = new Thread(() -> {
+                    try {
+                        storage.persist(2, value);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writer.start();
+                writer.join(10000);
+                assertFalse("Write should not wait for value writer", writer.isAlive());
+                assertArrayEquals("Write should be applied, while value writer is open", value, storage.read(2).get());
+                assertArrayEquals("Previous value should be read, until writer is closed",
+                        new byte[]{4, 5}, storage.read(1).get());
+            }
+            storage.persist(2, new byte[]{6});
+            assertStreamed(storage, value);
+        }
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config,
+                config.withIndexMode(KVStorageConfig.IndexMode.VALUES)}) {
+            try (KVStorage storage = openTestStorage(reopenConfig)) {
+                assertStreamed(storage, value);
+            }
+        }
+    }
+
+    private void assertStreamed(KVStorage storage, byte[] value) throws IOException {
+        assertArrayEquals("Streamed value should be read", value, storage.read(1).get());
+        assertArrayEquals("Value should be read after streamed one", new byte[]{6}, storage.read(2).get());
+        assertFalse("Absent key should not be opened", storage.openReader(3).isPresent());
+        try (InputStream in = storage.openReader(1).get()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(in.read());
+            final byte[] part = new byte[5000];
+            int count;
+            while ((count = in.read(part)) >= 0) {
+                out.write(part, 0, count);
+            }
+            assertArrayEquals("Value should be read by parts", value, out.toByteArray());
+        }
+        try (InputStream in = storage.openReader(0).get()) {
+            assertArrayEquals("Value should be read by stream", new byte[]{1, 2, 3},
+                    new byte[]{(byte) in.read(), (byte) in.read(), (byte) in.read()});
+            assertEquals("End of value should be reached", -1, in.read());
+        }
+    }
+
+    @Test
+    public void testValueWriterIsDroppedOnStorageClose() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+        final File streamsDirectory = new File(storageFile.getPath() + ".streams");
+
+        final OutputStream out;
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[]{1});
+            out = storage.openWriter(1);
+            out.write(new byte[]{2, 2});
+        }
+        try {
+            out.close();
+            fail("Value writer should not be closed after storage");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals("Stream file should be deleted", 0, streamsDirectory.list().length);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertArrayEquals("Key should keep previous value", new byte[]{1}, storage.read(1).get());
+        }
+    }
+
+    @Test
+    public void testStreamedValueReaderDetectsDamage() throws IOException {
+        final byte[] value = new byte[10000];
+        new Random(42).nextBytes(value);
+        try (KVStorage storage = openTestStorage(testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS))) {
+            try (OutputStream out = storage.openWriter(1)) {
+                out.write(value);
+            }
+        }
+
+        final RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+        file.seek(storageFile.length() - 1);
+        file.write(value[value.length - 1] + 1);
+        file.close();
+
+        try (KVStorage storage = openTestStorage(testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS));
+             InputStream in = storage.openReader(1).get()) {
+            final byte[] part = new byte[1000];
+            while (in.read(part) >= 0) {
+                // Read up to the end
+            }
+            fail("Damaged value should not be read up to the end");
+        } catch (KVStorageDamagedException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testBlobLog() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(1000)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withBlobThresholdBytes(100)
+                .withBlobSegmentSize(4096);
+        final File blobsDirectory = new File(segmentsDirectory.getPath() + ".blobs");
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 20; key++) {
+                storage.persist(key, key % 2 == 0 ? blobValue(key, 0) : new byte[]{(byte) key});
+            }
+            storage.persistAll(new WriteBatch()
+                    .persist(20, blobValue(20, 0))
+                    .persist(21, new byte[]{21})
+                    .persist(0, blobValue(0, 1)));
+            storage.delete(2);
+            try (OutputStream out = storage.openWriter(4)) {
+                out.write(blobValue(4, 1));
+            }
+            assertBlobs(storage);
+            assertTrue("Blobs should be appended to blob log", blobsDirectory.list().length > 0);
+            assertTrue("Storage log should keep blob pointers", directoryBytes(segmentsDirectory) < 1000);
+        }
+
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config, config.withHintFile(false),
+                config.withIndexMode(KVStorageConfig.IndexMode.VALUES)}) {
+            try (KVStorage storage = openTestStorage(reopenConfig)) {
+                assertBlobs(storage);
+            }
+        }
+    }
+
+    private void assertBlobs(KVStorage storage) throws IOException {
+        assertArrayEquals("Overwritten blob should be read", blobValue(0, 1), storage.read(0).get());
+        assertFalse("Value should not exist, because it was deleted", storage.read(2).isPresent());
+        assertArrayEquals("Streamed blob should be read", blobValue(4, 1), storage.read(4).get());
+        for (int key = 5; key < 20; key++) {
+            assertArrayEquals("Value should equals to original",
+                    key % 2 == 0 ? blobValue(key, 0) : new byte[]{(byte) key}, storage.read(key).get());
+        }
+        assertArrayEquals("Blob of batch should be read", blobValue(20, 0), storage.read(20).get());
+        assertArrayEquals("Value of batch should be read", new byte[]{21}, storage.read(21).get());
+        try (InputStream in = storage.openReader(6).get()) {
+            final byte[] value = new byte[300];
+            int offset = 0;
+            int count;
+            while ((count = in.read(value, offset, value.length - offset)) > 0) {
+                offset += count;
+            }
+            assertArrayEquals("Blob should be read by stream", blobValue(6, 0), value);
+        }
+    }
+
+    @Test
+    public void testBlobLogCompaction() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(1000)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withBlobThresholdBytes(100)
+                .withBlobSegmentSize(4096);
+        final File blobsDirectory = new File(segmentsDirectory.getPath() + ".blobs");
+        final int count = 10;
+        final int rounds = 10;
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int round = 0; round < rounds; round++) {
+                for (int key = 0; key < count; key++) {
+                    storage.persist(key, blobValue(key, round));
+                }
+            }
+
+            storage.compact();
+
+            final CompactionStats stats = storage.getCompactionStats();
+            assertTrue("Blob segments should be compacted", stats.getCompletedCount() > 0);
+            assertTrue("Blob garbage should be reclaimed",
+                    directoryBytes(blobsDirectory) < count * rounds * 300 / 2);
+            for (int key = 0; key < count; key++) {
+                assertArrayEquals("Value should equal to later value", blobValue(key, rounds - 1), storage.read(key).get());
+            }
+        }
+
+        try (KVStorage storage = openTestStorage(config.withHintFile(false))) {
+            for (int key = 0; key < count; key++) {
+                assertArrayEquals("Value should be read after compaction", blobValue(key, rounds - 1), storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testTornBlobTailIsTruncated() throws IOException {
+        final KVStorageConfig config = testConfig().withBlobThresholdBytes(100).withHintFile(false);
+        final File blobsDirectory = new File(storageFile.getPath() + ".blobs");
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, blobValue(1, 0));
+        }
+        final File blobFile = blobsDirectory.listFiles()[0];
+        final long blobSize = blobFile.length();
+
+        // Blob, which pointer was not appended, as if crash happened after blob was written
+        RandomAccessFile file = new RandomAccessFile(blobFile, "rw");
+        file.seek(blobSize);
+        file.write(new byte[]{0, 0, 1, 0, 0, 0});
+        file.close();
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertArrayEquals("Blob should be read after torn tail", blobValue(1, 0), storage.read(1).get());
+            assertEquals("Unreferenced blob tail should be truncated", blobSize, blobFile.length());
+            storage.persist(2, blobValue(2, 0));
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertArrayEquals("Blob should be read", blobValue(1, 0), storage.read(1).get());
+            assertArrayEquals("Blob written after truncation should be read", blobValue(2, 0), storage.read(2).get());
+        }
+    }
+
+    private static byte[] blobValue(int key, int round) {
+        final byte[] value = new byte[300];
+        new Random(key * 31 + round).nextBytes(value);
+        return value;
+    }
+
+    private static long directoryBytes(File directory) {
+        long bytes = 0;
+        for (File file : directory.listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testBulkLoad() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(4096)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withCompression(KVStorageConfig.Compression.DEFLATE)
+                .withBlobThresholdBytes(100);
+        final List<KV> data = new ArrayList<>();
+        for (int key = 0; key < 1000; key++) {
+            data.add(new KV(key, key % 100 == 0 ? blobValue(key, 0) : new byte[]{(byte) key, 1, 2, 3}));
+        }
+        data.add(new KV(1, new byte[]{1}));
+        data.add(new KV(100, new byte[]{100}));
+
+        KVStorageFactory.bulkLoad(config, data.iterator());
+
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config, config.withHintFile(false),
+                config.withIndexMode(KVStorageConfig.IndexMode.VALUES)}) {
+            try (KVStorage storage = openTestStorage(reopenConfig)) {
+                if (reopenConfig.isHintFile()) {
+                    assertEquals("Loaded storage should not be replayed", 0, storage.getStats().getReplayedBytes());
+                }
+                assertEquals("Keys should be counted", 1000, storage.getStats().getKeyCount());
+                assertArrayEquals("Later value of key should be read", new byte[]{1}, storage.read(1).get());
+                assertArrayEquals("Later value of blob key should be read", new byte[]{100}, storage.read(100).get());
+                assertArrayEquals("Blob should be read", blobValue(200, 0), storage.read(200).get());
+                for (int key = 2; key < 100; key++) {
+                    assertArrayEquals("Value should equals to original", new byte[]{(byte) key, 1, 2, 3}, storage.read(key).get());
+                }
+            }
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1000, new byte[]{7});
+        }
+        try (KVStorage storage = openTestStorage(config)) {
+            assertArrayEquals("Value written after load should be read", new byte[]{7}, storage.read(1000).get());
+        }
+        try {
+            KVStorageFactory.bulkLoad(config, data.iterator());
+            fail("Storage with data should not be loaded");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testShardedBulkLoad() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS).withShards(3);
+        final List<KV> data = new ArrayList<>();
+        for (int key = 0; key < 1000; key++) {
+            data.add(new KV(key, new byte[]{(byte) key}));
+        }
+
+        KVStorageFactory.bulkLoad(config, data.iterator());
+
+        try (KVStorage storage = openTestStorage(config)) {
+            assertEquals("Keys of all shards should be counted", 1000, storage.getStats().getKeyCount());
+            assertEquals("Loaded shards should not be replayed", 0, storage.getStats().getReplayedBytes());
+            for (int key = 0; key < 1000; key++) {
+                assertArrayEquals("Value should equals to original", new byte[]{(byte) key}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        final KVStorageConfig config = segmentedTestConfig(1000)
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withBlobThresholdBytes(100)
+                .withCompactionMinStorageSize(0);
+        final File backupDirectory = new File("test.kvs.backup");
+        final KVStorageConfig backupConfig = config.withFilePaths(
+                new File(backupDirectory, segmentsDirectory.getName()).getPath(),
+                new File(backupDirectory, metaFile.getName()).getPath());
+
+        try {
+            try (KVStorage storage = openTestStorage(config)) {
+                for (int key = 0; key < 100; key++) {
+                    storage.persist(key, key % 10 == 0 ? blobValue(key, 0) : new byte[]{(byte) key, 0});
+                }
+                try (KVStorageSnapshot snapshot = storage.snapshot()) {
+                    for (int round = 1; round < 5; round++) {
+                        for (int key = 0; key < 50; key++) {
+                            storage.persist(key, new byte[]{(byte) key, (byte) round});
+                        }
+                    }
+                    for (int key = 50; key < 60; key++) {
+                        storage.delete(key);
+                    }
+                    storage.persistAll(new WriteBatch().persist(100, new byte[]{100}).delete(60).persist(61, new byte[]{61}));
+                    try {
+                        storage.compact();
+                        fail("Compaction should fail, while snapshot is open");
+                    } catch (IllegalStateException e) {
+                        // Expected
+                    }
+
+                    assertSnapshot(snapshot::read);
+                    snapshot.backup(backupDirectory);
+                    storage.persist(99, new byte[]{99, 9});
+                    assertSnapshot(snapshot::read);
+                    try {
+                        snapshot.backup(backupDirectory);
+                        fail("Backup should not overwrite storage");
+                    } catch (IllegalArgumentException e) {
+                        // Expected
+                    }
+                    assertArrayEquals("Storage should read later value", new byte[]{1, 4}, storage.read(1).get());
+                    assertFalse("Storage should not read deleted value", storage.read(50).isPresent());
+                }
+
+                storage.compact();
+                assertTrue("Compaction should run after snapshot is closed",
+                        storage.getCompactionStats().getCompletedCount() > 0);
+                assertArrayEquals("Storage should read later value", new byte[]{1, 4}, storage.read(1).get());
+            }
+
+            for (KVStorageConfig reopenConfig : new KVStorageConfig[]{backupConfig, backupConfig.withHintFile(false)}) {
+                try (KVStorage backup = openTestStorage(reopenConfig)) {
+                    if (reopenConfig.isHintFile()) {
+                        assertEquals("Backup should not be replayed", 0, backup.getStats().getReplayedBytes());
+                    }
+                    assertSnapshot(backup::read);
+                }
+            }
+        } finally {
+            deleteRecursively(backupDirectory);
+        }
+    }
+
+    @Test
+    public void testSnapshotIsInvalidatedByStorageClose() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS);
+
+        final KVStorageSnapshot snapshot;
+        try (KVStorage storage = openTestStorage(config)) {
+            storage.persist(1, new byte[]{1});
+            snapshot = storage.snapshot();
+        }
+        try {
+            snapshot.read(1);
+            fail("Snapshot should not be read after storage is closed");
+        } catch (IllegalStateException e) {
+            assertEquals("Storage is closed", e.getMessage());
+        }
+        try {
+            snapshot.backup(new File("test.kvs.backup"));
+            fail("Snapshot should not be backed up after storage is closed");
+        } catch (IllegalStateException e) {
+            assertEquals("Storage is closed", e.getMessage());
+        }
+        snapshot.close();
+    }
+
+    private static void assertSnapshot(Function<Integer, Optional<byte[]>> read) {
+        for (int key = 0; key < 100; key++) {
+            assertArrayEquals("Value at snapshot should be read",
+                    key % 10 == 0 ? blobValue(key, 0) : new byte[]{(byte) key, 0}, read.apply(key).get());
+        }
+        assertFalse("Key, written after snapshot, should not be read", read.apply(100).isPresent());
+    }
+
+    @Test
+    public void testShardedSnapshot() throws IOException {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.VALUES).withShards(3);
+        final File backupDirectory = new File("test.kvs.backup");
+
+        try {
+            try (KVStorage storage = openTestStorage(config)) {
+                for (int key = 0; key < 100; key++) {
+                    storage.persist(key, new byte[]{(byte) key});
+                }
+                try (KVStorageSnapshot snapshot = storage.snapshot()) {
+                    for (int key = 0; key < 100; key++) {
+                        storage.persist(key, new byte[]{(byte) key, 1});
+                    }
+                    storage.delete(7);
+                    snapshot.backup(backupDirectory);
+                    assertArrayEquals("Value at snapshot should be read", new byte[]{7}, snapshot.read(7).get());
+                }
+            }
+
+            try (KVStorage backup = openTestStorage(config.withFilePaths(
+                    new File(backupDirectory, storageFile.getName()).getPath(),
+                    new File(backupDirectory, metaFile.getName()).getPath()))) {
+                for (int key = 0; key < 100; key++) {
+                    assertArrayEquals("Value at snapshot should be read", new byte[]{(byte) key}, backup.read(key).get());
+                }
+            }
+        } finally {
+            deleteRecursively(backupDirectory);
+        }
+    }
+
+    @Test
+    public void testShardedStorage() throws IOException {
+        final KVStorageConfig config = testConfig()
+                .withIndexMode(KVStorageConfig.IndexMode.OFFSETS)
+                .withSortedIndex(true)
+                .withShards(4);
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < 1000; key++) {
+                storage.persist(key, new byte[]{(byte) key});
+            }
+            storage.delete(500);
+            storage.persistAll(new WriteBatch().persist(1000, new byte[]{1}).persist(1001, new byte[]{2}).delete(0));
+        }
+        for (int shard = 0; shard < 4; shard++) {
+            assertTrue("Every shard should have own file", new File(storageFile.getPath() + "." + shard).length() > 0);
+        }
+
+        for (KVStorageConfig reopenConfig : new KVStorageConfig[]{config, config.withHintFile(false)}) {
+            try (KVStorage storage = KVStorageFactory.openConcurrentStorage(reopenConfig)) {
+                assertArrayEquals("Value should equals to original", new byte[]{7}, storage.read(7).get());
+                assertFalse("Deleted value should not be read", storage.read(500).isPresent());
+                assertFalse("Value, deleted by batch, should not be read", storage.read(0).isPresent());
+                assertEquals("Values should be read from all shards", 3, storage.readAll(new int[]{1, 2, 1001, 500}).size());
+                assertEquals("Keys of all shards should be counted", 1000, storage.getStats().getKeyCount());
+
+                final List<Integer> keys = new ArrayList<>();
+                storage.scan(10, 20).forEachRemaining(kv -> keys.add(kv.getKey()));
+                assertEquals("Range of all shards should be scanned in key order",
+                        Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17, 18, 19), keys);
+            }
+        }
+    }
+
+    @Test
+    public void testShardedStorageConcurrentWrites() throws Exception {
+        final KVStorageConfig config = testConfig().withIndexMode(KVStorageConfig.IndexMode.OFFSETS).withShards(3);
+        final int threads = 4;
+        final int keysPerThread = 2000;
+
+        try (KVStorage storage = KVStorageFactory.openConcurrentStorage(config)) {
+            final List<Thread> writers = new ArrayList<>();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                writers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < keysPerThread; i++) {
+                            final int key = thread * keysPerThread + i;
+                            storage.persist(key, new byte[]{(byte) key, (byte) thread});
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }));
+            }
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertNull("Writes should not fail", failure.get());
+        }
+
+        try (KVStorage storage = openTestStorage(config)) {
+            for (int key = 0; key < threads * keysPerThread; key++) {
+                assertArrayEquals("Value should equals to original",
+                        new byte[]{(byte) key, (byte) (key / keysPerThread)}, storage.read(key).get());
+            }
+        }
+    }
+
+    @Test
+    public void testShardCountShouldNotDecrease() throws IOException {
+        try (KVStorage storage = openTestStorage(testConfig().withShards(4))) {
+            storage.persist(1, new byte[]{1});
+        }
+        exception.expect(IllegalArgumentException.class);
+        openTestStorage(testConfig().withShards(2));
+    }
+
+    @Test
+    public void testShardCountShouldNotIncrease() throws IOException {
+        try (KVStorage storage = openTestStorage(testConfig().withShards(4))) {
+            storage.persist(1, new byte[]{1});
+        }
+        exception.expect(IllegalArgumentException.class);
+        openTestStorage(testConfig().withShards(8));
+    }
+
+    @Test
+    public void testUnshardedStorageShouldNotBeSharded() throws IOException {
+        try (KVStorage storage = openTestStorage()) {
+            storage.persist(1, new byte[]{1});
+        }
+        exception.expect(IllegalArgumentException.class);
+        openTestStorage(testConfig().withShards(4));
+    }
+}
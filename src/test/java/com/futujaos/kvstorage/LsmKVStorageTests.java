@@ -0,0 +1,383 @@
+package com.futujaos.kvstorage;
+
+import com.futujaos.kvstorage.exceptions.KVStorageDamagedException;
+import com.futujaos.kvstorage.impl.CrashSimulator;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link com.futujaos.kvstorage.KVStorage} with {@link KVStorageConfig.Engine#LSM} engine.
+ */
+public class LsmKVStorageTests extends KVStorageBaseTester {
+
+    @Test
+    public void testReadInSameAndNewSession() throws IOException {
+        final KVStorageConfig config = lsmTestConfig().withMemtableBytes(4096).withTableMergeThreshold(3);
+        final Random random = new Random(42);
+        final Map<Integer, byte[]> expected = new HashMap<>();
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            for (int i = 0; i < 20000; i++) {
+                // Narrow key range, so values are overwritten and deleted in memtable and in tables
+                final int key = random.nextInt(3000);
+                if (random.nextInt(5) == 0) {
+                    storage.delete(key);
+                    expected.remove(key);
+                } else {
+                    final byte[] value = new byte[random.nextInt(40)];
+                    random.nextBytes(value);
+                    storage.persist(key, value);
+                    expected.put(key, value);
+                }
+            }
+            assertValues(storage, expected, 3000);
+            assertTrue("Tables should be merged", storage.getCompactionStats().getCompletedCount() > 0);
+        }
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            assertValues(storage, expected, 3000);
+        }
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        final KVStorageConfig config = lsmTestConfig().withMemtableBytes(1024).withScanBatchSize(7);
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            for (int key = 100; key >= -100; key--) {
+                storage.persist(key, new byte[]{(byte) key});
+            }
+            for (int key = -100; key <= 100; key += 3) {
+                storage.delete(key);
+            }
+            storage.persist(Integer.MAX_VALUE, new byte[]{1});
+
+            final List<Integer> keys = new ArrayList<>();
+            storage.scan(-10, 10).forEachRemaining(kv -> {
+                assertArrayEquals("Value should equals to original", new byte[]{(byte) kv.getKey()}, kv.getValue());
+                keys.add(kv.getKey());
+            });
+            assertEquals("Range should be scanned in key order, without deleted keys",
+                    Arrays.asList(-9, -8, -6, -5, -3, -2, 0, 1, 3, 4, 6, 7, 9), keys);
+        }
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            int count = 0;
+            int lastKey = Integer.MIN_VALUE;
+            for (KV kv : (Iterable<KV>) storage::scan) {
+                assertTrue("Keys should be scanned in order", count == 0 || kv.getKey() > lastKey);
+                lastKey = kv.getKey();
+                count++;
+            }
+            assertEquals("All keys should be scanned", 201 - 67 + 1, count);
+            assertEquals("Max key should be scanned", Integer.MAX_VALUE, lastKey);
+        }
+    }
+
+    @Test
+    public void testCompactionDropsOverwrittenAndDeletedValues() throws IOException {
+        final KVStorageConfig config = lsmTestConfig().withMemtableBytes(16 * 1024);
+        final byte[] value = new byte[100];
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            for (int round = 0; round < 5; round++) {
+                for (int key = 0; key < 1000; key++) {
+                    storage.persist(key, value);
+                }
+            }
+            for (int key = 0; key < 500; key++) {
+                storage.delete(key);
+            }
+            storage.compact();
+
+            final KVStorageStats stats = storage.getStats();
+            assertEquals("Only live keys should be left", 500, stats.getKeyCount());
+            assertTrue("Storage should keep live values only", stats.getStorageBytes() < 500 * 2 * value.length);
+            assertFalse("Deleted value should not be read", storage.read(42).isPresent());
+            assertArrayEquals("Value should equals to original", value, storage.read(542).get());
+        }
+    }
+
+    @Test
+    public void testKeyCountOfMemtable() throws IOException {
+        try (KVStorage storage = KVStorageFactory.openStorage(lsmTestConfig())) {
+            for (int key = 0; key < 100; key++) {
+                storage.persist(key, new byte[]{(byte) key});
+            }
+            for (int key = 0; key < 50; key++) {
+                storage.persist(key, new byte[]{(byte) -key});
+            }
+            storage.delete(99);
+            storage.delete(100);
+            assertEquals("Overwritten keys should be counted once, deleted keys should be counted", 101,
+                    storage.getStats().getKeyCount());
+        }
+    }
+
+    @Test
+    public void testBulkLoad() throws IOException {
+        final KVStorageConfig config = lsmTestConfig().withMemtableBytes(4096).withTableMergeThreshold(3);
+        final List<KV> data = new ArrayList<>();
+        final Map<Integer, byte[]> expected = new HashMap<>();
+        for (int key = 0; key < 3000; key += 2) {
+            data.add(new KV(key, new byte[]{(byte) key, 1, 2}));
+            expected.put(key, new byte[]{(byte) key, 1, 2});
+        }
+
+        KVStorageFactory.bulkLoad(config, data.iterator());
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            assertEquals("Loaded storage should not be replayed", 0, storage.getStats().getReplayedBytes());
+            assertValues(storage, expected, 3000);
+            for (int key = 1; key < 3000; key += 2) {
+                storage.persist(key, new byte[]{(byte) key});
+                expected.put(key, new byte[]{(byte) key});
+            }
+            storage.delete(0);
+            expected.remove(0);
+            assertValues(storage, expected, 3000);
+        }
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            assertValues(storage, expected, 3000);
+        }
+    }
+
+    @Test
+    public void testBulkLoadRequiresAscendingKeys() throws IOException {
+        final File directory = new File(lsmTestConfig().getStorageFilePath());
+        try {
+            KVStorageFactory.bulkLoad(lsmTestConfig(), Arrays.asList(
+                    new KV(1, new byte[]{1}), new KV(3, new byte[]{3}), new KV(2, new byte[]{2})).iterator());
+            fail("Keys in not ascending order should not be loaded");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals("Table of failed load should be deleted", 0, directory.list().length);
+    }
+
+    @Test
+    public void testStreamedValueLongerThanMemtableIsRejected() throws IOException {
+        try (KVStorage storage = KVStorageFactory.openStorage(lsmTestConfig().withMemtableBytes(1024))) {
+            storage.persist(1, new byte[]{1});
+            try (OutputStream out = storage.openWriter(2)) {
+                out.write(new byte[1024]);
+            }
+            try (OutputStream out = storage.openWriter(1)) {
+                out.write(new byte[1000]);
+                out.write(new byte[100]);
+                fail("Value longer than memtable should be rejected");
+            } catch (IOException e) {
+                // Expected
+            }
+
+            assertEquals("Value of memtable size should be written", 1024, storage.read(2).get().length);
+            assertArrayEquals("Key should keep previous value", new byte[]{1}, storage.read(1).get());
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        final KVStorageConfig config = lsmTestConfig().withMemtableBytes(4096).withTableMergeThreshold(3);
+        final File backupDirectory = new File("test.kvs.backup");
+        final KVStorageConfig backupConfig = config.withFilePaths(
+                new File(backupDirectory, segmentsDirectory.getName()).getPath(),
+                new File(backupDirectory, metaFile.getName()).getPath());
+
+        try {
+            try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+                for (int key = 0; key < 300; key++) {
+                    storage.persist(key, new byte[]{(byte) key, 0});
+                }
+                storage.delete(5);
+                final KVStorageSnapshot snapshot = storage.snapshot();
+                for (int round = 1; round < 5; round++) {
+                    for (int key = 0; key < 300; key++) {
+                        storage.persist(key, new byte[]{(byte) key, (byte) round});
+                    }
+                }
+                for (int key = 100; key < 110; key++) {
+                    storage.delete(key);
+                }
+                storage.persist(300, new byte[]{1});
+                storage.compact();
+
+                assertSnapshot(snapshot::read);
+                snapshot.backup(backupDirectory);
+                try {
+                    snapshot.backup(backupDirectory);
+                    fail("Backup should not overwrite storage");
+                } catch (IllegalArgumentException e) {
+                    // Expected
+                }
+                assertTrue("Tables, which snapshot reads, should be kept after merge", tableCount() > 1);
+                assertArrayEquals("Storage should read later value", new byte[]{1, 4}, storage.read(1).get());
+                assertFalse("Storage should not read deleted value", storage.read(100).isPresent());
+
+                snapshot.close();
+                assertEquals("Merged tables should be deleted, when snapshot is closed", 1, tableCount());
+                try {
+                    snapshot.read(1);
+                    fail("Closed snapshot should not be read");
+                } catch (IllegalStateException e) {
+                    assertEquals("Snapshot is closed", e.getMessage());
+                }
+            }
+
+            try (KVStorage backup = KVStorageFactory.openStorage(backupConfig)) {
+                assertEquals("Backup should not be replayed", 0, backup.getStats().getReplayedBytes());
+                assertSnapshot(backup::read);
+            }
+        } finally {
+            deleteRecursively(backupDirectory);
+        }
+    }
+
+    @Test
+    public void testSnapshotsOfMemtable() throws IOException {
+        try (KVStorage storage = KVStorageFactory.openStorage(lsmTestConfig())) {
+            final KVStorageSnapshot empty = storage.snapshot();
+            final List<KVStorageSnapshot> snapshots = new ArrayList<>();
+            for (int round = 0; round < 3; round++) {
+                for (int key = 0; key < 100; key++) {
+                    storage.persist(key, new byte[]{(byte) round});
+                }
+                storage.delete(round);
+                snapshots.add(storage.snapshot());
+            }
+            storage.persist(0, new byte[]{42});
+
+            assertFalse("Snapshot of empty storage should not read later value", empty.read(50).isPresent());
+            for (int round = 0; round < 3; round++) {
+                final KVStorageSnapshot snapshot = snapshots.get(round);
+                assertArrayEquals("Snapshot should not read later value", new byte[]{(byte) round},
+                        snapshot.read(50).get());
+                assertFalse("Snapshot should not read deleted value", snapshot.read(round).isPresent());
+                snapshot.close();
+            }
+            empty.close();
+            assertArrayEquals("Storage should read later value", new byte[]{42}, storage.read(0).get());
+            assertFalse("Storage should not read deleted value", storage.read(2).isPresent());
+        }
+    }
+
+    @Test
+    public void testSnapshotIsInvalidatedByStorageClose() throws IOException {
+        final KVStorageSnapshot snapshot;
+        try (KVStorage storage = KVStorageFactory.openStorage(lsmTestConfig())) {
+            storage.persist(1, new byte[]{1});
+            snapshot = storage.snapshot();
+        }
+        try {
+            snapshot.read(1);
+            fail("Snapshot should not be read after storage is closed");
+        } catch (IllegalStateException e) {
+            assertEquals("Storage is closed", e.getMessage());
+        }
+        try {
+            snapshot.backup(new File("test.kvs.backup"));
+            fail("Snapshot should not be backed up after storage is closed");
+        } catch (IllegalStateException e) {
+            assertEquals("Storage is closed", e.getMessage());
+        }
+        snapshot.close();
+    }
+
+    private static void assertSnapshot(Function<Integer, Optional<byte[]>> read) {
+        for (int key = 0; key < 300; key++) {
+            if (key == 5) {
+                assertFalse("Key, deleted before snapshot, should not be read", read.apply(key).isPresent());
+            } else {
+                assertArrayEquals("Value at snapshot should be read", new byte[]{(byte) key, 0}, read.apply(key).get());
+            }
+        }
+        assertFalse("Key, written after snapshot, should not be read", read.apply(300).isPresent());
+    }
+
+    private int tableCount() {
+        return segmentsDirectory.listFiles((dir, name) -> name.endsWith(".sst")).length;
+    }
+
+    @Test
+    public void testLogIsReplayedAfterCrash() throws IOException {
+        final KVStorageConfig config = lsmTestConfig().withDurabilityMode(KVStorageConfig.DurabilityMode.PER_WRITE);
+
+        // Storage is not closed, as if process crashed, so writes are left in log only
+        final KVStorage crashed = KVStorageFactory.openStorage(config);
+        crashed.persist(1, new byte[]{1});
+        crashed.persist(2, new byte[]{2});
+        crashed.persistAll(new WriteBatch().persist(3, new byte[]{3}).persist(4, new byte[]{4}).delete(1));
+        final File log = logFile();
+        final long logLength = log.length();
+        crashed.persistAll(new WriteBatch().persist(5, new byte[]{5}).persist(6, new byte[]{6}));
+        CrashSimulator.crash(crashed);
+
+        // Last batch is torn
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        assertTrue("Last batch should be torn", log.length() > logLength);
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            assertFalse("Deleted value should not be read", storage.read(1).isPresent());
+            assertArrayEquals("Value should be replayed", new byte[]{2}, storage.read(2).get());
+            assertArrayEquals("Value of batch should be replayed", new byte[]{4}, storage.read(4).get());
+            assertFalse("Torn batch should be discarded", storage.read(5).isPresent());
+            assertFalse("Torn batch should be discarded", storage.read(6).isPresent());
+        }
+    }
+
+    @Test
+    public void testDamagedTable() throws IOException {
+        final KVStorageConfig config = lsmTestConfig();
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            storage.persist(1, new byte[]{1, 2, 3, 4});
+        }
+        final File[] tables = segmentsDirectory.listFiles((dir, name) -> name.endsWith(".sst"));
+        assertEquals("Memtable should be flushed on close", 1, tables.length);
+        try (RandomAccessFile file = new RandomAccessFile(tables[0], "rw")) {
+            file.seek(9);
+            file.write(42);
+        }
+
+        try (KVStorage storage = KVStorageFactory.openStorage(config)) {
+            storage.read(1);
+            fail("Damaged entry should not be read");
+        } catch (UncheckedIOException e) {
+            assertTrue("Damage should be detected", e.getCause() instanceof KVStorageDamagedException);
+        }
+    }
+
+    private File logFile() {
+        final File[] logs = segmentsDirectory.listFiles((dir, name) -> name.endsWith(".log"));
+        assertEquals("Storage should have single log", 1, logs.length);
+        return logs[0];
+    }
+
+    private void assertValues(KVStorage storage, Map<Integer, byte[]> expected, int keyRange) {
+        for (int key = 0; key < keyRange; key++) {
+            final byte[] value = expected.get(key);
+            if (value != null) {
+                assertArrayEquals("Value should equals to original", value, storage.read(key).get());
+            } else {
+                assertFalse("Deleted value should not be read", storage.read(key).isPresent());
+            }
+        }
+    }
+}
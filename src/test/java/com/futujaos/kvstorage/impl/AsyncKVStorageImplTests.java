@@ -0,0 +1,135 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.AsyncKVStorage;
+import com.futujaos.kvstorage.KVStorage;
+import com.futujaos.kvstorage.KVStorageConfig;
+import com.futujaos.kvstorage.WriteBatch;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class AsyncKVStorageImplTests {
+
+    @Test
+    public void testFailedWriteDoesNotFailCoalescedWrites() throws Exception {
+        final Map<Integer, byte[]> values = new ConcurrentHashMap<>();
+        final CountDownLatch submitted = new CountDownLatch(1);
+        final KVStorage storage = rejectingEmptyValues(values, submitted);
+        final Set<String> completionThreads = ConcurrentHashMap.newKeySet();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        try (AsyncKVStorage asyncStorage = new AsyncKVStorageImpl(storage, KVStorageConfig.create("", ""))) {
+            // Writer is blocked by the first batch, so the rest is coalesced and dependent stages are attached
+            // before writes are completed
+            for (int key = 0; key < 100; key++) {
+                final CompletableFuture<Void> future = asyncStorage.persistAsync(key,
+                        key == 50 ? new byte[0] : new byte[]{(byte) key});
+                futures.add(future);
+                future.whenComplete((result, failure) -> completionThreads.add(Thread.currentThread().getName()));
+            }
+            submitted.countDown();
+
+            for (int key = 0; key < 100; key++) {
+                try {
+                    futures.get(key).get();
+                    assertTrue("Invalid write should fail", key != 50);
+                } catch (ExecutionException e) {
+                    assertEquals("Only invalid write should fail", 50, key);
+                    assertTrue("Failure of write should be reported", e.getCause() instanceof IllegalArgumentException);
+                }
+            }
+            assertEquals("Valid writes should be applied", 99, values.size());
+            assertEquals("Only applied writes should be counted",
+                    99, asyncStorage.getQueueStats().getCompletedWrites());
+            assertFalse("Futures should not be completed by writer", completionThreads.contains("kvstorage-writer"));
+        }
+    }
+
+    @Test
+    public void testWriterErrorFailsPendingWrites() throws Exception {
+        final CountDownLatch submitted = new CountDownLatch(1);
+        final Error error = new Error("Writer failure");
+        final KVStorage storage = (KVStorage) Proxy.newProxyInstance(KVStorage.class.getClassLoader(),
+                new Class<?>[]{KVStorage.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "persistAll":
+                            submitted.await();
+                            throw error;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        final AsyncKVStorage asyncStorage = new AsyncKVStorageImpl(storage,
+                KVStorageConfig.create("", "").withAsyncWriteQueueCapacity(10));
+        for (int key = 0; key < 10; key++) {
+            futures.add(asyncStorage.persistAsync(key, new byte[]{(byte) key}));
+        }
+        submitted.countDown();
+
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.get();
+                fail("Write should fail with failure of writer");
+            } catch (ExecutionException e) {
+                assertEquals("Failure of writer should be reported", error, e.getCause());
+            }
+        }
+        try {
+            asyncStorage.persistAsync(10, new byte[]{10}).get();
+            fail("Write should be rejected after failure of writer");
+        } catch (ExecutionException e) {
+            assertTrue("Write should be rejected", e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals("Failed writes should not be counted", 0, asyncStorage.getQueueStats().getCompletedWrites());
+        asyncStorage.close();
+    }
+
+    // Returns storage, which keeps values in map and rejects empty values. The first write waits for latch.
+    private static KVStorage rejectingEmptyValues(Map<Integer, byte[]> values, CountDownLatch latch) {
+        return (KVStorage) Proxy.newProxyInstance(KVStorage.class.getClassLoader(), new Class<?>[]{KVStorage.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "persistAll":
+                            latch.await();
+                            final WriteBatch batch = (WriteBatch) args[0];
+                            for (int i = 0; i < batch.size(); i++) {
+                                checkValue(batch.getValue(i));
+                            }
+                            for (int i = 0; i < batch.size(); i++) {
+                                values.put(batch.getKey(i), batch.getValue(i));
+                            }
+                            return null;
+                        case "persist":
+                            checkValue((byte[]) args[1]);
+                            values.put((Integer) args[0], (byte[]) args[1]);
+                            return null;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static void checkValue(byte[] value) {
+        if (value.length == 0) {
+            throw new IllegalArgumentException("Value should not be empty");
+        }
+    }
+}
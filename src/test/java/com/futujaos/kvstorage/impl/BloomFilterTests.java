@@ -0,0 +1,40 @@
+package com.futujaos.kvstorage.impl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link com.futujaos.kvstorage.impl.BloomFilter}
+ */
+public class BloomFilterTests {
+
+    @Test
+    public void testFalsePositiveRate() throws IOException {
+        final BloomFilter filter = BloomFilter.create(100000, 10);
+        for (int key = 0; key < 100000; key++) {
+            filter.add(key * 7);
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(bytes));
+        final BloomFilter read = BloomFilter.read(ByteBuffer.wrap(bytes.toByteArray()));
+
+        for (int key = 0; key < 100000; key++) {
+            assertTrue("Added key should be contained", read.mightContain(key * 7));
+        }
+        int falsePositives = 0;
+        for (int key = 0; key < 100000; key++) {
+            if (read.mightContain(key * 7 + 1)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positive rate should be about 1%, but it is " + falsePositives / 1000.0 + "%",
+                falsePositives < 2000);
+    }
+}
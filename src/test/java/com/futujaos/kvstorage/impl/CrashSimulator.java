@@ -0,0 +1,25 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.KVStorage;
+
+import java.io.IOException;
+
+/**
+ * Closes storage as if process crashed, so crash recovery is tested without leaking threads and files
+ * of crashed storage into following tests.
+ */
+public final class CrashSimulator {
+
+    private CrashSimulator() {
+    }
+
+    public static void crash(KVStorage storage) throws IOException {
+        if (storage instanceof KVStorageImpl) {
+            ((KVStorageImpl) storage).crash();
+        } else if (storage instanceof LsmKVStorageImpl) {
+            ((LsmKVStorageImpl) storage).crash();
+        } else {
+            throw new IllegalArgumentException("Crash of " + storage.getClass().getName() + " is not simulated");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.futujaos.kvstorage.impl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link com.futujaos.kvstorage.impl.IntLongHashMap}
+ */
+public class IntLongHashMapTests {
+
+    @Test
+    public void testRandomOperationsOnHeap() {
+        checkRandomOperations(false);
+    }
+
+    @Test
+    public void testRandomOperationsOffHeap() {
+        checkRandomOperations(true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedValue() {
+        new IntLongHashMap(0, false).put(1, IntLongHashMap.NO_VALUE);
+    }
+
+    private void checkRandomOperations(boolean offHeap) {
+        final Random random = new Random(42);
+        final IntLongHashMap map = new IntLongHashMap(0, offHeap);
+        final Map<Integer, Long> expected = new HashMap<>();
+
+        for (int i = 0; i < 200000; i++) {
+            // Narrow key range, so puts, updates and removes of existing keys are mixed
+            final int key = random.nextInt(50000) - 25000;
+            if (random.nextInt(4) == 0) {
+                final Long previous = expected.remove(key);
+                assertEquals("Removed value should match", previous == null ? 0 : previous, map.remove(key));
+            } else {
+                final long value = random.nextInt(Integer.MAX_VALUE) + 1L;
+                final Long previous = expected.put(key, value);
+                assertEquals("Previous value should match", previous == null ? 0 : previous, map.put(key, value));
+            }
+            assertEquals("Size should match", expected.size(), map.size());
+        }
+
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            assertEquals("Value should match", (long) entry.getValue(), map.get(entry.getKey()));
+        }
+
+        final int[] keys = map.keys();
+        Arrays.sort(keys);
+        final int[] expectedKeys = expected.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        assertArrayEquals("Keys should match", expectedKeys, keys);
+    }
+}
@@ -0,0 +1,151 @@
+package com.futujaos.kvstorage.impl;
+
+import com.futujaos.kvstorage.KVStorage;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Fails write to active log segment of storage, as if storage device got full in the middle of append,
+ * so handling of failed appends is tested.
+ */
+public final class WriteFailureSimulator {
+
+    private WriteFailureSimulator() {
+    }
+
+    /**
+     * Fails the first write to active log segment, which exceeds specified count of bytes, after writing bytes,
+     * which fit into it. Following writes succeed.
+     */
+    public static void failWriteAfter(KVStorage storage, long bytesCount) throws IOException {
+        if (!(storage instanceof KVStorageImpl)) {
+            throw new IllegalArgumentException(
+                    "Write failure of " + storage.getClass().getName() + " is not simulated");
+        }
+        final LogFile file = ((KVStorageImpl) storage).log.active().file();
+        try {
+            final Field field = LogFile.class.getDeclaredField("writeChannel");
+            field.setAccessible(true);
+            field.set(file, new FailingChannel((FileChannel) field.get(file), bytesCount));
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Write failure is not simulated", e);
+        }
+    }
+
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private long bytesCount;
+        private boolean failed;
+
+        FailingChannel(FileChannel channel, long bytesCount) {
+            this.channel = channel;
+            this.bytesCount = bytesCount;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failed || src.remaining() <= bytesCount) {
+                final int written = channel.write(src);
+                bytesCount -= written;
+                return written;
+            }
+            failed = true;
+            src.limit(src.position() + (int) bytesCount);
+            channel.write(src);
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}